@@ -0,0 +1,59 @@
+package outskirtslabs.ruuvi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Throughput of {@link BeaconParser#parse(HCIData)} for a single packet of
+ * each supported data format.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BeaconParserBenchmark {
+
+    public enum Format {
+        RAWV1(manufacturerDataFormat(3)),
+        RAWV2(manufacturerDataFormat(5)),
+        EDDYSTONE(data -> data.findAdvertisementDataByType(0xFF) == null && data.findAdvertisementDataByType(0x16) != null);
+
+        private final Predicate<HCIData> matcher;
+
+        Format(Predicate<HCIData> matcher) {
+            this.matcher = matcher;
+        }
+    }
+
+    @Param({"RAWV1", "RAWV2", "EDDYSTONE"})
+    public Format format;
+
+    private final BeaconParser parser = new BeaconParser();
+    private HCIData packet;
+
+    @Setup
+    public void setup() {
+        packet = Fixtures.firstPacket(format.matcher);
+    }
+
+    @Benchmark
+    public Optional<RuuviValue> parse() {
+        return parser.parse(packet);
+    }
+
+    private static Predicate<HCIData> manufacturerDataFormat(int dataFormat) {
+        return data -> {
+            HCIData.Report.AdvertisementData adData = data.findAdvertisementDataByType(0xFF);
+            if (adData == null) {
+                return false;
+            }
+            byte[] bytes = adData.dataBytes();
+            return bytes.length > 2 && (bytes[0] & 0xFF) == 0x99 && (bytes[1] & 0xFF) == 0x04 && bytes[2] == dataFormat;
+        };
+    }
+}
@@ -0,0 +1,103 @@
+package outskirtslabs.ruuvi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of decoding the btsnoop capture into measurements with their
+ * derived values, on the reading thread ({@code threads = 0}) and on a
+ * {@link DecodePipeline} with the given number of workers. One operation is a
+ * pass over the whole capture, submitted from a single reader; it completes
+ * when every packet has been decoded. Scaling is bounded by the number of
+ * devices in the capture, as the packets of a device go to one worker.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DecodePipelineBenchmark {
+
+    @Param({"0", "1", "2", "4", "8"})
+    public int threads;
+
+    private final List<ByteBuffer> frames = new ArrayList<>();
+    private final AtomicLong decoded = new AtomicLong();
+    private PacketDecoder inline;
+    private DecodePipeline pipeline;
+
+    @Setup
+    public void setUp() throws IOException {
+        try (HciEventSource source = DumpFormat.BTSNOOP.open(Channels.newChannel(new ByteArrayInputStream(Fixtures.bytes(Fixtures.BTSNOOP_CAPTURE))))) {
+            ByteBuffer frame;
+            while ((frame = source.next()) != null) {
+                ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+                copy.put(frame).flip();
+                frames.add(copy);
+            }
+        }
+        if (threads == 0) {
+            inline = new PacketDecoder();
+        } else {
+            pipeline = new DecodePipeline(threads, 1024, ThreadingMode.PLATFORM, worker -> new PacketDecoder());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @Benchmark
+    public long decodeCapture() {
+        long target = decoded.get() + frames.size();
+        for (ByteBuffer frame : frames) {
+            if (inline != null) {
+                inline.decode(frame.duplicate(), 0);
+            } else if (!pipeline.submit(frame.duplicate(), 0)) {
+                throw new UncheckedIOException(new IOException("The pipeline was closed"));
+            }
+        }
+        while (decoded.get() < target) {
+            Thread.onSpinWait();
+        }
+        return target;
+    }
+
+    /**
+     * The work of the receiver per packet, minus the listeners
+     */
+    private final class PacketDecoder implements DecodePipeline.Decoder {
+        private final HCIByteParser parser = new HCIByteParser();
+        private final BeaconParser beaconParser = new BeaconParser("benchmark");
+        private double sink;
+
+        @Override
+        public void decode(ByteBuffer frame, int adapter) {
+            HCIData hciData = parser.readPacket(frame);
+            if (hciData != null) {
+                RuuviData data = beaconParser.parse(hciData)
+                        .map(MeasurementValueCalculator::calculateAllValues)
+                        .orElse(null);
+                if (data != null) {
+                    data.getDerived().computeEnabled();
+                    Double dewPoint = data.getDerived().getDewPoint();
+                    sink += dewPoint == null ? 0 : dewPoint;
+                }
+            }
+            decoded.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package outskirtslabs.ruuvi;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput per measurement of deriving the heat index and the vapor
+ * pressure deficit of a batch of the measurements of the capture: in a
+ * listener with the boxed calculator methods, with a
+ * {@link DerivedValuePipeline} one measurement at a time like the receiver
+ * does, and with the pipeline over columns.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DerivedValueBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+
+    private final List<RuuviData> batch = new ArrayList<>();
+    private final DerivedValuePipeline pipeline = DerivedValuePipeline.of(List.of(
+            DerivedValuePlugin.heatIndex(), DerivedValuePlugin.vaporPressureDeficit()));
+    private long[] macs;
+    private double[][] inputColumns;
+    private double[][] outputColumns;
+
+    @Setup
+    public void setup() {
+        BeaconParser parser = new BeaconParser();
+        for (HCIData packet : Fixtures.packets()) {
+            if (batch.size() == BATCH_SIZE) {
+                break;
+            }
+            parser.parse(packet).ifPresent(value -> batch.add(MeasurementValueCalculator.calculateValues(value, 0, true)));
+        }
+        macs = new long[batch.size()];
+        inputColumns = new double[pipeline.getInputs().size()][batch.size()];
+        outputColumns = new double[pipeline.getOutputs().size()][batch.size()];
+        for (int j = 0; j < batch.size(); j++) {
+            RuuviValue measurement = batch.get(j).getMeasurement();
+            macs[j] = Util.macToLong(measurement.getMac());
+            for (int k = 0; k < inputColumns.length; k++) {
+                Number value = pipeline.getInputs().get(k).valueOf(measurement, batch.get(j).getDerived());
+                inputColumns[k][j] = value == null ? Double.NaN : value.doubleValue();
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void listener(Blackhole blackhole) {
+        for (RuuviData data : batch) {
+            RuuviValue measurement = data.getMeasurement();
+            blackhole.consume(MeasurementValueCalculator.heatIndex(measurement.getTemperature(), measurement.getHumidity()));
+            blackhole.consume(MeasurementValueCalculator.vaporPressureDeficit(measurement.getTemperature(), measurement.getHumidity()));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void pipeline() {
+        for (RuuviData data : batch) {
+            pipeline.apply(data.getMeasurement(), data.getDerived());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public double[][] pipelineColumns() {
+        pipeline.computeBatch(macs, inputColumns, outputColumns, macs.length);
+        return outputColumns;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public double[][] pipelineBatch() {
+        return pipeline.computeBatch(batch);
+    }
+}
@@ -0,0 +1,72 @@
+package outskirtslabs.ruuvi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Loads the captures checked in under src/main/resources/captures. Both
+ * captures contain the same 2000 advertisements from a mix of RuuviTags (data
+ * formats 3, 5 and 4 over Eddystone) and other devices, with the repeats
+ * produced by "hcitool lescan --duplicates".
+ */
+final class Fixtures {
+
+    /**
+     * Output of "hcidump --raw"
+     */
+    static final String HCIDUMP_CAPTURE = "/captures/mixed.hcidump.txt";
+    /**
+     * The same packets in the btsnoop format (datalink 1002)
+     */
+    static final String BTSNOOP_CAPTURE = "/captures/mixed.btsnoop";
+
+    private Fixtures() {
+    }
+
+    static byte[] bytes(String resource) {
+        try (InputStream in = Fixtures.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalArgumentException("Missing fixture " + resource);
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String[] lines(String resource) {
+        return new String(bytes(resource), StandardCharsets.US_ASCII).split("\n");
+    }
+
+    /**
+     * All the packets of the hcidump capture, parsed with the reference parser
+     */
+    static List<HCIData> packets() {
+        List<HCIData> packets = new ArrayList<>();
+        HCIParser parser = new HCIParser();
+        boolean dataReceived = false;
+        for (String line : lines(HCIDUMP_CAPTURE)) {
+            if (!dataReceived && !line.startsWith("> ")) {
+                continue; // skip the hcidump banner, like Receiver does
+            }
+            dataReceived = true;
+            HCIData data = parser.readLine(line);
+            if (data != null) {
+                packets.add(data);
+            }
+        }
+        return packets;
+    }
+
+    static HCIData firstPacket(Predicate<HCIData> predicate) {
+        return packets().stream()
+                .filter(predicate)
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No matching packet in " + HCIDUMP_CAPTURE));
+    }
+}
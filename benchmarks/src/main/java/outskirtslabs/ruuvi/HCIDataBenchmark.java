@@ -0,0 +1,37 @@
+package outskirtslabs.ruuvi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link HCIData#findAdvertisementDataByType(int)} on a RAWv2
+ * packet, for the first advertisement structure (flags), the manufacturer
+ * specific data and a type that is not present.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HCIDataBenchmark {
+
+    @Param({"1", "255", "22"})
+    public int type;
+
+    private HCIData packet;
+
+    @Setup
+    public void setup() {
+        packet = Fixtures.firstPacket(data -> {
+            HCIData.Report.AdvertisementData adData = data.findAdvertisementDataByType(0xFF);
+            return adData != null && adData.data != null && adData.data.size() > 2 && adData.data.get(2) == 5;
+        });
+    }
+
+    @Benchmark
+    public HCIData.Report.AdvertisementData findAdvertisementDataByType() {
+        return packet.findAdvertisementDataByType(type);
+    }
+}
@@ -0,0 +1,41 @@
+package outskirtslabs.ruuvi;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of turning hcidump raw output into {@link HCIData}. One
+ * operation is a pass over the whole capture.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HCIParserBenchmark {
+
+    private static final String[] LINES = Arrays.stream(Fixtures.lines(Fixtures.HCIDUMP_CAPTURE))
+            .filter(line -> line.startsWith("> ") || line.startsWith("< ") || line.startsWith("  "))
+            .toArray(String[]::new);
+
+    @Param({"STATE_MACHINE", "BYTE_BUFFER"})
+    public HCIParserEngine engine;
+
+    private HCILineParser parser;
+
+    @Setup
+    public void setup() {
+        parser = engine.newParser();
+    }
+
+    @Benchmark
+    public void readCapture(Blackhole blackhole) {
+        for (String line : LINES) {
+            blackhole.consume(parser.readLine(line));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package outskirtslabs.ruuvi;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of reading the btsnoop capture into {@link HCIData}, for
+ * comparison with parsing the same packets from hcidump text in
+ * {@link HCIParserBenchmark}. One operation is a pass over the whole capture.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HciEventSourceBenchmark {
+
+    private static final byte[] CAPTURE = Fixtures.bytes(Fixtures.BTSNOOP_CAPTURE);
+
+    private final HCIByteParser parser = new HCIByteParser();
+
+    @Benchmark
+    public void readCapture(Blackhole blackhole) throws IOException {
+        try (HciEventSource source = DumpFormat.BTSNOOP.open(Channels.newChannel(new ByteArrayInputStream(CAPTURE)))) {
+            ByteBuffer frame;
+            while ((frame = source.next()) != null) {
+                blackhole.consume(parser.readPacket(frame));
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package outskirtslabs.ruuvi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A minimal JSON encoding of measurements, as a gateway without a JSON
+ * library would write it, to compare the binary encoding with. Objects have
+ * the non-null fields of the {@link RuuviValue}; the strings are not escaped,
+ * which the names and MAC addresses of the captures don't need.
+ */
+final class Json {
+
+    private Json() {
+    }
+
+    static void encode(List<RuuviValue> batch, StringBuilder out) {
+        out.append('[');
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            encode(batch.get(i), out);
+        }
+        out.append(']');
+    }
+
+    static void encode(RuuviValue v, StringBuilder out) {
+        out.append('{');
+        int start = out.length();
+        field(out, start, "dataFormat", v.getDataFormat());
+        field(out, start, "temperature", v.getTemperature());
+        field(out, start, "humidity", v.getHumidity());
+        field(out, start, "pressure", v.getPressure());
+        field(out, start, "accelerationX", v.getAccelerationX());
+        field(out, start, "accelerationY", v.getAccelerationY());
+        field(out, start, "accelerationZ", v.getAccelerationZ());
+        field(out, start, "batteryVoltage", v.getBatteryVoltage());
+        field(out, start, "txPower", v.getTxPower());
+        field(out, start, "movementCounter", v.getMovementCounter());
+        field(out, start, "measurementSequenceNumber", v.getMeasurementSequenceNumber());
+        field(out, start, "time", v.getTime());
+        field(out, start, "name", v.getName());
+        field(out, start, "mac", v.getMac());
+        field(out, start, "receiver", v.getReceiver());
+        field(out, start, "rssi", v.getRssi());
+        out.append('}');
+    }
+
+    private static void field(StringBuilder out, int start, String name, Object value) {
+        if (value == null) {
+            return;
+        }
+        if (out.length() > start) {
+            out.append(',');
+        }
+        out.append('"').append(name).append("\":");
+        if (value instanceof String) {
+            out.append('"').append(value).append('"');
+        } else {
+            out.append(value);
+        }
+    }
+
+    /**
+     * Parses what {@link #encode(List, StringBuilder)} writes
+     */
+    static List<RuuviValue> decode(CharSequence in) {
+        List<RuuviValue> batch = new ArrayList<>();
+        int i = 1; // [
+        while (in.charAt(i) == '{') {
+            RuuviValue.RuuviValueBuilder builder = RuuviValue.builder();
+            i++;
+            while (in.charAt(i) == '"') {
+                int nameEnd = indexOf(in, '"', i + 1);
+                String name = in.subSequence(i + 1, nameEnd).toString();
+                int valueStart = nameEnd + 2;
+                int valueEnd;
+                String value;
+                if (in.charAt(valueStart) == '"') {
+                    valueEnd = indexOf(in, '"', valueStart + 1) + 1;
+                    value = in.subSequence(valueStart + 1, valueEnd - 1).toString();
+                } else {
+                    valueEnd = valueStart;
+                    while (in.charAt(valueEnd) != ',' && in.charAt(valueEnd) != '}') {
+                        valueEnd++;
+                    }
+                    value = in.subSequence(valueStart, valueEnd).toString();
+                }
+                set(builder, name, value);
+                i = in.charAt(valueEnd) == ',' ? valueEnd + 1 : valueEnd;
+            }
+            batch.add(builder.build());
+            i++; // }
+            if (in.charAt(i) == ',') {
+                i++;
+            }
+        }
+        return batch;
+    }
+
+    private static int indexOf(CharSequence in, char c, int from) {
+        while (in.charAt(from) != c) {
+            from++;
+        }
+        return from;
+    }
+
+    private static void set(RuuviValue.RuuviValueBuilder builder, String name, String value) {
+        switch (name) {
+            case "dataFormat": builder.dataFormat(Integer.valueOf(value)); break;
+            case "temperature": builder.temperature(Double.valueOf(value)); break;
+            case "humidity": builder.humidity(Double.valueOf(value)); break;
+            case "pressure": builder.pressure(Double.valueOf(value)); break;
+            case "accelerationX": builder.accelerationX(Double.valueOf(value)); break;
+            case "accelerationY": builder.accelerationY(Double.valueOf(value)); break;
+            case "accelerationZ": builder.accelerationZ(Double.valueOf(value)); break;
+            case "batteryVoltage": builder.batteryVoltage(Double.valueOf(value)); break;
+            case "txPower": builder.txPower(Integer.valueOf(value)); break;
+            case "movementCounter": builder.movementCounter(Integer.valueOf(value)); break;
+            case "measurementSequenceNumber": builder.measurementSequenceNumber(Integer.valueOf(value)); break;
+            case "time": builder.time(Long.valueOf(value)); break;
+            case "name": builder.name(value); break;
+            case "mac": builder.mac(value); break;
+            case "receiver": builder.receiver(value); break;
+            case "rssi": builder.rssi(Integer.valueOf(value)); break;
+            default: throw new IllegalArgumentException("Unknown field " + name);
+        }
+    }
+}
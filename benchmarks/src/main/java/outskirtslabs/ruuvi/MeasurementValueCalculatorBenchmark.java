@@ -0,0 +1,58 @@
+package outskirtslabs.ruuvi;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the derived values of a RAWv2 measurement, which has all the
+ * inputs of the derived values. The values are calculated lazily, so each
+ * benchmark reads the values a listener would use.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MeasurementValueCalculatorBenchmark {
+
+    private RuuviValue measurement;
+
+    @Setup
+    public void setup() {
+        measurement = new BeaconParser()
+                .parse(Fixtures.firstPacket(data -> data.findAdvertisementDataByType(0xFF) != null && new BeaconParser().parse(data)
+                        .filter(value -> value.getDataFormat() == 5)
+                        .isPresent()))
+                .orElseThrow();
+    }
+
+    private static final int HUMIDITY_FIELDS = DerivedField.ABSOLUTE_HUMIDITY.bit() | DerivedField.DEW_POINT.bit();
+
+    @Benchmark
+    public void calculateAllValues(Blackhole blackhole) {
+        RuuviDerivedValue derived = MeasurementValueCalculator.calculateAllValues(measurement).getDerived();
+        blackhole.consume(derived.getAccelerationTotal());
+        blackhole.consume(derived.getAccelerationAngleFromX());
+        blackhole.consume(derived.getAccelerationAngleFromY());
+        blackhole.consume(derived.getAccelerationAngleFromZ());
+        blackhole.consume(derived.getAbsoluteHumidity());
+        blackhole.consume(derived.getDewPoint());
+        blackhole.consume(derived.getEquilibriumVaporPressure());
+        blackhole.consume(derived.getAirDensity());
+    }
+
+    @Benchmark
+    public void calculateHumidityValues(Blackhole blackhole) {
+        RuuviDerivedValue derived = MeasurementValueCalculator.calculateValues(measurement, HUMIDITY_FIELDS).getDerived();
+        blackhole.consume(derived.getAbsoluteHumidity());
+        blackhole.consume(derived.getDewPoint());
+    }
+
+    @Benchmark
+    public RuuviData calculateNoValues() {
+        return MeasurementValueCalculator.calculateValues(measurement, 0);
+    }
+}
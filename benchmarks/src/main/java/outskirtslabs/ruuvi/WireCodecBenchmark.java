@@ -0,0 +1,148 @@
+package outskirtslabs.ruuvi;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput per measurement of encoding a batch of the measurements of the
+ * capture for forwarding with a {@link MeasurementEncoder}, compared with
+ * JSON and {@code toString()}, and of decoding them again. The encoding
+ * benchmarks count the bytes they write in the secondary result
+ * {@code bytes}, per second like the throughput, so the size of each encoding
+ * per measurement is the ratio of the two.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireCodecBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+
+    private final List<RuuviValue> batch = new ArrayList<>();
+    private final MeasurementEncoder encoder = new MeasurementEncoder();
+    private final MeasurementDecoder decoder = new MeasurementDecoder();
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final StringBuilder json = new StringBuilder();
+    private ByteBuffer frame;
+    private byte[] jsonBytes;
+
+    @Setup
+    public void setup() {
+        BeaconParser parser = new BeaconParser();
+        long time = 1_700_000_000_000L;
+        for (HCIData packet : Fixtures.packets()) {
+            if (batch.size() == BATCH_SIZE) {
+                break;
+            }
+            time += 100;
+            long measured = time;
+            parser.parse(packet).ifPresent(value -> batch.add(CompactRuuviValue.from(value).toBuilder()
+                    .time(measured)
+                    .receiver("gateway-1")
+                    .build()));
+        }
+        frame = ByteBuffer.wrap(encodedFrame());
+        Json.encode(batch, json);
+        jsonBytes = json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The bytes written by the encoding benchmarks
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class EncodedBytes {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    private byte[] encodedFrame() {
+        buffer.clear();
+        encoder.startFrame(buffer);
+        for (RuuviValue value : batch) {
+            encoder.add(value, null);
+        }
+        encoder.finishFrame();
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip().get(bytes);
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int encodeBinary(EncodedBytes encoded) {
+        buffer.clear();
+        encoder.startFrame(buffer);
+        for (RuuviValue value : batch) {
+            encoder.add(value, null);
+        }
+        int length = encoder.finishFrame();
+        encoded.bytes += length;
+        return length;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public byte[] encodeJson(EncodedBytes encoded) {
+        json.setLength(0);
+        Json.encode(batch, json);
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        encoded.bytes += bytes.length;
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void encodeToString(Blackhole blackhole, EncodedBytes encoded) {
+        for (RuuviValue value : batch) {
+            byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+            encoded.bytes += bytes.length;
+            blackhole.consume(bytes);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int decodeBinaryCompact(Blackhole blackhole) throws Exception {
+        frame.rewind();
+        return decoder.readFrame(frame, (CompactMeasurementListener) blackhole::consume);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int decodeBinary(Blackhole blackhole) throws Exception {
+        frame.rewind();
+        return decoder.readFrame(frame, new MeasurementListener() {
+            @Override
+            public void measured(RuuviValue measurement, RuuviDerivedValue derived) {
+                blackhole.consume(measurement);
+            }
+
+            @Override
+            public Set<DerivedField> getDerivedFields() {
+                return EnumSet.noneOf(DerivedField.class);
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public List<RuuviValue> decodeJson() {
+        return Json.decode(new String(jsonBytes, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,102 @@
+package outskirtslabs.ruuvi;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * A bluetooth adapter supervised by a {@link Receiver}, as the commands that
+ * start the scan and dump its traffic, as a source of binary HCI events, or
+ * as a recorded capture to replay.
+ * The id is set as the {@link RuuviValue#getReceiver() receiver} of the
+ * measurements received through the adapter.
+ */
+@Value
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class Adapter {
+
+    /**
+     * The speed at which {@link #replay(String, Path, DumpFormat, double)}
+     * replays a capture without waiting between the packets
+     */
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+    String id;
+    /**
+     * The command starting the scan, empty if not needed
+     */
+    String scanCommand;
+    /**
+     * The command dumping the traffic, null if an event source is used
+     */
+    String dumpCommand;
+    /**
+     * The source of the events, null if a dump command is used
+     */
+    HciEventSource.Factory eventSourceFactory;
+    /**
+     * The capture file to replay, null if the adapter is live
+     */
+    Path capture;
+    DumpFormat captureFormat;
+    /**
+     * How many times faster than it was recorded the capture is replayed
+     */
+    double replaySpeed;
+
+    /**
+     * An adapter of this host, such as "hci0", scanning with hcitool and
+     * dumped with hcidump.
+     */
+    public static Adapter hci(String device) {
+        return command(device,
+                "hcitool -i " + device + " lescan --duplicates --passive",
+                "hcidump -i " + device + " --raw");
+    }
+
+    public static Adapter command(String id, String scanCommand, String dumpCommand) {
+        if (scanCommand == null || scanCommand.trim().length() == 0 || dumpCommand == null || dumpCommand.trim().length() == 0)
+            throw new RuntimeException("Scan command and dump command must valid commands.");
+        return new Adapter(Objects.requireNonNull(id), scanCommand.trim(), dumpCommand.trim(), null, null, null, 0);
+    }
+
+    /**
+     * @param scanCommand the command starting the scan, or null if scanning is
+     *                    not needed, such as when reading a recording
+     */
+    public static Adapter eventSource(String id, String scanCommand, HciEventSource.Factory eventSourceFactory) {
+        return new Adapter(Objects.requireNonNull(id), scanCommand == null ? "" : scanCommand.trim(), null, Objects.requireNonNull(eventSourceFactory), null, null, 0);
+    }
+
+    /**
+     * A capture recorded earlier, for example with a {@link CaptureRecorder},
+     * replayed once through the same parsers as a live adapter. The binary
+     * formats are replayed following their timestamps, at the given speed.
+     * {@link DumpFormat#TEXT} captures have no timestamps, so they are always
+     * replayed as fast as possible. The adapter becomes
+     * {@link HealthState#FINISHED} at the end of the capture.
+     *
+     * @param speed how many times faster than recorded to replay, 1 for real
+     *              time, or {@link #AS_FAST_AS_POSSIBLE}
+     */
+    public static Adapter replay(String id, Path capture, DumpFormat format, double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("The replay speed must be positive");
+        }
+        return new Adapter(Objects.requireNonNull(id), "", null, null, Objects.requireNonNull(capture), Objects.requireNonNull(format), speed);
+    }
+
+    boolean isReplay() {
+        return capture != null;
+    }
+
+    /**
+     * @return the name of this adapter in logs, thread names and metrics
+     */
+    String name() {
+        return id.isEmpty() ? "adapter" : id;
+    }
+}
@@ -0,0 +1,145 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Merges the copies of a broadcast heard by several adapters, keeping the one
+ * with the best RSSI. The first copy of a reading is held for a window, during
+ * which copies from the other adapters replace it if their RSSI is better;
+ * then it is passed downstream. Copies arriving within a window after the
+ * reading was passed on are dropped too. A reading with the same values
+ * arriving later is passed, as tags without sequence numbers, RAWv1 and
+ * Eddystone, repeat their values while they don't change.
+ * <p>
+ * Copies are recognized by having the same values, ignoring the RSSI and the
+ * receiver. Readings are passed downstream one at a time, while holding the
+ * lock of this deduplicator.
+ */
+class AdapterDeduplicator {
+
+    private final long windowNanos;
+    private final Consumer<RuuviData> downstream;
+    private final MacIndex index = new MacIndex(64);
+    private RuuviData[] pending = new RuuviData[64];
+    private long[] deadlines = new long[64];
+    private RuuviValue[] lastPassed = new RuuviValue[64];
+    private long[] passedNanos = new long[64];
+    private long[] lastSeenNanos = new long[64];
+    private final LongAdder duplicates = new LongAdder();
+
+    AdapterDeduplicator(long windowNanos, Consumer<RuuviData> downstream) {
+        this.windowNanos = windowNanos;
+        this.downstream = downstream;
+    }
+
+    synchronized void offer(RuuviData data, long nowNanos) {
+        RuuviValue measurement = data.getMeasurement();
+        long mac = Util.macToLong(measurement.getMac());
+        if (mac < 0) {
+            downstream.accept(data);
+            return;
+        }
+        int i = index.indexOf(mac);
+        if (i < 0) {
+            i = index.add(mac);
+            pending = MacIndex.grow(pending, i);
+            deadlines = MacIndex.grow(deadlines, i);
+            lastPassed = MacIndex.grow(lastPassed, i);
+            passedNanos = MacIndex.grow(passedNanos, i);
+            lastSeenNanos = MacIndex.grow(lastSeenNanos, i);
+            pending[i] = null;
+            lastPassed[i] = null;
+        }
+        lastSeenNanos[i] = nowNanos;
+        RuuviData held = pending[i];
+        if (held != null) {
+            if (isSameReading(held.getMeasurement(), measurement)) {
+                duplicates.increment();
+                if (rssi(measurement) > rssi(held.getMeasurement())) {
+                    pending[i] = data;
+                }
+                return;
+            }
+            pass(i, nowNanos); // a new reading, the held one can't get any more copies
+        } else if (lastPassed[i] != null && nowNanos - passedNanos[i] < windowNanos && isSameReading(lastPassed[i], measurement)) {
+            duplicates.increment();
+            return;
+        }
+        pending[i] = data;
+        deadlines[i] = nowNanos + windowNanos;
+    }
+
+    /**
+     * Passes downstream the readings whose window has ended, and forgets the
+     * devices that have not been seen for
+     * {@link MeasurementThrottle#IDLE_TIMEOUT_NANOS}
+     */
+    synchronized void flushExpired(long nowNanos) {
+        for (int i = 0; i < index.indexLimit(); i++) {
+            long mac = index.keyAt(i);
+            if (mac == MacIndex.NO_KEY) {
+                continue;
+            }
+            if (pending[i] != null && nowNanos - deadlines[i] >= 0) {
+                pass(i, nowNanos);
+            }
+            if (pending[i] == null && nowNanos - lastSeenNanos[i] > MeasurementThrottle.IDLE_TIMEOUT_NANOS) {
+                index.remove(mac);
+                lastPassed[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Passes downstream all the held readings
+     */
+    synchronized void flushAll() {
+        long now = System.nanoTime();
+        for (int i = 0; i < index.indexLimit(); i++) {
+            if (index.keyAt(i) != MacIndex.NO_KEY && pending[i] != null) {
+                pass(i, now);
+            }
+        }
+    }
+
+    long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    /**
+     * @return the period at which {@link #flushExpired(long)} should be called
+     */
+    long getFlushPeriodNanos() {
+        return Math.max(TimeUnit.MILLISECONDS.toNanos(1), windowNanos / 4);
+    }
+
+    private void pass(int i, long nowNanos) {
+        RuuviData data = pending[i];
+        pending[i] = null;
+        lastPassed[i] = data.getMeasurement();
+        passedNanos[i] = nowNanos;
+        downstream.accept(data);
+    }
+
+    private static int rssi(RuuviValue value) {
+        return value.getRssi() == null ? Integer.MIN_VALUE : value.getRssi();
+    }
+
+    static boolean isSameReading(RuuviValue a, RuuviValue b) {
+        return Objects.equals(a.getDataFormat(), b.getDataFormat())
+                && Objects.equals(a.getMeasurementSequenceNumber(), b.getMeasurementSequenceNumber())
+                && Objects.equals(a.getMovementCounter(), b.getMovementCounter())
+                && Objects.equals(a.getTemperature(), b.getTemperature())
+                && Objects.equals(a.getHumidity(), b.getHumidity())
+                && Objects.equals(a.getPressure(), b.getPressure())
+                && Objects.equals(a.getAccelerationX(), b.getAccelerationX())
+                && Objects.equals(a.getAccelerationY(), b.getAccelerationY())
+                && Objects.equals(a.getAccelerationZ(), b.getAccelerationZ())
+                && Objects.equals(a.getBatteryVoltage(), b.getBatteryVoltage())
+                && Objects.equals(a.getTxPower(), b.getTxPower())
+                && Objects.equals(a.getTime(), b.getTime());
+    }
+}
@@ -0,0 +1,177 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an {@link AdapterSupervisor} for each adapter of a receiver, and
+ * checks every second on the housekeeping thread that the adapters are
+ * still receiving. Holds the settings the supervisors read when they
+ * restart an adapter or duty-cycle its scan, and notifies the
+ * {@link HealthListener}s of the changes of health they report.
+ */
+final class AdapterSupervision {
+
+    private static final Logger LOG = Logger.getLogger(AdapterSupervision.class);
+
+    private final List<Adapter> adapters;
+    private final ScheduledExecutorService housekeeping;
+    private final Map<String, AdapterSupervisor> supervisors = new LinkedHashMap<>();
+    private final Set<HealthListener> healthListeners = new CopyOnWriteArraySet<>();
+    private final InterruptSignaller interruptSignaller = new InterruptSignaller();
+    private volatile long restartBackoffMinNanos = Receiver.DEFAULT_RESTART_BACKOFF_MIN.toNanos();
+    private volatile long restartBackoffMaxNanos = Receiver.DEFAULT_RESTART_BACKOFF_MAX.toNanos();
+    private volatile long stallTimeoutNanos = Receiver.DEFAULT_STALL_TIMEOUT.toNanos();
+    private volatile long scanSamplingIntervalNanos;
+    private volatile ReceiverMetrics metrics = ReceiverMetrics.NONE;
+    private ScheduledFuture<?> stallCheck;
+
+    AdapterSupervision(List<Adapter> adapters, ScheduledExecutorService housekeeping) {
+        this.adapters = adapters;
+        this.housekeeping = housekeeping;
+    }
+
+    /**
+     * Starts a supervisor for each adapter, with a {@link ScanScheduler} for
+     * those scanning if the scans are duty-cycled
+     *
+     * @param shards the number of threads decoding the packets of an adapter
+     */
+    synchronized void start(PacketReader reader, int shards, ThreadingMode threadingMode) {
+        long samplingInterval = scanSamplingIntervalNanos;
+        ScanScheduler[] schedulers = null;
+        if (samplingInterval > 0) {
+            schedulers = new ScanScheduler[adapters.size()];
+            for (int i = 0; i < schedulers.length; i++) {
+                Adapter adapter = adapters.get(i);
+                if (!adapter.isReplay() && adapter.getScanCommand().length() > 0) {
+                    schedulers[i] = new ScanScheduler(samplingInterval, shards, System::nanoTime);
+                }
+            }
+        }
+        reader.setScanSchedulers(schedulers);
+        for (int i = 0; i < adapters.size(); i++) {
+            AdapterSupervisor supervisor = new AdapterSupervisor(adapters.get(i), i, schedulers == null ? null : schedulers[i], this, reader, threadingMode);
+            supervisors.put(supervisor.adapter.getId(), supervisor);
+            supervisor.start();
+        }
+        if (stallCheck == null) {
+            stallCheck = housekeeping.scheduleWithFixedDelay(this::checkStalls, 1, 1, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the supervisors and waits for them to stop their processes, then
+     * stops the shell signalling them
+     */
+    void stop() {
+        List<AdapterSupervisor> stopping;
+        synchronized (this) {
+            stopping = new ArrayList<>(supervisors.values());
+            supervisors.clear();
+        }
+        stopping.forEach(AdapterSupervisor::stop);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(AdapterSupervisor.STOP_TIMEOUT_SEC);
+        for (AdapterSupervisor supervisor : stopping) {
+            if (!supervisor.join(deadline)) {
+                LOG.warn(String.format("Supervisor of %s did not stop in time", supervisor.name));
+            }
+        }
+        interruptSignaller.close();
+    }
+
+    synchronized Map<String, HealthState> getHealth() {
+        Map<String, HealthState> health = new LinkedHashMap<>();
+        supervisors.forEach((id, supervisor) -> health.put(id, supervisor.getHealth()));
+        return health;
+    }
+
+    synchronized Map<String, ScanCoverage> getScanCoverage() {
+        Map<String, ScanCoverage> coverage = new LinkedHashMap<>();
+        supervisors.forEach((id, supervisor) -> {
+            if (supervisor.scheduler != null) {
+                coverage.put(id, supervisor.scheduler.coverage());
+            }
+        });
+        return coverage;
+    }
+
+    void addHealthListener(HealthListener listener) {
+        healthListeners.add(Objects.requireNonNull(listener));
+    }
+
+    void removeHealthListener(HealthListener listener) {
+        healthListeners.remove(listener);
+    }
+
+    void setRestartBackoff(long minNanos, long maxNanos) {
+        restartBackoffMinNanos = minNanos;
+        restartBackoffMaxNanos = maxNanos;
+    }
+
+    long getRestartBackoffMinNanos() {
+        return restartBackoffMinNanos;
+    }
+
+    long getRestartBackoffMaxNanos() {
+        return restartBackoffMaxNanos;
+    }
+
+    void setStallTimeout(long timeoutNanos) {
+        stallTimeoutNanos = timeoutNanos;
+    }
+
+    void setScanSamplingInterval(long samplingIntervalNanos) {
+        scanSamplingIntervalNanos = samplingIntervalNanos;
+    }
+
+    void setMetrics(ReceiverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    ReceiverMetrics getMetrics() {
+        return metrics;
+    }
+
+    InterruptSignaller getInterruptSignaller() {
+        return interruptSignaller;
+    }
+
+    void notifyHealthChanged(Adapter adapter, HealthState previous, HealthState current) {
+        LOG.info(String.format("Adapter %s is %s", adapter.name(), current));
+        healthListeners.forEach(listener -> {
+            try {
+                listener.healthChanged(adapter, previous, current);
+            } catch (Exception e) {
+                LOG.warn("Notifying health listener failed", e);
+            }
+        });
+    }
+
+    private void checkStalls() {
+        long timeout = stallTimeoutNanos;
+        if (timeout == 0) {
+            return;
+        }
+        List<AdapterSupervisor> checked;
+        synchronized (this) {
+            checked = new ArrayList<>(supervisors.values());
+        }
+        long now = System.nanoTime();
+        for (AdapterSupervisor supervisor : checked) {
+            if (!supervisor.adapter.isReplay()) { // gaps in a capture are replayed as they were
+                supervisor.checkStall(now, timeout);
+            }
+        }
+    }
+}
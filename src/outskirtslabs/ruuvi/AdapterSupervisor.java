@@ -0,0 +1,487 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Supervises the scan and the dump of an adapter on a thread of its own.
+ * Each attempt starts the scan and the dump together, reading the output
+ * of the dump and draining the errors of both on threads of their own.
+ * When the dump ends, the scan exits or the dump stalls, both are stopped
+ * and started again after a {@link Backoff}. The scan exiting counts as a
+ * failure whatever its status, unless the supervisor stopped it. With a
+ * {@link ScanScheduler} the scan is stopped and started again between its
+ * windows during the attempt, while the dump keeps running.
+ * <p>
+ * The output is read by the {@link PacketReader}, and the changes of health
+ * are reported to the {@link AdapterSupervision} of the supervisor.
+ */
+final class AdapterSupervisor implements Runnable {
+
+    /**
+     * How long stopping a supervisor, or a process it supervises, may take
+     * before it is given up on or killed
+     */
+    static final int STOP_TIMEOUT_SEC = 5;
+
+    /**
+     * How long an adapter must have been streaming when it fails for its
+     * backoff to start over
+     */
+    private static final int STABLE_STREAMING_SEC = 60;
+
+    private static final Logger LOG = Logger.getLogger(AdapterSupervisor.class);
+
+    final Adapter adapter;
+    final int index;
+    final String name;
+    final ScanScheduler scheduler;
+    private final AdapterSupervision supervision;
+    private final PacketReader reader;
+    private final ThreadingMode threadingMode;
+    private final AtomicReference<HealthState> health = new AtomicReference<>(HealthState.STARTING);
+    private final AtomicLong lastActivityNanos = new AtomicLong();
+    private volatile long streamingSinceNanos;
+    private volatile boolean streamed;
+    private volatile CountDownLatch wake = new CountDownLatch(1);
+    private volatile boolean stopped;
+    private volatile boolean scanPaused;
+    private Thread thread;
+
+    // the current attempt, only used by the supervisor thread
+    private final List<Process> processes = new ArrayList<>();
+    private final List<Thread> shutdownHooks = new ArrayList<>();
+    private final List<Thread> helpers = new ArrayList<>();
+    private Closeable input;
+    private volatile Process scan;
+
+    AdapterSupervisor(Adapter adapter, int index, ScanScheduler scheduler, AdapterSupervision supervision, PacketReader reader, ThreadingMode threadingMode) {
+        this.adapter = adapter;
+        this.index = index;
+        this.name = adapter.name();
+        this.scheduler = scheduler;
+        this.supervision = supervision;
+        this.reader = reader;
+        this.threadingMode = threadingMode;
+    }
+
+    void start() {
+        thread = threadingMode.newThread("ruuvi-" + name, this, false);
+        thread.start();
+    }
+
+    /**
+     * Asks the supervisor to stop, without waiting for it
+     */
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+        wake.countDown();
+    }
+
+    boolean join(long deadlineNanos) {
+        return joinUninterruptibly(thread, deadlineNanos);
+    }
+
+    HealthState getHealth() {
+        return health.get();
+    }
+
+    public void run() {
+        Backoff backoff = new Backoff(supervision.getRestartBackoffMinNanos(), supervision.getRestartBackoffMaxNanos());
+        while (!stopped) {
+            CountDownLatch attemptWake = new CountDownLatch(1);
+            wake = attemptWake;
+            streamed = false;
+            scanPaused = false;
+            lastActivityNanos.set(System.nanoTime());
+            setHealth(HealthState.STARTING);
+
+            boolean started = startAttempt(attemptWake);
+            if (started && !stopped) {
+                try {
+                    awaitAttempt(attemptWake);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            boolean stable = streamed && System.nanoTime() - streamingSinceNanos >= TimeUnit.SECONDS.toNanos(STABLE_STREAMING_SEC);
+            stopAttempt();
+
+            if (stopped) {
+                break;
+            }
+            if (started && adapter.isReplay()) {
+                setHealth(HealthState.FINISHED);
+                break;
+            }
+            fail();
+            if (stable) {
+                backoff.reset();
+            }
+            supervision.getMetrics().processRestarted(name);
+            long delay = backoff.nextDelayNanos();
+            LOG.info(String.format("Restarting adapter %s in %d ms", name, TimeUnit.NANOSECONDS.toMillis(delay)));
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        LOG.info("supervisor interrupted. aborting.");
+    }
+
+    /**
+     * Starts the scan and the dump. Whatever ends the attempt counts down
+     * the latch.
+     *
+     * @return false if either could not be started
+     */
+    private boolean startAttempt(CountDownLatch attemptWake) {
+        if (adapter.getScanCommand().length() > 0 && !startScan(attemptWake)) {
+            return false;
+        }
+        if (adapter.isReplay()) {
+            return startReplay(attemptWake);
+        }
+        if (adapter.getEventSourceFactory() != null) {
+            HciEventSource opened;
+            try {
+                opened = adapter.getEventSourceFactory().open();
+            } catch (IOException e) {
+                LOG.warn(String.format("Opening the event source of %s failed", name), e);
+                return false;
+            }
+            input = opened;
+            startHelper("events", () -> {
+                reader.readEvents(opened, this);
+                LOG.info(String.format("Event source of %s ended", name));
+                attemptWake.countDown();
+            });
+        } else {
+            Process dump = startProcess(adapter.getDumpCommand(), "dump");
+            if (dump == null) {
+                return false;
+            }
+            startHelper("dump", () -> {
+                reader.readDump(dump.getInputStream(), this);
+                LOG.info(String.format("Dump of %s ended", name));
+                attemptWake.countDown();
+            });
+        }
+        return true;
+    }
+
+    private boolean startScan(CountDownLatch attemptWake) {
+        Process proc = startProcess(adapter.getScanCommand(), "scan");
+        if (proc == null) {
+            return false;
+        }
+        scan = proc;
+        startHelper("scan", () -> {
+            int status = waitForUninterruptibly(proc);
+            if (scan != proc) {
+                LOG.debug(String.format("Scan of %s stopped", name));
+            } else {
+                // not stopped by the supervisor, whatever the status the adapter is no longer scanning
+                LOG.warn(String.format("Scan of %s exited with status %d", name, status));
+                attemptWake.countDown();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Waits for the end of the attempt, scanning in the windows of the
+     * scheduler if there is one
+     */
+    private void awaitAttempt(CountDownLatch attemptWake) throws InterruptedException {
+        if (scheduler == null) {
+            attemptWake.await();
+            return;
+        }
+        while (true) {
+            long now = scheduler.nanoTime();
+            scheduler.plan();
+            long start = scheduler.getWindowStart();
+            if (start > now) {
+                pauseScan();
+                if (attemptWake.await(start - now, TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+                lastActivityNanos.set(System.nanoTime());
+                scanPaused = false;
+                if (!startScan(attemptWake)) {
+                    return;
+                }
+                now = scheduler.nanoTime();
+            }
+            if (attemptWake.await(scheduler.getWindowEnd() - now, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+            scheduler.windowEnded(scheduler.nanoTime() - now);
+        }
+    }
+
+    /**
+     * Stops the scan until the next window. The scan is interrupted like
+     * with Ctrl-C rather than terminated, as that is when "hcitool lescan"
+     * disables the scan of the adapter again, see {@link InterruptSignaller}.
+     */
+    private void pauseScan() {
+        Process proc = scan;
+        scanPaused = true;
+        scan = null;
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!supervision.getInterruptSignaller().interrupt(proc) || !proc.waitFor(STOP_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                destroy(proc);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            destroy(proc);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int i = processes.indexOf(proc);
+        processes.remove(i);
+        removeShutdownHook(shutdownHooks.remove(i));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STOP_TIMEOUT_SEC);
+        String scanHelpers = "ruuvi-" + name + "-scan";
+        for (Iterator<Thread> it = helpers.iterator(); it.hasNext(); ) {
+            Thread helper = it.next();
+            if (helper.getName().startsWith(scanHelpers) && joinUninterruptibly(helper, deadline)) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean startReplay(CountDownLatch attemptWake) {
+        Path capture = adapter.getCapture();
+        try {
+            if (adapter.getCaptureFormat() == DumpFormat.TEXT) {
+                BufferedReader lines = Files.newBufferedReader(capture);
+                input = lines;
+                startHelper("replay", () -> {
+                    reader.readDump(lines, this);
+                    LOG.info(String.format("Replay of %s ended", capture));
+                    attemptWake.countDown();
+                });
+            } else {
+                HciEventSource replay = new ReplayEventSource(adapter.getCaptureFormat().open(FileChannel.open(capture)), adapter.getReplaySpeed());
+                input = replay;
+                startHelper("replay", () -> {
+                    reader.readEvents(replay, this);
+                    LOG.info(String.format("Replay of %s ended", capture));
+                    attemptWake.countDown();
+                });
+            }
+            return true;
+        } catch (IOException e) {
+            LOG.warn(String.format("Opening the capture %s of %s failed", capture, name), e);
+            return false;
+        }
+    }
+
+    private Process startProcess(String command, String job) {
+        Optional<Process> opt = startCommand(command);
+        if (opt.isEmpty()) {
+            LOG.warn(String.format("Starting the %s of %s failed, invalid command: %s", job, name, command));
+            return null;
+        }
+        Process proc = opt.get();
+        processes.add(proc);
+        Thread shutdownHook = new Thread(proc::destroyForcibly);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        shutdownHooks.add(shutdownHook);
+        startHelper(job + "-stderr", () -> drain(proc.getErrorStream(), job));
+        return proc;
+    }
+
+    private void startHelper(String job, Runnable task) {
+        Thread helper = threadingMode.newThread("ruuvi-" + name + "-" + job, task, true);
+        helpers.add(helper);
+        helper.start();
+    }
+
+    /**
+     * Stops the scan and the dump and waits for the threads of the attempt
+     */
+    private void stopAttempt() {
+        scan = null;
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                LOG.debug("Closing the input of " + name + " failed", e);
+            }
+            input = null;
+        }
+        processes.forEach(this::destroy);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STOP_TIMEOUT_SEC);
+        for (Thread helper : helpers) {
+            if (!joinUninterruptibly(helper, deadline)) {
+                LOG.warn(String.format("Thread %s did not finish in time", helper.getName()));
+            }
+        }
+        shutdownHooks.forEach(AdapterSupervisor::removeShutdownHook);
+        processes.clear();
+        shutdownHooks.clear();
+        helpers.clear();
+    }
+
+    /**
+     * Records that the dump is producing packets, called by the thread
+     * reading it
+     */
+    void activity() {
+        lastActivityNanos.lazySet(System.nanoTime());
+        if (health.get() == HealthState.STARTING && health.compareAndSet(HealthState.STARTING, HealthState.STREAMING)) {
+            streamingSinceNanos = System.nanoTime();
+            streamed = true;
+            supervision.notifyHealthChanged(adapter, HealthState.STARTING, HealthState.STREAMING);
+        }
+    }
+
+    /**
+     * Restarts the adapter if nothing was read for the timeout, called by
+     * the housekeeping thread
+     */
+    void checkStall(long nowNanos, long timeoutNanos) {
+        HealthState current = health.get();
+        if (!scanPaused && (current == HealthState.STARTING || current == HealthState.STREAMING)
+                && nowNanos - lastActivityNanos.get() > timeoutNanos
+                && health.compareAndSet(current, HealthState.STALLED)) {
+            LOG.warn(String.format("Nothing was received from %s for %d s", name, TimeUnit.NANOSECONDS.toSeconds(timeoutNanos)));
+            supervision.notifyHealthChanged(adapter, current, HealthState.STALLED);
+            wake.countDown();
+        }
+    }
+
+    private void setHealth(HealthState state) {
+        HealthState previous = health.getAndSet(state);
+        if (previous != state) {
+            supervision.notifyHealthChanged(adapter, previous, state);
+        }
+    }
+
+    /**
+     * Marks the adapter failed, unless it was restarted for stalling
+     */
+    private void fail() {
+        HealthState previous = health.getAndUpdate(state -> state == HealthState.STALLED ? state : HealthState.FAILED);
+        if (previous != HealthState.STALLED && previous != HealthState.FAILED) {
+            supervision.notifyHealthChanged(adapter, previous, HealthState.FAILED);
+        }
+    }
+
+    private void drain(InputStream errors, String job) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(errors))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                LOG.debug(name + "/" + job + ": " + line);
+            }
+        } catch (IOException e) {
+            LOG.debug("Reading the errors of " + name + "/" + job + " failed", e);
+        }
+    }
+
+    /**
+     * Terminates the process, forcibly if it doesn't exit in time
+     */
+    private void destroy(Process proc) {
+        if (!proc.isAlive()) {
+            return;
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+            proc.destroy();
+            if (!proc.waitFor(STOP_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                LOG.warn(String.format("Process %s of %s did not exit, killing it", proc.pid(), name));
+                proc.destroyForcibly().waitFor(STOP_TIMEOUT_SEC, TimeUnit.SECONDS);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            proc.destroyForcibly();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Optional<Process> startCommand(String command) {
+        String[] scan = command.split(" ");
+        if (scan.length > 0) {
+            try {
+                return Optional.of(new ProcessBuilder(scan).start());
+            } catch (IOException e) {
+                return Optional.empty();
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Joins a thread, even when the calling thread is interrupted, which is
+     * restored afterwards
+     *
+     * @return whether the thread finished before the deadline
+     */
+    private static boolean joinUninterruptibly(Thread thread, long deadlineNanos) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (thread.isAlive()) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static int waitForUninterruptibly(Process proc) {
+        while (true) {
+            try {
+                return proc.waitFor();
+            } catch (InterruptedException ignore) {
+                // helper threads are not interrupted, the process is destroyed instead
+            }
+        }
+    }
+
+    private static void removeShutdownHook(Thread shutdownHook) {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignore) { /* the JVM is shutting down */ }
+    }
+}
@@ -0,0 +1,142 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * The values of a measurement and its derived values that a
+ * {@link WindowedAggregator} can summarize. The values of the measurement
+ * itself are also the columns of a {@link TimeSeriesStore}.
+ */
+public enum AggregateField {
+    TEMPERATURE(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getTemperature();
+        }
+    },
+    HUMIDITY(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getHumidity();
+        }
+    },
+    PRESSURE(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getPressure();
+        }
+    },
+    ACCELERATION_X(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getAccelerationX();
+        }
+    },
+    ACCELERATION_Y(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getAccelerationY();
+        }
+    },
+    ACCELERATION_Z(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getAccelerationZ();
+        }
+    },
+    BATTERY_VOLTAGE(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getBatteryVoltage();
+        }
+    },
+    TX_POWER(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getTxPower();
+        }
+    },
+    MOVEMENT_COUNTER(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getMovementCounter();
+        }
+    },
+    MEASUREMENT_SEQUENCE_NUMBER(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getMeasurementSequenceNumber();
+        }
+    },
+    RSSI(null) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return measurement.getRssi();
+        }
+    },
+    ACCELERATION_TOTAL(DerivedField.ACCELERATION_TOTAL) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return derived.getAccelerationTotal();
+        }
+    },
+    ACCELERATION_ANGLE_FROM_X(DerivedField.ACCELERATION_ANGLE_FROM_X) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return derived.getAccelerationAngleFromX();
+        }
+    },
+    ACCELERATION_ANGLE_FROM_Y(DerivedField.ACCELERATION_ANGLE_FROM_Y) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return derived.getAccelerationAngleFromY();
+        }
+    },
+    ACCELERATION_ANGLE_FROM_Z(DerivedField.ACCELERATION_ANGLE_FROM_Z) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return derived.getAccelerationAngleFromZ();
+        }
+    },
+    ABSOLUTE_HUMIDITY(DerivedField.ABSOLUTE_HUMIDITY) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return derived.getAbsoluteHumidity();
+        }
+    },
+    DEW_POINT(DerivedField.DEW_POINT) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return derived.getDewPoint();
+        }
+    },
+    EQUILIBRIUM_VAPOR_PRESSURE(DerivedField.EQUILIBRIUM_VAPOR_PRESSURE) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return derived.getEquilibriumVaporPressure();
+        }
+    },
+    AIR_DENSITY(DerivedField.AIR_DENSITY) {
+        @Override
+        Number valueOf(RuuviValue measurement, RuuviDerivedValue derived) {
+            return derived.getAirDensity();
+        }
+    };
+
+    private final DerivedField derivedField;
+
+    AggregateField(DerivedField derivedField) {
+        this.derivedField = derivedField;
+    }
+
+    /**
+     * @return the derived value this field is, or null if it is a value of
+     * the measurement itself
+     */
+    public DerivedField getDerivedField() {
+        return derivedField;
+    }
+
+    /**
+     * @return the value, or null if the measurement doesn't have it
+     */
+    abstract Number valueOf(RuuviValue measurement, RuuviDerivedValue derived);
+}
@@ -0,0 +1,223 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers measurements to a {@link MeasurementListener} on its own consumer
+ * thread, through a bounded queue. A slow listener therefore doesn't hold up
+ * the thread reading the dump, and what happens when it falls too far behind
+ * is decided by its {@link OverflowPolicy}.
+ * <p>
+ * Instances are created with
+ * {@link Receiver#addAsyncMeasurementListener(MeasurementListener, int, OverflowPolicy)},
+ * and expose the state of the queue for monitoring.
+ */
+public final class AsyncMeasurementListener {
+
+    private static final Logger LOG = Logger.getLogger(AsyncMeasurementListener.class);
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final MeasurementListener listener;
+    private final OverflowPolicy policy;
+    private final RingBuffer<RuuviData> queue;
+    /**
+     * For {@link OverflowPolicy#COALESCE_LATEST_PER_MAC} the queue holds the
+     * MAC addresses with a pending measurement, and this the measurements
+     */
+    private final RingBuffer<String> pendingMacs;
+    private final Map<String, RuuviData> latestByMac;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Consumer consumerLoop = new Consumer();
+    private final Thread consumer;
+    private volatile ReceiverMetrics metrics = ReceiverMetrics.NONE;
+
+    AsyncMeasurementListener(MeasurementListener listener, int capacity, OverflowPolicy policy, ThreadingMode threadingMode) {
+        this.listener = listener;
+        this.policy = policy;
+        if (policy == OverflowPolicy.COALESCE_LATEST_PER_MAC) {
+            this.queue = null;
+            this.pendingMacs = new RingBuffer<>(capacity);
+            this.latestByMac = new ConcurrentHashMap<>();
+        } else {
+            this.queue = new RingBuffer<>(capacity);
+            this.pendingMacs = null;
+            this.latestByMac = null;
+        }
+        this.consumer = threadingMode.newThread("ruuvi-listener-" + THREAD_COUNTER.incrementAndGet(), consumerLoop::run, true);
+        this.consumer.start();
+    }
+
+    public MeasurementListener getListener() {
+        return listener;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the capacity of the queue, which is the requested capacity
+     * rounded up to a power of two, and at least 2
+     */
+    public int getCapacity() {
+        return queue != null ? queue.capacity() : pendingMacs.capacity();
+    }
+
+    /**
+     * @return the approximate number of measurements waiting to be delivered
+     */
+    public int getQueueDepth() {
+        return queue != null ? queue.size() : latestByMac.size();
+    }
+
+    /**
+     * @return the number of measurements delivered to the listener
+     */
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of measurements discarded because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of measurements replaced by a newer measurement of
+     * the same tag before being delivered
+     */
+    public long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of measurements for which the listener threw an
+     * exception
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    void offer(RuuviData data) {
+        if (!consumerLoop.isRunning()) {
+            dropped.increment();
+            return;
+        }
+        switch (policy) {
+            case BLOCK:
+                while (!queue.offer(data)) {
+                    if (!consumerLoop.isRunning() || Thread.currentThread().isInterrupted()) {
+                        dropped.increment();
+                        return;
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(data)) {
+                    if (queue.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+                if (!queue.offer(data)) {
+                    dropped.increment();
+                    return;
+                }
+                break;
+            case COALESCE_LATEST_PER_MAC:
+                String mac = Objects.toString(data.getMeasurement().getMac(), "");
+                if (latestByMac.put(mac, data) != null) {
+                    coalesced.increment();
+                    return;
+                }
+                if (!pendingMacs.offer(mac)) {
+                    latestByMac.remove(mac, data);
+                    dropped.increment();
+                    return;
+                }
+                break;
+        }
+        consumerLoop.wake();
+    }
+
+    /**
+     * Stops the consumer thread after it has delivered the measurements
+     * already queued, waiting at most a few seconds for that to happen.
+     */
+    void close() {
+        consumerLoop.stop();
+        try {
+            consumer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (consumer.isAlive()) {
+            LOG.warn("Listener " + listener + " did not finish in time, interrupting it");
+            consumer.interrupt();
+        }
+    }
+
+    void setMetrics(ReceiverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    private void deliver(RuuviData data) {
+        ReceiverMetrics metrics = this.metrics;
+        long start = metrics == ReceiverMetrics.NONE ? 0 : System.nanoTime();
+        try {
+            listener.measured(data.getMeasurement(), data.getDerived());
+            delivered.increment();
+        } catch (Exception e) {
+            failed.increment();
+            LOG.warn("Notifying listener failed", e);
+        }
+        if (metrics != ReceiverMetrics.NONE) {
+            metrics.listenerNotified(listener, System.nanoTime() - start);
+        }
+    }
+
+    private final class Consumer extends QueueConsumer<RuuviData> {
+
+        @Override
+        RuuviData poll() {
+            if (queue != null) {
+                return queue.poll();
+            }
+            String mac = pendingMacs.poll();
+            return mac == null ? null : latestByMac.remove(mac);
+        }
+
+        @Override
+        boolean isEmpty() {
+            return queue != null ? queue.isEmpty() : pendingMacs.isEmpty();
+        }
+
+        @Override
+        void consume(RuuviData data) {
+            deliver(data);
+        }
+
+        @Override
+        void run() {
+            super.run();
+            LOG.debug("Listener consumer " + Thread.currentThread().getName() + " finished");
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package outskirtslabs.ruuvi;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter for restarts. The first retry is immediate,
+ * the following ones wait twice as long as the previous one, from the minimum
+ * up to the maximum delay. Each delay is randomized to between half and all
+ * of its value, so that several adapters failing together don't restart in
+ * lockstep.
+ */
+class Backoff {
+
+    private final long minNanos;
+    private final long maxNanos;
+    private int failures;
+
+    Backoff(long minNanos, long maxNanos) {
+        this.minNanos = minNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return the delay before retrying after another failure
+     */
+    long nextDelayNanos() {
+        int retry = failures++;
+        if (retry == 0) {
+            return 0;
+        }
+        long delay = minNanos;
+        for (int i = 1; i < retry && delay < maxNanos; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxNanos);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    void reset() {
+        failures = 0;
+    }
+
+    int getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,28 @@
+package outskirtslabs.ruuvi;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Receives measurements in micro-batches rather than one at a time. Added with
+ * {@link Receiver#addBatchMeasurementListener(BatchMeasurementListener, int, java.time.Duration)}.
+ */
+@FunctionalInterface
+public interface BatchMeasurementListener {
+
+    /**
+     * @param batch the measurements received since the previous batch, in the
+     *              order they were received. The list is read-only and is
+     *              reused for the next batch once this method returns, so it
+     *              must not be retained; copy it if needed.
+     */
+    void measured(List<RuuviData> batch);
+
+    /**
+     * @see MeasurementListener#getDerivedFields()
+     */
+    default Set<DerivedField> getDerivedFields() {
+        return EnumSet.allOf(DerivedField.class);
+    }
+}
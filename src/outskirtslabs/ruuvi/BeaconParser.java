@@ -11,6 +11,20 @@ import java.util.Optional;
 class BeaconParser {
 
     private final DataFormatParser parser = new AnyDataFormatParser();
+    private final CompactRuuviValue compact = new CompactRuuviValue();
+    private final CompactRuuviValue decoded = new CompactRuuviValue();
+    private final String receiver;
+
+    BeaconParser() {
+        this("");
+    }
+
+    /**
+     * @param receiver set as the receiver of the measurements
+     */
+    BeaconParser(String receiver) {
+        this.receiver = receiver;
+    }
 
     /**
      * Handles a packet and creates a {@link fi.tkgwf.ruuvi.common.bean.RuuviMeasurement} if the handler
@@ -21,14 +35,15 @@ class BeaconParser {
      * parse the packet
      */
     public Optional<RuuviValue> parse(HCIData hciData) {
-        HCIData.Report.AdvertisementData adData = hciData.findAdvertisementDataByType(0xFF); // Manufacturer-specific data, raw dataformats
-        if (adData == null) {
-            adData = hciData.findAdvertisementDataByType(0x16); // Eddystone url
-            if (adData == null) {
-                return Optional.empty();
-            }
+        if (decodeRaw(hciData, decoded)) {
+            return Optional.of(decoded.toBuilder()
+                    .mac(hciData.mac)
+                    .rssi(hciData.rssi)
+                    .name("")
+                    .receiver(receiver)
+                    .build());
         }
-        fi.tkgwf.ruuvi.common.bean.RuuviMeasurement measurement = parser.parse(adData.dataBytes());
+        fi.tkgwf.ruuvi.common.bean.RuuviMeasurement measurement = parseMeasurement(hciData);
         if (measurement == null) {
             return Optional.empty();
         }
@@ -36,10 +51,80 @@ class BeaconParser {
                 .mac(hciData.mac)
                 .rssi(hciData.rssi)
                 .name("")
-                .receiver("")
+                .receiver(receiver)
                 .build());
     }
 
+    /**
+     * Handles a packet like {@link #parse(HCIData)}, but fills in a compact
+     * measurement owned by this parser instead of building a {@link RuuviValue}.
+     *
+     * @return the measurement, which is overwritten by the next call, or null
+     * if this handler can't parse the packet
+     */
+    public CompactRuuviValue parseCompact(HCIData hciData) {
+        if (decodeRaw(hciData, compact)) {
+            return withDevice(hciData);
+        }
+        fi.tkgwf.ruuvi.common.bean.RuuviMeasurement m = parseMeasurement(hciData);
+        if (m == null) {
+            return null;
+        }
+        compact.clear();
+        if (m.getDataFormat() != null) compact.setDataFormat(m.getDataFormat());
+        if (m.getTemperature() != null) compact.setTemperature(m.getTemperature());
+        if (m.getHumidity() != null) compact.setHumidity(m.getHumidity());
+        if (m.getPressure() != null) compact.setPressure(m.getPressure());
+        if (m.getAccelerationX() != null) compact.setAccelerationX(m.getAccelerationX());
+        if (m.getAccelerationY() != null) compact.setAccelerationY(m.getAccelerationY());
+        if (m.getAccelerationZ() != null) compact.setAccelerationZ(m.getAccelerationZ());
+        if (m.getBatteryVoltage() != null) compact.setBatteryVoltage(m.getBatteryVoltage());
+        if (m.getTxPower() != null) compact.setTxPower(m.getTxPower());
+        if (m.getMovementCounter() != null) compact.setMovementCounter(m.getMovementCounter());
+        if (m.getMeasurementSequenceNumber() != null) compact.setMeasurementSequenceNumber(m.getMeasurementSequenceNumber());
+        return withDevice(hciData);
+    }
+
+    private CompactRuuviValue withDevice(HCIData hciData) {
+        long mac = Util.macToLong(hciData.mac);
+        if (mac >= 0) compact.setMac(mac);
+        if (hciData.rssi != null) compact.setRssi(hciData.rssi);
+        compact.setName("");
+        compact.setReceiver(receiver);
+        return compact;
+    }
+
+    /**
+     * Decodes RAWv1 and RAWv2 with {@link RawPayloadDecoder}, straight from
+     * the packet bytes when the parser exposed them as a {@link ByteSlice}
+     *
+     * @return false if the packet has another format, which is left to
+     * ruuvitag-common
+     */
+    private static boolean decodeRaw(HCIData hciData, CompactRuuviValue target) {
+        HCIData.Report.AdvertisementData adData = hciData.findAdvertisementDataByType(0xFF);
+        if (adData == null || adData.data == null) {
+            return false;
+        }
+        if (adData.data instanceof ByteSlice) {
+            ByteSlice slice = (ByteSlice) adData.data;
+            return RawPayloadDecoder.decode(slice.array, slice.offset, slice.length, target);
+        }
+        byte[] data = adData.dataBytes();
+        return RawPayloadDecoder.decode(data, 0, data.length, target);
+    }
+
+    private fi.tkgwf.ruuvi.common.bean.RuuviMeasurement parseMeasurement(HCIData hciData) {
+        HCIData.Report.AdvertisementData adData = hciData.findAdvertisementDataByType(0xFF); // Manufacturer-specific data, raw dataformats
+        if (adData == null) {
+            adData = hciData.findAdvertisementDataByType(0x16); // Eddystone url
+            if (adData == null) {
+                return null;
+            }
+        }
+        return parser.parse(adData.dataBytes());
+    }
+
     public static RuuviValue.RuuviValueBuilder fromRuuviMeasurement(fi.tkgwf.ruuvi.common.bean.RuuviMeasurement m) {
         return RuuviValue.builder()
                 .dataFormat(m.getDataFormat())
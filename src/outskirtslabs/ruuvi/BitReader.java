@@ -0,0 +1,90 @@
+package outskirtslabs.ruuvi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the bits written by a {@link BitWriter} from a range of a buffer.
+ * Reading past the end of the range reads zeros.
+ */
+final class BitReader {
+
+    private final ByteBuffer buffer;
+    private int position;
+    private final int end;
+    /**
+     * The bits read ahead, the next one in the most significant bit
+     */
+    private long cache;
+    private int cached;
+
+    /**
+     * Reads from the start of the range, using absolute reads so that the
+     * position of the buffer is left alone
+     */
+    BitReader(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.position = start;
+        this.end = end;
+    }
+
+    /**
+     * @param bits the number of bits to read, from 1 to 64
+     */
+    long read(int bits) {
+        if (bits > 56) {
+            long high = take(bits - 32);
+            return high << 32 | take(32);
+        }
+        return take(bits);
+    }
+
+    /**
+     * @param bits the number of bits to return without reading them, from 1
+     *             to 56
+     */
+    long peek(int bits) {
+        if (cached < bits) {
+            refill();
+        }
+        return cache >>> (Long.SIZE - bits);
+    }
+
+    /**
+     * Skips bits that were peeked at
+     */
+    void skip(int bits) {
+        cache <<= bits;
+        cached -= bits;
+    }
+
+    private long take(int bits) {
+        long value = peek(bits);
+        skip(bits);
+        return value;
+    }
+
+    /**
+     * Fills the cache with whole bytes. The bits of the cache beyond the
+     * cached ones are either zeros or the bits that follow, so the bits that
+     * follow can be ORed in again.
+     */
+    private void refill() {
+        if (position + Long.BYTES > end) {
+            refillTail();
+            return;
+        }
+        cache |= buffer.getLong(position) >>> cached;
+        int bytes = (Long.SIZE - cached) >>> 3;
+        position += bytes;
+        cached += bytes << 3;
+    }
+
+    private void refillTail() {
+        while (cached <= 56) {
+            long next = position < end ? buffer.get(position) & 0xFF : 0;
+            position++;
+            cache |= next << (56 - cached);
+            cached += 8;
+        }
+    }
+}
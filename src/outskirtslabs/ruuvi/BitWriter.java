@@ -0,0 +1,73 @@
+package outskirtslabs.ruuvi;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes bits, most significant first, into an array that grows as needed
+ */
+final class BitWriter {
+
+    private long[] words = new long[2];
+    private int length;
+
+    /**
+     * Writes the low bits of the value
+     *
+     * @param bits the number of bits to write, at most 64
+     */
+    void write(long value, int bits) {
+        if (bits == 0) {
+            return;
+        }
+        if (bits < Long.SIZE) {
+            value &= (1L << bits) - 1;
+        }
+        int word = length >>> 6;
+        int free = Long.SIZE - (length & 63);
+        if (word + 1 >= words.length) {
+            words = Arrays.copyOf(words, words.length * 2);
+        }
+        if (bits <= free) {
+            words[word] |= value << (free - bits);
+        } else {
+            words[word] |= value >>> (bits - free);
+            words[word + 1] = value << (Long.SIZE - (bits - free));
+        }
+        length += bits;
+    }
+
+    /**
+     * @return the number of bits written
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * @return the number of bytes the bits take, the last one padded with
+     * zeros
+     */
+    int byteLength() {
+        return (length + 7) >>> 3;
+    }
+
+    /**
+     * Puts the bytes at the position of the target, advancing it
+     */
+    void copyTo(ByteBuffer target) {
+        int bytes = byteLength();
+        int word = 0;
+        for (; bytes >= Long.BYTES; bytes -= Long.BYTES) {
+            target.putLong(words[word++]);
+        }
+        for (int shift = 56; bytes > 0; bytes--, shift -= 8) {
+            target.put((byte) (words[word] >>> shift));
+        }
+    }
+
+    void clear() {
+        Arrays.fill(words, 0, Math.min(words.length, (length >>> 6) + 1), 0);
+        length = 0;
+    }
+}
@@ -0,0 +1,114 @@
+package outskirtslabs.ruuvi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the btsnoop format, as written by "hcidump --btsnoop -w", "btmon -w"
+ * and Android's HCI snoop log. The datalink types for un-encapsulated HCI
+ * (1001), HCI UART/H4 (1002) and the Linux monitor protocol (2001) are
+ * supported.
+ */
+class BtsnoopEventSource extends ChannelHciEventSource {
+
+    static final byte[] MAGIC = {'b', 't', 's', 'n', 'o', 'o', 'p', 0};
+    static final int FILE_HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 24;
+
+    static final int DATALINK_HCI_UNENCAPSULATED = 1001;
+    static final int DATALINK_HCI_UART = 1002;
+    static final int DATALINK_MONITOR = 2001;
+
+    static final int FLAG_RECEIVED = 0x01;
+    static final int FLAG_COMMAND_OR_EVENT = 0x02;
+    private static final int MONITOR_OPCODE_EVENT = 0x0003;
+
+    /**
+     * The btsnoop timestamps are microseconds since midnight, January 1st,
+     * year 0
+     */
+    static final long EPOCH_OFFSET_MICROS = 0x00DCDDB30F2F8000L;
+
+    private int datalink = -1;
+    private long timestampMicros = -1;
+
+    BtsnoopEventSource(ReadableByteChannel channel) {
+        super(channel, ByteOrder.BIG_ENDIAN);
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        if (datalink < 0 && !readFileHeader()) {
+            return null;
+        }
+        while (require(RECORD_HEADER_SIZE)) {
+            int start = buffer.position();
+            int includedLength = buffer.getInt(start + 4);
+            int flags = buffer.getInt(start + 8);
+            if (includedLength < 0) {
+                throw new IOException("Invalid btsnoop record length " + includedLength);
+            }
+            require(RECORD_HEADER_SIZE + includedLength);
+            start = buffer.position(); // reading more may have moved the record in the buffer
+            int data = start + RECORD_HEADER_SIZE;
+            timestampMicros = buffer.getLong(start + 16) - EPOCH_OFFSET_MICROS; // before the header is overwritten
+            switch (datalink) {
+                case DATALINK_HCI_UART:
+                    if (includedLength >= 3 && buffer.get(data) == HCI_EVENT_PACKET) {
+                        return frame(data, includedLength);
+                    }
+                    break;
+                case DATALINK_HCI_UNENCAPSULATED:
+                    if ((flags & (FLAG_RECEIVED | FLAG_COMMAND_OR_EVENT)) == (FLAG_RECEIVED | FLAG_COMMAND_OR_EVENT) && includedLength >= 2) {
+                        return eventWithoutPacketType(data, includedLength);
+                    }
+                    break;
+                case DATALINK_MONITOR:
+                    if ((flags & 0xFFFF) == MONITOR_OPCODE_EVENT && includedLength >= 2) {
+                        return eventWithoutPacketType(data, includedLength);
+                    }
+                    break;
+                default:
+                    break;
+            }
+            skip(RECORD_HEADER_SIZE + includedLength);
+        }
+        return null;
+    }
+
+    @Override
+    public long getTimestampMicros() {
+        return timestampMicros;
+    }
+
+    /**
+     * The packet type is implied by the flags in these datalinks, so it's
+     * written over the last byte of the already consumed record header to
+     * return the event in the H4 format without copying it.
+     */
+    private ByteBuffer eventWithoutPacketType(int data, int length) {
+        buffer.put(data - 1, HCI_EVENT_PACKET);
+        return frame(data - 1, length + 1);
+    }
+
+    private boolean readFileHeader() throws IOException {
+        if (!require(FILE_HEADER_SIZE)) {
+            return false;
+        }
+        int start = buffer.position();
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(start + i) != MAGIC[i]) {
+                throw new IOException("Not a btsnoop stream");
+            }
+        }
+        int type = buffer.getInt(start + 12);
+        if (type != DATALINK_HCI_UNENCAPSULATED && type != DATALINK_HCI_UART && type != DATALINK_MONITOR) {
+            throw new IOException("Unsupported btsnoop datalink type " + type);
+        }
+        datalink = type;
+        skip(FILE_HEADER_SIZE);
+        return true;
+    }
+}
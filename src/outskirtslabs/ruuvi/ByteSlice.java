@@ -0,0 +1,43 @@
+package outskirtslabs.ruuvi;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A read-only {@link java.util.List} view over a range of a primitive byte
+ * array. Used to expose packet payloads as {@code List<Byte>} without boxing
+ * every byte into a separate list.
+ */
+final class ByteSlice extends AbstractList<Byte> implements RandomAccess {
+
+    final byte[] array;
+    final int offset;
+    final int length;
+
+    ByteSlice(byte[] array, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > array.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array length " + array.length);
+        }
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public Byte get(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + length);
+        }
+        return array[offset + index]; // Byte.valueOf is cached for all values, so this does not allocate
+    }
+
+    @Override
+    public int size() {
+        return length;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(array, offset, offset + length);
+    }
+}
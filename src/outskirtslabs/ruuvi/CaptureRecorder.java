@@ -0,0 +1,132 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the HCI events read by a {@link Receiver} to a btsnoop file, with
+ * the time each was received, so that the traffic of a live gateway can be
+ * replayed later with {@link Adapter#replay(String, java.nio.file.Path, DumpFormat, double)}
+ * and {@link DumpFormat#BTSNOOP}, or inspected with Wireshark. Set with
+ * {@link Receiver#setCaptureRecorder(CaptureRecorder)}.
+ * <p>
+ * The events are written through a buffer, which is flushed when it is full,
+ * on {@link #flush()} and on {@link #close()}.
+ */
+public final class CaptureRecorder implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(CaptureRecorder.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private long recorded;
+    private boolean closed;
+
+    private CaptureRecorder(Path file, FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates the capture file, replacing it if it exists
+     */
+    public static CaptureRecorder create(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        CaptureRecorder recorder = new CaptureRecorder(file, channel);
+        recorder.buffer.put(BtsnoopEventSource.MAGIC).putInt(VERSION).putInt(BtsnoopEventSource.DATALINK_HCI_UART);
+        return recorder;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of events recorded
+     */
+    public synchronized long getRecordedCount() {
+        return recorded;
+    }
+
+    /**
+     * Records an event in the H4 format, without moving the position of the
+     * frame
+     */
+    synchronized void record(ByteBuffer frame, long timestampMicros) throws IOException {
+        if (closed) {
+            return;
+        }
+        int length = frame.remaining();
+        if (buffer.remaining() < BtsnoopEventSource.RECORD_HEADER_SIZE + length) {
+            write();
+        }
+        buffer.putInt(length)
+                .putInt(length)
+                .putInt(BtsnoopEventSource.FLAG_RECEIVED | BtsnoopEventSource.FLAG_COMMAND_OR_EVENT)
+                .putInt(0)
+                .putLong(timestampMicros + BtsnoopEventSource.EPOCH_OFFSET_MICROS)
+                .put(frame.duplicate());
+        recorded++;
+    }
+
+    /**
+     * Writes the buffered events to the file
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            write();
+        }
+    }
+
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            write();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+        LOG.info(String.format("Recorded %d events to %s", recorded, file));
+    }
+
+    /**
+     * Assembles the events of "hcidump --raw" output from its lines, to
+     * record them. Each thread reading a dump needs one of its own.
+     */
+    final class TextTap {
+
+        private final HciTextFramer framer = new HciTextFramer();
+
+        CaptureRecorder getRecorder() {
+            return CaptureRecorder.this;
+        }
+
+        void line(String line, long timestampMicros) throws IOException {
+            ByteBuffer frame = framer.line(line);
+            if (frame != null) {
+                record(frame, timestampMicros);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package outskirtslabs.ruuvi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Base class for event sources reading length-prefixed records from a
+ * channel. Records are read into a single reusable buffer, and the events are
+ * returned as views of that buffer without copying.
+ */
+abstract class ChannelHciEventSource implements HciEventSource {
+
+    static final byte HCI_EVENT_PACKET = 0x04;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    /**
+     * Holds the unconsumed bytes between position and limit
+     */
+    protected final ByteBuffer buffer;
+    private final ByteBuffer frame;
+
+    ChannelHciEventSource(ReadableByteChannel channel, ByteOrder order) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(order);
+        this.buffer.limit(0);
+        this.frame = buffer.duplicate();
+    }
+
+    /**
+     * Makes sure at least the given amount of unconsumed bytes are available in
+     * the buffer, reading more from the channel if needed. Reading more moves
+     * the unconsumed bytes to the start of the buffer, so any absolute
+     * positions must be recomputed from the buffer position afterwards.
+     *
+     * @return false if the stream ended cleanly before any of the bytes were
+     * available
+     * @throws EOFException if the stream ended in the middle of the bytes
+     */
+    protected boolean require(int bytes) throws IOException {
+        if (bytes > buffer.capacity()) {
+            throw new IOException("Record of " + bytes + " bytes does not fit in the read buffer");
+        }
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        int initiallyAvailable = buffer.remaining();
+        buffer.compact();
+        try {
+            while (buffer.position() < bytes) {
+                if (channel.read(buffer) < 0) {
+                    if (buffer.position() == 0 && initiallyAvailable == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Stream ended in the middle of a record");
+                }
+            }
+        } finally {
+            buffer.flip();
+        }
+        return true;
+    }
+
+    /**
+     * Skips the given amount of bytes, which must be available in the buffer.
+     */
+    protected void skip(int bytes) {
+        buffer.position(buffer.position() + bytes);
+    }
+
+    /**
+     * Consumes the given range of the buffer and returns it as the event frame.
+     */
+    protected ByteBuffer frame(int offset, int length) {
+        frame.limit(offset + length).position(offset);
+        buffer.position(offset + length);
+        return frame;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,95 @@
+package outskirtslabs.ruuvi;
+
+import java.nio.ByteBuffer;
+
+import static outskirtslabs.ruuvi.ChunkEncoder.*;
+
+/**
+ * Decodes a column of the chunks written by a {@link ChunkEncoder}, together
+ * with the times
+ */
+final class ChunkDecoder {
+
+    private ChunkDecoder() {
+    }
+
+    /**
+     * Passes the values of the field of the measurements in the time range to
+     * the consumer, skipping the missing values
+     *
+     * @param chunk  the buffer with the chunk, in big endian byte order
+     * @param start  the position of the chunk in the buffer
+     * @param field  the index of the column of the field
+     * @param from   the start of the range, inclusive
+     * @param to     the end of the range, exclusive
+     * @return the number of values passed to the consumer
+     */
+    static int scan(ByteBuffer chunk, int start, int field, long from, long to, SampleConsumer consumer) {
+        int columns = chunk.getShort(start + COLUMNS_OFFSET);
+        if (field >= columns) {
+            return 0; // a field added after the chunk was written
+        }
+        int count = chunk.getInt(start + COUNT_OFFSET);
+        int timesStart = start + LENGTHS_OFFSET + (columns + 1) * Integer.BYTES;
+        int valuesStart = timesStart + chunk.getInt(start + LENGTHS_OFFSET);
+        for (int i = 0; i < field; i++) {
+            valuesStart += chunk.getInt(start + LENGTHS_OFFSET + (i + 1) * Integer.BYTES);
+        }
+        int valuesEnd = valuesStart + chunk.getInt(start + LENGTHS_OFFSET + (field + 1) * Integer.BYTES);
+        // local readers, which the compiler can keep in registers
+        BitReader times = new BitReader(chunk, timesStart, valuesStart);
+        BitReader values = new BitReader(chunk, valuesStart, valuesEnd);
+
+        long time = times.read(64);
+        long bits = values.read(64);
+        long delta = 0;
+        int leading = 0;
+        int meaningful = 0;
+        int passed = 0;
+        for (int i = 0; ; ) {
+            if (time >= from && time < to && (bits & 0x7FFFFFFFFFFFFFFFL) <= 0x7FF0000000000000L) { // not NaN
+                consumer.accept(time, Double.longBitsToDouble(bits));
+                passed++;
+            }
+            if (++i == count) {
+                return passed;
+            }
+            delta += readDeltaOfDelta(times);
+            time += delta;
+            long control = values.peek(13);
+            if (control >>> 12 == 0) {
+                values.skip(1);
+            } else {
+                if ((control & 0x800) == 0) {
+                    values.skip(2);
+                } else {
+                    leading = (int) (control >>> 6) & 0x1F;
+                    meaningful = (int) (control & 0x3F) + 1;
+                    values.skip(13);
+                }
+                bits ^= values.read(meaningful) << (Long.SIZE - leading - meaningful);
+            }
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader times) {
+        long peeked = times.peek(9);
+        if (peeked >>> 8 == 0) {
+            times.skip(1);
+            return 0;
+        }
+        if (peeked >>> 7 == 0b10) {
+            times.skip(9);
+            return (peeked & 0x7F) - 63;
+        }
+        if (peeked >>> 6 == 0b110) {
+            times.skip(3);
+            return times.read(9) - 255;
+        }
+        times.skip(4);
+        if (peeked >>> 5 == 0b1110) {
+            return times.read(12) - 2047;
+        }
+        return times.read(64);
+    }
+}
@@ -0,0 +1,188 @@
+package outskirtslabs.ruuvi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the measurements of a tag into a chunk of columns: one of the
+ * times, and one per field, as in Facebook's Gorilla. Each column is a
+ * stream of bits of its own, so a query only decodes the times and the field
+ * it reads.
+ * <p>
+ * The times are encoded as the difference between consecutive deltas, which
+ * takes a single bit for measurements broadcast at a steady interval, and
+ * 9 or 12 bits for the jitter of the reception. The values are encoded as
+ * the XOR of their bits with those of the previous value, which takes a
+ * single bit for a value that did not change, and otherwise the meaningful
+ * bits of the XOR, reusing the leading and trailing zero counts of the
+ * previous XOR when they fit. Missing values are stored as NaN.
+ * <p>
+ * A chunk consists of the MAC address, the times of the first and last
+ * measurements, the number of measurements, the number of columns and the
+ * byte length of each column, followed by the columns. This class is not
+ * thread safe.
+ */
+final class ChunkEncoder {
+
+    static final int MAC_OFFSET = 0;
+    static final int MIN_TIME_OFFSET = 8;
+    static final int MAX_TIME_OFFSET = 16;
+    static final int COUNT_OFFSET = 24;
+    static final int COLUMNS_OFFSET = 28;
+    static final int LENGTHS_OFFSET = 30;
+
+    private final BitWriter times = new BitWriter();
+    private final BitWriter[] values;
+    private final long[] previousBits;
+    /**
+     * The leading zeros of the previous XOR written with its zero counts, or
+     * -1 before the first one
+     */
+    private final int[] previousLeading;
+    private final int[] previousTrailing;
+    private int count;
+    private long firstTime;
+    private long minTime;
+    private long maxTime;
+    private long previousTime;
+    private long previousDelta;
+
+    ChunkEncoder(int fields) {
+        values = new BitWriter[fields];
+        for (int i = 0; i < fields; i++) {
+            values[i] = new BitWriter();
+        }
+        previousBits = new long[fields];
+        previousLeading = new int[fields];
+        previousTrailing = new int[fields];
+    }
+
+    /**
+     * @param sample the value of each field, NaN if missing
+     */
+    void add(long time, double[] sample) {
+        if (count == 0) {
+            times.write(time, 64);
+            firstTime = minTime = maxTime = time;
+            previousDelta = 0;
+            for (int i = 0; i < values.length; i++) {
+                long bits = Double.doubleToLongBits(sample[i]);
+                values[i].write(bits, 64);
+                previousBits[i] = bits;
+                previousLeading[i] = -1;
+            }
+        } else {
+            long delta = time - previousTime;
+            writeDeltaOfDelta(delta - previousDelta);
+            previousDelta = delta;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            for (int i = 0; i < values.length; i++) {
+                writeValue(i, Double.doubleToLongBits(sample[i]));
+            }
+        }
+        previousTime = time;
+        count++;
+    }
+
+    private void writeDeltaOfDelta(long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            times.write(0b0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            times.write(0b10, 2);
+            times.write(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            times.write(0b110, 3);
+            times.write(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            times.write(0b1110, 4);
+            times.write(deltaOfDelta + 2047, 12);
+        } else {
+            times.write(0b1111, 4);
+            times.write(deltaOfDelta, 64);
+        }
+    }
+
+    private void writeValue(int field, long bits) {
+        BitWriter column = values[field];
+        long xor = bits ^ previousBits[field];
+        previousBits[field] = bits;
+        if (xor == 0) {
+            column.write(0b0, 1);
+            return;
+        }
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (previousLeading[field] >= 0 && leading >= previousLeading[field] && trailing >= previousTrailing[field]) {
+            column.write(0b10, 2);
+            column.write(xor >>> previousTrailing[field], Long.SIZE - previousLeading[field] - previousTrailing[field]);
+        } else {
+            int meaningful = Long.SIZE - leading - trailing;
+            column.write(0b11, 2);
+            column.write(leading, 5);
+            column.write(meaningful - 1, 6);
+            column.write(xor >>> trailing, meaningful);
+            previousLeading[field] = leading;
+            previousTrailing[field] = trailing;
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return the number of bytes a chunk of the measurements can take at
+     * most
+     */
+    static int maxEncodedLength(int fields, int measurements) {
+        int timeBits = 64 + (measurements - 1) * (4 + 64);
+        int valueBits = 64 + (measurements - 1) * (2 + 5 + 6 + 64);
+        return LENGTHS_OFFSET + (fields + 1) * Integer.BYTES + (timeBits + 7) / 8 + fields * ((valueBits + 7) / 8);
+    }
+
+    long getFirstTime() {
+        return firstTime;
+    }
+
+    long getMinTime() {
+        return minTime;
+    }
+
+    long getMaxTime() {
+        return maxTime;
+    }
+
+    /**
+     * @return the number of bytes of the chunk
+     */
+    int encodedLength() {
+        int length = LENGTHS_OFFSET + (values.length + 1) * Integer.BYTES + times.byteLength();
+        for (BitWriter column : values) {
+            length += column.byteLength();
+        }
+        return length;
+    }
+
+    /**
+     * Puts the chunk at the position of the target, advancing it
+     */
+    void writeTo(ByteBuffer target, long mac) {
+        target.putLong(mac).putLong(minTime).putLong(maxTime).putInt(count).putShort((short) values.length);
+        target.putInt(times.byteLength());
+        for (BitWriter column : values) {
+            target.putInt(column.byteLength());
+        }
+        times.copyTo(target);
+        for (BitWriter column : values) {
+            column.copyTo(target);
+        }
+    }
+
+    void clear() {
+        times.clear();
+        for (BitWriter column : values) {
+            column.clear();
+        }
+        count = 0;
+    }
+}
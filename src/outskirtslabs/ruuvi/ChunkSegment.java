@@ -0,0 +1,194 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * A memory-mapped file of a {@link TimeSeriesStore}, named after the number
+ * of bytes written to the store before it. It starts with a header, followed
+ * by the chunks written by {@link ChunkEncoder}, each preceded by its length
+ * and CRC-32C. The file is created at its full size, so the unused rest of it
+ * reads as zeros.
+ */
+final class ChunkSegment {
+
+    private static final Logger LOG = Logger.getLogger(ChunkSegment.class);
+
+    static final String SUFFIX = ".chunks";
+    static final int MAGIC = 0x52545343; // "RTSC"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 8;
+    static final int RECORD_HEADER_BYTES = 8;
+
+    final long base;
+    final Path path;
+    final int size;
+    final MappedByteBuffer buffer;
+    private final FileChannel channel;
+    /**
+     * The position after the last chunk, guarded by the store
+     */
+    int limit;
+    /**
+     * Set when the segment is deleted, the chunks of which are then skipped
+     */
+    volatile boolean deleted;
+
+    private ChunkSegment(long base, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.base = base;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.size = buffer.capacity();
+    }
+
+    static ChunkSegment create(Path directory, long base, int size) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", base, SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            ChunkSegment segment = new ChunkSegment(base, path, channel, buffer);
+            segment.limit = HEADER_BYTES;
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing segment and finds the end of its chunks, which is the
+     * first chunk that is missing or doesn't match its checksum, as left by a
+     * crash in the middle of writing it. Whatever follows that is erased.
+     */
+    static ChunkSegment open(Path path) throws IOException {
+        String fileName = path.getFileName().toString();
+        long base = Long.parseLong(fileName.substring(0, fileName.length() - SUFFIX.length()));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a time series segment: " + path);
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported time series segment version " + buffer.getInt(4) + ": " + path);
+            }
+            ChunkSegment segment = new ChunkSegment(base, path, channel, buffer);
+            segment.recover();
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void recover() {
+        CRC32C crc = new CRC32C();
+        int position = HEADER_BYTES;
+        while (position + RECORD_HEADER_BYTES <= size) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > size - position - RECORD_HEADER_BYTES) {
+                break;
+            }
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.limit(position + RECORD_HEADER_BYTES + length).position(position + RECORD_HEADER_BYTES);
+            crc.reset();
+            crc.update(chunk);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            position += RECORD_HEADER_BYTES + length;
+        }
+        limit = position;
+        if (position + 4 <= size && buffer.getInt(position) != 0) {
+            LOG.warn(String.format("Time series segment %s ends with an incomplete chunk at %d, erasing it", path, position));
+            ByteBuffer rest = buffer.duplicate();
+            rest.position(position);
+            byte[] zeros = new byte[Math.min(rest.remaining(), 64 * 1024)];
+            while (rest.hasRemaining()) {
+                rest.put(zeros, 0, Math.min(zeros.length, rest.remaining()));
+            }
+        }
+    }
+
+    /**
+     * Passes the position of each chunk to the consumer
+     */
+    void forEachChunk(IntConsumer chunks) {
+        for (int position = HEADER_BYTES; position < limit; position += RECORD_HEADER_BYTES + buffer.getInt(position)) {
+            chunks.accept(position + RECORD_HEADER_BYTES);
+        }
+    }
+
+    /**
+     * @return whether a chunk of the length fits in the rest of the segment
+     */
+    boolean fits(int length) {
+        return limit + RECORD_HEADER_BYTES + length <= size;
+    }
+
+    /**
+     * Appends a chunk
+     *
+     * @return the position of the chunk
+     */
+    int append(ChunkEncoder chunk, long mac, CRC32C crc) {
+        int length = chunk.encodedLength();
+        int position = limit + RECORD_HEADER_BYTES;
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        chunk.writeTo(view, mac);
+        view.flip().position(position);
+        crc.reset();
+        crc.update(view);
+        // the length goes last, so that a partly written chunk has none
+        buffer.putInt(limit + 4, (int) crc.getValue());
+        buffer.putInt(limit, length);
+        limit = position + length;
+        return position;
+    }
+
+    boolean force() {
+        try {
+            buffer.force();
+            return true;
+        } catch (UncheckedIOException e) {
+            LOG.warn("Syncing time series segment " + path + " failed", e);
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("Closing time series segment " + path + " failed", e);
+        }
+    }
+
+    /**
+     * Closes and deletes the file. Readers which still have the segment keep
+     * reading its mapping.
+     */
+    void delete() {
+        deleted = true;
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Deleting time series segment " + path + " failed", e);
+        }
+    }
+}
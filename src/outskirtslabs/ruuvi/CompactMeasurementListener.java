@@ -0,0 +1,17 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * Receives measurements in their compact form, without the derived values.
+ * Added with {@link Receiver#addCompactMeasurementListener(CompactMeasurementListener)}.
+ */
+@FunctionalInterface
+public interface CompactMeasurementListener {
+
+    /**
+     * @param measurement the measurement, which is reused for the next one
+     *                    once this method returns, so it must not be
+     *                    retained; use {@link CompactRuuviValue#copy()} if
+     *                    needed.
+     */
+    void measured(CompactRuuviValue measurement);
+}
@@ -0,0 +1,417 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Objects;
+
+/**
+ * A compact alternative to {@link RuuviValue} for consumers handling high
+ * rates of measurements. The values are kept in primitive fields, a bitmask
+ * tells which of them are present instead of nulls, and the MAC address is
+ * packed in a long.
+ * <p>
+ * Instances passed to a {@link CompactMeasurementListener} are flyweights
+ * reused for the next measurement, so they can be read without any allocation
+ * but must not be retained after the listener returns; use {@link #copy()} to
+ * keep one. Instances are not thread safe.
+ */
+public final class CompactRuuviValue {
+
+    public static final int DATA_FORMAT = 1;
+    public static final int TEMPERATURE = 1 << 1;
+    public static final int HUMIDITY = 1 << 2;
+    public static final int PRESSURE = 1 << 3;
+    public static final int ACCELERATION_X = 1 << 4;
+    public static final int ACCELERATION_Y = 1 << 5;
+    public static final int ACCELERATION_Z = 1 << 6;
+    public static final int BATTERY_VOLTAGE = 1 << 7;
+    public static final int TX_POWER = 1 << 8;
+    public static final int MOVEMENT_COUNTER = 1 << 9;
+    public static final int MEASUREMENT_SEQUENCE_NUMBER = 1 << 10;
+    public static final int TIME = 1 << 11;
+    public static final int RSSI = 1 << 12;
+    public static final int MAC = 1 << 13;
+
+    private int present;
+    private int dataFormat;
+    private double temperature;
+    private double humidity;
+    private double pressure;
+    private double accelerationX;
+    private double accelerationY;
+    private double accelerationZ;
+    private double batteryVoltage;
+    private int txPower;
+    private int movementCounter;
+    private int measurementSequenceNumber;
+    private long time;
+    private int rssi;
+    private long mac;
+    private String name;
+    private String receiver;
+
+    CompactRuuviValue() {
+        clear();
+    }
+
+    /**
+     * Creates a compact copy of a measurement
+     */
+    public static CompactRuuviValue from(RuuviValue value) {
+        CompactRuuviValue compact = new CompactRuuviValue();
+        compact.set(value);
+        return compact;
+    }
+
+    /**
+     * @return a detached copy of this measurement, which can be retained
+     */
+    public CompactRuuviValue copy() {
+        CompactRuuviValue copy = new CompactRuuviValue();
+        copy.present = present;
+        copy.dataFormat = dataFormat;
+        copy.temperature = temperature;
+        copy.humidity = humidity;
+        copy.pressure = pressure;
+        copy.accelerationX = accelerationX;
+        copy.accelerationY = accelerationY;
+        copy.accelerationZ = accelerationZ;
+        copy.batteryVoltage = batteryVoltage;
+        copy.txPower = txPower;
+        copy.movementCounter = movementCounter;
+        copy.measurementSequenceNumber = measurementSequenceNumber;
+        copy.time = time;
+        copy.rssi = rssi;
+        copy.mac = mac;
+        copy.name = name;
+        copy.receiver = receiver;
+        return copy;
+    }
+
+    /**
+     * @return this measurement as a regular {@link RuuviValue}
+     */
+    public RuuviValue toRuuviValue() {
+        return toBuilder().build();
+    }
+
+    /**
+     * @return a builder with the values of this measurement
+     */
+    RuuviValue.RuuviValueBuilder toBuilder() {
+        return RuuviValue.builder()
+                .dataFormat(has(DATA_FORMAT) ? dataFormat : null)
+                .temperature(has(TEMPERATURE) ? temperature : null)
+                .humidity(has(HUMIDITY) ? humidity : null)
+                .pressure(has(PRESSURE) ? pressure : null)
+                .accelerationX(has(ACCELERATION_X) ? accelerationX : null)
+                .accelerationY(has(ACCELERATION_Y) ? accelerationY : null)
+                .accelerationZ(has(ACCELERATION_Z) ? accelerationZ : null)
+                .batteryVoltage(has(BATTERY_VOLTAGE) ? batteryVoltage : null)
+                .txPower(has(TX_POWER) ? txPower : null)
+                .movementCounter(has(MOVEMENT_COUNTER) ? movementCounter : null)
+                .measurementSequenceNumber(has(MEASUREMENT_SEQUENCE_NUMBER) ? measurementSequenceNumber : null)
+                .time(has(TIME) ? time : null)
+                .rssi(has(RSSI) ? rssi : null)
+                .mac(has(MAC) ? macToString(mac) : null)
+                .name(name)
+                .receiver(receiver);
+    }
+
+    /**
+     * @param field one of the field constants of this class
+     * @return whether the field has a value
+     */
+    public boolean has(int field) {
+        return (present & field) == field;
+    }
+
+    /**
+     * @return the bitmask of the fields that have a value
+     */
+    public int getPresentFields() {
+        return present;
+    }
+
+    public int getDataFormat() {
+        return dataFormat;
+    }
+
+    /**
+     * @return the temperature in Celsius, or NaN if not present
+     */
+    public double getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * @return the relative humidity % (range 0-100), or NaN if not present
+     */
+    public double getHumidity() {
+        return humidity;
+    }
+
+    /**
+     * @return the pressure in Pa, or NaN if not present
+     */
+    public double getPressure() {
+        return pressure;
+    }
+
+    /**
+     * @return the acceleration along the X axis in G, or NaN if not present
+     */
+    public double getAccelerationX() {
+        return accelerationX;
+    }
+
+    /**
+     * @return the acceleration along the Y axis in G, or NaN if not present
+     */
+    public double getAccelerationY() {
+        return accelerationY;
+    }
+
+    /**
+     * @return the acceleration along the Z axis in G, or NaN if not present
+     */
+    public double getAccelerationZ() {
+        return accelerationZ;
+    }
+
+    /**
+     * @return the battery voltage in V, or NaN if not present
+     */
+    public double getBatteryVoltage() {
+        return batteryVoltage;
+    }
+
+    public int getTxPower() {
+        return txPower;
+    }
+
+    public int getMovementCounter() {
+        return movementCounter;
+    }
+
+    public int getMeasurementSequenceNumber() {
+        return measurementSequenceNumber;
+    }
+
+    /**
+     * Timestamp in milliseconds, normally not populated to use local time
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * The RSSI at the receiver
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * MAC address of the tag as seen by the receiver, in the low 48 bits
+     */
+    public long getMac() {
+        return mac;
+    }
+
+    /**
+     * @return the MAC address in the format of {@link RuuviValue#getMac()},
+     * or null if not present. Allocates a new string on every call.
+     */
+    public String getMacString() {
+        return has(MAC) ? macToString(mac) : null;
+    }
+
+    /**
+     * Friendly name for the tag
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Arbitrary string associated with the receiver.
+     */
+    public String getReceiver() {
+        return receiver;
+    }
+
+    void clear() {
+        present = 0;
+        dataFormat = 0;
+        temperature = Double.NaN;
+        humidity = Double.NaN;
+        pressure = Double.NaN;
+        accelerationX = Double.NaN;
+        accelerationY = Double.NaN;
+        accelerationZ = Double.NaN;
+        batteryVoltage = Double.NaN;
+        txPower = 0;
+        movementCounter = 0;
+        measurementSequenceNumber = 0;
+        time = 0;
+        rssi = 0;
+        mac = 0;
+        name = null;
+        receiver = null;
+    }
+
+    /**
+     * Replaces the contents with the given measurement
+     */
+    void set(RuuviValue value) {
+        clear();
+        if (value.getDataFormat() != null) setDataFormat(value.getDataFormat());
+        if (value.getTemperature() != null) setTemperature(value.getTemperature());
+        if (value.getHumidity() != null) setHumidity(value.getHumidity());
+        if (value.getPressure() != null) setPressure(value.getPressure());
+        if (value.getAccelerationX() != null) setAccelerationX(value.getAccelerationX());
+        if (value.getAccelerationY() != null) setAccelerationY(value.getAccelerationY());
+        if (value.getAccelerationZ() != null) setAccelerationZ(value.getAccelerationZ());
+        if (value.getBatteryVoltage() != null) setBatteryVoltage(value.getBatteryVoltage());
+        if (value.getTxPower() != null) setTxPower(value.getTxPower());
+        if (value.getMovementCounter() != null) setMovementCounter(value.getMovementCounter());
+        if (value.getMeasurementSequenceNumber() != null) setMeasurementSequenceNumber(value.getMeasurementSequenceNumber());
+        if (value.getTime() != null) setTime(value.getTime());
+        if (value.getRssi() != null) setRssi(value.getRssi());
+        long macValue = Util.macToLong(value.getMac());
+        if (macValue >= 0) setMac(macValue);
+        name = value.getName();
+        receiver = value.getReceiver();
+    }
+
+    void setDataFormat(int dataFormat) {
+        this.dataFormat = dataFormat;
+        present |= DATA_FORMAT;
+    }
+
+    void setTemperature(double temperature) {
+        this.temperature = temperature;
+        present |= TEMPERATURE;
+    }
+
+    void setHumidity(double humidity) {
+        this.humidity = humidity;
+        present |= HUMIDITY;
+    }
+
+    void setPressure(double pressure) {
+        this.pressure = pressure;
+        present |= PRESSURE;
+    }
+
+    void setAccelerationX(double accelerationX) {
+        this.accelerationX = accelerationX;
+        present |= ACCELERATION_X;
+    }
+
+    void setAccelerationY(double accelerationY) {
+        this.accelerationY = accelerationY;
+        present |= ACCELERATION_Y;
+    }
+
+    void setAccelerationZ(double accelerationZ) {
+        this.accelerationZ = accelerationZ;
+        present |= ACCELERATION_Z;
+    }
+
+    void setBatteryVoltage(double batteryVoltage) {
+        this.batteryVoltage = batteryVoltage;
+        present |= BATTERY_VOLTAGE;
+    }
+
+    void setTxPower(int txPower) {
+        this.txPower = txPower;
+        present |= TX_POWER;
+    }
+
+    void setMovementCounter(int movementCounter) {
+        this.movementCounter = movementCounter;
+        present |= MOVEMENT_COUNTER;
+    }
+
+    void setMeasurementSequenceNumber(int measurementSequenceNumber) {
+        this.measurementSequenceNumber = measurementSequenceNumber;
+        present |= MEASUREMENT_SEQUENCE_NUMBER;
+    }
+
+    void setTime(long time) {
+        this.time = time;
+        present |= TIME;
+    }
+
+    void setRssi(int rssi) {
+        this.rssi = rssi;
+        present |= RSSI;
+    }
+
+    void setMac(long mac) {
+        this.mac = mac;
+        present |= MAC;
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    void setReceiver(String receiver) {
+        this.receiver = receiver;
+    }
+
+    static String macToString(long mac) {
+        char[] chars = new char[12];
+        for (int i = 11; i >= 0; i--) {
+            chars[i] = Character.toUpperCase(Character.forDigit((int) (mac & 0x0F), 16));
+            mac >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CompactRuuviValue)) {
+            return false;
+        }
+        CompactRuuviValue other = (CompactRuuviValue) o;
+        return present == other.present
+                && dataFormat == other.dataFormat
+                && Double.compare(temperature, other.temperature) == 0
+                && Double.compare(humidity, other.humidity) == 0
+                && Double.compare(pressure, other.pressure) == 0
+                && Double.compare(accelerationX, other.accelerationX) == 0
+                && Double.compare(accelerationY, other.accelerationY) == 0
+                && Double.compare(accelerationZ, other.accelerationZ) == 0
+                && Double.compare(batteryVoltage, other.batteryVoltage) == 0
+                && txPower == other.txPower
+                && movementCounter == other.movementCounter
+                && measurementSequenceNumber == other.measurementSequenceNumber
+                && time == other.time
+                && rssi == other.rssi
+                && mac == other.mac
+                && Objects.equals(name, other.name)
+                && Objects.equals(receiver, other.receiver);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = present;
+        result = 31 * result + Long.hashCode(mac);
+        result = 31 * result + measurementSequenceNumber;
+        result = 31 * result + Double.hashCode(temperature);
+        result = 31 * result + Double.hashCode(humidity);
+        result = 31 * result + Double.hashCode(pressure);
+        result = 31 * result + Long.hashCode(time);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactRuuviValue{" + toRuuviValue() + '}';
+    }
+}
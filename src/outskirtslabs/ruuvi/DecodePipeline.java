@@ -0,0 +1,201 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+/**
+ * Decodes HCI packets on a pool of worker threads, so that the threads
+ * reading the dumps only frame the packets. Packets are sharded on the MAC
+ * address of the device, so the packets of a device are decoded by the same
+ * worker, in the order they were submitted.
+ * <p>
+ * Each worker has a bounded queue of frames. A reader submitting to a full
+ * queue waits for the worker to catch up, propagating the backpressure to the
+ * dump like a reader decoding the packets itself. The frames are recycled, so
+ * no garbage is created in the steady state.
+ */
+class DecodePipeline {
+
+    /**
+     * Decodes the frames of a worker. Each worker has a decoder of its own,
+     * so decoders need not be thread safe, and neither need the state they
+     * keep per device, as the packets of a device all go to the same worker.
+     */
+    interface Decoder {
+        /**
+         * @param frame   a complete packet in the H4 format
+         * @param adapter the index of the adapter the packet was read from
+         */
+        void decode(ByteBuffer frame, int adapter);
+    }
+
+    private static final Logger LOG = Logger.getLogger(DecodePipeline.class);
+    private static final AtomicInteger PIPELINE_COUNTER = new AtomicInteger();
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final Worker[] workers;
+    private volatile boolean running = true;
+
+    /**
+     * @param threads       the number of workers
+     * @param queueCapacity the number of frames queued per worker, rounded up
+     *                      to a power of two
+     * @param decoders      creates the decoder of each worker from its index
+     */
+    DecodePipeline(int threads, int queueCapacity, ThreadingMode threadingMode, IntFunction<Decoder> decoders) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one decode thread is needed");
+        }
+        int pipeline = PIPELINE_COUNTER.incrementAndGet();
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(queueCapacity, decoders.apply(i));
+        }
+        for (int i = 0; i < threads; i++) {
+            Worker worker = workers[i];
+            worker.thread = threadingMode.newThread("ruuvi-decode-" + pipeline + "-" + i, worker::run, true);
+            worker.thread.start();
+        }
+    }
+
+    int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     * @return the approximate number of frames waiting to be decoded
+     */
+    int getQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers) {
+            depth += worker.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Copies a packet to the queue of the worker of its device, waiting if
+     * the queue is full. The buffer is consumed.
+     *
+     * @return false if the pipeline is closed or the thread was interrupted
+     * while waiting, and the packet was dropped
+     */
+    boolean submit(ByteBuffer frame, int adapter) {
+        int length = frame.remaining();
+        if (length > HCIByteParser.MAX_PACKET_LENGTH) {
+            frame.position(frame.limit());
+            return true; // not a valid packet, the parser would drop it as well
+        }
+        Worker worker = workers[shard(frame)];
+        Frame copy = worker.free.poll();
+        if (copy == null) {
+            copy = new Frame();
+        }
+        frame.get(copy.bytes, 0, length);
+        copy.length = length;
+        copy.adapter = adapter;
+        while (!worker.queue.offer(copy)) {
+            if (!running || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        worker.wake();
+        return running;
+    }
+
+    /**
+     * Stops the workers after they have decoded the frames already queued,
+     * waiting at most a few seconds for that to happen.
+     */
+    void close() {
+        running = false;
+        for (Worker worker : workers) {
+            worker.stop();
+        }
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (worker.thread.isAlive()) {
+                LOG.warn("Decode worker " + worker.thread.getName() + " did not finish in time, interrupting it");
+                worker.thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the worker of the device that sent the packet, by the hash of
+     * its MAC address if the packet is an advertising report
+     */
+    private int shard(ByteBuffer frame) {
+        if (workers.length == 1) {
+            return 0;
+        }
+        int start = frame.position();
+        if (frame.remaining() < 13) {
+            return 0;
+        }
+        long mac = 0;
+        for (int i = 12; i >= 7; i--) { // the MAC is "backwards"
+            mac = mac << 8 | (frame.get(start + i) & 0xFF);
+        }
+        return (MacIndex.hash(mac) & Integer.MAX_VALUE) % workers.length;
+    }
+
+    private static final class Frame {
+        final byte[] bytes = new byte[HCIByteParser.MAX_PACKET_LENGTH];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int length;
+        int adapter;
+    }
+
+    private static final class Worker extends QueueConsumer<Frame> {
+        final RingBuffer<Frame> queue;
+        final RingBuffer<Frame> free;
+        final Decoder decoder;
+        Thread thread;
+
+        Worker(int queueCapacity, Decoder decoder) {
+            this.queue = new RingBuffer<>(queueCapacity);
+            this.free = new RingBuffer<>(queueCapacity);
+            this.decoder = decoder;
+        }
+
+        @Override
+        Frame poll() {
+            return queue.poll();
+        }
+
+        @Override
+        boolean isEmpty() {
+            return queue.isEmpty();
+        }
+
+        @Override
+        void consume(Frame frame) {
+            frame.buffer.limit(frame.length).position(0);
+            try {
+                decoder.decode(frame.buffer, frame.adapter);
+            } catch (Exception e) {
+                LOG.warn("Uncaught exception while decoding a packet", e);
+            }
+            free.offer(frame);
+        }
+
+        @Override
+        void run() {
+            super.run();
+            LOG.debug("Decode worker " + Thread.currentThread().getName() + " finished");
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Collection;
+
+/**
+ * The values of a {@link RuuviDerivedValue}, which listeners can use to
+ * declare the derived values they need.
+ */
+public enum DerivedField {
+    ACCELERATION_TOTAL,
+    ACCELERATION_ANGLE_FROM_X,
+    ACCELERATION_ANGLE_FROM_Y,
+    ACCELERATION_ANGLE_FROM_Z,
+    ABSOLUTE_HUMIDITY,
+    DEW_POINT,
+    EQUILIBRIUM_VAPOR_PRESSURE,
+    AIR_DENSITY;
+
+    static final int ALL = (1 << values().length) - 1;
+
+    int bit() {
+        return 1 << ordinal();
+    }
+
+    static int maskOf(Collection<DerivedField> fields) {
+        int mask = 0;
+        for (DerivedField field : fields) {
+            mask |= field.bit();
+        }
+        return mask;
+    }
+}
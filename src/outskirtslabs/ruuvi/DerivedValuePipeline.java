@@ -0,0 +1,266 @@
+package outskirtslabs.ruuvi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs {@link DerivedValuePlugin}s in the order of their inputs, so that each
+ * value is derived once and a plugin can read the outputs of others. The
+ * values are numbered: first the {@link AggregateField}s the plugins read,
+ * then the outputs of the plugins in the order they run.
+ * <p>
+ * The receiver runs a pipeline of the plugins added to it on each
+ * measurement, see {@link Receiver#addDerivedValuePlugin(DerivedValuePlugin)}.
+ * A pipeline can also derive the values of a batch of measurements held in
+ * columns, with {@link #computeBatch(List)}. The plugins keep their state, so
+ * stateful ones should not be shared between pipelines. Instances are not
+ * thread safe.
+ */
+public final class DerivedValuePipeline {
+
+    private final List<DerivedValuePlugin> plugins;
+    private final List<AggregateField> inputs;
+    private final List<String> outputs;
+    private final Map<String, Integer> outputIndexes = new HashMap<>();
+    private final int derivedFields;
+    /**
+     * The values each plugin reads and writes, by the number of the value
+     */
+    private final int[][] pluginInputs;
+    private final int[][] pluginOutputs;
+    private final DerivedValuePlugin[] pluginArray;
+    private final AggregateField[] inputArray;
+    // scratch space of apply
+    private final double[] values;
+    private final double[][] rowInputs;
+    private final double[][] rowOutputs;
+
+    private DerivedValuePipeline(List<DerivedValuePlugin> plugins, List<AggregateField> inputs, List<String> outputs, Map<String, Integer> numbers) {
+        this.plugins = plugins;
+        this.inputs = inputs;
+        this.outputs = outputs;
+        for (int k = 0; k < outputs.size(); k++) {
+            outputIndexes.put(outputs.get(k), k);
+        }
+        int fields = 0;
+        for (AggregateField input : inputs) {
+            if (input.getDerivedField() != null) {
+                fields |= input.getDerivedField().bit();
+            }
+        }
+        this.derivedFields = fields;
+        pluginInputs = new int[plugins.size()][];
+        pluginOutputs = new int[plugins.size()][];
+        rowInputs = new double[plugins.size()][];
+        rowOutputs = new double[plugins.size()][];
+        for (int p = 0; p < plugins.size(); p++) {
+            pluginInputs[p] = plugins.get(p).getInputs().stream().mapToInt(numbers::get).toArray();
+            pluginOutputs[p] = plugins.get(p).getOutputs().stream().mapToInt(numbers::get).toArray();
+            rowInputs[p] = new double[pluginInputs[p].length];
+            rowOutputs[p] = new double[pluginOutputs[p].length];
+        }
+        values = new double[inputs.size() + outputs.size()];
+        pluginArray = plugins.toArray(new DerivedValuePlugin[0]);
+        inputArray = inputs.toArray(new AggregateField[0]);
+    }
+
+    /**
+     * Orders the plugins so that each runs after those whose outputs it
+     * reads, keeping the given order otherwise
+     *
+     * @throws IllegalArgumentException if an input is neither an
+     *                                  {@link AggregateField} nor an output,
+     *                                  if two plugins have the same output or
+     *                                  if plugins read each other's outputs
+     */
+    public static DerivedValuePipeline of(List<? extends DerivedValuePlugin> plugins) {
+        Map<String, DerivedValuePlugin> producers = new HashMap<>();
+        for (DerivedValuePlugin plugin : plugins) {
+            for (String output : plugin.getOutputs()) {
+                if (isField(output) || producers.put(output, plugin) != null) {
+                    throw new IllegalArgumentException("The value " + output + " is derived twice");
+                }
+            }
+        }
+        List<DerivedValuePlugin> ordered = new ArrayList<>();
+        Set<AggregateField> fields = EnumSet.noneOf(AggregateField.class);
+        List<DerivedValuePlugin> pending = new ArrayList<>(plugins);
+        while (!pending.isEmpty()) {
+            DerivedValuePlugin ready = null;
+            for (DerivedValuePlugin plugin : pending) {
+                boolean inputsReady = true;
+                for (String input : plugin.getInputs()) {
+                    if (isField(input)) {
+                        continue;
+                    }
+                    DerivedValuePlugin producer = producers.get(input);
+                    if (producer == null) {
+                        throw new IllegalArgumentException("The input " + input + " is neither a field nor derived by a plugin");
+                    }
+                    inputsReady &= ordered.contains(producer);
+                }
+                if (inputsReady) {
+                    ready = plugin;
+                    break;
+                }
+            }
+            if (ready == null) {
+                List<String> outputs = new ArrayList<>();
+                pending.forEach(plugin -> outputs.addAll(plugin.getOutputs()));
+                throw new IllegalArgumentException("The plugins deriving " + outputs + " read each other's outputs");
+            }
+            pending.remove(ready);
+            ordered.add(ready);
+            for (String input : ready.getInputs()) {
+                if (isField(input)) {
+                    fields.add(AggregateField.valueOf(input));
+                }
+            }
+        }
+        Map<String, Integer> numbers = new LinkedHashMap<>();
+        for (AggregateField field : fields) {
+            numbers.put(field.name(), numbers.size());
+        }
+        List<String> outputs = new ArrayList<>();
+        for (DerivedValuePlugin plugin : ordered) {
+            for (String output : plugin.getOutputs()) {
+                numbers.put(output, numbers.size());
+                outputs.add(output);
+            }
+        }
+        return new DerivedValuePipeline(Collections.unmodifiableList(ordered), List.copyOf(fields), Collections.unmodifiableList(outputs), numbers);
+    }
+
+    private static boolean isField(String name) {
+        for (AggregateField field : AggregateField.values()) {
+            if (field.name().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the plugins, in the order they run
+     */
+    public List<DerivedValuePlugin> getPlugins() {
+        return plugins;
+    }
+
+    /**
+     * @return the fields of the measurements the plugins read, in the order
+     * of the input columns of {@link #computeBatch(long[], double[][], double[][], int)}
+     */
+    public List<AggregateField> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * @return the values the plugins derive, in the order of the output
+     * columns
+     */
+    public List<String> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * @return the index of the output, or -1 if it is not derived
+     */
+    int indexOfOutput(String output) {
+        Integer index = outputIndexes.get(output);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the bitmask of the {@link DerivedField}s the plugins read
+     */
+    int getDerivedFields() {
+        return derivedFields;
+    }
+
+    /**
+     * Derives the values of a measurement and stores them in its derived
+     * values
+     */
+    void apply(RuuviValue measurement, RuuviDerivedValue derived) {
+        double[] values = this.values;
+        for (int k = 0; k < inputArray.length; k++) {
+            Number value = inputArray[k].valueOf(measurement, derived);
+            values[k] = value == null ? Double.NaN : value.doubleValue();
+        }
+        long mac = Util.macToLong(measurement.getMac());
+        for (int p = 0; p < pluginArray.length; p++) {
+            int[] in = pluginInputs[p];
+            double[] row = rowInputs[p];
+            for (int k = 0; k < in.length; k++) {
+                row[k] = values[in[k]];
+            }
+            double[] result = rowOutputs[p];
+            pluginArray[p].compute(mac, row, result);
+            int[] out = pluginOutputs[p];
+            for (int k = 0; k < out.length; k++) {
+                values[out[k]] = result[k];
+            }
+        }
+        derived.setExtras(this, Arrays.copyOfRange(values, inputArray.length, values.length));
+    }
+
+    /**
+     * Derives the values of a batch of measurements, with a column of each
+     * field of {@link #getInputs()} and one of each value of
+     * {@link #getOutputs()}, NaN for missing values
+     *
+     * @param count the number of rows
+     */
+    public void computeBatch(long[] macs, double[][] inputColumns, double[][] outputColumns, int count) {
+        if (inputColumns.length != inputs.size() || outputColumns.length != outputs.size()) {
+            throw new IllegalArgumentException("Expected " + inputs.size() + " input and " + outputs.size() + " output columns");
+        }
+        double[][] columns = new double[inputColumns.length + outputColumns.length][];
+        System.arraycopy(inputColumns, 0, columns, 0, inputColumns.length);
+        System.arraycopy(outputColumns, 0, columns, inputColumns.length, outputColumns.length);
+        for (int p = 0; p < pluginInputs.length; p++) {
+            plugins.get(p).computeBatch(macs, select(columns, pluginInputs[p]), select(columns, pluginOutputs[p]), count);
+        }
+    }
+
+    private static double[][] select(double[][] columns, int[] numbers) {
+        double[][] selected = new double[numbers.length][];
+        for (int k = 0; k < numbers.length; k++) {
+            selected[k] = columns[numbers[k]];
+        }
+        return selected;
+    }
+
+    /**
+     * Derives the values of a batch of measurements, reading the inputs
+     * from the measurements and their derived values
+     *
+     * @return a column of each value of {@link #getOutputs()}, NaN where a
+     * value could not be derived
+     */
+    public double[][] computeBatch(List<RuuviData> batch) {
+        int count = batch.size();
+        long[] macs = new long[count];
+        double[][] inputColumns = new double[inputs.size()][count];
+        double[][] outputColumns = new double[outputs.size()][count];
+        for (int j = 0; j < count; j++) {
+            RuuviValue measurement = batch.get(j).getMeasurement();
+            RuuviDerivedValue derived = batch.get(j).getDerived();
+            macs[j] = Util.macToLong(measurement.getMac());
+            for (int k = 0; k < inputColumns.length; k++) {
+                Number value = inputs.get(k).valueOf(measurement, derived);
+                inputColumns[k][j] = value == null ? Double.NaN : value.doubleValue();
+            }
+        }
+        computeBatch(macs, inputColumns, outputColumns, count);
+        return outputColumns;
+    }
+}
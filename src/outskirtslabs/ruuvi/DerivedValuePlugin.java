@@ -0,0 +1,96 @@
+package outskirtslabs.ruuvi;
+
+import java.util.List;
+
+/**
+ * Derives more values from a measurement, in addition to those of
+ * {@link RuuviDerivedValue}. Added with
+ * {@link Receiver#addDerivedValuePlugin(DerivedValuePlugin)}, which computes
+ * the outputs once per measurement for all the listeners, who read them with
+ * {@link RuuviDerivedValue#getExtra(String)}.
+ * <p>
+ * The values are passed as doubles, with NaN for a value the measurement
+ * doesn't have; arithmetic on NaN gives NaN, so missing inputs usually need
+ * no checks. A plugin is called for one measurement at a time, in the order
+ * they are received, so it may keep state such as the previous values of
+ * each tag.
+ */
+public interface DerivedValuePlugin {
+
+    /**
+     * The values the plugin reads, each the name of an {@link AggregateField}
+     * or an output of another plugin
+     */
+    List<String> getInputs();
+
+    /**
+     * The names of the values the plugin derives
+     */
+    List<String> getOutputs();
+
+    /**
+     * Derives the values of one measurement
+     *
+     * @param mac     the MAC address of the tag as a number, see
+     *                {@link CompactRuuviValue#getMac()}, or -1 if the
+     *                measurement has none
+     * @param inputs  the inputs, in the order of {@link #getInputs()}
+     * @param outputs where to write the outputs, in the order of
+     *                {@link #getOutputs()}
+     */
+    void compute(long mac, double[] inputs, double[] outputs);
+
+    /**
+     * Derives the values of a batch of measurements, held in columns. The
+     * default calls {@link #compute(long, double[], double[])} for each row;
+     * stateless plugins can loop over the columns instead, which the JIT
+     * compiles to vector instructions when the loop body is simple enough.
+     *
+     * @param macs    the MAC addresses of the rows
+     * @param inputs  a column of each input, in the order of
+     *                {@link #getInputs()}
+     * @param outputs a column of each output to write, in the order of
+     *                {@link #getOutputs()}
+     * @param count   the number of rows
+     */
+    default void computeBatch(long[] macs, double[][] inputs, double[][] outputs, int count) {
+        double[] row = new double[inputs.length];
+        double[] result = new double[outputs.length];
+        for (int j = 0; j < count; j++) {
+            for (int k = 0; k < row.length; k++) {
+                row[k] = inputs[k][j];
+            }
+            compute(macs[j], row, result);
+            for (int k = 0; k < result.length; k++) {
+                outputs[k][j] = result[k];
+            }
+        }
+    }
+
+    /**
+     * The heat index, the temperature as felt at the humidity, in Celsius
+     */
+    static DerivedValuePlugin heatIndex() {
+        return new HeatIndexPlugin();
+    }
+
+    /**
+     * The vapor pressure deficit, how far the air is from saturation, in Pa
+     */
+    static DerivedValuePlugin vaporPressureDeficit() {
+        return new VaporPressureDeficitPlugin();
+    }
+
+    /**
+     * The mean of the latest values of the input of each tag, skipping
+     * missing values. The values of a tag not seen for 10 minutes are
+     * forgotten.
+     *
+     * @param output  the name of the mean
+     * @param input   the value averaged
+     * @param samples how many of the latest values are averaged
+     */
+    static DerivedValuePlugin movingAverage(String output, String input, int samples) {
+        return new MovingAveragePlugin(output, input, samples);
+    }
+}
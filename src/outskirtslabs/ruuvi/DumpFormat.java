@@ -0,0 +1,43 @@
+package outskirtslabs.ruuvi;
+
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * The format of the output of the dump command given to {@link Receiver}.
+ */
+public enum DumpFormat {
+    /**
+     * The hex text output of "hcidump --raw"
+     */
+    TEXT,
+    /**
+     * The native binary format of "hcidump -w", for example "hcidump -w /dev/stdout"
+     */
+    HCIDUMP,
+    /**
+     * The btsnoop format of "hcidump --btsnoop -w" and "btmon -w"
+     */
+    BTSNOOP,
+    /**
+     * A raw stream of H4 framed HCI packets, as read from a raw HCI socket
+     */
+    H4;
+
+    /**
+     * Opens an event source reading this binary format from the channel.
+     *
+     * @throws UnsupportedOperationException for the {@link #TEXT} format
+     */
+    public HciEventSource open(ReadableByteChannel channel) {
+        switch (this) {
+            case HCIDUMP:
+                return new HcidumpEventSource(channel);
+            case BTSNOOP:
+                return new BtsnoopEventSource(channel);
+            case H4:
+                return new H4EventSource(channel);
+            default:
+                throw new UnsupportedOperationException("The " + this + " format is not binary");
+        }
+    }
+}
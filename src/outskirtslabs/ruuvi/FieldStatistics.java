@@ -0,0 +1,26 @@
+package outskirtslabs.ruuvi;
+
+import lombok.Value;
+
+/**
+ * The statistics of one field of the measurements of a tag in a window
+ */
+@Value
+public class FieldStatistics {
+    /**
+     * The number of measurements that had the field
+     */
+    long count;
+    double min;
+    double max;
+    double mean;
+    /**
+     * The sample standard deviation, 0 for a single measurement
+     */
+    double standardDeviation;
+    /**
+     * The value of the most recent measurement, by sequence number when the
+     * tag sends one
+     */
+    double last;
+}
@@ -0,0 +1,102 @@
+package outskirtslabs.ruuvi;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the measurements sent by a {@link MeasurementForwarder} from a
+ * channel, usually a socket accepted by the central server, and passes them
+ * to a listener:
+ * <pre>
+ * try (ForwardedMeasurementSource source = new ForwardedMeasurementSource(serverSocket.accept(), listener)) {
+ *     source.readAll();
+ * }
+ * </pre>
+ * The derived values the gateway sent are passed as they are, the others that
+ * the listener uses are calculated here. Exceptions thrown by the listener
+ * are passed on, and the source can't be used after any exception. Instances
+ * are not thread safe.
+ */
+public final class ForwardedMeasurementSource implements Closeable {
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final MeasurementListener listener;
+    private final MeasurementDecoder decoder = new MeasurementDecoder();
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long frames;
+    private long measurements;
+
+    public ForwardedMeasurementSource(ReadableByteChannel channel, MeasurementListener listener) {
+        this.channel = channel;
+        this.listener = listener;
+    }
+
+    /**
+     * Reads and passes on measurements until the end of the stream
+     *
+     * @throws EOFException if the stream ends in the middle of a frame
+     */
+    public void readAll() throws IOException {
+        while (read()) {
+            // keep reading
+        }
+    }
+
+    /**
+     * Reads from the channel once and passes on the measurements of the
+     * frames that are complete. With a channel in non-blocking mode this
+     * reads what is available, which may be nothing.
+     *
+     * @return false at the end of the stream
+     * @throws EOFException if the stream ends in the middle of a frame
+     * @throws java.io.StreamCorruptedException if a frame is not valid
+     */
+    public boolean read() throws IOException {
+        if (channel.read(buffer) < 0) {
+            if (buffer.position() > 0) {
+                throw new EOFException("The stream ended in the middle of a frame");
+            }
+            return false;
+        }
+        buffer.flip();
+        int length = MeasurementDecoder.frameLength(buffer);
+        while (length >= 0 && length <= buffer.remaining()) {
+            measurements += decoder.readFrame(buffer, listener);
+            frames++;
+            length = MeasurementDecoder.frameLength(buffer);
+        }
+        if (length > buffer.capacity()) {
+            buffer = ByteBuffer.allocate(length).put(buffer);
+        } else {
+            buffer.compact();
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of frames read
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * @return the number of measurements read
+     */
+    public long getMeasurementCount() {
+        return measurements;
+    }
+
+    /**
+     * Closes the channel
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,55 @@
+package outskirtslabs.ruuvi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a raw stream of HCI packets in the H4 (UART) format, where each
+ * packet starts with its packet type. This is the format spoken by a raw HCI
+ * socket or a serial HCI transport, so any channel connected to one of those
+ * (for example a pipe from a small helper opening an AF_BLUETOOTH socket) can
+ * be used as a source.
+ */
+class H4EventSource extends ChannelHciEventSource {
+
+    private static final byte HCI_COMMAND_PACKET = 0x01;
+    private static final byte HCI_ACL_DATA_PACKET = 0x02;
+    private static final byte HCI_SCO_DATA_PACKET = 0x03;
+
+    H4EventSource(ReadableByteChannel channel) {
+        super(channel, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        while (require(1)) {
+            byte packetType = buffer.get(buffer.position());
+            switch (packetType) {
+                case HCI_EVENT_PACKET:
+                    require(3);
+                    int eventLength = 3 + (buffer.get(buffer.position() + 2) & 0xFF);
+                    require(eventLength);
+                    return frame(buffer.position(), eventLength);
+                case HCI_COMMAND_PACKET:
+                case HCI_SCO_DATA_PACKET:
+                    require(4);
+                    skipPacket(4 + (buffer.get(buffer.position() + 3) & 0xFF));
+                    break;
+                case HCI_ACL_DATA_PACKET:
+                    require(5);
+                    skipPacket(5 + (buffer.getShort(buffer.position() + 3) & 0xFFFF));
+                    break;
+                default:
+                    throw new IOException(String.format("Unknown H4 packet type 0x%02X, the stream is out of sync", packetType));
+            }
+        }
+        return null;
+    }
+
+    private void skipPacket(int length) throws IOException {
+        require(length);
+        skip(length);
+    }
+}
@@ -0,0 +1,289 @@
+package outskirtslabs.ruuvi;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A parser for the raw format dump from hcidump (output of command "hcidump
+ * --raw") which decodes the hex characters directly into a preallocated packet
+ * buffer. Unlike {@link HCIParser}, no intermediate strings, byte arrays or
+ * boxed byte lists are created while a packet is being read; the {@link HCIData}
+ * is only built once the packet is complete, and its advertisement data is
+ * backed by a single copy of the packet bytes.
+ * <p>
+ * This parser produces the same {@link HCIData} as {@link HCIParser} for the
+ * same input. It is not thread safe.
+ */
+class HCIByteParser implements HCILineParser {
+
+    /**
+     * Packet type, event code and parameter length, followed by at most 255
+     * bytes of parameters
+     */
+    static final int MAX_PACKET_LENGTH = 3 + 255;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        for (int c = 0; c < HEX_VALUES.length; c++) {
+            HEX_VALUES[c] = (byte) Character.digit(c, 16);
+        }
+    }
+
+    private final byte[] packet = new byte[MAX_PACKET_LENGTH];
+    private final char[] macChars = new char[12];
+    private int length;
+    private boolean sendingData;
+    private boolean rejected;
+    private PacketFilter filter;
+    // the last buffer passed to readLine(char[], int, int)
+    private char[] wrappedArray;
+    private CharBuffer wrapped;
+
+    public HCIByteParser() {
+        reset();
+    }
+
+    @Override
+    public void setPacketFilter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    @Override
+    public HCIData readLine(String line) {
+        return readLine(line, 0, line.length());
+    }
+
+    /**
+     * Reads a line of hcidump raw output from a range of a character sequence.
+     *
+     * @see #readLine(String)
+     */
+    public HCIData readLine(CharSequence line, int start, int end) {
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int i = skipWhitespace(line, start, end);
+        if (i == end) {
+            return null; // ignore blank lines
+        }
+        if (line.charAt(i) == '>') { // new incoming packet begins
+            reset();
+            i = skipWhitespace(line, i + 1, end); // discard the > char
+            if (i == end) {
+                return null;
+            }
+        }
+        if (line.charAt(i) == '<') { // new outgoing packet begins
+            sendingData = true;
+        }
+        if (sendingData) {
+            return null; // currently reading a packet that is being sent rather than received, ignore it
+        }
+        if (rejected) {
+            return null; // the filter rejected the packet, don't bother decoding the rest of it
+        }
+        boolean haveHigh = false;
+        int high = 0;
+        for (; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == ' ') {
+                continue;
+            }
+            if (haveHigh) {
+                append((byte) ((high << 4) + hexValue(c)));
+                if (length == 13 && !acceptMac()) {
+                    return null;
+                }
+            } else {
+                high = hexValue(c);
+            }
+            haveHigh = !haveHigh;
+        }
+        return completedPacket();
+    }
+
+    /**
+     * Reads a line of hcidump raw output from a range of a reusable character
+     * buffer. The buffer is wrapped once and the wrapper reused for as long
+     * as the same buffer is passed.
+     *
+     * @see #readLine(String)
+     */
+    public HCIData readLine(char[] line, int start, int end) {
+        if (wrappedArray != line) {
+            wrapped = CharBuffer.wrap(line);
+            wrappedArray = line;
+        }
+        return readLine(wrapped, start, end);
+    }
+
+    /**
+     * Parses a complete binary HCI packet, as returned by
+     * {@link HciEventSource#next()}. The buffer is consumed.
+     *
+     * @param frame a packet in the H4 format, starting with the packet type
+     * @return the parsed data, or null if the packet is incomplete
+     */
+    public HCIData readPacket(ByteBuffer frame) {
+        reset();
+        int n = frame.remaining();
+        if (n < 3 || n > packet.length || n < unsigned(frame.get(frame.position() + 2)) + 3) {
+            frame.position(frame.limit());
+            return null;
+        }
+        frame.get(packet, 0, n);
+        length = n;
+        if (n >= 13 && !acceptMac()) {
+            return null;
+        }
+        return completedPacket();
+    }
+
+    private void reset() {
+        length = 0;
+        sendingData = false;
+        rejected = false;
+    }
+
+    private boolean acceptMac() {
+        if (filter != null && !filter.acceptMac(PacketFilter.macOf(packet))) {
+            rejected = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void append(byte b) {
+        if (length < packet.length) {
+            packet[length++] = b;
+        }
+    }
+
+    private HCIData completedPacket() {
+        // the packet length is actually the length AFTER the length byte, which is the 3rd byte
+        if (length >= 3 && length >= unsigned(packet[2]) + 3) {
+            if (filter != null && !filter.acceptManufacturer(packet, length)) {
+                rejected = true;
+                return null;
+            }
+            return toHCIData(Arrays.copyOf(packet, length));
+        }
+        return null;
+    }
+
+    /**
+     * Builds the HCIData from a complete packet. The interpretation of the
+     * bytes mirrors the state machine in {@link HCIParser} exactly, but the
+     * advertisement data is exposed as slices of the packet rather than being
+     * copied byte-by-byte.
+     */
+    private HCIData toHCIData(byte[] p) {
+        HCIData data = new HCIData();
+        int n = p.length;
+        if (n > 0) data.packetType = unsigned(p[0]);
+        if (n > 1) data.eventCode = unsigned(p[1]);
+        if (n > 2) data.packetLength = unsigned(p[2]);
+        if (n > 3) data.subEvent = unsigned(p[3]);
+        if (n > 4) data.numberOfReports = unsigned(p[4]);
+        if (n > 5) data.eventType = unsigned(p[5]);
+        if (n > 6) data.peerAddressType = unsigned(p[6]);
+        if (n > 7) {
+            int last = Math.min(n, 13) - 1;
+            int c = 0;
+            for (int i = last; i >= 7; i--) { // the MAC is "backwards"
+                macChars[c++] = HEX_DIGITS[(p[i] >> 4) & 0x0F];
+                macChars[c++] = HEX_DIGITS[p[i] & 0x0F];
+            }
+            data.mac = new String(macChars, 0, c);
+        }
+
+        HCIData.Report report = null;
+        HCIData.Report.AdvertisementData adData = null;
+        int indexInReport = 0;
+        int indexInADData = 0;
+        int processedReports = 0;
+        int sliceStart = 0;
+        int sliceLength = 0;
+        for (int i = 13; i < n; i++) {
+            if (processedReports >= data.numberOfReports) {
+                data.rssi = (int) p[i];
+                continue;
+            }
+            if (indexInReport == 0) {
+                report = new HCIData.Report();
+                report.length = unsigned(p[i]);
+                if (data.reports == null) {
+                    data.reports = new ArrayList<>();
+                }
+                data.reports.add(report);
+            } else {
+                if (indexInADData == 0) {
+                    adData = new HCIData.Report.AdvertisementData();
+                    adData.length = unsigned(p[i]);
+                    if (report.advertisements == null) {
+                        report.advertisements = new ArrayList<>();
+                    }
+                    report.advertisements.add(adData);
+                } else if (indexInADData == 1) {
+                    adData.type = unsigned(p[i]);
+                } else if (adData.data != null) {
+                    adData.data.add(p[i]);
+                } else if (sliceLength == 0) {
+                    sliceStart = i;
+                    sliceLength = 1;
+                } else if (sliceStart + sliceLength == i) {
+                    sliceLength++;
+                } else {
+                    // the data was interrupted by the header of the next report, it can't be a single slice
+                    adData.data = new ArrayList<>(new ByteSlice(p, sliceStart, sliceLength));
+                    adData.data.add(p[i]);
+                    sliceLength = 0;
+                }
+                indexInADData++;
+                // AD data length does not count the length byte itself
+                if (indexInADData >= adData.length + 1) {
+                    finishSlice(adData, p, sliceStart, sliceLength);
+                    sliceLength = 0;
+                    indexInADData = 0;
+                    adData = null;
+                }
+            }
+            indexInReport++;
+            // Report length does not count the length byte itself
+            if (indexInReport >= report.length + 1) {
+                indexInReport = 0;
+                report = null;
+                processedReports++;
+            }
+        }
+        if (adData != null) {
+            finishSlice(adData, p, sliceStart, sliceLength);
+        }
+        return data;
+    }
+
+    private static void finishSlice(HCIData.Report.AdvertisementData adData, byte[] p, int sliceStart, int sliceLength) {
+        if (sliceLength > 0 && adData.data == null) {
+            adData.data = new ByteSlice(p, sliceStart, sliceLength);
+        }
+    }
+
+    private static int skipWhitespace(CharSequence line, int start, int end) {
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int hexValue(char c) {
+        return c < HEX_VALUES.length ? HEX_VALUES[c] : Character.digit(c, 16);
+    }
+
+    private static int unsigned(byte b) {
+        return b & 0xFF;
+    }
+}
@@ -22,13 +22,17 @@ class HCIData {
         if (reports == null) {
             return null;
         }
-        return reports.stream()
-                .filter(r -> r.advertisements != null)
-                .flatMap(r -> r.advertisements.stream())
-                .filter(a -> a.type != null)
-                .filter(a -> a.type == type)
-                .findFirst()
-                .orElse(null);
+        for (Report report : reports) { // not a stream, this is called for every packet
+            if (report.advertisements == null) {
+                continue;
+            }
+            for (Report.AdvertisementData advertisement : report.advertisements) {
+                if (advertisement.type != null && advertisement.type == type) {
+                    return advertisement;
+                }
+            }
+        }
+        return null;
     }
 
     @Override
@@ -55,6 +59,8 @@ class HCIData {
             public byte[] dataBytes() {
                 if (data == null) {
                     return new byte[0];
+                } else if (data instanceof ByteSlice) {
+                    return ((ByteSlice) data).toByteArray();
                 } else {
                     return Util.toPrimitive(data.toArray(new Byte[data.size()]));
                 }
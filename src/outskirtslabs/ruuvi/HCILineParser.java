@@ -0,0 +1,29 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * Common interface of the parsers capable of turning the raw format dump from
+ * hcidump (output of command "hcidump --raw") into {@link HCIData} instances.
+ * Implementations are stateful and not thread safe.
+ */
+interface HCILineParser {
+
+    /**
+     * Reads lines from hcidump raw output and returns a HCIData instance when
+     * it's ready. Long packets are split to multiple lines in the hcidump raw
+     * output.
+     *
+     * @param line raw line from hcidump --raw output
+     * @return An instance of HCIData containing the parsed data from this line
+     * and the previous ones, or null if the packet is not yet complete
+     */
+    HCIData readLine(String line);
+
+    /**
+     * Sets the filter applied to the packets as soon as the MAC address and
+     * the complete packet have been read. Rejected packets are skipped and
+     * never returned.
+     *
+     * @param filter the filter, or null to accept all packets
+     */
+    void setPacketFilter(PacketFilter filter);
+}
@@ -7,9 +7,12 @@ import java.util.ArrayList;
  * command "hcidump --raw"). This implementation is a state-machine, and thus
  * it's not thread safe.
  */
-class HCIParser {
+class HCIParser implements HCILineParser {
 
     private boolean sendingData;
+    private boolean rejected;
+    private long macBits;
+    private PacketFilter filter;
     private int indexInPacket;
     private int indexInReport;
     private int indexInADData;
@@ -22,6 +25,11 @@ class HCIParser {
         reset();
     }
 
+    @Override
+    public void setPacketFilter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
     /**
      * Reads lines from hcidump raw output and returns a HCIData instance when
      * it's ready. Long packets are split to multiple lines in the hcidump raw
@@ -31,6 +39,7 @@ class HCIParser {
      * @return An instance of HCIData containing the parsed data from this line
      * and the previous ones
      */
+    @Override
     public HCIData readLine(String line) {
         if (line.trim().length() == 0) {
             return null; // ignore blank lines
@@ -43,16 +52,20 @@ class HCIParser {
         if (line.charAt(0) == '<') { // new outgoing packet begins
             sendingData = true;
         }
-        if (sendingData) {
-            return null; // currently reading a packet that is being sent rather than received, ignore it
+        if (sendingData || rejected) {
+            return null; // currently reading a packet that is being sent rather than received, or was rejected by the filter, ignore it
         }
         byte[] lineData = Util.hexToBytes(line);
         int i = 0;
-        for (; i < lineData.length; i++, indexInPacket++) {
+        for (; i < lineData.length && !rejected; i++, indexInPacket++) {
             handleByte(lineData[i]);
         }
         // the packet length is actually the length AFTER the length byte, which is the 3rd byte
-        if (data.packetLength != null && indexInPacket >= data.packetLength + 3) {
+        if (!rejected && data.packetLength != null && indexInPacket >= data.packetLength + 3) {
+            if (filter != null && !filter.acceptManufacturer(data)) {
+                rejected = true;
+                return null;
+            }
             return data;
         } else {
             return null;
@@ -61,6 +74,8 @@ class HCIParser {
 
     private void reset() {
         sendingData = false;
+        rejected = false;
+        macBits = 0;
         indexInPacket = 0;
         indexInReport = 0;
         indexInADData = 0;
@@ -101,6 +116,10 @@ class HCIParser {
                     data.mac = "";
                 }
                 data.mac = String.format("%02X", b) + data.mac; // the MAC is "backwards"
+                macBits |= (long) unsigned(b) << (8 * (indexInPacket - 7));
+                if (indexInPacket == 12 && filter != null && !filter.acceptMac(macBits)) {
+                    rejected = true;
+                }
                 break;
             default:
                 if (processedReports < data.numberOfReports) {
@@ -0,0 +1,30 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * The available implementations for parsing hcidump raw output.
+ */
+public enum HCIParserEngine {
+    /**
+     * The original state-machine parser, which decodes each line into a byte
+     * array and builds the {@link HCIData} byte-by-byte.
+     */
+    STATE_MACHINE {
+        @Override
+        HCILineParser newParser() {
+            return new HCIParser();
+        }
+    },
+    /**
+     * Decodes hex directly into a preallocated packet buffer and only builds
+     * the {@link HCIData} once the packet is complete. Produces the same
+     * results as {@link #STATE_MACHINE} with far fewer allocations.
+     */
+    BYTE_BUFFER {
+        @Override
+        HCILineParser newParser() {
+            return new HCIByteParser();
+        }
+    };
+
+    abstract HCILineParser newParser();
+}
@@ -0,0 +1,44 @@
+package outskirtslabs.ruuvi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of binary HCI event packets, as an alternative to parsing the text
+ * output of "hcidump --raw". Implementations for the common capture formats
+ * are available from {@link DumpFormat#open(java.nio.channels.ReadableByteChannel)}.
+ * Implementations are not thread safe.
+ */
+public interface HciEventSource extends Closeable {
+
+    /**
+     * Reads the next HCI event packet. The returned buffer contains exactly one
+     * packet in the H4 format, i.e. the packet type (0x04), event code,
+     * parameter length and the parameters. Packets that are not events, such
+     * as commands and ACL data, are skipped.
+     *
+     * @return the next event packet, only valid until the next call to this
+     * method, or null if the end of the stream has been reached
+     * @throws IOException if reading the underlying channel fails or the
+     *                     stream is malformed
+     */
+    ByteBuffer next() throws IOException;
+
+    /**
+     * @return when the packet last returned by {@link #next()} was captured,
+     * in microseconds since the epoch, or -1 if the format has no timestamps
+     */
+    default long getTimestampMicros() {
+        return -1;
+    }
+
+    /**
+     * Opens new event sources, for example when the previous one has reached
+     * the end of its stream and the receiver is restarting it.
+     */
+    @FunctionalInterface
+    interface Factory {
+        HciEventSource open() throws IOException;
+    }
+}
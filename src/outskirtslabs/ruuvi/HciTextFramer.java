@@ -0,0 +1,69 @@
+package outskirtslabs.ruuvi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Assembles the HCI event packets of "hcidump --raw" output into binary
+ * frames in the H4 format, as read by {@link HCIByteParser#readPacket(ByteBuffer)}.
+ * Outgoing packets and anything that is not an event are skipped.
+ * <p>
+ * This class is not thread safe.
+ */
+final class HciTextFramer {
+
+    private final byte[] event = new byte[HCIByteParser.MAX_PACKET_LENGTH];
+    private final ByteBuffer frame = ByteBuffer.wrap(event);
+    private int length = -1;
+
+    /**
+     * @return the packet completed by the line, which is overwritten by the
+     * next call, or null if it didn't complete one
+     */
+    ByteBuffer line(String line) {
+        int i = 0;
+        int end = line.length();
+        while (i < end && Character.isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        if (i == end) {
+            return null;
+        }
+        char first = line.charAt(i);
+        if (first == '<') {
+            length = -1; // an outgoing packet
+            return null;
+        }
+        if (first == '>') {
+            length = 0;
+            i++;
+        }
+        if (length < 0) {
+            return null;
+        }
+        int high = -1;
+        for (; i < end; i++) {
+            int digit = Character.digit(line.charAt(i), 16);
+            if (digit < 0) {
+                continue; // the spaces between the bytes
+            }
+            if (high < 0) {
+                high = digit;
+                continue;
+            }
+            if (length == event.length) {
+                length = -1;
+                return null;
+            }
+            event[length++] = (byte) (high << 4 | digit);
+            high = -1;
+        }
+        if (length >= 3 && event[0] != ChannelHciEventSource.HCI_EVENT_PACKET) {
+            length = -1; // not an event
+        } else if (length >= 3 && length >= 3 + (event[2] & 0xFF)) {
+            frame.limit(3 + (event[2] & 0xFF)).position(0);
+            length = -1;
+            return frame;
+        }
+        return null;
+    }
+}
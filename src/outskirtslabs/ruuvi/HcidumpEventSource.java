@@ -0,0 +1,44 @@
+package outskirtslabs.ruuvi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the native binary format written by "hcidump -w". Each record has a
+ * 12 byte little-endian header (packet length, direction, padding and a
+ * seconds/microseconds timestamp) followed by the packet in the H4 format.
+ */
+class HcidumpEventSource extends ChannelHciEventSource {
+
+    private static final int HEADER_SIZE = 12;
+
+    private long timestampMicros = -1;
+
+    HcidumpEventSource(ReadableByteChannel channel) {
+        super(channel, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        while (require(HEADER_SIZE)) {
+            int start = buffer.position();
+            int length = buffer.getShort(start) & 0xFFFF;
+            boolean incoming = buffer.get(start + 2) != 0;
+            require(HEADER_SIZE + length);
+            start = buffer.position(); // reading more may have moved the record in the buffer
+            if (incoming && length >= 3 && buffer.get(start + HEADER_SIZE) == HCI_EVENT_PACKET) {
+                timestampMicros = (buffer.getInt(start + 4) & 0xFFFFFFFFL) * 1_000_000 + (buffer.getInt(start + 8) & 0xFFFFFFFFL);
+                return frame(start + HEADER_SIZE, length);
+            }
+            skip(HEADER_SIZE + length);
+        }
+        return null;
+    }
+
+    @Override
+    public long getTimestampMicros() {
+        return timestampMicros;
+    }
+}
@@ -0,0 +1,10 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * Notified when the health of an adapter changes. Added with
+ * {@link Receiver#addHealthListener(HealthListener)}.
+ */
+@FunctionalInterface
+public interface HealthListener {
+    void healthChanged(Adapter adapter, HealthState previous, HealthState current);
+}
@@ -0,0 +1,28 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * The health of an adapter supervised by a {@link Receiver}
+ */
+public enum HealthState {
+    /**
+     * The scan and dump have been started, but no packets have been read yet
+     */
+    STARTING,
+    /**
+     * Packets are being read
+     */
+    STREAMING,
+    /**
+     * No packets were read for the stall timeout, the adapter is restarted
+     */
+    STALLED,
+    /**
+     * The scan or dump could not be started or exited, the adapter is
+     * restarted after a backoff
+     */
+    FAILED,
+    /**
+     * The adapter replayed its whole capture, it is not restarted
+     */
+    FINISHED
+}
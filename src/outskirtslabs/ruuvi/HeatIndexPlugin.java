@@ -0,0 +1,36 @@
+package outskirtslabs.ruuvi;
+
+import java.util.List;
+
+/**
+ * @see DerivedValuePlugin#heatIndex()
+ */
+final class HeatIndexPlugin implements DerivedValuePlugin {
+
+    static final String OUTPUT = "heatIndex";
+
+    @Override
+    public List<String> getInputs() {
+        return List.of(AggregateField.TEMPERATURE.name(), AggregateField.HUMIDITY.name());
+    }
+
+    @Override
+    public List<String> getOutputs() {
+        return List.of(OUTPUT);
+    }
+
+    @Override
+    public void compute(long mac, double[] inputs, double[] outputs) {
+        outputs[0] = MeasurementValueCalculator.heatIndex(inputs[0], inputs[1]);
+    }
+
+    @Override
+    public void computeBatch(long[] macs, double[][] inputs, double[][] outputs, int count) {
+        double[] temperature = inputs[0];
+        double[] humidity = inputs[1];
+        double[] heatIndex = outputs[0];
+        for (int j = 0; j < count; j++) {
+            heatIndex[j] = MeasurementValueCalculator.heatIndex(temperature[j], humidity[j]);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Interrupts processes like Ctrl-C does, with SIGINT, which Java can't send.
+ * The signals are sent by a shell started on first use and kept running,
+ * whose kill is a builtin, so interrupting a process starts no process. The
+ * shell reads the process ids from its input and answers with the status of
+ * each kill, and exits when the receiver closes its input or dies.
+ */
+final class InterruptSignaller {
+
+    private static final Logger LOG = Logger.getLogger(InterruptSignaller.class);
+    private static final String SCRIPT = "while read pid; do kill -INT \"$pid\" 2>/dev/null; echo $?; done";
+
+    private Process shell;
+    private Writer commands;
+    private BufferedReader statuses;
+
+    /**
+     * @return true if the signal was sent
+     */
+    synchronized boolean interrupt(Process process) {
+        try {
+            if (shell == null || !shell.isAlive()) {
+                stop();
+                shell = new ProcessBuilder("sh", "-c", SCRIPT).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+                commands = new OutputStreamWriter(shell.getOutputStream(), StandardCharsets.US_ASCII);
+                statuses = new BufferedReader(new InputStreamReader(shell.getInputStream(), StandardCharsets.US_ASCII));
+            }
+            commands.write(process.pid() + "\n");
+            commands.flush();
+            return "0".equals(statuses.readLine());
+        } catch (IOException e) {
+            LOG.debug("Interrupting process " + process.pid() + " failed", e);
+            stop();
+            return false;
+        }
+    }
+
+    /**
+     * Stops the shell
+     */
+    synchronized void close() {
+        stop();
+    }
+
+    private void stop() {
+        if (shell != null) {
+            try {
+                commands.close();
+            } catch (IOException ignore) { /* the shell exited already */ }
+            shell.destroy();
+            shell = null;
+            commands = null;
+            statuses = null;
+        }
+    }
+}
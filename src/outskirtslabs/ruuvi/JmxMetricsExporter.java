@@ -0,0 +1,98 @@
+package outskirtslabs.ruuvi;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Exposes {@link PipelineMetrics} as an MXBean in the platform MBean server.
+ */
+public final class JmxMetricsExporter {
+
+    public static final String DOMAIN = "outskirtslabs.ruuvi";
+
+    private JmxMetricsExporter() {
+    }
+
+    /**
+     * @param name distinguishes the metrics of several receivers
+     * @return the name the MXBean was registered with
+     */
+    public static ObjectName register(PipelineMetrics metrics, String name) throws JMException {
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=Receiver,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MXBean(metrics), objectName);
+        return objectName;
+    }
+
+    public static void unregister(ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+
+    private static final class MXBean implements PipelineMetricsMXBean {
+
+        private final PipelineMetrics metrics;
+
+        MXBean(PipelineMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public long getLinesRead() {
+            return metrics.getLinesRead();
+        }
+
+        @Override
+        public double getLinesReadRate() {
+            return metrics.getLinesReadRate();
+        }
+
+        @Override
+        public long getPacketsAssembled() {
+            return metrics.getPacketsAssembled();
+        }
+
+        @Override
+        public double getPacketsAssembledRate() {
+            return metrics.getPacketsAssembledRate();
+        }
+
+        @Override
+        public Map<String, Long> getPacketsParsed() {
+            Map<String, Long> parsed = new TreeMap<>();
+            for (ReceiverMetrics.ParseOutcome outcome : ReceiverMetrics.ParseOutcome.values()) {
+                parsed.put(outcome.name(), metrics.getPacketsParsed(outcome));
+            }
+            return parsed;
+        }
+
+        @Override
+        public Map<String, LatencySummary> getStageLatencies() {
+            Map<String, LatencySummary> latencies = new TreeMap<>();
+            for (ReceiverMetrics.Stage stage : ReceiverMetrics.Stage.values()) {
+                latencies.put(stage.name(), LatencySummary.of(metrics.getStageLatency(stage)));
+            }
+            return latencies;
+        }
+
+        @Override
+        public Map<String, LatencySummary> getListenerLatencies() {
+            Map<String, LatencySummary> latencies = new TreeMap<>();
+            metrics.getListenerLatencies().forEach((name, histogram) -> latencies.put(name, LatencySummary.of(histogram)));
+            return latencies;
+        }
+
+        @Override
+        public Map<String, Long> getProcessRestarts() {
+            return metrics.getProcessRestarts();
+        }
+
+        @Override
+        public Map<String, Double> getSecondsSinceLastMeasurement() {
+            Map<String, Double> seconds = new TreeMap<>();
+            metrics.getTimeSinceLastMeasurement().forEach((mac, duration) -> seconds.put(mac, duration.toNanos() / 1e9));
+            return seconds;
+        }
+    }
+}
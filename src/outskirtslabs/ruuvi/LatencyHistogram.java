@@ -0,0 +1,97 @@
+package outskirtslabs.ruuvi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, with log-linear buckets like
+ * HdrHistogram: values are grouped by their power of two, and each power of
+ * two is split into 16 linear buckets, so percentiles are within about 6% of
+ * the recorded values. Recording takes a few atomic increments and doesn't
+ * allocate. Values above about 36 minutes are counted in the last bucket.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    private static final long MAX_VALUE = (1L << 41) - 1;
+    private static final int BUCKETS = bucketOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucketOf(Math.min(nanos, MAX_VALUE)));
+        count.increment();
+        sum.add(nanos);
+        if (nanos > max.get()) {
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of all recorded values in nanoseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile the percentile, from 0 to 100
+     * @return the highest value that is equivalent to the value at the
+     * percentile, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Values below 32 have a bucket each, above that the value is shifted
+     * right until it is below 32, and the shift selects a group of 16 buckets
+     */
+    static int bucketOf(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * HALF_SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    static long highestEquivalentValue(int bucket) {
+        int shift = Math.max(0, bucket / HALF_SUB_BUCKETS - 1);
+        return ((long) (bucket - shift * HALF_SUB_BUCKETS + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,332 @@
+package outskirtslabs.ruuvi;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Holds the latest measurement of each tag in range, with its derived values
+ * and when it was received. Tags not heard from for longer than the time to
+ * live are evicted, and are no longer returned once it has passed.
+ * <p>
+ * Reads never lock and never block the thread reading the dump: each tag has
+ * a slot, created the first time it is seen, whose state is replaced
+ * atomically on every measurement. The queries over all the tags scan
+ * primitive columns of the last seen times and battery voltages, indexed
+ * like {@link MacIndex} indexes, and only read the state of the matching
+ * tags. A scan reflects at least the measurements stored before it started.
+ * <p>
+ * Instances are created with
+ * {@link Receiver#addLatestValueStore(Duration, java.util.Set)}, and remain
+ * readable after they are removed from the receiver.
+ */
+public final class LatestValueStore {
+
+    private static final int INITIAL_CAPACITY = 256;
+    /**
+     * How many tags are evicted at a time while holding the lock
+     */
+    private static final int EVICTION_STEP = 64;
+
+    private final long ttlMillis;
+    private final int derivedFields;
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+    /**
+     * Written while holding the lock of the store, read without it
+     */
+    private volatile Columns columns = new Columns(INITIAL_CAPACITY);
+    /**
+     * An upper bound for the indexes in use, written after the slot of a new
+     * index is in the columns
+     */
+    private volatile int indexLimit;
+    /**
+     * Written after each measurement is stored, so that reading it first
+     * makes the columns as of that measurement visible to a scan
+     */
+    private volatile long updates;
+    private int[] freeIndexes = new int[8];
+    private int freeCount;
+    private final LongAdder evicted = new LongAdder();
+    private ScheduledFuture<?> evictionTimer;
+
+    LatestValueStore(long ttlMillis, int derivedFields) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("The time to live must be positive");
+        }
+        this.ttlMillis = ttlMillis;
+        this.derivedFields = derivedFields;
+    }
+
+    /**
+     * @return the latest state of the tag, or empty if it has not been seen
+     * within the time to live
+     */
+    public Optional<TagState> get(String mac) {
+        Slot slot = slots.get(mac);
+        if (slot == null) {
+            return Optional.empty();
+        }
+        TagState state = slot.state;
+        return isLive(state, System.currentTimeMillis()) ? Optional.of(state) : Optional.empty();
+    }
+
+    /**
+     * Passes the latest state of each tag seen within the time to live to
+     * the action, without copying them
+     */
+    public void forEach(Consumer<TagState> action) {
+        long nowMillis = System.currentTimeMillis();
+        int limit = scanLimit();
+        Columns columns = this.columns;
+        for (int i = 0; i < limit; i++) {
+            Slot slot = columns.slots[i];
+            TagState state = slot == null ? null : slot.state;
+            if (isLive(state, nowMillis)) {
+                action.accept(state);
+            }
+        }
+    }
+
+    /**
+     * @return the latest state of each tag seen within the time to live
+     */
+    public List<TagState> snapshot() {
+        List<TagState> states = new ArrayList<>(size());
+        forEach(states::add);
+        return states;
+    }
+
+    /**
+     * @return the tags that have not been seen for at least the given time,
+     * but are not evicted yet as they were seen within the time to live
+     */
+    public List<TagState> notSeenFor(Duration duration) {
+        long nowMillis = System.currentTimeMillis();
+        long threshold = nowMillis - duration.toMillis();
+        int limit = scanLimit();
+        Columns columns = this.columns;
+        List<TagState> states = new ArrayList<>();
+        for (int i = 0; i < limit; i++) {
+            if (columns.lastSeen[i] <= threshold) {
+                Slot slot = columns.slots[i];
+                TagState state = slot == null ? null : slot.state;
+                if (isLive(state, nowMillis) && state.getLastSeen() <= threshold) {
+                    states.add(state);
+                }
+            }
+        }
+        return states;
+    }
+
+    /**
+     * @return the tags whose latest measurement has a battery voltage below
+     * the given one
+     */
+    public List<TagState> batteryBelow(double volts) {
+        long nowMillis = System.currentTimeMillis();
+        int limit = scanLimit();
+        Columns columns = this.columns;
+        List<TagState> states = new ArrayList<>();
+        for (int i = 0; i < limit; i++) {
+            if (columns.batteryVoltage[i] < volts) { // false for NaN, which is a missing voltage
+                Slot slot = columns.slots[i];
+                TagState state = slot == null ? null : slot.state;
+                if (isLive(state, nowMillis)) {
+                    Double batteryVoltage = state.getMeasurement().getBatteryVoltage();
+                    if (batteryVoltage != null && batteryVoltage < volts) {
+                        states.add(state);
+                    }
+                }
+            }
+        }
+        return states;
+    }
+
+    /**
+     * @return the number of tags held, including those past the time to live
+     * but not evicted yet
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    public Duration getTtl() {
+        return Duration.ofMillis(ttlMillis);
+    }
+
+    /**
+     * @return the number of tags evicted for not being seen within the time
+     * to live
+     */
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * @return the number of measurements stored
+     */
+    public long getUpdateCount() {
+        return updates;
+    }
+
+    int getDerivedFields() {
+        return derivedFields;
+    }
+
+    synchronized void put(RuuviData data) {
+        RuuviValue measurement = data.getMeasurement();
+        String mac = measurement.getMac();
+        if (mac == null) {
+            return;
+        }
+        long nowMillis = System.currentTimeMillis();
+        Slot slot = slots.get(mac);
+        if (slot == null) {
+            slot = new Slot(allocateIndex());
+            columns.slots[slot.index] = slot;
+            slots.put(mac, slot);
+        }
+        Columns columns = this.columns;
+        columns.lastSeen[slot.index] = nowMillis;
+        Double batteryVoltage = measurement.getBatteryVoltage();
+        columns.batteryVoltage[slot.index] = batteryVoltage == null ? Double.NaN : batteryVoltage;
+        slot.state = new TagState(mac, measurement, data.getDerived(), nowMillis);
+        updates++; // only written while holding the lock
+    }
+
+    /**
+     * Evicts the tags that have not been seen within the time to live. The
+     * columns are scanned without the lock, like the queries do, and the
+     * expired tags are evicted a few at a time with the lock held, so storing
+     * measurements is only held up briefly however many tags there are.
+     */
+    void evictExpired(long nowMillis) {
+        int limit = indexLimit;
+        Columns columns = this.columns;
+        int[] expired = new int[EVICTION_STEP];
+        int count = 0;
+        for (int i = 0; i < limit; i++) {
+            if (columns.slots[i] != null && nowMillis - columns.lastSeen[i] > ttlMillis) {
+                expired[count++] = i;
+                if (count == EVICTION_STEP) {
+                    evict(expired, count, nowMillis);
+                    count = 0;
+                }
+            }
+        }
+        evict(expired, count, nowMillis);
+    }
+
+    /**
+     * Evicts the tags at the indexes, unless they were seen since they were
+     * found expired
+     */
+    private synchronized void evict(int[] indexes, int count, long nowMillis) {
+        Columns columns = this.columns;
+        for (int k = 0; k < count; k++) {
+            int i = indexes[k];
+            Slot slot = columns.slots[i];
+            if (slot != null && nowMillis - columns.lastSeen[i] > ttlMillis) {
+                slots.remove(slot.state.getMac(), slot);
+                columns.slots[i] = null;
+                columns.batteryVoltage[i] = Double.NaN;
+                if (freeCount == freeIndexes.length) {
+                    freeIndexes = Arrays.copyOf(freeIndexes, freeCount * 2);
+                }
+                freeIndexes[freeCount++] = i;
+                evicted.increment();
+            }
+        }
+    }
+
+    synchronized void startEvictionTimer(ScheduledExecutorService scheduler) {
+        long periodMillis = Math.min(1000, Math.max(10, ttlMillis / 10));
+        evictionTimer = scheduler.scheduleAtFixedRate(() -> evictExpired(System.currentTimeMillis()),
+                periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops evicting, the tags held remain readable
+     */
+    synchronized void close() {
+        if (evictionTimer != null) {
+            evictionTimer.cancel(false);
+            evictionTimer = null;
+        }
+    }
+
+    /**
+     * @return the number of indexes to scan. Reading the update counter
+     * first makes the columns as of the last measurement stored visible, and
+     * the columns read afterwards are at least this long.
+     */
+    private int scanLimit() {
+        return updates == 0 ? 0 : indexLimit;
+    }
+
+    private boolean isLive(TagState state, long nowMillis) {
+        return state != null && nowMillis - state.getLastSeen() <= ttlMillis;
+    }
+
+    /**
+     * @return a free index, growing the columns if needed
+     */
+    private int allocateIndex() {
+        if (freeCount > 0) {
+            return freeIndexes[--freeCount];
+        }
+        int index = indexLimit;
+        Columns columns = this.columns;
+        if (index >= columns.slots.length) {
+            this.columns = columns.grow(index);
+        }
+        indexLimit = index + 1;
+        return index;
+    }
+
+    private static final class Slot {
+        final int index;
+        volatile TagState state;
+
+        Slot(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * The columns are replaced rather than resized, so a reader always sees
+     * arrays of the same length
+     */
+    private static final class Columns {
+        final Slot[] slots;
+        final long[] lastSeen;
+        final double[] batteryVoltage;
+
+        Columns(int capacity) {
+            this(new Slot[capacity], new long[capacity], new double[capacity]);
+            Arrays.fill(batteryVoltage, Double.NaN);
+        }
+
+        private Columns(Slot[] slots, long[] lastSeen, double[] batteryVoltage) {
+            this.slots = slots;
+            this.lastSeen = lastSeen;
+            this.batteryVoltage = batteryVoltage;
+        }
+
+        Columns grow(int index) {
+            int length = batteryVoltage.length;
+            Columns grown = new Columns(MacIndex.grow(slots, index), MacIndex.grow(lastSeen, index), MacIndex.grow(batteryVoltage, index));
+            Arrays.fill(grown.batteryVoltage, length, grown.batteryVoltage.length, Double.NaN);
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Arrays;
+
+/**
+ * Assigns small, dense indexes to MAC addresses packed in a long, so that
+ * per-tag state can be kept in primitive arrays indexed by them instead of
+ * maps of boxed values. Implemented as an open addressing hash table with
+ * linear probing; indexes of removed addresses are reused.
+ * <p>
+ * This class is not thread safe.
+ */
+final class MacIndex {
+
+    /**
+     * Never a valid key, as MAC addresses only use the low 48 bits
+     */
+    static final long NO_KEY = -1L;
+
+    private long[] tableKeys;
+    private int[] tableIndexes;
+    private int mask;
+    private long[] keysByIndex;
+    private int indexLimit;
+    private int[] freeIndexes = new int[8];
+    private int freeCount;
+    private int size;
+
+    MacIndex(int expectedSize) {
+        int tableSize = Integer.highestOneBit(Math.max(4, expectedSize) * 2 - 1) << 1;
+        tableKeys = new long[tableSize];
+        Arrays.fill(tableKeys, NO_KEY);
+        tableIndexes = new int[tableSize];
+        mask = tableSize - 1;
+        keysByIndex = new long[Math.max(4, expectedSize)];
+        Arrays.fill(keysByIndex, NO_KEY);
+    }
+
+    /**
+     * @return the index of the key, or -1 if it's not in the index
+     */
+    int indexOf(long key) {
+        for (int position = hash(key) & mask; ; position = (position + 1) & mask) {
+            long candidate = tableKeys[position];
+            if (candidate == key) {
+                return tableIndexes[position];
+            }
+            if (candidate == NO_KEY) {
+                return -1;
+            }
+        }
+    }
+
+    boolean contains(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return the index of the key, which is added to the index if it's not
+     * there yet. New keys get either a previously freed index, or
+     * {@link #indexLimit()} before the call.
+     */
+    int add(long key) {
+        if (key == NO_KEY) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        int position = hash(key) & mask;
+        for (; ; position = (position + 1) & mask) {
+            long candidate = tableKeys[position];
+            if (candidate == key) {
+                return tableIndexes[position];
+            }
+            if (candidate == NO_KEY) {
+                break;
+            }
+        }
+        int index = freeCount > 0 ? freeIndexes[--freeCount] : indexLimit++;
+        if (index >= keysByIndex.length) {
+            keysByIndex = grow(keysByIndex, index);
+            Arrays.fill(keysByIndex, index, keysByIndex.length, NO_KEY);
+        }
+        keysByIndex[index] = key;
+        tableKeys[position] = key;
+        tableIndexes[position] = index;
+        if (++size * 2 > tableKeys.length) {
+            rehash(tableKeys.length * 2);
+        }
+        return index;
+    }
+
+    /**
+     * @return the index the key had, which is now free, or -1 if it was not in
+     * the index
+     */
+    int remove(long key) {
+        int position = hash(key) & mask;
+        for (; ; position = (position + 1) & mask) {
+            long candidate = tableKeys[position];
+            if (candidate == NO_KEY) {
+                return -1;
+            }
+            if (candidate == key) {
+                break;
+            }
+        }
+        int index = tableIndexes[position];
+        // shift back the following entries of the probe sequence into the hole
+        int next = (position + 1) & mask;
+        while (tableKeys[next] != NO_KEY) {
+            int ideal = hash(tableKeys[next]) & mask;
+            if (((next - ideal) & mask) >= ((next - position) & mask)) {
+                tableKeys[position] = tableKeys[next];
+                tableIndexes[position] = tableIndexes[next];
+                position = next;
+            }
+            next = (next + 1) & mask;
+        }
+        tableKeys[position] = NO_KEY;
+        keysByIndex[index] = NO_KEY;
+        if (freeCount == freeIndexes.length) {
+            freeIndexes = Arrays.copyOf(freeIndexes, freeCount * 2);
+        }
+        freeIndexes[freeCount++] = index;
+        size--;
+        return index;
+    }
+
+    /**
+     * @return the key at the index, or {@link #NO_KEY} if the index is free
+     */
+    long keyAt(int index) {
+        return index < indexLimit ? keysByIndex[index] : NO_KEY;
+    }
+
+    /**
+     * @return an upper bound for the indexes in use, arrays indexed by this
+     * index must be at least this long
+     */
+    int indexLimit() {
+        return indexLimit;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash(int tableSize) {
+        long[] oldKeys = tableKeys;
+        int[] oldIndexes = tableIndexes;
+        tableKeys = new long[tableSize];
+        Arrays.fill(tableKeys, NO_KEY);
+        tableIndexes = new int[tableSize];
+        mask = tableSize - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != NO_KEY) {
+                int position = hash(oldKeys[i]) & mask;
+                while (tableKeys[position] != NO_KEY) {
+                    position = (position + 1) & mask;
+                }
+                tableKeys[position] = oldKeys[i];
+                tableIndexes[position] = oldIndexes[i];
+            }
+        }
+    }
+
+    static int hash(long key) {
+        // the finalizer of MurmurHash3, MAC addresses of the same vendor only differ in the low bits
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Grows an array indexed by this index so that the given index fits
+     */
+    static long[] grow(long[] array, int index) {
+        return index < array.length ? array : Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+    }
+
+    /**
+     * Grows an array indexed by this index so that the given index fits
+     */
+    static int[] grow(int[] array, int index) {
+        return index < array.length ? array : Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+    }
+
+    /**
+     * Grows an array indexed by this index so that the given index fits
+     */
+    static double[] grow(double[] array, int index) {
+        return index < array.length ? array : Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+    }
+
+    /**
+     * Grows an array indexed by this index so that the given index fits
+     */
+    static <T> T[] grow(T[] array, int index) {
+        return index < array.length ? array : Arrays.copyOf(array, Math.max(index + 1, array.length * 2));
+    }
+}
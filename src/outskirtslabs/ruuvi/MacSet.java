@@ -0,0 +1,53 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable set of MAC addresses packed in longs, stored in a single
+ * primitive open addressing table. Lookups don't allocate, and as the set is
+ * never modified it can be read from any thread once published.
+ */
+final class MacSet {
+
+    static final MacSet EMPTY = new MacSet(new long[0]);
+
+    private final long[] table;
+    private final int mask;
+    private final long[] elements;
+
+    private MacSet(long[] elements) {
+        this.elements = elements;
+        int tableSize = Integer.highestOneBit(Math.max(2, elements.length) * 2 - 1) << 1;
+        this.table = new long[tableSize];
+        Arrays.fill(table, MacIndex.NO_KEY);
+        this.mask = tableSize - 1;
+        for (long element : elements) {
+            int position = MacIndex.hash(element) & mask;
+            while (table[position] != MacIndex.NO_KEY) {
+                position = (position + 1) & mask;
+            }
+            table[position] = element;
+        }
+    }
+
+    static MacSet of(Collection<Long> macs) {
+        return macs.isEmpty() ? EMPTY : new MacSet(macs.stream().mapToLong(Long::longValue).distinct().toArray());
+    }
+
+    boolean contains(long mac) {
+        for (int position = MacIndex.hash(mac) & mask; ; position = (position + 1) & mask) {
+            long candidate = table[position];
+            if (candidate == mac) {
+                return true;
+            }
+            if (candidate == MacIndex.NO_KEY) {
+                return false;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return elements.length == 0;
+    }
+}
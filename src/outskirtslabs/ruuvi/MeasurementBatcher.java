@@ -0,0 +1,185 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects measurements for a {@link BatchMeasurementListener} and hands them
+ * over when either the batch is full or the oldest measurement in it has
+ * waited for the maximum linger time.
+ * <p>
+ * The batches are delivered on a thread of the batcher, which waits for the
+ * batch to fill up or for its linger deadline, and calls the listener without
+ * holding the lock. Two lists are used in turn, one filling while the other
+ * is delivered, so no garbage is created in the steady state. Adding only
+ * waits when the listener is still busy with the previous batch and the next
+ * one is full as well.
+ */
+class MeasurementBatcher {
+
+    private static final Logger LOG = Logger.getLogger(MeasurementBatcher.class);
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final long CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final BatchMeasurementListener listener;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when the deliverer has something to do
+     */
+    private final Condition ready = lock.newCondition();
+    /**
+     * Signalled when the filling batch is taken for delivery
+     */
+    private final Condition taken = lock.newCondition();
+    private List<RuuviData> filling;
+    private List<RuuviData> readOnlyFilling;
+    // only used by the deliverer
+    private List<RuuviData> delivering;
+    private List<RuuviData> readOnlyDelivering;
+    private long deadlineNanos;
+    private boolean closed;
+    private final Thread deliverer;
+    private volatile ReceiverMetrics metrics = ReceiverMetrics.NONE;
+
+    MeasurementBatcher(BatchMeasurementListener listener, int maxBatchSize, long maxLingerNanos, ThreadingMode threadingMode) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("The batch size must be at least 1");
+        }
+        if (maxLingerNanos <= 0) {
+            throw new IllegalArgumentException("The linger time must be positive");
+        }
+        this.listener = listener;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = maxLingerNanos;
+        this.filling = new ArrayList<>(maxBatchSize);
+        this.readOnlyFilling = Collections.unmodifiableList(filling);
+        this.delivering = new ArrayList<>(maxBatchSize);
+        this.readOnlyDelivering = Collections.unmodifiableList(delivering);
+        this.deliverer = threadingMode.newThread("ruuvi-batch-" + THREAD_COUNTER.incrementAndGet(), this::deliver, true);
+        this.deliverer.start();
+    }
+
+    BatchMeasurementListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Delivers the remaining measurements and stops the delivery thread,
+     * waiting a few seconds for it
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            ready.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (Thread.currentThread() != deliverer) {
+            try {
+                TimeUnit.NANOSECONDS.timedJoin(deliverer, CLOSE_TIMEOUT_NANOS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Adds a measurement to the batch. Measurements added after the batcher
+     * is closed are discarded.
+     */
+    void add(RuuviData data) {
+        lock.lock();
+        try {
+            while (filling.size() >= maxBatchSize && !closed) {
+                taken.awaitUninterruptibly();
+            }
+            if (closed) {
+                return;
+            }
+            if (filling.isEmpty()) {
+                deadlineNanos = System.nanoTime() + maxLingerNanos;
+                ready.signal();
+            }
+            filling.add(data);
+            if (filling.size() >= maxBatchSize) {
+                ready.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setMetrics(ReceiverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The loop of the delivery thread
+     */
+    private void deliver() {
+        while (takeBatch()) {
+            ReceiverMetrics metrics = this.metrics;
+            long start = metrics == ReceiverMetrics.NONE ? 0 : System.nanoTime();
+            try {
+                listener.measured(readOnlyDelivering);
+            } catch (Exception e) {
+                LOG.warn("Notifying batch listener failed, discarding " + delivering.size() + " measurements", e);
+            } finally {
+                delivering.clear();
+            }
+            if (metrics != ReceiverMetrics.NONE) {
+                metrics.listenerNotified(listener, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Waits until the filling batch is full, reaches its deadline or the
+     * batcher is closed, and swaps it with the delivered one
+     *
+     * @return false if the batcher is closed and nothing is left to deliver
+     */
+    private boolean takeBatch() {
+        lock.lock();
+        try {
+            while (true) {
+                if (filling.isEmpty()) {
+                    if (closed) {
+                        return false;
+                    }
+                    ready.awaitUninterruptibly();
+                    continue;
+                }
+                long remaining = deadlineNanos - System.nanoTime();
+                if (filling.size() >= maxBatchSize || remaining <= 0 || closed) {
+                    break;
+                }
+                try {
+                    ready.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    closed = true; // the thread is stopped, deliver what is left
+                }
+            }
+            List<RuuviData> batch = filling;
+            List<RuuviData> readOnlyBatch = readOnlyFilling;
+            filling = delivering;
+            readOnlyFilling = readOnlyDelivering;
+            delivering = batch;
+            readOnlyDelivering = readOnlyBatch;
+            taken.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
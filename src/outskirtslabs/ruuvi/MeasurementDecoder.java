@@ -0,0 +1,236 @@
+package outskirtslabs.ruuvi;
+
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static outskirtslabs.ruuvi.WireCodec.*;
+
+/**
+ * Decodes the frames written by a {@link MeasurementEncoder}. Frames are read
+ * from a buffer holding at least one complete frame, which
+ * {@link #frameLength(ByteBuffer)} tells. Instances are not thread safe.
+ */
+public final class MeasurementDecoder {
+
+    /**
+     * The longest frame accepted, to fail on a corrupted length rather than
+     * trying to buffer it
+     */
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final int FIELDS = (CompactRuuviValue.MAC << 1) - 1;
+    private static final DerivedField[] DERIVED_FIELDS = DerivedField.values();
+
+    private final CompactRuuviValue measurement = new CompactRuuviValue();
+    private final double[] derived = new double[DERIVED_FIELDS.length];
+    private int count;
+    private int derivedPresent;
+    private long previousTime;
+    private String previousName;
+    private String previousReceiver;
+
+    /**
+     * @return the length of the frame at the position of the buffer, or -1 if
+     * not even its length is in the buffer yet
+     * @throws StreamCorruptedException if the length is not valid
+     */
+    public static int frameLength(ByteBuffer in) throws StreamCorruptedException {
+        return WireCodec.frameLength(in, MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * Reads a frame from the position of the buffer, passing the measurements
+     * to the listener. The measurement is reused for the next one.
+     *
+     * @return the number of measurements in the frame
+     * @throws StreamCorruptedException if the frame is not valid, in which
+     *                                  case the position of the buffer is
+     *                                  undefined
+     */
+    public int readFrame(ByteBuffer in, CompactMeasurementListener listener) throws StreamCorruptedException {
+        int end = startFrame(in);
+        int limit = in.limit();
+        in.limit(end);
+        try {
+            for (int i = 0; i < count; i++) {
+                readMeasurement(in);
+                listener.measured(measurement);
+            }
+            checkEnd(in);
+        } catch (BufferUnderflowException e) {
+            throw truncated(e);
+        } finally {
+            in.limit(limit);
+        }
+        return count;
+    }
+
+    /**
+     * Reads a frame from the position of the buffer, passing the measurements
+     * to the listener. The derived values that were sent are passed as they
+     * are, otherwise the values the listener uses are calculated.
+     *
+     * @return the number of measurements in the frame
+     * @throws StreamCorruptedException if the frame is not valid, in which
+     *                                  case the position of the buffer is
+     *                                  undefined
+     */
+    public int readFrame(ByteBuffer in, MeasurementListener listener) throws StreamCorruptedException {
+        int derivedFields = DerivedField.maskOf(listener.getDerivedFields());
+        int end = startFrame(in);
+        int limit = in.limit();
+        in.limit(end);
+        try {
+            for (int i = 0; i < count; i++) {
+                readMeasurement(in);
+                RuuviValue value = measurement.toRuuviValue();
+                if (derivedPresent == 0) {
+                    RuuviData data = MeasurementValueCalculator.calculateValues(value, derivedFields);
+                    listener.measured(data.getMeasurement(), data.getDerived());
+                } else {
+                    listener.measured(value, derivedValue());
+                }
+            }
+            checkEnd(in);
+        } catch (BufferUnderflowException e) {
+            throw truncated(e);
+        } finally {
+            in.limit(limit);
+        }
+        return count;
+    }
+
+    /**
+     * Checks the header, leaving the position after it
+     *
+     * @return the end of the frame
+     */
+    private int startFrame(ByteBuffer in) throws StreamCorruptedException {
+        int length = frameLength(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("The buffer doesn't hold a complete frame");
+        }
+        int version = in.get(in.position() + Integer.BYTES) & 0xFF;
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported version " + version + " of the encoding");
+        }
+        count = in.getShort(in.position() + Integer.BYTES + 1) & 0xFFFF;
+        int end = in.position() + length;
+        in.position(in.position() + HEADER_LENGTH);
+        previousTime = 0;
+        previousName = null;
+        previousReceiver = null;
+        return end;
+    }
+
+    private static void checkEnd(ByteBuffer in) throws StreamCorruptedException {
+        if (in.hasRemaining()) {
+            throw new StreamCorruptedException(in.remaining() + " bytes left over at the end of a frame");
+        }
+    }
+
+    /**
+     * Replaces the contents of the measurement with the next one
+     */
+    private void readMeasurement(ByteBuffer in) throws StreamCorruptedException {
+        measurement.clear();
+        long present = getVarint(in);
+        if ((present & ~(FIELDS | EXACT | DERIVED)) != 0) {
+            throw new StreamCorruptedException("Unknown fields 0x" + Long.toHexString(present & ~(FIELDS | EXACT | DERIVED)));
+        }
+        int exact = (present & EXACT) != 0 ? (int) getVarint(in) : 0;
+        derivedPresent = (present & DERIVED) != 0 ? (int) getVarint(in) & DerivedField.ALL : 0;
+        int dataFormat = -1;
+        if ((present & CompactRuuviValue.DATA_FORMAT) != 0) {
+            dataFormat = (int) getVarint(in);
+            measurement.setDataFormat(dataFormat);
+        }
+        for (long remaining = present & DECIMALS; remaining != 0; remaining &= remaining - 1) {
+            int field = (int) Long.lowestOneBit(remaining);
+            double value = (exact & field) != 0 ? in.getDouble() : decodeDecimal(field, getZigzag(in), dataFormat);
+            setDecimal(field, value);
+        }
+        if ((present & CompactRuuviValue.TX_POWER) != 0) measurement.setTxPower((int) getZigzag(in));
+        if ((present & CompactRuuviValue.MOVEMENT_COUNTER) != 0) measurement.setMovementCounter((int) getVarint(in));
+        if ((present & CompactRuuviValue.MEASUREMENT_SEQUENCE_NUMBER) != 0) measurement.setMeasurementSequenceNumber((int) getVarint(in));
+        if ((present & CompactRuuviValue.TIME) != 0) {
+            previousTime += getZigzag(in);
+            measurement.setTime(previousTime);
+        }
+        if ((present & CompactRuuviValue.RSSI) != 0) measurement.setRssi((int) getZigzag(in));
+        if ((present & CompactRuuviValue.MAC) != 0) {
+            long high = in.getShort() & 0xFFFFL;
+            measurement.setMac(high << 32 | (in.getInt() & 0xFFFFFFFFL));
+        }
+        previousName = getString(in, previousName);
+        measurement.setName(previousName);
+        previousReceiver = getString(in, previousReceiver);
+        measurement.setReceiver(previousReceiver);
+        for (DerivedField field : DERIVED_FIELDS) {
+            if ((derivedPresent & field.bit()) != 0) {
+                derived[field.ordinal()] = in.getDouble();
+            }
+        }
+    }
+
+    private void setDecimal(int field, double value) {
+        switch (field) {
+            case CompactRuuviValue.TEMPERATURE:
+                measurement.setTemperature(value);
+                break;
+            case CompactRuuviValue.HUMIDITY:
+                measurement.setHumidity(value);
+                break;
+            case CompactRuuviValue.PRESSURE:
+                measurement.setPressure(value);
+                break;
+            case CompactRuuviValue.ACCELERATION_X:
+                measurement.setAccelerationX(value);
+                break;
+            case CompactRuuviValue.ACCELERATION_Y:
+                measurement.setAccelerationY(value);
+                break;
+            case CompactRuuviValue.ACCELERATION_Z:
+                measurement.setAccelerationZ(value);
+                break;
+            default:
+                measurement.setBatteryVoltage(value);
+        }
+    }
+
+    private static String getString(ByteBuffer in, String previous) throws StreamCorruptedException {
+        long length = getVarint(in);
+        if (length == NULL_STRING) {
+            return null;
+        }
+        if (length == SAME_STRING) {
+            return previous;
+        }
+        length -= 2;
+        if (length > in.remaining()) {
+            throw new StreamCorruptedException("A string extends past the end of its frame");
+        }
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private RuuviDerivedValue derivedValue() {
+        return RuuviDerivedValue.builder()
+                .accelerationTotal(derived(DerivedField.ACCELERATION_TOTAL))
+                .accelerationAngleFromX(derived(DerivedField.ACCELERATION_ANGLE_FROM_X))
+                .accelerationAngleFromY(derived(DerivedField.ACCELERATION_ANGLE_FROM_Y))
+                .accelerationAngleFromZ(derived(DerivedField.ACCELERATION_ANGLE_FROM_Z))
+                .absoluteHumidity(derived(DerivedField.ABSOLUTE_HUMIDITY))
+                .dewPoint(derived(DerivedField.DEW_POINT))
+                .equilibriumVaporPressure(derived(DerivedField.EQUILIBRIUM_VAPOR_PRESSURE))
+                .airDensity(derived(DerivedField.AIR_DENSITY))
+                .build();
+    }
+
+    private Double derived(DerivedField field) {
+        return (derivedPresent & field.bit()) != 0 ? derived[field.ordinal()] : null;
+    }
+}
@@ -0,0 +1,258 @@
+package outskirtslabs.ruuvi;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static outskirtslabs.ruuvi.WireCodec.*;
+
+/**
+ * Encodes measurements into frames of the compact binary format read by a
+ * {@link MeasurementDecoder}, directly into a buffer that can be reused for
+ * the next frame:
+ * <pre>
+ * encoder.startFrame(buffer);
+ * for (RuuviData data : batch) {
+ *     if (!encoder.add(data.getMeasurement(), data.getDerived())) {
+ *         // the buffer is full, send the frame and start another one
+ *     }
+ * }
+ * encoder.finishFrame();
+ * </pre>
+ * Nothing is allocated for measurements whose name and receiver are null or
+ * the same as in the previous measurement of the frame. Instances are not
+ * thread safe.
+ */
+public final class MeasurementEncoder {
+
+    private static final DerivedField[] DERIVED_FIELDS = DerivedField.values();
+
+    private final int derivedFields;
+    private final CompactRuuviValue compact = new CompactRuuviValue();
+    private final long[] decimals = new long[Integer.SIZE];
+    private ByteBuffer out;
+    private int frameStart = -1;
+    private int count;
+    private long previousTime;
+    private String previousName;
+    private String previousReceiver;
+
+    /**
+     * Creates an encoder that leaves out the derived values, which the
+     * receiving end can calculate again
+     */
+    public MeasurementEncoder() {
+        this(EnumSet.noneOf(DerivedField.class));
+    }
+
+    /**
+     * @param derivedFields the derived values to encode, when they are
+     *                      present
+     */
+    public MeasurementEncoder(Set<DerivedField> derivedFields) {
+        this.derivedFields = DerivedField.maskOf(derivedFields);
+    }
+
+    /**
+     * Starts a frame at the position of the buffer, which must be in big
+     * endian byte order
+     *
+     * @throws BufferOverflowException if the header doesn't fit
+     */
+    public void startFrame(ByteBuffer out) {
+        if (out.remaining() < HEADER_LENGTH) {
+            throw new BufferOverflowException();
+        }
+        this.out = out;
+        frameStart = out.position();
+        out.position(frameStart + HEADER_LENGTH);
+        count = 0;
+        previousTime = 0;
+        previousName = null;
+        previousReceiver = null;
+    }
+
+    /**
+     * Adds a measurement to the frame
+     *
+     * @param derived the derived values, or null to leave them out
+     * @return false if the measurement doesn't fit in the buffer or the frame
+     * is full, in which case the frame is left as it was
+     */
+    public boolean add(RuuviValue measurement, RuuviDerivedValue derived) {
+        compact.set(measurement);
+        return add(compact, derived);
+    }
+
+    /**
+     * Adds a measurement without its derived values to the frame
+     *
+     * @return false if the measurement doesn't fit in the buffer or the frame
+     * is full, in which case the frame is left as it was
+     */
+    public boolean add(CompactRuuviValue measurement) {
+        return add(measurement, null);
+    }
+
+    /**
+     * @return the number of measurements in the current frame
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Completes the header of the frame, leaving the position of the buffer
+     * after the frame
+     *
+     * @return the length of the frame in bytes
+     */
+    public int finishFrame() {
+        if (frameStart < 0) {
+            throw new IllegalStateException("No frame was started");
+        }
+        int length = out.position() - frameStart;
+        out.putInt(frameStart, length - Integer.BYTES);
+        out.put(frameStart + Integer.BYTES, (byte) VERSION);
+        out.putShort(frameStart + Integer.BYTES + 1, (short) count);
+        frameStart = -1;
+        out = null;
+        return length;
+    }
+
+    private boolean add(CompactRuuviValue measurement, RuuviDerivedValue derived) {
+        if (frameStart < 0) {
+            throw new IllegalStateException("No frame was started");
+        }
+        if (count == MAX_COUNT) {
+            return false;
+        }
+        int start = out.position();
+        try {
+            encode(measurement, derived);
+        } catch (BufferOverflowException e) {
+            out.position(start);
+            return false;
+        }
+        count++;
+        if (measurement.has(CompactRuuviValue.TIME)) {
+            previousTime = measurement.getTime();
+        }
+        previousName = measurement.getName();
+        previousReceiver = measurement.getReceiver();
+        return true;
+    }
+
+    private void encode(CompactRuuviValue m, RuuviDerivedValue derived) {
+        int present = m.getPresentFields();
+        int dataFormat = m.has(CompactRuuviValue.DATA_FORMAT) ? m.getDataFormat() : -1;
+        int exact = 0;
+        for (int remaining = present & DECIMALS; remaining != 0; remaining &= remaining - 1) {
+            int field = Integer.lowestOneBit(remaining);
+            double value = decimal(m, field);
+            long scaled = encodeDecimal(field, value);
+            if (Double.doubleToRawLongBits(decodeDecimal(field, scaled, dataFormat)) == Double.doubleToRawLongBits(value)) {
+                decimals[Integer.numberOfTrailingZeros(field)] = scaled;
+            } else {
+                exact |= field;
+            }
+        }
+        int derivedPresent = derived == null ? 0 : derivedPresent(derived);
+        putVarint(out, present | (exact != 0 ? EXACT : 0) | (derivedPresent != 0 ? DERIVED : 0));
+        if (exact != 0) {
+            putVarint(out, exact);
+        }
+        if (derivedPresent != 0) {
+            putVarint(out, derivedPresent);
+        }
+        if (m.has(CompactRuuviValue.DATA_FORMAT)) putVarint(out, dataFormat & 0xFFFFFFFFL);
+        for (int remaining = present & DECIMALS; remaining != 0; remaining &= remaining - 1) {
+            int field = Integer.lowestOneBit(remaining);
+            if ((exact & field) != 0) {
+                out.putDouble(decimal(m, field));
+            } else {
+                putZigzag(out, decimals[Integer.numberOfTrailingZeros(field)]);
+            }
+        }
+        if (m.has(CompactRuuviValue.TX_POWER)) putZigzag(out, m.getTxPower());
+        if (m.has(CompactRuuviValue.MOVEMENT_COUNTER)) putVarint(out, m.getMovementCounter() & 0xFFFFFFFFL);
+        if (m.has(CompactRuuviValue.MEASUREMENT_SEQUENCE_NUMBER)) putVarint(out, m.getMeasurementSequenceNumber() & 0xFFFFFFFFL);
+        if (m.has(CompactRuuviValue.TIME)) putZigzag(out, m.getTime() - previousTime);
+        if (m.has(CompactRuuviValue.RSSI)) putZigzag(out, m.getRssi());
+        if (m.has(CompactRuuviValue.MAC)) {
+            out.putShort((short) (m.getMac() >>> 32));
+            out.putInt((int) m.getMac());
+        }
+        putString(m.getName(), previousName);
+        putString(m.getReceiver(), previousReceiver);
+        for (DerivedField field : DERIVED_FIELDS) {
+            if ((derivedPresent & field.bit()) != 0) {
+                out.putDouble(derivedValue(derived, field));
+            }
+        }
+    }
+
+    private int derivedPresent(RuuviDerivedValue derived) {
+        int present = 0;
+        for (DerivedField field : DERIVED_FIELDS) {
+            if ((derivedFields & field.bit()) != 0 && derivedValue(derived, field) != null) {
+                present |= field.bit();
+            }
+        }
+        return present;
+    }
+
+    private void putString(String value, String previous) {
+        if (value == null) {
+            putVarint(out, NULL_STRING);
+        } else if (value.equals(previous)) {
+            putVarint(out, SAME_STRING);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarint(out, bytes.length + 2L);
+            out.put(bytes);
+        }
+    }
+
+    private static double decimal(CompactRuuviValue m, int field) {
+        switch (field) {
+            case CompactRuuviValue.TEMPERATURE:
+                return m.getTemperature();
+            case CompactRuuviValue.HUMIDITY:
+                return m.getHumidity();
+            case CompactRuuviValue.PRESSURE:
+                return m.getPressure();
+            case CompactRuuviValue.ACCELERATION_X:
+                return m.getAccelerationX();
+            case CompactRuuviValue.ACCELERATION_Y:
+                return m.getAccelerationY();
+            case CompactRuuviValue.ACCELERATION_Z:
+                return m.getAccelerationZ();
+            default:
+                return m.getBatteryVoltage();
+        }
+    }
+
+    static Double derivedValue(RuuviDerivedValue derived, DerivedField field) {
+        switch (field) {
+            case ACCELERATION_TOTAL:
+                return derived.getAccelerationTotal();
+            case ACCELERATION_ANGLE_FROM_X:
+                return derived.getAccelerationAngleFromX();
+            case ACCELERATION_ANGLE_FROM_Y:
+                return derived.getAccelerationAngleFromY();
+            case ACCELERATION_ANGLE_FROM_Z:
+                return derived.getAccelerationAngleFromZ();
+            case ABSOLUTE_HUMIDITY:
+                return derived.getAbsoluteHumidity();
+            case DEW_POINT:
+                return derived.getDewPoint();
+            case EQUILIBRIUM_VAPOR_PRESSURE:
+                return derived.getEquilibriumVaporPressure();
+            default:
+                return derived.getAirDensity();
+        }
+    }
+}
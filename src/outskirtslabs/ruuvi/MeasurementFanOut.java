@@ -0,0 +1,455 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes the measurements decoded by a receiver to all its listeners,
+ * subscriptions, batchers, aggregators, stores and spools, one measurement
+ * at a time whichever adapter it came from. The copies of a broadcast heard
+ * by several adapters are first held by the {@link AdapterDeduplicator}, and
+ * the values of the {@link DerivedValuePlugin}s are derived once for all the
+ * listeners. Keeps track of the derived values the listeners need, so that
+ * the others are not calculated.
+ * <p>
+ * Notifying the listeners may block, such as on a subscription without
+ * demand, so the held copies are flushed on a thread of their own rather than
+ * on the housekeeping thread, whose stall checks and timers must keep
+ * running.
+ */
+final class MeasurementFanOut {
+
+    private static final Logger LOG = Logger.getLogger(MeasurementFanOut.class);
+
+    /**
+     * The buffer of a listener subscription, which stays empty as the
+     * listener has unbounded demand
+     */
+    private static final int LISTENER_BUFFER_CAPACITY = 16;
+
+    private final ScheduledExecutorService housekeeping;
+    private ScheduledExecutorService deduplicationFlusher;
+    private final Set<MeasurementSubscription> subscriptions = new CopyOnWriteArraySet<>();
+    private final Map<MeasurementListener, MeasurementSubscription> measurementListeners = new ConcurrentHashMap<>();
+    private final Set<AsyncMeasurementListener> asyncMeasurementListeners = new CopyOnWriteArraySet<>();
+    private final Map<BatchMeasurementListener, MeasurementBatcher> batchers = new ConcurrentHashMap<>();
+    private final Map<WindowSummaryListener, WindowedAggregator> aggregators = new ConcurrentHashMap<>();
+    private final Set<LatestValueStore> latestValueStores = new CopyOnWriteArraySet<>();
+    private final Set<CompactMeasurementListener> compactMeasurementListeners = new CopyOnWriteArraySet<>();
+    private final Set<SpooledMeasurementListener> spooledMeasurementListeners = new CopyOnWriteArraySet<>();
+    private final Set<MeasurementSpool> spools = new CopyOnWriteArraySet<>();
+    private final List<DerivedValuePlugin> derivedValuePlugins = new ArrayList<>();
+    private final Object lock = new Object();
+    private final CompactRuuviValue compact = new CompactRuuviValue();
+    private volatile DerivedValuePipeline derivedValuePipeline;
+    private volatile int derivedFields;
+    private volatile AdapterDeduplicator adapterDeduplicator;
+    private ScheduledFuture<?> adapterDeduplicationFlush;
+    private volatile ReceiverMetrics metrics = ReceiverMetrics.NONE;
+
+    MeasurementFanOut(ScheduledExecutorService housekeeping) {
+        this.housekeeping = housekeeping;
+    }
+
+    void setMetrics(ReceiverMetrics metrics) {
+        this.metrics = metrics;
+        asyncMeasurementListeners.forEach(asyncListener -> asyncListener.setMetrics(metrics));
+        spooledMeasurementListeners.forEach(spooledListener -> spooledListener.setMetrics(metrics));
+        subscriptions.forEach(subscription -> subscription.setMetrics(metrics));
+        batchers.values().forEach(batcher -> batcher.setMetrics(metrics));
+        aggregators.values().forEach(aggregator -> aggregator.setMetrics(metrics));
+    }
+
+    /**
+     * Replaces the adapter deduplicator, passing on the copies held by the
+     * previous one
+     *
+     * @param windowNanos how long the first copy waits for better ones, or 0
+     *                    to pass every copy
+     */
+    synchronized void setAdapterDeduplication(long windowNanos) {
+        AdapterDeduplicator previous = adapterDeduplicator;
+        if (adapterDeduplicationFlush != null) {
+            adapterDeduplicationFlush.cancel(false);
+            adapterDeduplicationFlush = null;
+        }
+        if (windowNanos == 0) {
+            adapterDeduplicator = null;
+        } else {
+            AdapterDeduplicator deduplicator = new AdapterDeduplicator(windowNanos, this::notifyListeners);
+            adapterDeduplicator = deduplicator;
+            if (deduplicationFlusher == null) {
+                deduplicationFlusher = Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, "ruuvi-deduplication");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            adapterDeduplicationFlush = deduplicationFlusher.scheduleAtFixedRate(() -> deduplicator.flushExpired(System.nanoTime()),
+                    deduplicator.getFlushPeriodNanos(), deduplicator.getFlushPeriodNanos(), TimeUnit.NANOSECONDS);
+        }
+        if (previous != null) {
+            previous.flushAll();
+        }
+    }
+
+    long getAdapterDuplicateCount() {
+        AdapterDeduplicator current = adapterDeduplicator;
+        return current == null ? 0 : current.getDuplicateCount();
+    }
+
+    void addMeasurementListener(MeasurementListener listener) {
+        MeasurementListenerSubscriber subscriber = new MeasurementListenerSubscriber(Objects.requireNonNull(listener));
+        MeasurementSubscription[] subscription = new MeasurementSubscription[1];
+        subscription[0] = new MeasurementSubscription(subscriber, LISTENER_BUFFER_CAPACITY, OverflowPolicy.BLOCK, listener, () -> {
+            measurementListeners.remove(listener, subscription[0]);
+            unsubscribe(subscription[0]);
+        });
+        if (measurementListeners.putIfAbsent(listener, subscription[0]) == null) {
+            subscribe(subscription[0]);
+            subscriber.onSubscribe(subscription[0]);
+        }
+    }
+
+    void subscribe(MeasurementSubscription subscription) {
+        subscription.setMetrics(metrics);
+        subscriptions.add(subscription);
+        updateDerivedFields();
+    }
+
+    void unsubscribe(MeasurementSubscription subscription) {
+        subscriptions.remove(subscription);
+        updateDerivedFields();
+        metrics.listenerRemoved(subscription.getMetricsKey());
+    }
+
+    AsyncMeasurementListener addAsyncMeasurementListener(MeasurementListener listener, int capacity, OverflowPolicy policy, ThreadingMode threadingMode) {
+        AsyncMeasurementListener asyncListener = new AsyncMeasurementListener(Objects.requireNonNull(listener), capacity, Objects.requireNonNull(policy), threadingMode);
+        asyncListener.setMetrics(metrics);
+        asyncMeasurementListeners.add(asyncListener);
+        updateDerivedFields();
+        return asyncListener;
+    }
+
+    SpooledMeasurementListener addSpooledMeasurementListener(MeasurementSpool spool, String name, MeasurementListener listener, ThreadingMode threadingMode) throws IOException {
+        SpooledMeasurementListener spooledListener = new SpooledMeasurementListener(Objects.requireNonNull(spool), name, Objects.requireNonNull(listener), threadingMode);
+        spooledListener.setMetrics(metrics);
+        spooledMeasurementListeners.add(spooledListener);
+        spools.add(spool);
+        return spooledListener;
+    }
+
+    void addBatchMeasurementListener(BatchMeasurementListener listener, int maxBatchSize, Duration maxLinger, ThreadingMode threadingMode) {
+        MeasurementBatcher batcher = new MeasurementBatcher(Objects.requireNonNull(listener), maxBatchSize, maxLinger.toNanos(), threadingMode);
+        batcher.setMetrics(metrics);
+        MeasurementBatcher previous = batchers.put(listener, batcher);
+        updateDerivedFields();
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    void removeBatchMeasurementListener(BatchMeasurementListener listener) {
+        MeasurementBatcher batcher = batchers.remove(listener);
+        updateDerivedFields();
+        if (batcher != null) {
+            batcher.close();
+            metrics.listenerRemoved(listener);
+        }
+    }
+
+    WindowedAggregator addWindowSummaryListener(WindowSummaryListener listener, Duration window, Duration slide, Set<AggregateField> fields) {
+        WindowedAggregator aggregator = new WindowedAggregator(Objects.requireNonNull(listener), window.toMillis(), slide.toMillis(), fields);
+        aggregator.setMetrics(metrics);
+        WindowedAggregator previous = aggregators.put(listener, aggregator);
+        updateDerivedFields();
+        if (previous != null) {
+            previous.close();
+        }
+        aggregator.startEmitTimer(housekeeping);
+        return aggregator;
+    }
+
+    void removeWindowSummaryListener(WindowSummaryListener listener) {
+        WindowedAggregator aggregator = aggregators.remove(listener);
+        updateDerivedFields();
+        if (aggregator != null) {
+            aggregator.close();
+            metrics.listenerRemoved(listener);
+        }
+    }
+
+    LatestValueStore addLatestValueStore(Duration ttl, Set<DerivedField> derivedFields) {
+        LatestValueStore store = new LatestValueStore(ttl.toMillis(), DerivedField.maskOf(derivedFields));
+        latestValueStores.add(store);
+        updateDerivedFields();
+        store.startEvictionTimer(housekeeping);
+        return store;
+    }
+
+    void removeLatestValueStore(LatestValueStore store) {
+        if (latestValueStores.remove(store)) {
+            updateDerivedFields();
+            store.close();
+        }
+    }
+
+    void addDerivedValuePlugin(DerivedValuePlugin plugin) {
+        synchronized (derivedValuePlugins) {
+            List<DerivedValuePlugin> plugins = new ArrayList<>(derivedValuePlugins);
+            plugins.add(Objects.requireNonNull(plugin));
+            derivedValuePipeline = DerivedValuePipeline.of(plugins);
+            derivedValuePlugins.add(plugin);
+        }
+        updateDerivedFields();
+    }
+
+    void removeDerivedValuePlugin(DerivedValuePlugin plugin) {
+        synchronized (derivedValuePlugins) {
+            List<DerivedValuePlugin> plugins = new ArrayList<>(derivedValuePlugins);
+            if (!plugins.remove(plugin)) {
+                return;
+            }
+            derivedValuePipeline = plugins.isEmpty() ? null : DerivedValuePipeline.of(plugins);
+            derivedValuePlugins.remove(plugin);
+        }
+        updateDerivedFields();
+    }
+
+    void addCompactMeasurementListener(CompactMeasurementListener listener) {
+        compactMeasurementListeners.add(Objects.requireNonNull(listener));
+    }
+
+    void removeCompactMeasurementListener(CompactMeasurementListener listener) {
+        if (compactMeasurementListeners.remove(listener)) {
+            metrics.listenerRemoved(listener);
+        }
+    }
+
+    /**
+     * Removes a listener, whether it was added as a synchronous, an
+     * asynchronous or a spooled one
+     */
+    void removeMeasurementListener(MeasurementListener listener) {
+        MeasurementSubscription subscription = measurementListeners.remove(listener);
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        asyncMeasurementListeners.stream()
+                .filter(asyncListener -> asyncListener.getListener() == listener)
+                .forEach(asyncListener -> {
+                    asyncMeasurementListeners.remove(asyncListener);
+                    asyncListener.close();
+                });
+        spooledMeasurementListeners.stream()
+                .filter(spooledListener -> spooledListener.getListener() == listener)
+                .forEach(spooledListener -> {
+                    spooledMeasurementListeners.remove(spooledListener);
+                    spooledListener.close();
+                });
+        spools.removeIf(spool -> spooledMeasurementListeners.stream().noneMatch(spooledListener -> spooledListener.getSpool() == spool));
+        updateDerivedFields();
+        metrics.listenerRemoved(listener);
+    }
+
+    /**
+     * @return the mask of the derived values needed by any of the listeners
+     */
+    int getDerivedFields() {
+        return derivedFields;
+    }
+
+    boolean hasDerivedValuePlugins() {
+        return derivedValuePipeline != null;
+    }
+
+    /**
+     * @return true if only the listeners of compact measurements need to be
+     * notified, so that no {@link RuuviValue} needs to be built
+     */
+    boolean isCompactOnly() {
+        return adapterDeduplicator == null && !compactMeasurementListeners.isEmpty() && !hasRuuviValueListeners();
+    }
+
+    /**
+     * Notifies the listeners of a measurement, once the copies heard by other
+     * adapters have been waited for
+     */
+    void publish(RuuviData data) {
+        AdapterDeduplicator deduplicator = adapterDeduplicator;
+        if (deduplicator != null) {
+            deduplicator.offer(data, System.nanoTime());
+        } else {
+            notifyListeners(data);
+        }
+    }
+
+    /**
+     * Notifies the listeners of compact measurements, when they are the only
+     * ones
+     *
+     * @see #isCompactOnly()
+     */
+    void publish(CompactRuuviValue measurement) {
+        synchronized (lock) {
+            notifyCompactListeners(measurement, metrics);
+        }
+    }
+
+    /**
+     * Passes on the measurements held for deduplication, completes the
+     * subscriptions and delivers what the asynchronous, batch, window summary
+     * and spooled listeners have pending, then removes all the listeners.
+     * The timers of the aggregators and stores must have been stopped.
+     */
+    void close() {
+        ScheduledExecutorService flusher;
+        synchronized (this) {
+            flusher = deduplicationFlusher;
+            deduplicationFlusher = null;
+        }
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                if (!flusher.awaitTermination(5, TimeUnit.SECONDS)) {
+                    LOG.warn("Flushing the adapter deduplication did not finish in time, interrupting it");
+                    flusher.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                flusher.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        AdapterDeduplicator deduplicator = adapterDeduplicator;
+        if (deduplicator != null) {
+            deduplicator.flushAll();
+        }
+        ReceiverMetrics metrics = this.metrics;
+        subscriptions.forEach(MeasurementSubscription::complete);
+        subscriptions.clear();
+        measurementListeners.clear();
+        compactMeasurementListeners.forEach(metrics::listenerRemoved);
+        compactMeasurementListeners.clear();
+        batchers.forEach((listener, batcher) -> {
+            batcher.close();
+            metrics.listenerRemoved(listener);
+        });
+        batchers.clear();
+        aggregators.forEach((listener, aggregator) -> {
+            aggregator.close();
+            metrics.listenerRemoved(listener);
+        });
+        aggregators.clear();
+        latestValueStores.forEach(LatestValueStore::close);
+        latestValueStores.clear();
+        asyncMeasurementListeners.forEach(asyncListener -> {
+            asyncListener.close();
+            metrics.listenerRemoved(asyncListener.getListener());
+        });
+        asyncMeasurementListeners.clear();
+        spooledMeasurementListeners.forEach(spooledListener -> {
+            spooledListener.close();
+            metrics.listenerRemoved(spooledListener.getListener());
+        });
+        spooledMeasurementListeners.clear();
+        spools.clear();
+    }
+
+    /**
+     * Recalculates the derived values needed by any of the listeners
+     */
+    private void updateDerivedFields() {
+        int fields = 0;
+        for (MeasurementSubscription subscription : subscriptions) {
+            Flow.Subscriber<?> subscriber = subscription.getSubscriber();
+            // other subscribers can't declare the values they need
+            fields |= subscriber instanceof MeasurementListenerSubscriber
+                    ? DerivedField.maskOf(((MeasurementListenerSubscriber) subscriber).getListener().getDerivedFields())
+                    : DerivedField.ALL;
+        }
+        for (AsyncMeasurementListener asyncListener : asyncMeasurementListeners) {
+            fields |= DerivedField.maskOf(asyncListener.getListener().getDerivedFields());
+        }
+        for (BatchMeasurementListener listener : batchers.keySet()) {
+            fields |= DerivedField.maskOf(listener.getDerivedFields());
+        }
+        for (WindowedAggregator aggregator : aggregators.values()) {
+            fields |= aggregator.getDerivedFields();
+        }
+        for (LatestValueStore store : latestValueStores) {
+            fields |= store.getDerivedFields();
+        }
+        DerivedValuePipeline pipeline = derivedValuePipeline;
+        if (pipeline != null) {
+            fields |= pipeline.getDerivedFields();
+        }
+        derivedFields = fields;
+    }
+
+    private boolean hasRuuviValueListeners() {
+        return !subscriptions.isEmpty() || !asyncMeasurementListeners.isEmpty() || !batchers.isEmpty() || !aggregators.isEmpty()
+                || !latestValueStores.isEmpty() || !spools.isEmpty();
+    }
+
+    /**
+     * Notifies all the listeners of a measurement, deriving the values of the
+     * plugins first
+     */
+    private void notifyListeners(RuuviData data) {
+        synchronized (lock) {
+            ReceiverMetrics metrics = this.metrics;
+            DerivedValuePipeline pipeline = derivedValuePipeline;
+            if (pipeline != null && data.getDerived() != RuuviDerivedValue.NONE) {
+                try {
+                    pipeline.apply(data.getMeasurement(), data.getDerived());
+                } catch (Exception e) {
+                    LOG.warn("Deriving the values of the plugins failed", e);
+                }
+            }
+            subscriptions.forEach(subscription -> subscription.offer(data));
+            asyncMeasurementListeners.forEach(asyncListener -> asyncListener.offer(data));
+            batchers.values().forEach(batcher -> batcher.add(data));
+            aggregators.values().forEach(aggregator -> aggregator.add(data));
+            latestValueStores.forEach(store -> store.put(data));
+            spools.forEach(spool -> {
+                try {
+                    spool.append(data.getMeasurement());
+                } catch (Exception e) {
+                    LOG.warn("Spooling measurement failed", e);
+                }
+            });
+            if (!compactMeasurementListeners.isEmpty()) {
+                compact.set(data.getMeasurement());
+                notifyCompactListeners(compact, metrics);
+            }
+        }
+    }
+
+    private void notifyCompactListeners(CompactRuuviValue measurement, ReceiverMetrics metrics) {
+        compactMeasurementListeners.forEach(listener -> {
+            long start = metrics == ReceiverMetrics.NONE ? 0 : System.nanoTime();
+            try {
+                listener.measured(measurement);
+            } catch (Exception e) {
+                LOG.warn("Notifying listener failed", e);
+            }
+            if (metrics != ReceiverMetrics.NONE) {
+                metrics.listenerNotified(listener, System.nanoTime() - start);
+            }
+        });
+    }
+}
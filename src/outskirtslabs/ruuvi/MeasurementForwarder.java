@@ -0,0 +1,134 @@
+package outskirtslabs.ruuvi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the measurements to a channel, usually a socket to a central server,
+ * in the compact binary format of a {@link MeasurementEncoder}. Each batch is
+ * sent as one frame, or several if it doesn't fit in the buffer, which the
+ * server reads with a {@link ForwardedMeasurementSource}:
+ * <pre>
+ * MeasurementForwarder forwarder = new MeasurementForwarder(SocketChannel.open(server));
+ * receiver.addBatchMeasurementListener(forwarder, 256, Duration.ofSeconds(1));
+ * </pre>
+ * The channel must be in blocking mode. When writing fails the batch is
+ * discarded and the exception is thrown as an {@link UncheckedIOException};
+ * the forwarder can't be used after that.
+ */
+public final class MeasurementForwarder implements BatchMeasurementListener, Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final Set<DerivedField> derivedFields;
+    private final MeasurementEncoder encoder;
+    private final LongAdder sentMeasurements = new LongAdder();
+    private final LongAdder sentFrames = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+
+    /**
+     * Creates a forwarder that leaves out the derived values, which the
+     * server can calculate again
+     */
+    public MeasurementForwarder(WritableByteChannel channel) {
+        this(channel, EnumSet.noneOf(DerivedField.class));
+    }
+
+    /**
+     * @param derivedFields the derived values to send along with the
+     *                      measurements
+     */
+    public MeasurementForwarder(WritableByteChannel channel, Set<DerivedField> derivedFields) {
+        this.channel = channel;
+        this.derivedFields = EnumSet.noneOf(DerivedField.class);
+        this.derivedFields.addAll(derivedFields);
+        this.encoder = new MeasurementEncoder(derivedFields);
+    }
+
+    @Override
+    public synchronized void measured(List<RuuviData> batch) {
+        try {
+            buffer.clear();
+            encoder.startFrame(buffer);
+            for (RuuviData data : batch) {
+                while (!encoder.add(data.getMeasurement(), data.getDerived())) {
+                    if (encoder.getCount() == 0) {
+                        grow(); // a single measurement with very long strings
+                    } else {
+                        send();
+                    }
+                    buffer.clear();
+                    encoder.startFrame(buffer);
+                }
+            }
+            if (encoder.getCount() > 0) {
+                send();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void grow() {
+        if (buffer.capacity() * 2 > MeasurementDecoder.MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("A measurement is too long to forward");
+        }
+        buffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+    }
+
+    private void send() throws IOException {
+        int count = encoder.getCount();
+        encoder.finishFrame();
+        buffer.flip();
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        sentMeasurements.add(count);
+        sentFrames.increment();
+        sentBytes.add(length);
+    }
+
+    @Override
+    public Set<DerivedField> getDerivedFields() {
+        return derivedFields;
+    }
+
+    /**
+     * @return the number of measurements sent
+     */
+    public long getSentMeasurementCount() {
+        return sentMeasurements.sum();
+    }
+
+    /**
+     * @return the number of frames sent
+     */
+    public long getSentFrameCount() {
+        return sentFrames.sum();
+    }
+
+    /**
+     * @return the number of bytes sent
+     */
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    /**
+     * Closes the channel
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,6 +1,18 @@
 package outskirtslabs.ruuvi;
 
+import java.util.EnumSet;
+import java.util.Set;
+
 @FunctionalInterface
 public interface MeasurementListener {
     void measured(RuuviValue measurement, RuuviDerivedValue derived);
+
+    /**
+     * The derived values this listener uses. The receiver doesn't calculate
+     * the values none of its listeners need, and those are null in the
+     * {@link RuuviDerivedValue}. All of them by default.
+     */
+    default Set<DerivedField> getDerivedFields() {
+        return EnumSet.allOf(DerivedField.class);
+    }
 }
@@ -0,0 +1,48 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.Flow;
+
+/**
+ * Subscribes a {@link MeasurementListener} with unbounded demand, so that it
+ * is notified on the thread reading the dump as soon as a measurement is
+ * received.
+ */
+final class MeasurementListenerSubscriber implements Flow.Subscriber<RuuviData> {
+
+    private static final Logger LOG = Logger.getLogger(MeasurementListenerSubscriber.class);
+
+    private final MeasurementListener listener;
+
+    MeasurementListenerSubscriber(MeasurementListener listener) {
+        this.listener = listener;
+    }
+
+    MeasurementListener getListener() {
+        return listener;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(RuuviData data) {
+        try {
+            listener.measured(data.getMeasurement(), data.getDerived());
+        } catch (Exception e) {
+            LOG.warn("Notifying listener failed", e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        LOG.warn("Listener subscription failed", throwable);
+    }
+
+    @Override
+    public void onComplete() {
+    }
+}
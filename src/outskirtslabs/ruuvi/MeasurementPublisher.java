@@ -0,0 +1,97 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Flow;
+
+/**
+ * Publishes the measurements of a {@link Receiver} to
+ * {@link Flow.Subscriber}s, honouring their demand. Each subscription buffers
+ * up to the capacity of the publisher while its subscriber has no
+ * outstanding demand, and applies the {@link OverflowPolicy} of the publisher
+ * beyond that. {@link OverflowPolicy#BLOCK} holds up the thread reading the
+ * dump until the subscriber requests more, which slows the producer down to
+ * the pace of the slowest such subscriber.
+ * <p>
+ * Subscribers are signalled on the thread reading the dump, or on their own
+ * thread from within {@link Flow.Subscription#request(long)}, one signal at a
+ * time. {@link Flow.Subscriber#onComplete()} is signalled when the receiver
+ * is disposed. Subscribers that throw from {@code onNext} are cancelled.
+ * <p>
+ * Instances are created with {@link Receiver#createPublisher(int, OverflowPolicy)},
+ * and sum up the counters of their current subscriptions.
+ */
+public final class MeasurementPublisher implements Flow.Publisher<RuuviData> {
+
+    private final Receiver receiver;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Set<MeasurementSubscription> subscriptions = new CopyOnWriteArraySet<>();
+
+    MeasurementPublisher(Receiver receiver, int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be at least 1");
+        }
+        this.receiver = receiver;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super RuuviData> subscriber) {
+        Objects.requireNonNull(subscriber);
+        MeasurementSubscription[] subscription = new MeasurementSubscription[1];
+        subscription[0] = new MeasurementSubscription(subscriber, capacity, policy, subscriber, () -> {
+            subscriptions.remove(subscription[0]);
+            receiver.unsubscribe(subscription[0]);
+        });
+        subscriptions.add(subscription[0]);
+        receiver.subscribe(subscription[0]);
+        subscriber.onSubscribe(subscription[0]);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return the number of measurements delivered to the current subscribers
+     */
+    public long getDeliveredCount() {
+        return subscriptions.stream().mapToLong(MeasurementSubscription::getDeliveredCount).sum();
+    }
+
+    /**
+     * @return the number of measurements discarded for the current
+     * subscribers because their buffer was full, or because they cancelled
+     * with measurements buffered
+     */
+    public long getDroppedCount() {
+        return subscriptions.stream().mapToLong(MeasurementSubscription::getDroppedCount).sum();
+    }
+
+    /**
+     * @return the number of measurements replaced by a newer measurement of
+     * the same tag before being delivered to the current subscribers
+     */
+    public long getCoalescedCount() {
+        return subscriptions.stream().mapToLong(MeasurementSubscription::getCoalescedCount).sum();
+    }
+
+    /**
+     * @return the approximate number of measurements buffered for the
+     * current subscribers
+     */
+    public int getBufferedCount() {
+        return subscriptions.stream().mapToInt(MeasurementSubscription::getBufferedCount).sum();
+    }
+}
@@ -0,0 +1,437 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
+
+/**
+ * A durable write-ahead log of measurements, between a {@link Receiver} and
+ * listeners that may be slow or unavailable, such as one writing to a remote
+ * database. The measurements are appended to memory-mapped segment files in a
+ * directory, and each {@link SpooledMeasurementListener} reads them through a
+ * named cursor of its own, which is kept on disk too: what was not delivered
+ * before the application stopped is delivered after it is started again with
+ * the same directory. Delivery is at least once.
+ * <p>
+ * Appending only writes to memory. The segments and cursors are synced to the
+ * disk periodically, so that one fsync covers everything appended since the
+ * previous one and the disk only sees sequential writes. A crash may lose the
+ * measurements of the last sync interval.
+ * <p>
+ * When a segment is full a new one is started. The oldest segments are
+ * deleted, on rotation and on the periodic sync, when every cursor has passed
+ * them, or when the segments take more than the retention limit, even if some
+ * listener has not read them yet.
+ * <p>
+ * Measurements without a time get the time they were spooled, so that they
+ * keep it when they are delivered later.
+ */
+public final class MeasurementSpool implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(MeasurementSpool.class);
+
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_BYTES = 256L * 1024 * 1024;
+    public static final Duration DEFAULT_SYNC_INTERVAL = Duration.ofSeconds(1);
+
+    private static final int MIN_SEGMENT_BYTES = 4096;
+    private static final String LOCK_FILE = "spool.lock";
+    private static final Pattern CURSOR_NAME = Pattern.compile("[A-Za-z0-9_.-]+");
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long syncIntervalNanos;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final ConcurrentSkipListMap<Long, SpoolSegment> segments = new ConcurrentSkipListMap<>();
+    private final Map<String, SpoolCursor> cursors = new ConcurrentHashMap<>();
+    private final Set<SpooledMeasurementListener> listeners = new CopyOnWriteArraySet<>();
+    private final ScheduledExecutorService syncer;
+    // the appending state, guarded by this
+    private final CompactRuuviValue appended = new CompactRuuviValue();
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+    private SpoolSegment active;
+    private ByteBuffer activeView;
+    private boolean closed;
+    private volatile long endOffset;
+    private volatile long syncedOffset;
+
+    public static MeasurementSpool open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_RETENTION_BYTES, DEFAULT_SYNC_INTERVAL);
+    }
+
+    /**
+     * Opens the spool in the directory, creating it if needed
+     *
+     * @param segmentBytes   the size of each segment file
+     * @param retentionBytes the size the segments may take in total before
+     *                       the oldest ones are deleted, whether they have
+     *                       been delivered or not
+     * @param syncInterval   how often the measurements are synced to the
+     *                       disk, or {@link Duration#ZERO} to sync each one
+     *                       as it is appended
+     */
+    public static MeasurementSpool open(Path directory, int segmentBytes, long retentionBytes, Duration syncInterval) throws IOException {
+        if (segmentBytes < MIN_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("The segments must be at least " + MIN_SEGMENT_BYTES + " bytes");
+        }
+        if (retentionBytes < segmentBytes) {
+            throw new IllegalArgumentException("The retention limit can't be less than a segment");
+        }
+        if (syncInterval.isNegative()) {
+            throw new IllegalArgumentException("The sync interval can't be negative");
+        }
+        Files.createDirectories(directory);
+        return new MeasurementSpool(directory, segmentBytes, retentionBytes, syncInterval.toNanos());
+    }
+
+    private MeasurementSpool(Path directory, int segmentBytes, long retentionBytes, long syncIntervalNanos) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.syncIntervalNanos = syncIntervalNanos;
+        this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            this.lock = lockChannel.tryLock();
+            if (lock == null) {
+                throw new IOException("The spool " + directory + " is in use by another process");
+            }
+            recover();
+        } catch (IOException | RuntimeException e) {
+            segments.values().forEach(SpoolSegment::close);
+            cursors.values().forEach(SpoolCursor::close);
+            lockChannel.close();
+            throw e;
+        }
+        if (syncIntervalNanos > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(task -> ThreadingMode.PLATFORM.newThread("ruuvi-spool-sync", task, true));
+            syncer.scheduleWithFixedDelay(this::syncPeriodically, syncIntervalNanos, syncIntervalNanos, TimeUnit.NANOSECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> cursorFiles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SpoolSegment.SUFFIX)) {
+                    SpoolSegment segment = SpoolSegment.open(file);
+                    segments.put(segment.base, segment);
+                } else if (name.endsWith(SpoolCursor.SUFFIX)) {
+                    cursorFiles.add(file);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            SpoolSegment first = SpoolSegment.create(directory, 0, segmentBytes);
+            segments.put(first.base, first);
+        }
+        active = segments.lastEntry().getValue();
+        activeView = active.buffer.duplicate();
+        activeView.position(active.limit);
+        endOffset = active.base + active.limit;
+        syncedOffset = endOffset;
+        for (Path file : cursorFiles) {
+            String fileName = file.getFileName().toString();
+            String name = fileName.substring(0, fileName.length() - SpoolCursor.SUFFIX.length());
+            SpoolCursor cursor = SpoolCursor.open(directory, name, endOffset);
+            if (cursor.offset > endOffset) {
+                // the measurements were delivered, but lost before they were synced
+                LOG.warn(String.format("Cursor %s of spool %s is past the end, moving it to the end", name, directory));
+                cursor.offset = endOffset;
+            }
+            cursors.put(name, cursor);
+        }
+        LOG.info(String.format("Opened spool %s with %d segments and %d cursors", directory, segments.size(), cursors.size()));
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the offset after the last measurement appended
+     */
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    /**
+     * @return the offset of the oldest segment that has not been deleted
+     */
+    public long getOldestOffset() {
+        return segments.firstKey();
+    }
+
+    /**
+     * @return the size of the segment files in bytes
+     */
+    public long getSizeBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.size).sum();
+    }
+
+    long getSyncIntervalNanos() {
+        return syncIntervalNanos;
+    }
+
+    /**
+     * Appends a measurement, syncing it to the disk right away if the sync
+     * interval is zero
+     */
+    synchronized void append(RuuviValue measurement) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The spool " + directory + " is closed");
+        }
+        appended.set(measurement);
+        if (!appended.has(CompactRuuviValue.TIME)) {
+            appended.setTime(System.currentTimeMillis());
+        }
+        encode();
+        int length = scratch.remaining();
+        if (activeView.remaining() < SpoolSegment.RECORD_HEADER_BYTES + length) {
+            rotate(length);
+        }
+        crc.reset();
+        crc.update(scratch);
+        scratch.rewind();
+        activeView.putInt(length).putInt((int) crc.getValue()).put(scratch);
+        active.limit = activeView.position();
+        endOffset = active.base + active.limit;
+        if (syncIntervalNanos == 0) {
+            active.force();
+            syncedOffset = endOffset;
+        }
+        for (SpooledMeasurementListener listener : listeners) {
+            listener.wake();
+        }
+    }
+
+    private void encode() {
+        while (true) {
+            scratch.clear();
+            try {
+                SpoolCodec.encode(appended, scratch);
+                scratch.flip();
+                return;
+            } catch (BufferOverflowException e) {
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+    }
+
+    private void rotate(int length) throws IOException {
+        if (SpoolSegment.HEADER_BYTES + SpoolSegment.RECORD_HEADER_BYTES + length > segmentBytes) {
+            throw new IllegalArgumentException("A measurement of " + length + " bytes doesn't fit in a segment");
+        }
+        SpoolSegment next = SpoolSegment.create(directory, active.base + active.size, segmentBytes);
+        segments.put(next.base, next);
+        active = next;
+        activeView = next.buffer.duplicate();
+        activeView.position(next.limit);
+        LOG.debug("Started spool segment " + next.path);
+        deleteOldSegments();
+    }
+
+    /**
+     * Deletes the oldest segments while every cursor has passed them, or
+     * while the segments take more than the retention limit
+     */
+    private void deleteOldSegments() {
+        long total = getSizeBytes();
+        while (segments.size() > 1) {
+            SpoolSegment oldest = segments.firstEntry().getValue();
+            long oldestEnd = oldest.base + oldest.limit;
+            boolean delivered = !cursors.isEmpty() && cursors.values().stream().allMatch(cursor -> cursor.offset >= oldestEnd);
+            if (!delivered) {
+                if (total <= retentionBytes) {
+                    break;
+                }
+                LOG.warn(String.format("Spool %s exceeds %d bytes, deleting %s before it was delivered to every listener",
+                        directory, retentionBytes, oldest.path.getFileName()));
+            }
+            segments.remove(oldest.base);
+            oldest.delete();
+            total -= oldest.size;
+        }
+    }
+
+    /**
+     * Reads the measurement at the offset of the cursor, without moving the
+     * cursor past it. The cursor is moved forward if it was in a deleted
+     * segment or at the end of a segment.
+     *
+     * @return the offset of the measurement after the one read, or -1 if
+     * there is no measurement at the offset yet
+     */
+    long read(SpoolCursor cursor, CompactRuuviValue into) {
+        long offset = cursor.offset;
+        while (offset < endOffset) {
+            SpoolSegment segment = cursor.segment;
+            if (segment == null || offset < segment.base || offset >= segment.base + segment.size) {
+                Map.Entry<Long, SpoolSegment> entry = segments.floorEntry(offset);
+                if (entry == null) {
+                    SpoolSegment oldest = segments.firstEntry().getValue();
+                    LOG.warn(String.format("Measurements of spool %s were deleted before they were delivered to %s", directory, cursor.name));
+                    offset = oldest.base + SpoolSegment.HEADER_BYTES;
+                    cursor.offset = offset;
+                    continue;
+                }
+                segment = entry.getValue();
+                cursor.segment = segment;
+                cursor.view = segment.buffer.duplicate();
+            }
+            int position = (int) (offset - segment.base);
+            if (position >= segment.limit) {
+                offset = segments.higherKey(segment.base) + SpoolSegment.HEADER_BYTES;
+                cursor.offset = offset;
+                continue;
+            }
+            ByteBuffer view = cursor.view;
+            int length = view.getInt(position);
+            view.limit(position + SpoolSegment.RECORD_HEADER_BYTES + length).position(position + SpoolSegment.RECORD_HEADER_BYTES);
+            SpoolCodec.decode(view, into);
+            view.limit(view.capacity());
+            return offset + SpoolSegment.RECORD_HEADER_BYTES + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Attaches a listener to the cursor of the name, creating the cursor at
+     * the end of the spool if it doesn't exist
+     */
+    synchronized SpoolCursor attach(String name, SpooledMeasurementListener listener) throws IOException {
+        if (!CURSOR_NAME.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid cursor name \"" + name + "\", use letters, digits, '.', '-' and '_'");
+        }
+        if (closed) {
+            throw new IllegalStateException("The spool " + directory + " is closed");
+        }
+        SpoolCursor cursor = cursors.get(name);
+        if (cursor == null) {
+            cursor = SpoolCursor.open(directory, name, endOffset);
+            cursors.put(name, cursor);
+        }
+        if (cursor.attached) {
+            throw new IllegalStateException("The cursor " + name + " of spool " + directory + " is already in use");
+        }
+        cursor.attached = true;
+        listeners.add(listener);
+        return cursor;
+    }
+
+    synchronized void detach(SpoolCursor cursor, SpooledMeasurementListener listener) {
+        listeners.remove(listener);
+        cursor.attached = false;
+    }
+
+    /**
+     * Syncs what was appended since the previous sync, on the timer. The
+     * segments are picked and pinned with the lock held, so that a rotation
+     * can't delete them meanwhile, and synced without it, so that appending
+     * goes on. The old segments are deleted here too, as cursors passing
+     * them don't start a new segment.
+     */
+    private void syncPeriodically() {
+        List<SpoolSegment> unsynced;
+        long end;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            deleteOldSegments();
+            end = endOffset;
+            unsynced = unsyncedSegments(end);
+            unsynced.forEach(SpoolSegment::pin);
+        }
+        try {
+            unsynced.forEach(SpoolSegment::force);
+        } finally {
+            unsynced.forEach(SpoolSegment::unpin);
+        }
+        syncedOffset = end;
+    }
+
+    /**
+     * @return the segments with measurements appended since the previous sync
+     * and before the end offset
+     */
+    private List<SpoolSegment> unsyncedSegments(long end) {
+        List<SpoolSegment> unsynced = new ArrayList<>();
+        long synced = syncedOffset;
+        if (end == synced) {
+            return unsynced;
+        }
+        Long from = segments.floorKey(synced);
+        for (SpoolSegment segment : (from == null ? segments : segments.tailMap(from)).values()) {
+            if (segment.base > end) {
+                break;
+            }
+            unsynced.add(segment);
+        }
+        return unsynced;
+    }
+
+    /**
+     * Stops the listeners reading from the spool, syncs it and closes its
+     * files
+     */
+    @Override
+    public void close() {
+        new ArrayList<>(listeners).forEach(SpooledMeasurementListener::close);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (syncer != null) {
+            // without the lock, which a sync in progress needs to finish
+            syncer.shutdown();
+            try {
+                syncer.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            unsyncedSegments(endOffset).forEach(SpoolSegment::force);
+            syncedOffset = endOffset;
+            segments.values().forEach(SpoolSegment::close);
+            cursors.values().forEach(SpoolCursor::close);
+            try {
+                lock.release();
+                lockChannel.close();
+            } catch (IOException e) {
+                LOG.debug("Releasing the lock of spool " + directory + " failed", e);
+            }
+        }
+        LOG.debug("Closed spool " + directory);
+    }
+}
@@ -0,0 +1,284 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The subscription of a {@link Flow.Subscriber} to a
+ * {@link MeasurementPublisher}. Measurements are delivered while the
+ * subscriber has outstanding demand, and are buffered up to the capacity
+ * otherwise, beyond which the {@link OverflowPolicy} applies.
+ * <p>
+ * There is no delivery thread: whichever thread finds demand and buffered
+ * measurements delivers them, which is the thread reading the dump when it
+ * offers a measurement, or the subscriber's thread when it calls
+ * {@link #request(long)}. A work-in-progress counter ensures that only one
+ * thread delivers at a time, so the subscriber is signalled serially. With
+ * outstanding demand and nothing buffered, a measurement is delivered
+ * directly without touching the buffer.
+ */
+final class MeasurementSubscription implements Flow.Subscription {
+
+    private static final Logger LOG = Logger.getLogger(MeasurementSubscription.class);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Flow.Subscriber<? super RuuviData> subscriber;
+    private final OverflowPolicy policy;
+    /**
+     * What the latency of the subscriber is recorded as in the metrics
+     */
+    private final Object metricsKey;
+    private final Runnable onTerminate;
+    private final RingBuffer<RuuviData> buffer;
+    /**
+     * For {@link OverflowPolicy#COALESCE_LATEST_PER_MAC} the buffer holds the
+     * MAC addresses with a pending measurement, and this the measurements
+     */
+    private final RingBuffer<String> pendingMacs;
+    private final Map<String, RuuviData> latestByMac;
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private volatile boolean cancelled;
+    private volatile boolean completed;
+    private boolean terminated;
+    private volatile Throwable error;
+    private volatile ReceiverMetrics metrics = ReceiverMetrics.NONE;
+
+    MeasurementSubscription(Flow.Subscriber<? super RuuviData> subscriber, int capacity, OverflowPolicy policy, Object metricsKey, Runnable onTerminate) {
+        this.subscriber = subscriber;
+        this.policy = policy;
+        this.metricsKey = metricsKey;
+        this.onTerminate = onTerminate;
+        if (policy == OverflowPolicy.COALESCE_LATEST_PER_MAC) {
+            this.buffer = null;
+            this.pendingMacs = new RingBuffer<>(capacity);
+            this.latestByMac = new ConcurrentHashMap<>();
+        } else {
+            this.buffer = new RingBuffer<>(capacity);
+            this.pendingMacs = null;
+            this.latestByMac = null;
+        }
+    }
+
+    Object getMetricsKey() {
+        return metricsKey;
+    }
+
+    Flow.Subscriber<? super RuuviData> getSubscriber() {
+        return subscriber;
+    }
+
+    long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    long getCoalescedCount() {
+        return coalesced.sum();
+    }
+
+    int getBufferedCount() {
+        return buffer != null ? buffer.size() : latestByMac.size();
+    }
+
+    void setMetrics(ReceiverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            error = new IllegalArgumentException("Requested " + n + " measurements, the demand must be positive");
+        } else {
+            long current, next;
+            do {
+                current = requested.get();
+                if (current == Long.MAX_VALUE) {
+                    return; // unbounded already, nothing can change
+                }
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!requested.compareAndSet(current, next));
+        }
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            onTerminate.run();
+            drain(); // clears the buffer unless a delivery is in progress, which then does it
+        }
+    }
+
+    /**
+     * Called by the single producer, holding the fan-out lock of the receiver
+     */
+    void offer(RuuviData data) {
+        if (cancelled || completed || error != null) {
+            return; // after an error, a direct delivery would signal onNext after onError
+        }
+        long demand = requested.get();
+        // only this thread buffers, so the buffer stays empty once the counter is held
+        if (demand > 0 && isEmpty() && wip.compareAndSet(0, 1)) {
+            deliver(data);
+            if (demand != Long.MAX_VALUE) {
+                requested.decrementAndGet();
+            }
+            if (wip.decrementAndGet() != 0) {
+                drainLoop();
+            }
+            return;
+        }
+        buffer(data);
+        drain();
+    }
+
+    /**
+     * Signals completion once the buffered measurements have been delivered
+     */
+    void complete() {
+        completed = true;
+        drain();
+    }
+
+    private void buffer(RuuviData data) {
+        switch (policy) {
+            case BLOCK:
+                while (!buffer.offer(data)) {
+                    if (cancelled || completed || Thread.currentThread().isInterrupted()) {
+                        dropped.increment();
+                        return;
+                    }
+                    if (requested.get() > 0) {
+                        drain(); // demand may have arrived while the buffer was full
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                }
+                break;
+            case DROP_OLDEST:
+                while (!buffer.offer(data)) {
+                    if (buffer.poll() != null) {
+                        dropped.increment();
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+                if (!buffer.offer(data)) {
+                    dropped.increment();
+                }
+                break;
+            case COALESCE_LATEST_PER_MAC:
+                String mac = Objects.toString(data.getMeasurement().getMac(), "");
+                if (latestByMac.put(mac, data) != null) {
+                    coalesced.increment();
+                } else if (!pendingMacs.offer(mac)) {
+                    latestByMac.remove(mac, data);
+                    dropped.increment();
+                }
+                break;
+        }
+    }
+
+    private RuuviData poll() {
+        if (buffer != null) {
+            return buffer.poll();
+        }
+        String mac = pendingMacs.poll();
+        return mac == null ? null : latestByMac.remove(mac);
+    }
+
+    private boolean isEmpty() {
+        return buffer != null ? buffer.isEmpty() : pendingMacs.isEmpty();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() == 0) {
+            drainLoop();
+        }
+    }
+
+    /**
+     * Delivers while there is demand, until no other thread asked for a drain
+     * in the meantime. Must be called by the thread that raised the
+     * work-in-progress counter from 0.
+     */
+    private void drainLoop() {
+        int missed = 1;
+        do {
+            if (terminated) {
+                clear();
+            } else if (cancelled) {
+                terminated = true;
+                clear();
+            } else if (error != null) {
+                terminated = true;
+                clear();
+                onTerminate.run();
+                signal(() -> subscriber.onError(error));
+            } else {
+                long demand = requested.get();
+                long emitted = 0;
+                RuuviData data;
+                while (emitted != demand && !cancelled && (data = poll()) != null) {
+                    deliver(data);
+                    emitted++;
+                }
+                if (emitted != 0 && demand != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                if (completed && !cancelled && isEmpty()) {
+                    terminated = true;
+                    onTerminate.run();
+                    signal(subscriber::onComplete);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void deliver(RuuviData data) {
+        ReceiverMetrics metrics = this.metrics;
+        long start = metrics == ReceiverMetrics.NONE ? 0 : System.nanoTime();
+        try {
+            subscriber.onNext(data);
+            delivered.increment();
+        } catch (RuntimeException e) {
+            // a subscriber must not throw, treat it as cancelled
+            LOG.warn("Subscriber " + subscriber + " failed, cancelling its subscription", e);
+            cancel();
+        }
+        if (metrics != ReceiverMetrics.NONE) {
+            metrics.listenerNotified(metricsKey, System.nanoTime() - start);
+        }
+    }
+
+    private void signal(Runnable signal) {
+        try {
+            signal.run();
+        } catch (RuntimeException e) {
+            LOG.warn("Subscriber " + subscriber + " failed", e);
+        }
+    }
+
+    private void clear() {
+        while (poll() != null) {
+            dropped.increment();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package outskirtslabs.ruuvi;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops repeated advertisements before they are decoded. With "hcitool lescan
+ * --duplicates" each broadcast of a tag is typically reported several times,
+ * and a tag may also be configured to broadcast more often than the
+ * measurements are needed.
+ * <p>
+ * A packet is a repeat when its advertisement data is identical to the last
+ * accepted packet of the same MAC address, and it arrives within
+ * {@link #REPEAT_WINDOW_NANOS} of it. For RAWv2 this means the same
+ * measurement sequence number, and it also covers the formats without one,
+ * whose broadcasts are identical while the values don't change; the window
+ * lets those through at the broadcast interval of the tag.
+ * Independently, packets arriving sooner than the minimum interval after the
+ * last accepted packet of the same tag are throttled.
+ * <p>
+ * The state is kept in primitive arrays indexed by {@link MacIndex}, so the
+ * memory use stays flat with thousands of devices in range. Each thread
+ * decoding the packets of an adapter has a throttle of its own, as the
+ * packets of a device are all decoded by the same thread, so the lock is only
+ * contended by the eviction of the idle devices.
+ */
+class MeasurementThrottle {
+
+    /**
+     * Devices not seen for this long are forgotten, most devices other than
+     * RuuviTags rotate their MAC address regularly
+     */
+    static final long IDLE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    /**
+     * How long after an accepted packet an identical one counts as a repeat.
+     * The repeats reported for a broadcast arrive within milliseconds, and
+     * the tags broadcast at most about once a second.
+     */
+    static final long REPEAT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final boolean dropRepeats;
+    private final long minIntervalNanos;
+    private final MacIndex index = new MacIndex(256);
+    private long[] payloadHashes = new long[256];
+    private long[] lastAcceptedNanos = new long[256];
+    private long[] lastSeenNanos = new long[256];
+    private final LongAdder repeats = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+
+    MeasurementThrottle(boolean dropRepeats, long minIntervalNanos) {
+        this.dropRepeats = dropRepeats;
+        this.minIntervalNanos = minIntervalNanos;
+    }
+
+    boolean isDroppingRepeats() {
+        return dropRepeats;
+    }
+
+    long getMinIntervalNanos() {
+        return minIntervalNanos;
+    }
+
+    /**
+     * @return true if the packet should be decoded, false if it's a repeat or
+     * throttled
+     */
+    synchronized boolean accept(HCIData data, long nowNanos) {
+        long mac = Util.macToLong(data.mac);
+        if (mac < 0) {
+            return true;
+        }
+        long hash = dropRepeats ? payloadHash(data) : 0;
+        int i = index.indexOf(mac);
+        if (i < 0) {
+            i = index.add(mac);
+            payloadHashes = MacIndex.grow(payloadHashes, i);
+            lastAcceptedNanos = MacIndex.grow(lastAcceptedNanos, i);
+            lastSeenNanos = MacIndex.grow(lastSeenNanos, i);
+        } else {
+            lastSeenNanos[i] = nowNanos;
+            if (dropRepeats && payloadHashes[i] == hash && nowNanos - lastAcceptedNanos[i] < REPEAT_WINDOW_NANOS) {
+                repeats.increment();
+                return false;
+            }
+            if (nowNanos - lastAcceptedNanos[i] < minIntervalNanos) {
+                throttled.increment();
+                return false;
+            }
+        }
+        payloadHashes[i] = hash;
+        lastAcceptedNanos[i] = nowNanos;
+        lastSeenNanos[i] = nowNanos;
+        return true;
+    }
+
+    /**
+     * Forgets the devices that have not been seen for {@link #IDLE_TIMEOUT_NANOS}
+     */
+    synchronized void evictIdle(long nowNanos) {
+        for (int i = 0; i < index.indexLimit(); i++) {
+            long mac = index.keyAt(i);
+            if (mac != MacIndex.NO_KEY && nowNanos - lastSeenNanos[i] > IDLE_TIMEOUT_NANOS) {
+                index.remove(mac);
+            }
+        }
+    }
+
+    long getRepeatCount() {
+        return repeats.sum();
+    }
+
+    long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    synchronized int getTrackedDeviceCount() {
+        return index.size();
+    }
+
+    /**
+     * FNV-1a over the type and data of every advertisement structure, which
+     * excludes the RSSI varying between the repeats
+     */
+    private static long payloadHash(HCIData data) {
+        long hash = FNV_OFFSET_BASIS;
+        if (data.reports == null) {
+            return hash;
+        }
+        for (HCIData.Report report : data.reports) {
+            if (report.advertisements == null) {
+                continue;
+            }
+            for (HCIData.Report.AdvertisementData adData : report.advertisements) {
+                hash = (hash ^ (adData.type == null ? -1 : adData.type)) * FNV_PRIME;
+                List<Byte> bytes = adData.data;
+                if (bytes instanceof ByteSlice) {
+                    ByteSlice slice = (ByteSlice) bytes;
+                    for (int j = slice.offset; j < slice.offset + slice.length; j++) {
+                        hash = (hash ^ (slice.array[j] & 0xFF)) * FNV_PRIME;
+                    }
+                } else if (bytes != null) {
+                    for (int j = 0; j < bytes.size(); j++) {
+                        hash = (hash ^ (bytes.get(j) & 0xFF)) * FNV_PRIME;
+                    }
+                }
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,107 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link MeasurementThrottle}s of a receiver, one per adapter and thread
+ * decoding its packets, as a throttle is not thread safe. The copies of a
+ * broadcast heard by several adapters are handled by the
+ * {@link AdapterDeduplicator} instead. The idle tags are evicted once a
+ * minute on the housekeeping thread.
+ */
+final class MeasurementThrottles {
+
+    private final int adapters;
+    private final ScheduledExecutorService housekeeping;
+    /**
+     * The throttles by adapter and shard, or null if nothing is dropped
+     */
+    private volatile MeasurementThrottle[][] throttles;
+    /**
+     * The number of threads decoding the packets of an adapter
+     */
+    private int shards = 1;
+    private ScheduledFuture<?> eviction;
+
+    MeasurementThrottles(int adapters, ScheduledExecutorService housekeeping) {
+        this.adapters = adapters;
+        this.housekeeping = housekeeping;
+    }
+
+    /**
+     * Replaces the throttles, resetting their counters
+     */
+    synchronized void configure(boolean dropRepeats, long minIntervalNanos) {
+        if (!dropRepeats && minIntervalNanos == 0) {
+            throttles = null;
+            if (eviction != null) {
+                eviction.cancel(false);
+                eviction = null;
+            }
+            return;
+        }
+        throttles = newThrottles(dropRepeats, minIntervalNanos);
+        if (eviction == null) {
+            eviction = housekeeping.scheduleAtFixedRate(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Sets the number of threads decoding the packets of an adapter, replacing
+     * the throttles if it changed
+     */
+    synchronized void setShards(int shards) {
+        if (shards == this.shards) {
+            return;
+        }
+        this.shards = shards;
+        MeasurementThrottle[][] current = throttles;
+        if (current != null) {
+            throttles = newThrottles(current[0][0].isDroppingRepeats(), current[0][0].getMinIntervalNanos());
+        }
+    }
+
+    /**
+     * @return the throttle of the adapter for the decoding thread, or null if
+     * nothing is dropped
+     */
+    MeasurementThrottle get(int adapter, int shard) {
+        MeasurementThrottle[][] current = throttles;
+        return current == null ? null : current[adapter][shard];
+    }
+
+    long getRepeatCount() {
+        MeasurementThrottle[][] current = throttles;
+        return current == null ? 0 : Arrays.stream(current).flatMap(Arrays::stream).mapToLong(MeasurementThrottle::getRepeatCount).sum();
+    }
+
+    long getThrottledCount() {
+        MeasurementThrottle[][] current = throttles;
+        return current == null ? 0 : Arrays.stream(current).flatMap(Arrays::stream).mapToLong(MeasurementThrottle::getThrottledCount).sum();
+    }
+
+    private void evictIdle() {
+        MeasurementThrottle[][] current = throttles;
+        if (current != null) {
+            long now = System.nanoTime();
+            for (MeasurementThrottle[] adapterThrottles : current) {
+                for (MeasurementThrottle throttle : adapterThrottles) {
+                    throttle.evictIdle(now);
+                }
+            }
+        }
+    }
+
+    private MeasurementThrottle[][] newThrottles(boolean dropRepeats, long minIntervalNanos) {
+        MeasurementThrottle[][] newThrottles = new MeasurementThrottle[adapters][shards];
+        for (MeasurementThrottle[] adapterThrottles : newThrottles) {
+            for (int i = 0; i < adapterThrottles.length; i++) {
+                adapterThrottles[i] = new MeasurementThrottle(dropRepeats, minIntervalNanos);
+            }
+        }
+        return newThrottles;
+    }
+}
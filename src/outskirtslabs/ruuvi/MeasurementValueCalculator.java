@@ -4,21 +4,27 @@ class MeasurementValueCalculator {
 
     /**
      * Calculates values that can be calculated based on other values, such as
-     * total acceleration and absolute humidity
+     * total acceleration and absolute humidity. The values are calculated when
+     * first accessed.
      */
     public static RuuviData calculateAllValues(RuuviValue measurement) {
-        Double accelerationTotal = totalAcceleration(measurement.getAccelerationX(), measurement.getAccelerationY(), measurement.getAccelerationZ());
-        return new RuuviData(measurement,
-                RuuviDerivedValue.builder()
-                        .absoluteHumidity(absoluteHumidity(measurement.getTemperature(), measurement.getHumidity()))
-                        .dewPoint(dewPoint(measurement.getTemperature(), measurement.getHumidity()))
-                        .equilibriumVaporPressure(equilibriumVaporPressure(measurement.getTemperature()))
-                        .airDensity(airDensity(measurement.getTemperature(), measurement.getHumidity(), measurement.getPressure()))
-                        .accelerationTotal(accelerationTotal)
-                        .accelerationAngleFromX(angleBetweenVectorComponentAndAxis(measurement.getAccelerationX(), accelerationTotal))
-                        .accelerationAngleFromY(angleBetweenVectorComponentAndAxis(measurement.getAccelerationY(), accelerationTotal))
-                        .accelerationAngleFromZ(angleBetweenVectorComponentAndAxis(measurement.getAccelerationZ(), accelerationTotal))
-                        .build());
+        return calculateValues(measurement, DerivedField.ALL);
+    }
+
+    /**
+     * Like {@link #calculateAllValues(RuuviValue)}, but only the values in the
+     * given bitmask of {@link DerivedField}s are available, the others are null
+     */
+    public static RuuviData calculateValues(RuuviValue measurement, int fields) {
+        return new RuuviData(measurement, RuuviDerivedValue.lazy(measurement, fields));
+    }
+
+    /**
+     * Like {@link #calculateValues(RuuviValue, int)}, with room for the values
+     * of a {@link DerivedValuePipeline}
+     */
+    static RuuviData calculateValues(RuuviValue measurement, int fields, boolean extras) {
+        return new RuuviData(measurement, extras ? RuuviDerivedValue.lazyWithExtras(measurement, fields) : RuuviDerivedValue.lazy(measurement, fields));
     }
 
     /**
@@ -53,7 +59,20 @@ class MeasurementValueCalculator {
         if (temperature == null || relativeHumidity == null) {
             return null;
         }
-        return equilibriumVaporPressure(temperature) * relativeHumidity * 0.021674 / (273.15 + temperature);
+        return absoluteHumidity(temperature, relativeHumidity, equilibriumVaporPressure(temperature));
+    }
+
+    /**
+     * Calculates the absolute humidity with an already calculated vapor
+     * pressure
+     *
+     * @see #absoluteHumidity(Double, Double)
+     */
+    static Double absoluteHumidity(Double temperature, Double relativeHumidity, Double equilibriumVaporPressure) {
+        if (temperature == null || relativeHumidity == null) {
+            return null;
+        }
+        return equilibriumVaporPressure * relativeHumidity * 0.021674 / (273.15 + temperature);
     }
 
     /**
@@ -67,7 +86,19 @@ class MeasurementValueCalculator {
         if (temperature == null || relativeHumidity == null || relativeHumidity == 0) {
             return null;
         }
-        double v = Math.log(relativeHumidity / 100 * equilibriumVaporPressure(temperature) / 611.2);
+        return dewPoint(temperature, relativeHumidity, equilibriumVaporPressure(temperature));
+    }
+
+    /**
+     * Calculates the dew point with an already calculated vapor pressure
+     *
+     * @see #dewPoint(Double, Double)
+     */
+    static Double dewPoint(Double temperature, Double relativeHumidity, Double equilibriumVaporPressure) {
+        if (temperature == null || relativeHumidity == null || relativeHumidity == 0) {
+            return null;
+        }
+        double v = Math.log(relativeHumidity / 100 * equilibriumVaporPressure / 611.2);
         return -243.5 * v / (v - 17.67);
     }
 
@@ -84,6 +115,64 @@ class MeasurementValueCalculator {
         return 611.2 * Math.exp(17.67 * temperature / (243.5 + temperature));
     }
 
+    /**
+     * Calculates the heat index, the temperature as felt at the humidity, with
+     * the regression of the US National Weather Service
+     *
+     * @param temperature      Temperature in Celsius
+     * @param relativeHumidity Relative humidity % (range 0-100)
+     * @return The heat index in Celsius
+     */
+    public static Double heatIndex(Double temperature, Double relativeHumidity) {
+        if (temperature == null || relativeHumidity == null) {
+            return null;
+        }
+        return heatIndex((double) temperature, (double) relativeHumidity);
+    }
+
+    /**
+     * @return the heat index, or NaN if either value is NaN
+     * @see #heatIndex(Double, Double)
+     */
+    static double heatIndex(double temperature, double relativeHumidity) {
+        double t = temperature * 1.8 + 32;
+        double rh = relativeHumidity;
+        double heatIndex = 0.5 * (t + 61 + (t - 68) * 1.2 + rh * 0.094);
+        if (heatIndex + t >= 160) {
+            heatIndex = -42.379 + 2.04901523 * t + 10.14333127 * rh - 0.22475541 * t * rh - 0.00683783 * t * t
+                    - 0.05481717 * rh * rh + 0.00122874 * t * t * rh + 0.00085282 * t * rh * rh - 0.00000199 * t * t * rh * rh;
+            if (rh < 13 && t > 80 && t < 112) {
+                heatIndex -= (13 - rh) / 4 * Math.sqrt((17 - Math.abs(t - 95)) / 17);
+            } else if (rh > 85 && t > 80 && t < 87) {
+                heatIndex += (rh - 85) / 10 * (87 - t) / 5;
+            }
+        }
+        return (heatIndex - 32) / 1.8;
+    }
+
+    /**
+     * Calculates the vapor pressure deficit, the difference between the
+     * vapor pressure at saturation and that of the air
+     *
+     * @param temperature      Temperature in Celsius
+     * @param relativeHumidity Relative humidity % (range 0-100)
+     * @return The vapor pressure deficit in Pa
+     */
+    public static Double vaporPressureDeficit(Double temperature, Double relativeHumidity) {
+        if (temperature == null || relativeHumidity == null) {
+            return null;
+        }
+        return vaporPressureDeficit((double) temperature, (double) relativeHumidity);
+    }
+
+    /**
+     * @return the vapor pressure deficit, or NaN if either value is NaN
+     * @see #vaporPressureDeficit(Double, Double)
+     */
+    static double vaporPressureDeficit(double temperature, double relativeHumidity) {
+        return 611.2 * Math.exp(17.67 * temperature / (243.5 + temperature)) * (1 - relativeHumidity / 100);
+    }
+
     /**
      * Calculates the air density
      *
@@ -96,6 +185,18 @@ class MeasurementValueCalculator {
         if (temperature == null || relativeHumidity == null || pressure == null) {
             return null;
         }
-        return 1.2929 * 273.15 / (temperature + 273.15) * (pressure - 0.3783 * relativeHumidity / 100 * equilibriumVaporPressure(temperature)) / 101300;
+        return airDensity(temperature, relativeHumidity, pressure, equilibriumVaporPressure(temperature));
+    }
+
+    /**
+     * Calculates the air density with an already calculated vapor pressure
+     *
+     * @see #airDensity(Double, Double, Double)
+     */
+    static Double airDensity(Double temperature, Double relativeHumidity, Double pressure, Double equilibriumVaporPressure) {
+        if (temperature == null || relativeHumidity == null || pressure == null) {
+            return null;
+        }
+        return 1.2929 * 273.15 / (temperature + 273.15) * (pressure - 0.3783 * relativeHumidity / 100 * equilibriumVaporPressure) / 101300;
     }
 }
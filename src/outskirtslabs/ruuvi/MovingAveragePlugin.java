@@ -0,0 +1,127 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the latest values of each tag in a ring, the rings of all the tags
+ * in one array indexed like {@link MacIndex} indexes. The tags not seen for
+ * {@link #IDLE_TIMEOUT_NANOS} are forgotten by a sweep once a minute, so
+ * their indexes are taken again by new tags.
+ *
+ * @see DerivedValuePlugin#movingAverage(String, String, int)
+ */
+final class MovingAveragePlugin implements DerivedValuePlugin {
+
+    static final long IDLE_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final String output;
+    private final String input;
+    private final int samples;
+    private final MacIndex index = new MacIndex(INITIAL_CAPACITY);
+    private double[] rings;
+    private int[] next = new int[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private double[] sums = new double[INITIAL_CAPACITY];
+    private long[] lastSeenNanos = new long[INITIAL_CAPACITY];
+    private long lastSweepNanos = System.nanoTime();
+
+    MovingAveragePlugin(String output, String input, int samples) {
+        if (samples <= 0) {
+            throw new IllegalArgumentException("The number of samples must be positive");
+        }
+        this.output = Objects.requireNonNull(output);
+        this.input = Objects.requireNonNull(input);
+        this.samples = samples;
+        this.rings = new double[INITIAL_CAPACITY * samples];
+    }
+
+    @Override
+    public List<String> getInputs() {
+        return List.of(input);
+    }
+
+    @Override
+    public List<String> getOutputs() {
+        return List.of(output);
+    }
+
+    @Override
+    public void compute(long mac, double[] inputs, double[] outputs) {
+        compute(mac, inputs, outputs, System.nanoTime());
+    }
+
+    void compute(long mac, double[] inputs, double[] outputs, long nowNanos) {
+        if (mac == MacIndex.NO_KEY) {
+            outputs[0] = Double.NaN;
+            return;
+        }
+        if (nowNanos - lastSweepNanos >= SWEEP_INTERVAL_NANOS) {
+            evictIdle(nowNanos);
+        }
+        int i = index.indexOf(mac);
+        if (i < 0) {
+            i = index.add(mac);
+            grow(i);
+        }
+        lastSeenNanos[i] = nowNanos;
+        double value = inputs[0];
+        if (!Double.isNaN(value)) {
+            int slot = i * samples + next[i];
+            if (counts[i] == samples) {
+                sums[i] -= rings[slot];
+            } else {
+                counts[i]++;
+            }
+            rings[slot] = value;
+            sums[i] += value;
+            next[i] = next[i] + 1 == samples ? 0 : next[i] + 1;
+            if (next[i] == 0) {
+                // sum the ring again once per round, so the rounding errors don't add up
+                double sum = 0;
+                for (int k = i * samples; k < (i + 1) * samples; k++) {
+                    sum += rings[k];
+                }
+                sums[i] = sum;
+            }
+        }
+        outputs[0] = counts[i] == 0 ? Double.NaN : sums[i] / counts[i];
+    }
+
+    /**
+     * Forgets the tags that have not been seen for {@link #IDLE_TIMEOUT_NANOS}
+     */
+    void evictIdle(long nowNanos) {
+        lastSweepNanos = nowNanos;
+        for (int i = 0; i < index.indexLimit(); i++) {
+            long mac = index.keyAt(i);
+            if (mac != MacIndex.NO_KEY && nowNanos - lastSeenNanos[i] > IDLE_TIMEOUT_NANOS) {
+                index.remove(mac);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tags with values
+     */
+    int size() {
+        return index.size();
+    }
+
+    private void grow(int i) {
+        next = MacIndex.grow(next, i);
+        counts = MacIndex.grow(counts, i);
+        sums = MacIndex.grow(sums, i);
+        lastSeenNanos = MacIndex.grow(lastSeenNanos, i);
+        if ((i + 1) * samples > rings.length) {
+            rings = Arrays.copyOf(rings, next.length * samples);
+        }
+        next[i] = 0;
+        counts[i] = 0;
+        sums[i] = 0;
+    }
+}
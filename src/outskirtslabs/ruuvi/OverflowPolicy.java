@@ -0,0 +1,28 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * What to do with a new measurement when the queue of an asynchronous
+ * listener is full.
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait for the listener to catch up. This propagates the backpressure to
+     * the thread reading the dump, and eventually to hcidump itself.
+     */
+    BLOCK,
+    /**
+     * Discard the oldest queued measurement to make room for the new one
+     */
+    DROP_OLDEST,
+    /**
+     * Discard the new measurement
+     */
+    DROP_NEWEST,
+    /**
+     * Keep only the latest measurement of each tag. A new measurement replaces
+     * the queued one of the same MAC address, so the queue holds at most one
+     * measurement per tag; the capacity limits the number of tags. New tags
+     * are discarded when the queue is full.
+     */
+    COALESCE_LATEST_PER_MAC
+}
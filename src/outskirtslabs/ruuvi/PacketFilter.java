@@ -0,0 +1,196 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which advertisements are worth parsing, based on the MAC address of
+ * the device and whether it carries the Ruuvi manufacturer ID. The rules are
+ * applied to the raw bytes of each packet as soon as the relevant bytes have
+ * been read, before {@link HCIData} or a measurement is built, so packets from
+ * the other devices in range cost next to nothing.
+ * <p>
+ * The rules can be changed at any time from any thread. The filter of a
+ * receiver is available from {@link Receiver#getPacketFilter()}.
+ */
+public final class PacketFilter {
+
+    /**
+     * The Bluetooth SIG company identifier of Ruuvi Innovations
+     */
+    public static final int RUUVI_MANUFACTURER_ID = 0x0499;
+
+    private static final int MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    private final Set<Long> allowed = new HashSet<>();
+    private final Set<Long> denied = new HashSet<>();
+    private volatile MacSet allowlist = MacSet.EMPTY;
+    private volatile MacSet denylist = MacSet.EMPTY;
+    private volatile boolean ruuviOnly;
+    private final LongAdder rejectedByAllowlist = new LongAdder();
+    private final LongAdder rejectedByDenylist = new LongAdder();
+    private final LongAdder rejectedByManufacturer = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+
+    /**
+     * Adds a MAC address to the allowlist. Once the allowlist has any
+     * addresses, the packets of all the other devices are rejected.
+     *
+     * @param mac the MAC address, with or without colons
+     */
+    public synchronized void allow(String mac) {
+        allowed.add(parseMac(mac));
+        allowlist = MacSet.of(allowed);
+    }
+
+    public synchronized void allowAll(Collection<String> macs) {
+        macs.forEach(mac -> allowed.add(parseMac(mac)));
+        allowlist = MacSet.of(allowed);
+    }
+
+    public synchronized void removeAllowed(String mac) {
+        allowed.remove(parseMac(mac));
+        allowlist = MacSet.of(allowed);
+    }
+
+    /**
+     * Adds a MAC address to the denylist, rejecting the packets of the device
+     * even if it's in the allowlist.
+     *
+     * @param mac the MAC address, with or without colons
+     */
+    public synchronized void deny(String mac) {
+        denied.add(parseMac(mac));
+        denylist = MacSet.of(denied);
+    }
+
+    public synchronized void denyAll(Collection<String> macs) {
+        macs.forEach(mac -> denied.add(parseMac(mac)));
+        denylist = MacSet.of(denied);
+    }
+
+    public synchronized void removeDenied(String mac) {
+        denied.remove(parseMac(mac));
+        denylist = MacSet.of(denied);
+    }
+
+    /**
+     * @param ruuviOnly whether to reject the advertisements without manufacturer
+     *                  specific data from {@link #RUUVI_MANUFACTURER_ID}. Note
+     *                  that this also rejects the Eddystone URL formats (2 and
+     *                  4) of old RuuviTag firmware.
+     */
+    public void setRuuviManufacturerOnly(boolean ruuviOnly) {
+        this.ruuviOnly = ruuviOnly;
+    }
+
+    public long getRejectedByAllowlistCount() {
+        return rejectedByAllowlist.sum();
+    }
+
+    public long getRejectedByDenylistCount() {
+        return rejectedByDenylist.sum();
+    }
+
+    public long getRejectedByManufacturerCount() {
+        return rejectedByManufacturer.sum();
+    }
+
+    public long getAcceptedCount() {
+        return accepted.sum();
+    }
+
+    /**
+     * Applies the allowlist and denylist.
+     *
+     * @param mac the MAC address packed in a long, as by {@link Util#macToLong(String)}
+     */
+    boolean acceptMac(long mac) {
+        MacSet deny = denylist;
+        if (!deny.isEmpty() && deny.contains(mac)) {
+            rejectedByDenylist.increment();
+            return false;
+        }
+        MacSet allow = allowlist;
+        if (!allow.isEmpty() && !allow.contains(mac)) {
+            rejectedByAllowlist.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies the manufacturer rule to a complete LE advertising report
+     * packet, which must already have been accepted by {@link #acceptMac(long)}.
+     */
+    boolean acceptManufacturer(byte[] packet, int length) {
+        if (ruuviOnly && !hasRuuviManufacturerData(packet, length)) {
+            rejectedByManufacturer.increment();
+            return false;
+        }
+        accepted.increment();
+        return true;
+    }
+
+    /**
+     * Applies the manufacturer rule to a packet that has already been parsed,
+     * which must already have been accepted by {@link #acceptMac(long)}.
+     */
+    boolean acceptManufacturer(HCIData data) {
+        if (ruuviOnly) {
+            HCIData.Report.AdvertisementData adData = data.findAdvertisementDataByType(MANUFACTURER_SPECIFIC_DATA);
+            if (adData == null || adData.data == null || adData.data.size() < 2
+                    || (adData.data.get(0) & 0xFF) != (RUUVI_MANUFACTURER_ID & 0xFF)
+                    || (adData.data.get(1) & 0xFF) != RUUVI_MANUFACTURER_ID >> 8) {
+                rejectedByManufacturer.increment();
+                return false;
+            }
+        }
+        accepted.increment();
+        return true;
+    }
+
+    /**
+     * @return the MAC address of an LE advertising report packet in the H4
+     * format, which is stored "backwards" in bytes 7-12
+     */
+    static long macOf(byte[] packet) {
+        long mac = 0;
+        for (int i = 12; i >= 7; i--) {
+            mac = (mac << 8) | (packet[i] & 0xFF);
+        }
+        return mac;
+    }
+
+    private static boolean hasRuuviManufacturerData(byte[] packet, int length) {
+        // packet type, event code, length, LE advertising report sub event, number of reports,
+        // event type, address type, MAC, data length and the advertisement structures
+        if (length < 14 || packet[1] != 0x3E || packet[3] != 0x02) {
+            return false;
+        }
+        int end = Math.min(length, 14 + (packet[13] & 0xFF));
+        for (int i = 14; i + 1 < end; ) {
+            int adLength = packet[i] & 0xFF;
+            if (adLength == 0) {
+                break;
+            }
+            if ((packet[i + 1] & 0xFF) == MANUFACTURER_SPECIFIC_DATA && adLength >= 3 && i + 3 < end
+                    && (packet[i + 2] & 0xFF) == (RUUVI_MANUFACTURER_ID & 0xFF)
+                    && (packet[i + 3] & 0xFF) == RUUVI_MANUFACTURER_ID >> 8) {
+                return true;
+            }
+            i += adLength + 1;
+        }
+        return false;
+    }
+
+    private static long parseMac(String mac) {
+        long value = Util.macToLong(mac.replace(":", "").replace("-", "").trim());
+        if (value < 0) {
+            throw new IllegalArgumentException("Invalid MAC address " + mac);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,364 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Reads the packets of the adapters of a receiver, from the output of their
+ * dumps or their event sources, on the threads supervising them. The packets
+ * are recorded, filtered, parsed and throttled, and the measurements are
+ * passed to a {@link MeasurementFanOut}. With decode threads the readers only
+ * frame the packets, and the rest is done on the workers of a
+ * {@link DecodePipeline}. The broadcasts are also reported to the
+ * {@link ScanScheduler}s of the duty-cycled adapters.
+ */
+final class PacketReader {
+
+    private static final Logger LOG = Logger.getLogger(PacketReader.class);
+
+    /**
+     * The number of packets queued per decode thread
+     */
+    private static final int DECODE_QUEUE_CAPACITY = 1024;
+
+    private final List<Adapter> adapters;
+    private final MeasurementThrottles throttles;
+    private final MeasurementFanOut fanOut;
+    private final PacketFilter packetFilter = new PacketFilter();
+    private volatile HCIParserEngine parserEngine = HCIParserEngine.STATE_MACHINE;
+    private volatile DumpFormat dumpFormat = DumpFormat.TEXT;
+    private volatile CaptureRecorder captureRecorder;
+    private volatile ReceiverMetrics metrics = ReceiverMetrics.NONE;
+    private volatile int decodeThreads;
+    private volatile DecodePipeline decodePipeline;
+    private volatile ScanScheduler[] scanSchedulers;
+
+    PacketReader(List<Adapter> adapters, MeasurementThrottles throttles, MeasurementFanOut fanOut) {
+        this.adapters = adapters;
+        this.throttles = throttles;
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Starts the decode threads, unless they are already running
+     *
+     * @return the number of threads decoding the packets of an adapter
+     */
+    synchronized int start(ThreadingMode threadingMode) {
+        DecodePipeline pipeline = decodePipeline;
+        if (pipeline == null && decodeThreads > 0) {
+            pipeline = new DecodePipeline(decodeThreads, DECODE_QUEUE_CAPACITY, threadingMode, FrameDecoder::new);
+            decodePipeline = pipeline;
+        }
+        return pipeline != null ? pipeline.getThreadCount() : 1;
+    }
+
+    /**
+     * Stops the decode threads after they have decoded the packets already
+     * read
+     */
+    synchronized void close() {
+        DecodePipeline pipeline = decodePipeline;
+        if (pipeline != null) {
+            decodePipeline = null;
+            pipeline.close();
+        }
+    }
+
+    void setDecodeThreads(int threads) {
+        decodeThreads = threads;
+    }
+
+    int getDecodeThreads() {
+        return decodeThreads;
+    }
+
+    void setParserEngine(HCIParserEngine parserEngine) {
+        this.parserEngine = parserEngine;
+    }
+
+    void setDumpFormat(DumpFormat dumpFormat) {
+        this.dumpFormat = dumpFormat;
+    }
+
+    void setCaptureRecorder(CaptureRecorder captureRecorder) {
+        this.captureRecorder = captureRecorder;
+    }
+
+    CaptureRecorder getCaptureRecorder() {
+        return captureRecorder;
+    }
+
+    void setMetrics(ReceiverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    PacketFilter getPacketFilter() {
+        return packetFilter;
+    }
+
+    /**
+     * @param schedulers the schedulers by adapter index, null for the adapters
+     *                   scanning continuously, or null if none is duty-cycled
+     */
+    void setScanSchedulers(ScanScheduler[] schedulers) {
+        scanSchedulers = schedulers;
+    }
+
+    void readDump(InputStream input, AdapterSupervisor supervisor) {
+        if (dumpFormat == DumpFormat.TEXT) {
+            readDump(new BufferedReader(new InputStreamReader(input)), supervisor);
+        } else {
+            readEvents(dumpFormat.open(Channels.newChannel(input)), supervisor);
+        }
+    }
+
+    void readEvents(HciEventSource source, AdapterSupervisor supervisor) {
+        HCIByteParser parser = new HCIByteParser();
+        parser.setPacketFilter(packetFilter);
+        BeaconParser beaconParser = new BeaconParser(supervisor.adapter.getId());
+        boolean dataReceived = false;
+        try (source) {
+            ByteBuffer frame;
+            while ((frame = source.next()) != null && !Thread.currentThread().isInterrupted()) {
+                if (!dataReceived) {
+                    LOG.info("Successfully reading events");
+                    dataReceived = true;
+                }
+                supervisor.activity();
+                ReceiverMetrics metrics = this.metrics;
+                metrics.lineRead();
+                CaptureRecorder recorder = captureRecorder;
+                if (recorder != null) {
+                    try {
+                        long timestamp = source.getTimestampMicros();
+                        recorder.record(frame, timestamp >= 0 ? timestamp : System.currentTimeMillis() * 1000);
+                    } catch (IOException e) {
+                        recordingFailed(recorder, e);
+                    }
+                }
+                DecodePipeline pipeline = decodePipeline;
+                if (pipeline != null) {
+                    pipeline.submit(frame, supervisor.index);
+                } else {
+                    decodePacket(frame, parser, beaconParser, supervisor.index, 0, metrics, false);
+                }
+            }
+            LOG.debug("event reader finished");
+        } catch (IOException ex) {
+            LOG.error("Uncaught exception while reading events", ex);
+        }
+    }
+
+    void readDump(BufferedReader reader, AdapterSupervisor supervisor) {
+        HCILineParser parser = parserEngine.newParser();
+        parser.setPacketFilter(packetFilter);
+        boolean dataReceived = false;
+        BeaconParser beaconParser = new BeaconParser(supervisor.adapter.getId());
+        HciTextFramer framer = null;
+        CaptureRecorder.TextTap tap = null;
+        try {
+            String line, latestMacLine = null;
+            long parseNanos = 0; // the time spent parsing the lines of the current packet
+            while ((line = reader.readLine()) != null && !Thread.currentThread().isInterrupted()) {
+                ReceiverMetrics metrics = this.metrics;
+                metrics.lineRead();
+                if (line.contains("device: disconnected")) {
+                    LOG.error(line + ": Either the bluetooth device was externally disabled or physically disconnected");
+                }
+                if (line.contains("No such device")) {
+                    LOG.error(line + ": Check that your bluetooth adapter is enabled and working properly");
+                }
+                if (!dataReceived) {
+                    if (line.startsWith("> ")) {
+                        LOG.info("Successfully reading data from hcidump");
+                        dataReceived = true;
+                    } else {
+                        continue; // skip the unnecessary garbage at beginning containing hcidump version and other junk print
+                    }
+                }
+                if (line.startsWith("> ")) {
+                    supervisor.activity();
+                }
+                CaptureRecorder recorder = captureRecorder;
+                if (recorder != null) {
+                    if (tap == null || tap.getRecorder() != recorder) {
+                        tap = recorder.new TextTap();
+                    }
+                    try {
+                        tap.line(line, System.currentTimeMillis() * 1000);
+                    } catch (IOException e) {
+                        recordingFailed(recorder, e);
+                    }
+                }
+                DecodePipeline pipeline = decodePipeline;
+                if (pipeline != null) {
+                    if (framer == null) {
+                        framer = new HciTextFramer();
+                    }
+                    ByteBuffer frame = framer.line(line);
+                    if (frame != null) {
+                        pipeline.submit(frame, supervisor.index);
+                    }
+                    continue;
+                }
+                try {
+                    //Remember the first line of the packet, the MAC address is only extracted from it if it's needed for logging
+                    if (Util.hasMacAddress(line)) {
+                        latestMacLine = line;
+                    }
+                    //Mac Address Filtering is applied by the parser
+                    long start = metrics == ReceiverMetrics.NONE ? 0 : System.nanoTime();
+                    HCIData hciData = parser.readLine(line);
+                    if (metrics != ReceiverMetrics.NONE) {
+                        parseNanos = (line.startsWith(">") ? 0 : parseNanos) + System.nanoTime() - start;
+                    }
+                    if (hciData != null) {
+                        if (metrics != ReceiverMetrics.NONE) {
+                            metrics.stageCompleted(ReceiverMetrics.Stage.HCI_PARSE, parseNanos);
+                        }
+                        handlePacket(hciData, beaconParser, supervisor.index, 0, metrics, false);
+                        latestMacLine = null; // "reset" the mac to null to avoid misleading MAC addresses when an error happens *after* successfully reading a full packet
+                    }
+                } catch (Exception ex) {
+                    String latestMAC = Util.getMacFromLine(latestMacLine);
+                    if (latestMAC != null) {
+                        LOG.warn("Uncaught exception while handling measurements from MAC address \"" + latestMAC + "\", if this repeats and this is not a Ruuvitag, try blacklisting it", ex);
+                    } else {
+                        LOG.warn("Uncaught exception while handling measurements, this is an unexpected event. Please report this to https://github.com/Scrin/RuuviCollector/issues and include this log", ex);
+                    }
+                    LOG.debug("Offending line: " + line);
+                }
+            }
+            LOG.debug("dump reader finished");
+        } catch (IOException ex) {
+            LOG.error("Uncaught exception while reading measurements", ex);
+        }
+    }
+
+    private void decodePacket(ByteBuffer frame, HCIByteParser parser, BeaconParser beaconParser, int adapter, int shard, ReceiverMetrics metrics, boolean computeDerived) {
+        HCIData hciData = null;
+        try {
+            long start = metrics == ReceiverMetrics.NONE ? 0 : System.nanoTime();
+            hciData = parser.readPacket(frame);
+            if (hciData != null) {
+                if (metrics != ReceiverMetrics.NONE) {
+                    metrics.stageCompleted(ReceiverMetrics.Stage.HCI_PARSE, System.nanoTime() - start);
+                }
+                handlePacket(hciData, beaconParser, adapter, shard, metrics, computeDerived);
+            }
+        } catch (Exception ex) {
+            LOG.warn("Uncaught exception while handling measurements from MAC address \"" + (hciData == null ? null : hciData.mac) + "\"", ex);
+        }
+    }
+
+    private void recordingFailed(CaptureRecorder recorder, IOException e) {
+        if (captureRecorder == recorder) {
+            captureRecorder = null;
+            LOG.error("Recording to " + recorder.getFile() + " failed, stopping the recording", e);
+        }
+    }
+
+    /**
+     * @param shard          the index of the thread decoding the packet among
+     *                       those decoding the packets of the adapter
+     * @param computeDerived whether to calculate the derived values now,
+     *                       rather than when the listeners read them
+     */
+    private void handlePacket(HCIData hciData, BeaconParser beaconParser, int adapter, int shard, ReceiverMetrics metrics, boolean computeDerived) {
+        boolean timed = metrics != ReceiverMetrics.NONE;
+        metrics.packetAssembled();
+        MeasurementThrottle throttle = throttles.get(adapter, shard);
+        long start = timed || throttle != null ? System.nanoTime() : 0;
+        if (throttle != null) {
+            boolean accepted = throttle.accept(hciData, start);
+            if (timed) {
+                long now = System.nanoTime();
+                metrics.stageCompleted(ReceiverMetrics.Stage.DEDUPLICATION, now - start);
+                start = now;
+            }
+            if (!accepted) {
+                return;
+            }
+        }
+        boolean compactOnly = fanOut.isCompactOnly();
+        CompactRuuviValue compactMeasurement = null;
+        Optional<RuuviData> data = Optional.empty();
+        try {
+            if (compactOnly) {
+                compactMeasurement = beaconParser.parseCompact(hciData);
+            } else {
+                data = beaconParser
+                        .parse(hciData)
+                        .map(measurement -> MeasurementValueCalculator.calculateValues(measurement, fanOut.getDerivedFields(), fanOut.hasDerivedValuePlugins()));
+                if (computeDerived) {
+                    data.ifPresent(value -> value.getDerived().computeEnabled());
+                }
+            }
+        } catch (RuntimeException e) {
+            metrics.packetParsed(ReceiverMetrics.ParseOutcome.FAILED);
+            throw e;
+        }
+        if (compactMeasurement == null && data.isEmpty()) {
+            metrics.packetParsed(ReceiverMetrics.ParseOutcome.NOT_RUUVI);
+            return;
+        }
+        metrics.packetParsed(ReceiverMetrics.ParseOutcome.PARSED);
+        if (timed) {
+            long now = System.nanoTime();
+            metrics.stageCompleted(ReceiverMetrics.Stage.DECODE, now - start);
+            metrics.measurementReceived(Util.macToLong(hciData.mac), now);
+            start = now;
+        }
+        ScanScheduler[] schedulers = this.scanSchedulers;
+        if (schedulers != null && schedulers[adapter] != null) {
+            int sequence;
+            if (compactMeasurement != null) {
+                sequence = compactMeasurement.has(CompactRuuviValue.MEASUREMENT_SEQUENCE_NUMBER) ? compactMeasurement.getMeasurementSequenceNumber() : -1;
+            } else {
+                Integer value = data.get().getMeasurement().getMeasurementSequenceNumber();
+                sequence = value == null ? -1 : value;
+            }
+            schedulers[adapter].shard(shard).observe(Util.macToLong(hciData.mac), sequence);
+        }
+        if (compactMeasurement != null) {
+            fanOut.publish(compactMeasurement);
+        } else {
+            fanOut.publish(data.get());
+        }
+        if (timed) {
+            metrics.stageCompleted(ReceiverMetrics.Stage.NOTIFY, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decodes the packets of a {@link DecodePipeline} worker, with parsers of
+     * its own, and the throttle and scan scheduler shards of the worker
+     */
+    private final class FrameDecoder implements DecodePipeline.Decoder {
+        private final HCIByteParser parser = new HCIByteParser();
+        private final BeaconParser[] beaconParsers = new BeaconParser[adapters.size()];
+        private final int worker;
+
+        FrameDecoder(int worker) {
+            this.worker = worker;
+            parser.setPacketFilter(packetFilter);
+            for (int i = 0; i < beaconParsers.length; i++) {
+                beaconParsers[i] = new BeaconParser(adapters.get(i).getId());
+            }
+        }
+
+        @Override
+        public void decode(ByteBuffer frame, int adapter) {
+            decodePacket(frame, parser, beaconParsers[adapter], adapter, worker, metrics, true);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package outskirtslabs.ruuvi;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The built-in {@link ReceiverMetrics}, which keeps counters, rates and
+ * latency histograms in memory. They can be read directly, or exported with
+ * {@link JmxMetricsExporter} or {@link PrometheusMetricsExporter}.
+ * <p>
+ * Recording doesn't allocate, except the first time a listener or a MAC
+ * address is seen, and takes no lock shared by all the threads: the times of
+ * the last measurements are kept in stripes, each holding the MAC addresses
+ * with the same hash, so that decode threads seldom wait for each other.
+ */
+public final class PipelineMetrics implements ReceiverMetrics {
+
+    private final RateMeter linesRead = new RateMeter();
+    private final RateMeter packetsAssembled = new RateMeter();
+    private final LongAdder[] packetsParsed = new LongAdder[ParseOutcome.values().length];
+    private final LatencyHistogram[] stageLatencies = new LatencyHistogram[Stage.values().length];
+    private final Map<Object, ListenerLatency> listenerLatencies = new ConcurrentHashMap<>();
+    private final Set<String> listenerNames = new HashSet<>();
+    private final Map<String, LongAdder> processRestarts = new ConcurrentHashMap<>();
+    private final Stripe[] stripes;
+
+    public PipelineMetrics() {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        for (int i = 0; i < packetsParsed.length; i++) {
+            packetsParsed[i] = new LongAdder();
+        }
+        for (int i = 0; i < stageLatencies.length; i++) {
+            stageLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public void lineRead() {
+        linesRead.mark();
+    }
+
+    @Override
+    public void packetAssembled() {
+        packetsAssembled.mark();
+    }
+
+    @Override
+    public void packetParsed(ParseOutcome outcome) {
+        packetsParsed[outcome.ordinal()].increment();
+    }
+
+    @Override
+    public void stageCompleted(Stage stage, long nanos) {
+        stageLatencies[stage.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void listenerNotified(Object listener, long nanos) {
+        ListenerLatency latency = listenerLatencies.get(listener);
+        if (latency == null) {
+            latency = listenerLatencies.computeIfAbsent(listener, this::newListenerLatency);
+        }
+        latency.histogram.record(nanos);
+    }
+
+    @Override
+    public void processRestarted(String name) {
+        processRestarts.computeIfAbsent(name, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Forgets the latencies of the listener, so that it is no longer
+     * reported and its name can be given to another listener
+     */
+    @Override
+    public void listenerRemoved(Object listener) {
+        ListenerLatency latency = listenerLatencies.remove(listener);
+        if (latency != null) {
+            synchronized (listenerNames) {
+                listenerNames.remove(latency.name);
+            }
+        }
+    }
+
+    @Override
+    public void measurementReceived(long mac, long nanoTime) {
+        if (mac < 0) {
+            return;
+        }
+        Stripe stripe = stripes[MacIndex.hash(mac) & (stripes.length - 1)];
+        synchronized (stripe) {
+            int i = stripe.macIndex.indexOf(mac);
+            if (i < 0) {
+                i = stripe.macIndex.add(mac);
+                stripe.lastMeasurementNanos = MacIndex.grow(stripe.lastMeasurementNanos, i);
+            }
+            stripe.lastMeasurementNanos[i] = nanoTime;
+        }
+    }
+
+    public long getLinesRead() {
+        return linesRead.getCount();
+    }
+
+    /**
+     * @return the one-minute moving average of lines read per second
+     */
+    public double getLinesReadRate() {
+        return linesRead.getRate();
+    }
+
+    public long getPacketsAssembled() {
+        return packetsAssembled.getCount();
+    }
+
+    /**
+     * @return the one-minute moving average of packets assembled per second
+     */
+    public double getPacketsAssembledRate() {
+        return packetsAssembled.getRate();
+    }
+
+    public long getPacketsParsed(ParseOutcome outcome) {
+        return packetsParsed[outcome.ordinal()].sum();
+    }
+
+    public LatencyHistogram getStageLatency(Stage stage) {
+        return stageLatencies[stage.ordinal()];
+    }
+
+    /**
+     * @return the callback latencies by listener name, which is the class
+     * name of the listener, suffixed with a number if several listeners have
+     * the same class
+     */
+    public Map<String, LatencyHistogram> getListenerLatencies() {
+        Map<String, LatencyHistogram> latencies = new TreeMap<>();
+        listenerLatencies.values().forEach(latency -> latencies.put(latency.name, latency.histogram));
+        return latencies;
+    }
+
+    /**
+     * @return the number of restarts by adapter
+     */
+    public Map<String, Long> getProcessRestarts() {
+        Map<String, Long> restarts = new TreeMap<>();
+        processRestarts.forEach((name, count) -> restarts.put(name, count.sum()));
+        return restarts;
+    }
+
+    /**
+     * @return the time since the last measurement by MAC address, in the
+     * format of {@link RuuviValue#getMac()}
+     */
+    public Map<String, Duration> getTimeSinceLastMeasurement() {
+        long now = System.nanoTime();
+        Map<String, Duration> times = new TreeMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < stripe.macIndex.indexLimit(); i++) {
+                    long mac = stripe.macIndex.keyAt(i);
+                    if (mac != MacIndex.NO_KEY) {
+                        times.put(CompactRuuviValue.macToString(mac), Duration.ofNanos(now - stripe.lastMeasurementNanos[i]));
+                    }
+                }
+            }
+        }
+        return times;
+    }
+
+    private ListenerLatency newListenerLatency(Object listener) {
+        String baseName = listener.getClass().getName();
+        int lambda = baseName.indexOf("$$Lambda");
+        if (lambda >= 0) {
+            // the rest of a lambda class name differs between runs
+            baseName = baseName.substring(0, lambda + "$$Lambda".length());
+        }
+        synchronized (listenerNames) {
+            String name = baseName;
+            for (int n = 2; !listenerNames.add(name); n++) {
+                name = baseName + "#" + n;
+            }
+            return new ListenerLatency(name);
+        }
+    }
+
+    /**
+     * The times of the last measurements of the MAC addresses of a stripe,
+     * guarded by the stripe
+     */
+    private static final class Stripe {
+        final MacIndex macIndex = new MacIndex(16);
+        long[] lastMeasurementNanos = new long[16];
+    }
+
+    private static final class ListenerLatency {
+        final String name;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        ListenerLatency(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package outskirtslabs.ruuvi;
+
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link PipelineMetrics}, registered with
+ * {@link JmxMetricsExporter}. Latencies are in nanoseconds.
+ */
+public interface PipelineMetricsMXBean {
+
+    long getLinesRead();
+
+    double getLinesReadRate();
+
+    long getPacketsAssembled();
+
+    double getPacketsAssembledRate();
+
+    /**
+     * @return the number of decoded packets by {@link ReceiverMetrics.ParseOutcome}
+     */
+    Map<String, Long> getPacketsParsed();
+
+    /**
+     * @return the latencies by {@link ReceiverMetrics.Stage}
+     */
+    Map<String, LatencySummary> getStageLatencies();
+
+    Map<String, LatencySummary> getListenerLatencies();
+
+    Map<String, Long> getProcessRestarts();
+
+    Map<String, Double> getSecondsSinceLastMeasurement();
+
+    @Value
+    class LatencySummary {
+        long count;
+        double mean;
+        long p50;
+        long p90;
+        long p99;
+        long max;
+
+        static LatencySummary of(LatencyHistogram histogram) {
+            return new LatencySummary(histogram.getCount(), histogram.getMean(),
+                    histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+                    histogram.getValueAtPercentile(99), histogram.getMax());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package outskirtslabs.ruuvi;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes {@link PipelineMetrics} in the Prometheus text exposition format, for
+ * serving from an HTTP endpoint. Latencies are exported as summaries in
+ * seconds.
+ */
+public final class PrometheusMetricsExporter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private PrometheusMetricsExporter() {
+    }
+
+    public static String scrape(PipelineMetrics metrics) {
+        StringBuilder out = new StringBuilder(4096);
+        try {
+            write(metrics, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder doesn't throw
+        }
+        return out.toString();
+    }
+
+    public static void write(PipelineMetrics metrics, Appendable out) throws IOException {
+        header(out, "ruuvi_lines_read_total", "counter", "Lines of text, or frames of a binary dump, read");
+        sample(out, "ruuvi_lines_read_total", null, null, metrics.getLinesRead());
+
+        header(out, "ruuvi_packets_assembled_total", "counter", "HCI packets assembled and accepted by the packet filter");
+        sample(out, "ruuvi_packets_assembled_total", null, null, metrics.getPacketsAssembled());
+
+        header(out, "ruuvi_packets_parsed_total", "counter", "Decoded packets by outcome");
+        for (ReceiverMetrics.ParseOutcome outcome : ReceiverMetrics.ParseOutcome.values()) {
+            sample(out, "ruuvi_packets_parsed_total", "outcome", label(outcome), metrics.getPacketsParsed(outcome));
+        }
+
+        header(out, "ruuvi_stage_latency_seconds", "summary", "Latency of the stages of handling a packet");
+        for (ReceiverMetrics.Stage stage : ReceiverMetrics.Stage.values()) {
+            summary(out, "ruuvi_stage_latency_seconds", "stage", label(stage), metrics.getStageLatency(stage));
+        }
+
+        header(out, "ruuvi_listener_latency_seconds", "summary", "Time taken by the listener callbacks");
+        for (Map.Entry<String, LatencyHistogram> entry : metrics.getListenerLatencies().entrySet()) {
+            summary(out, "ruuvi_listener_latency_seconds", "listener", entry.getKey(), entry.getValue());
+        }
+
+        header(out, "ruuvi_process_restarts_total", "counter", "Restarts of the scan and dump of each adapter");
+        for (Map.Entry<String, Long> entry : metrics.getProcessRestarts().entrySet()) {
+            sample(out, "ruuvi_process_restarts_total", "adapter", entry.getKey(), entry.getValue());
+        }
+
+        header(out, "ruuvi_seconds_since_last_measurement", "gauge", "Time since the last measurement of each tag");
+        for (Map.Entry<String, Duration> entry : metrics.getTimeSinceLastMeasurement().entrySet()) {
+            sample(out, "ruuvi_seconds_since_last_measurement", "mac", entry.getKey(), entry.getValue().toNanos() / 1e9);
+        }
+    }
+
+    private static void summary(Appendable out, String name, String labelName, String labelValue, LatencyHistogram histogram) throws IOException {
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(labelName).append("=\"").append(escape(labelValue))
+                    .append("\",quantile=\"").append(Double.toString(quantile)).append("\"} ")
+                    .append(Double.toString(histogram.getValueAtPercentile(quantile * 100) / 1e9)).append('\n');
+        }
+        sample(out, name + "_sum", labelName, labelValue, histogram.getSum() / 1e9);
+        sample(out, name + "_count", labelName, labelValue, histogram.getCount());
+    }
+
+    private static void header(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, String labelName, String labelValue, double value) throws IOException {
+        out.append(name);
+        if (labelName != null) {
+            out.append('{').append(labelName).append("=\"").append(escape(labelValue)).append("\"}");
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append(Long.toString((long) value));
+        } else {
+            out.append(Double.toString(value));
+        }
+        out.append('\n');
+    }
+
+    private static String label(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
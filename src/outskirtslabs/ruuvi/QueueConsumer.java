@@ -0,0 +1,85 @@
+package outskirtslabs.ruuvi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The loop of a thread consuming a queue that other threads fill, such as a
+ * {@link RingBuffer}. When the queue runs empty the thread spins for a while,
+ * as more usually follows soon under load, and then parks until a producer
+ * {@link #wake() wakes it up}, or at most a few milliseconds in case the
+ * wake-up was missed. After {@link #stop()} the elements already queued are
+ * consumed before the loop returns.
+ */
+abstract class QueueConsumer<E> {
+
+    private static final int SPIN_TRIES = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private volatile boolean running = true;
+    private volatile boolean waiting;
+    private volatile Thread thread;
+
+    /**
+     * @return the next element, or null if the queue is empty
+     */
+    abstract E poll();
+
+    abstract boolean isEmpty();
+
+    abstract void consume(E element);
+
+    boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Wakes up the consumer if it's parked, called by the producers after
+     * adding to the queue
+     */
+    void wake() {
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Asks the loop to return once the queue is empty, without waiting for it
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Consumes the queue on the calling thread until stopped or interrupted
+     */
+    void run() {
+        thread = Thread.currentThread();
+        int idle = 0;
+        while (true) {
+            E element = poll();
+            if (element != null) {
+                idle = 0;
+                consume(element);
+                continue;
+            }
+            if (!running && isEmpty()) {
+                break;
+            }
+            if (idle < SPIN_TRIES) {
+                idle++;
+                Thread.onSpinWait();
+            } else {
+                waiting = true;
+                if (isEmpty() && running) {
+                    LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                }
+                waiting = false;
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package outskirtslabs.ruuvi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events and their one-minute exponentially weighted moving rate, like
+ * the load average. Marking only increments a counter; the rate is updated
+ * in ticks of 5 seconds when it is read.
+ */
+class RateMeter {
+
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+
+    private final LongAdder count = new LongAdder();
+    private long lastTick = System.nanoTime();
+    private long lastCount;
+    private double rate;
+    private boolean initialized;
+
+    void mark() {
+        count.increment();
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the moving rate per second
+     */
+    synchronized double getRate() {
+        long now = System.nanoTime();
+        long ticks = (now - lastTick) / TICK_NANOS;
+        if (ticks > 0) {
+            long current = count.sum();
+            double tickRate = (double) (current - lastCount) / ticks / 5;
+            lastCount = current;
+            lastTick += ticks * TICK_NANOS;
+            if (initialized) {
+                // the events since the last read are spread evenly over the ticks
+                rate = tickRate + (rate - tickRate) * Math.pow(1 - ALPHA, ticks);
+            } else {
+                rate = tickRate;
+                initialized = true;
+            }
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,128 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * Decodes the RAWv1 (data format 3) and RAWv2 (data format 5) manufacturer
+ * specific data of RuuviTags straight from the packet bytes into a
+ * {@link CompactRuuviValue}. The format is dispatched on the format byte, so
+ * unlike {@link fi.tkgwf.ruuvi.common.parser.impl.AnyDataFormatParser} no
+ * other parsers are tried, and nothing is allocated.
+ * <p>
+ * The values are bit for bit the same as those of ruuvitag-common, including
+ * its handling of the "not available" values of RAWv2. The other formats,
+ * such as those broadcast over Eddystone, are left to ruuvitag-common.
+ */
+final class RawPayloadDecoder {
+
+    private static final int MANUFACTURER_ID_LOW = PacketFilter.RUUVI_MANUFACTURER_ID & 0xFF;
+    private static final int MANUFACTURER_ID_HIGH = PacketFilter.RUUVI_MANUFACTURER_ID >> 8;
+    /**
+     * The length of the manufacturer specific data, including the
+     * manufacturer ID, of each format
+     */
+    private static final int RAW_V1_LENGTH = 2 + 14;
+    private static final int RAW_V2_LENGTH = 2 + 22;
+
+    private RawPayloadDecoder() {
+    }
+
+    /**
+     * Decodes the manufacturer specific data of an advertisement, starting
+     * with the manufacturer ID, into the target, which is cleared first.
+     *
+     * @return false if it is not RAWv1 or RAWv2 data of a RuuviTag, in which
+     * case the target is left as it was
+     */
+    static boolean decode(byte[] data, int offset, int length, CompactRuuviValue target) {
+        if (length < 3 || (data[offset] & 0xFF) != MANUFACTURER_ID_LOW || (data[offset + 1] & 0xFF) != MANUFACTURER_ID_HIGH) {
+            return false;
+        }
+        int format = offset + 2;
+        switch (data[format]) {
+            case 3:
+                if (length < RAW_V1_LENGTH) {
+                    return false;
+                }
+                target.clear();
+                decodeRawV1(data, format, target);
+                return true;
+            case 5:
+                if (length < RAW_V2_LENGTH) {
+                    return false;
+                }
+                target.clear();
+                decodeRawV2(data, format, target);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param d the data starting at the format byte
+     */
+    private static void decodeRawV1(byte[] d, int o, CompactRuuviValue target) {
+        target.setDataFormat(3);
+        target.setHumidity((d[o + 1] & 0xFF) / 2d);
+        double temperature = (d[o + 2] & 0x7F) + d[o + 3] / 100d; // the fraction is signed, as in ruuvitag-common
+        target.setTemperature((d[o + 2] & 0x80) != 0 ? temperature * -1 : temperature);
+        target.setPressure((double) (unsignedShort(d, o + 4) + 50000));
+        target.setAccelerationX(signedShort(d, o + 6) / 1000d);
+        target.setAccelerationY(signedShort(d, o + 8) / 1000d);
+        target.setAccelerationZ(signedShort(d, o + 10) / 1000d);
+        target.setBatteryVoltage(unsignedShort(d, o + 12) / 1000d);
+    }
+
+    /**
+     * @param d the data starting at the format byte
+     */
+    private static void decodeRawV2(byte[] d, int o, CompactRuuviValue target) {
+        target.setDataFormat(5);
+        int temperature = signedShort(d, o + 1);
+        if (temperature != Short.MIN_VALUE) {
+            target.setTemperature(temperature / 200d);
+        }
+        int humidity = unsignedShort(d, o + 3);
+        if (humidity != 0xFFFF) {
+            target.setHumidity(humidity / 400d);
+        }
+        int pressure = unsignedShort(d, o + 5);
+        if (pressure != 0xFFFF) {
+            target.setPressure((double) pressure + 50000);
+        }
+        int accelerationX = signedShort(d, o + 7);
+        if (accelerationX != Short.MIN_VALUE) {
+            target.setAccelerationX(accelerationX / 1000d);
+        }
+        int accelerationY = signedShort(d, o + 9);
+        if (accelerationY != Short.MIN_VALUE) {
+            target.setAccelerationY(accelerationY / 1000d);
+        }
+        int accelerationZ = signedShort(d, o + 11);
+        if (accelerationZ != Short.MIN_VALUE) {
+            target.setAccelerationZ(accelerationZ / 1000d);
+        }
+        int power = unsignedShort(d, o + 13);
+        if ((power >>> 5) != 0b11111111111) {
+            target.setBatteryVoltage((power >>> 5) / 1000d + 1.6d);
+        }
+        if ((power & 0b11111) != 0b11111) {
+            target.setTxPower((power & 0b11111) * 2 - 40);
+        }
+        int movementCounter = d[o + 15] & 0xFF;
+        if (movementCounter != 0xFF) {
+            target.setMovementCounter(movementCounter);
+        }
+        int sequence = unsignedShort(d, o + 16);
+        if (sequence != 0xFFFF) {
+            target.setMeasurementSequenceNumber(sequence);
+        }
+    }
+
+    private static int signedShort(byte[] d, int i) {
+        return d[i] << 8 | d[i + 1] & 0xFF;
+    }
+
+    private static int unsignedShort(byte[] d, int i) {
+        return (d[i] & 0xFF) << 8 | d[i + 1] & 0xFF;
+    }
+}
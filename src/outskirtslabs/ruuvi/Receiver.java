@@ -2,220 +2,538 @@ package outskirtslabs.ruuvi;
 
 import org.apache.log4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.*;
-import java.util.function.Function;
 
 public class Receiver {
 
+    /**
+     * @deprecated adapters are restarted with an exponential backoff, see
+     * {@link #setRestartBackoff(Duration, Duration)}
+     */
+    @Deprecated
     public final static int PROCESS_BACKOFF_DELAY_SEC = 5;
 
+    /**
+     * The default delays between restarts of an adapter
+     */
+    public static final Duration DEFAULT_RESTART_BACKOFF_MIN = Duration.ofMillis(500);
+    public static final Duration DEFAULT_RESTART_BACKOFF_MAX = Duration.ofSeconds(60);
+
+    /**
+     * How long an adapter may receive nothing by default before it is
+     * considered stalled
+     */
+    public static final Duration DEFAULT_STALL_TIMEOUT = Duration.ofSeconds(30);
+
     private static final Logger LOG = Logger.getLogger(Receiver.class);
 
-    private static Optional<Process> startCommand(String command) {
-        String[] scan = command.split(" ");
-        if (scan.length > 0) {
-            try {
-                Process process = new ProcessBuilder(scan).start();
-                Runtime.getRuntime().addShutdownHook(new Thread(() -> process.destroyForcibly()));
-                return Optional.of(process);
-            } catch (IOException e) {
-                return Optional.empty();
-            }
-        }
-        return Optional.empty();
+    public Receiver(String scanCommand, String dumpCommand) {
+        this(List.of(Adapter.command("", scanCommand, dumpCommand)));
     }
 
-    public Receiver(String scanCommand, String dumpCommand) {
-        this.scanCommand = scanCommand.trim();
-        this.dumpCommand = dumpCommand.trim();
-        if (scanCommand.length() == 0 || dumpCommand.length() == 0)
-            throw new RuntimeException("Scan command and dump command must valid commands.");
+    /**
+     * Creates a receiver reading binary HCI events from the given source
+     * instead of a dump command, for example a raw HCI socket or a recorded
+     * btsnoop file. The source is reopened after it reaches the end of its
+     * stream, like the dump command would be restarted.
+     *
+     * @param scanCommand the command starting the scan, or null if scanning is
+     *                    not needed, such as when reading a recording
+     */
+    public Receiver(String scanCommand, HciEventSource.Factory eventSourceFactory) {
+        this(List.of(Adapter.eventSource("", scanCommand, eventSourceFactory)));
+    }
+
+    /**
+     * Creates a receiver supervising several adapters, each read by its own
+     * thread. The measurements of all the adapters are passed to the same
+     * listeners, one at a time. When a broadcast is heard by several adapters,
+     * only the copy with the best RSSI is kept, see
+     * {@link #setAdapterDeduplication(Duration)}.
+     */
+    public Receiver(List<Adapter> adapters) {
+        if (adapters.isEmpty()) {
+            throw new IllegalArgumentException("At least one adapter is needed");
+        }
+        if (adapters.stream().map(Adapter::getId).distinct().count() != adapters.size()) {
+            throw new IllegalArgumentException("The adapter ids must be unique");
+        }
+        this.adapters = List.copyOf(adapters);
+        this.throttles = new MeasurementThrottles(adapters.size(), housekeeping);
+        this.reader = new PacketReader(this.adapters, throttles, fanOut);
+        this.supervision = new AdapterSupervision(this.adapters, housekeeping);
+        if (adapters.size() > 1) {
+            setAdapterDeduplication(DEFAULT_ADAPTER_DEDUPLICATION_WINDOW);
+        }
     }
 
+    /**
+     * How long the first copy of a broadcast heard by several adapters waits
+     * for better copies by default
+     */
+    public static final Duration DEFAULT_ADAPTER_DEDUPLICATION_WINDOW = Duration.ofMillis(100);
 
-    private final ScheduledExecutorService jobScheduler = Executors.newScheduledThreadPool(2);
-    private final Set<MeasurementListener> measurementListeners = new CopyOnWriteArraySet<>();
-    private final Map<String, ScheduledFuture<?>> jobFutures = new ConcurrentHashMap<>();
-    private final String scanCommand;
-    private final String dumpCommand;
+    private final List<Adapter> adapters;
+    private final ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor();
+    private final MeasurementFanOut fanOut = new MeasurementFanOut(housekeeping);
+    private final MeasurementThrottles throttles;
+    private final PacketReader reader;
+    private final AdapterSupervision supervision;
+    private volatile ThreadingMode threadingMode = ThreadingMode.PLATFORM;
+    private volatile ReceiverMetrics metrics = ReceiverMetrics.NONE;
 
 
     public boolean start() {
-        SuperviseProcess scanProcess = new SuperviseProcess("scan", scanCommand, false);
-        SuperviseProcess dumpProcess = new SuperviseProcess("dump", dumpCommand, true, this::readDump);
-
-        ScheduledFuture<?> scanFuture = jobScheduler.schedule(scanProcess, 0, TimeUnit.MILLISECONDS);
-        ScheduledFuture<?> dumpFuture = jobScheduler.schedule(dumpProcess, 0, TimeUnit.MILLISECONDS);
-        jobFutures.put("scan", scanFuture);
-        jobFutures.put("dump", dumpFuture);
+        int shards = reader.start(threadingMode);
+        throttles.setShards(shards);
+        supervision.start(reader, shards, threadingMode);
         return true;
     }
 
+    /**
+     * Stops the supervised processes and waits for them to exit, then
+     * decodes the packets already read, passes on the copies held for
+     * deduplication, delivers what the asynchronous and batch listeners have
+     * pending, and removes all the listeners.
+     */
     public void dispose() {
         LOG.warn("Disposing Ruuvi Receiver");
 
-        shutdownAndWait(jobScheduler);
-        cancelAllFutures(true);
-
-        measurementListeners.clear();
+        // each stage is stopped after the stages feeding it, and passes on what it holds
+        supervision.stop();
+        reader.close();
+        shutdownAndWait(housekeeping);
+        fanOut.close();
         LOG.debug("Ruuvi Receiver has been disposed");
     }
 
-    public void addMeasurementListener(MeasurementListener listener) {
-        measurementListeners.add(listener);
+    /**
+     * Selects the kind of threads the supervised processes, their output and
+     * the asynchronous listeners run on. Takes effect for the processes the
+     * next time the receiver is started, and for the listeners added
+     * afterwards.
+     *
+     * @see ThreadingMode#isSupported()
+     */
+    public void setThreadingMode(ThreadingMode threadingMode) {
+        if (!threadingMode.isSupported()) {
+            LOG.warn("Threading mode " + threadingMode + " is not supported by this JVM, platform threads are used instead");
+        }
+        this.threadingMode = threadingMode;
     }
 
-    public void removeMeasurementListener(MeasurementListener listener) {
-        measurementListeners.remove(listener);
+    /**
+     * Sets the delays between restarts of an adapter whose scan or dump
+     * failed or stalled. The first restart is immediate, then the delay
+     * doubles from the minimum up to the maximum, with random jitter. The
+     * delay starts over once the adapter has been streaming for a minute.
+     * Takes effect the next time the receiver is started.
+     */
+    public void setRestartBackoff(Duration min, Duration max) {
+        if (min.isNegative() || max.compareTo(min) < 0) {
+            throw new IllegalArgumentException("The backoff must be positive and the maximum can't be less than the minimum");
+        }
+        supervision.setRestartBackoff(min.toNanos(), max.toNanos());
     }
 
-    private void notifyNewMeasurement(RuuviData data) {
-        measurementListeners.forEach(listener -> {
-            try {
-                listener.measured(data.getMeasurement(), data.getDerived());
-            } catch (Exception e) {
-                LOG.warn("Notifying listener failed", e);
-            }
-        });
+    /**
+     * Sets how long an adapter may receive no packets before it is considered
+     * {@link HealthState#STALLED} and restarted, or {@link Duration#ZERO} to
+     * never restart a silent adapter. Takes effect immediately.
+     */
+    public void setStallTimeout(Duration timeout) {
+        if (timeout.isNegative()) {
+            throw new IllegalArgumentException("The stall timeout can't be negative");
+        }
+        supervision.setStallTimeout(timeout.toNanos());
     }
 
-    private static void shutdownAndWait(ExecutorService executorService) {
-        executorService.shutdown();
-        try {
-            executorService.awaitTermination(5, TimeUnit.SECONDS);
-        } catch (InterruptedException ignore) { /* do nothing */ }
+    /**
+     * Duty-cycles the scans, so that each tag is heard about once per
+     * sampling interval instead of at every broadcast, or {@link Duration#ZERO}
+     * to scan continuously, which is the default. The broadcast interval of
+     * each tag is learned from its measurements, and the scan is stopped
+     * between windows timed to catch a broadcast of every tag. New tags are
+     * found by a scan of a few seconds every minute. This saves the power and
+     * airtime of the adapter on battery powered gateways or with many tags,
+     * but the listeners get fewer measurements. Takes effect the next time
+     * the receiver is started.
+     *
+     * @see #getScanCoverage()
+     */
+    public void setScanDutyCycle(Duration samplingInterval) {
+        if (samplingInterval.isNegative()) {
+            throw new IllegalArgumentException("The sampling interval can't be negative");
+        }
+        supervision.setScanSamplingInterval(samplingInterval.toNanos());
+    }
+
+    /**
+     * @return how well the windows of each duty-cycled adapter catch the tags,
+     * by adapter id
+     */
+    public Map<String, ScanCoverage> getScanCoverage() {
+        return supervision.getScanCoverage();
+    }
+
+    /**
+     * @return the health of each started adapter, by adapter id
+     */
+    public Map<String, HealthState> getHealth() {
+        return supervision.getHealth();
     }
 
+    /**
+     * Adds a listener notified when the health of an adapter changes, on the
+     * thread supervising the adapter, reading it or checking for stalls
+     */
+    public void addHealthListener(HealthListener listener) {
+        supervision.addHealthListener(listener);
+    }
+
+    public void removeHealthListener(HealthListener listener) {
+        supervision.removeHealthListener(listener);
+    }
 
-    private void cancelAllFutures(boolean forceInterrupt) {
-        synchronized (jobScheduler) {
-            jobFutures.values().forEach(future -> future.cancel(forceInterrupt));
-            jobFutures.clear();
+    /**
+     * Sets the number of threads decoding the packets, or 0 to decode them on
+     * the threads reading the dumps, which is the default. With decode
+     * threads, the readers only frame the packets and hand them over to the
+     * decode thread of the device, so the packets of a device are still
+     * decoded and passed to the listeners in order. The listeners are still
+     * notified of one measurement at a time, but the derived values are
+     * calculated on the decode threads. The text output of the dump is framed
+     * without {@link #setParserEngine(HCIParserEngine) the parser engine}.
+     * Takes effect the next time the receiver is started.
+     */
+    public void setDecodeThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("The number of decode threads can't be negative");
         }
+        reader.setDecodeThreads(threads);
     }
 
-    private final class SuperviseProcess implements Runnable {
+    public int getDecodeThreads() {
+        return reader.getDecodeThreads();
+    }
 
-        private final String name;
-        private final String command;
-        private final boolean restartOnExit;
-        private final Function<BufferedReader, Boolean> reader;
+    /**
+     * Selects the parser used for the hcidump output. Takes effect the next
+     * time the dump process is (re)started.
+     */
+    public void setParserEngine(HCIParserEngine parserEngine) {
+        reader.setParserEngine(Objects.requireNonNull(parserEngine));
+    }
 
-        public SuperviseProcess(String name, String command, boolean restartOnExit) {
-            this.name = name;
-            this.command = command;
-            this.restartOnExit = restartOnExit;
-            this.reader = null;
-        }
+    /**
+     * Sets the format of the dump command output. For the binary formats the
+     * dump command must write to its standard output, for example
+     * "hcidump -w /dev/stdout" for {@link DumpFormat#HCIDUMP}. Takes effect
+     * the next time the dump process is (re)started.
+     */
+    public void setDumpFormat(DumpFormat dumpFormat) {
+        reader.setDumpFormat(Objects.requireNonNull(dumpFormat));
+    }
 
-        public SuperviseProcess(String name, String command, boolean restartOnExit, Function<BufferedReader, Boolean> reader) {
-            this.name = name;
-            this.command = command;
-            this.restartOnExit = restartOnExit;
-            this.reader = reader;
+    /**
+     * Drops repeated and too frequent advertisements of each tag before they
+     * are decoded. Takes effect immediately.
+     *
+     * @param dropRepeats whether to drop a packet whose advertisement data is
+     *                    identical to the previous accepted one of the same
+     *                    MAC address, received less than half a second
+     *                    earlier, such as the repeats reported by
+     *                    "hcitool lescan --duplicates"
+     * @param minInterval the minimum time between two accepted packets of the
+     *                    same MAC address, or {@link Duration#ZERO} to not
+     *                    limit the rate
+     */
+    public void setDeduplication(boolean dropRepeats, Duration minInterval) {
+        if (minInterval.isNegative()) {
+            throw new IllegalArgumentException("The minimum interval can't be negative");
         }
+        throttles.configure(dropRepeats, minInterval.toNanos());
+    }
 
-        public void run() {
-            while (!Thread.currentThread().isInterrupted()) {
-
-                Optional<Process> opt = startCommand(command);
-                if (opt.isEmpty()) {
-                    LOG.warn(String.format("Skipping command %s, invalid command", name));
-                    return;
-                }
-                Process proc = opt.get();
-                if (this.reader != null) {
-                    reader.apply(new BufferedReader(new InputStreamReader(proc.getInputStream())));
-                }
-
-                try {
-                    opt.get().waitFor();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-
-                if (!restartOnExit) {
-                    LOG.info(String.format("Process %s exited, not restarting.", name));
-                    return;
-                } else {
-                    LOG.info(String.format("Process %s exited, will restart", name));
-                }
-
-                try {
-                    Thread.sleep(PROCESS_BACKOFF_DELAY_SEC * 1000);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-            LOG.info("supervisor interrupted. aborting.");
+    /**
+     * Sets how long the first copy of a broadcast heard by several adapters
+     * waits for copies with a better RSSI before it is passed to the
+     * listeners, or {@link Duration#ZERO} to pass every copy. Enabled with
+     * {@link #DEFAULT_ADAPTER_DEDUPLICATION_WINDOW} when there are several
+     * adapters. Takes effect immediately.
+     */
+    public void setAdapterDeduplication(Duration window) {
+        if (window.isNegative()) {
+            throw new IllegalArgumentException("The window can't be negative");
         }
+        fanOut.setAdapterDeduplication(window.toNanos());
+    }
 
+    /**
+     * @return the number of copies of broadcasts heard by several adapters
+     * that were dropped since the adapter deduplication was last configured
+     */
+    public long getAdapterDuplicateCount() {
+        return fanOut.getAdapterDuplicateCount();
+    }
 
+    public List<Adapter> getAdapters() {
+        return adapters;
     }
 
-    private boolean readDump(BufferedReader reader) {
-        HCIParser parser = new HCIParser();
-        boolean dataReceived = false;
-        boolean healthy = false;
-        BeaconParser beaconParser = new BeaconParser();
-        try {
-            String line, latestMAC = null;
-            while ((line = reader.readLine()) != null && !Thread.currentThread().isInterrupted()) {
-                if (line.contains("device: disconnected")) {
-                    LOG.error(line + ": Either the bluetooth device was externally disabled or physically disconnected");
-                    healthy = false;
-                }
-                if (line.contains("No such device")) {
-                    LOG.error(line + ": Check that your bluetooth adapter is enabled and working properly");
-                    healthy = false;
-                }
-                if (!dataReceived) {
-                    if (line.startsWith("> ")) {
-                        LOG.info("Successfully reading data from hcidump");
-                        dataReceived = true;
-                        healthy = true;
-                    } else {
-                        continue; // skip the unnecessary garbage at beginning containing hcidump version and other junk print
-                    }
-                }
-                try {
-                    //Read in MAC address from first line
-                    if (Util.hasMacAddress(line)) {
-                        latestMAC = Util.getMacFromLine(line);
-                    }
-                    //Apply Mac Address Filtering
-                    if (true /*Config.isAllowedMAC(latestMAC)*/) {
-                        HCIData hciData = parser.readLine(line);
-                        if (hciData != null) {
-                            beaconParser
-                                    .parse(hciData)
-                                    .map(MeasurementValueCalculator::calculateAllValues)
-                                    .ifPresent(Receiver.this::notifyNewMeasurement);
-                            latestMAC = null; // "reset" the mac to null to avoid misleading MAC addresses when an error happens *after* successfully reading a full packet
-                            healthy = true;
-                        }
-                    }
-                } catch (Exception ex) {
-                    if (latestMAC != null) {
-                        LOG.warn("Uncaught exception while handling measurements from MAC address \"" + latestMAC + "\", if this repeats and this is not a Ruuvitag, try blacklisting it", ex);
-                    } else {
-                        LOG.warn("Uncaught exception while handling measurements, this is an unexpected event. Please report this to https://github.com/Scrin/RuuviCollector/issues and include this log", ex);
-                    }
-                    LOG.debug("Offending line: " + line);
-                }
-            }
-            LOG.debug("dump reader finished");
-        } catch (IOException ex) {
-            LOG.error("Uncaught exception while reading measurements", ex);
-            return false;
-        }
-        return healthy;
+    /**
+     * @return the number of packets dropped as repeats since deduplication
+     * was last configured
+     */
+    public long getRepeatCount() {
+        return throttles.getRepeatCount();
+    }
+
+    /**
+     * @return the number of packets dropped for arriving sooner than the
+     * minimum interval since deduplication was last configured
+     */
+    public long getThrottledCount() {
+        return throttles.getThrottledCount();
+    }
+
+    /**
+     * Sets where the counters and latencies of the pipeline are recorded, for
+     * example a {@link PipelineMetrics}. Takes effect immediately.
+     */
+    public void setMetrics(ReceiverMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics);
+        supervision.setMetrics(metrics);
+        reader.setMetrics(metrics);
+        fanOut.setMetrics(metrics);
+    }
+
+    public ReceiverMetrics getMetrics() {
+        return metrics;
     }
 
+    /**
+     * Records the HCI events read from every adapter, before they are
+     * filtered or parsed, or stops recording if null. Takes effect
+     * immediately. The recorder is not closed by the receiver.
+     */
+    public void setCaptureRecorder(CaptureRecorder captureRecorder) {
+        reader.setCaptureRecorder(captureRecorder);
+    }
+
+    public CaptureRecorder getCaptureRecorder() {
+        return reader.getCaptureRecorder();
+    }
+
+    /**
+     * @return the filter deciding which devices' packets are parsed, which can
+     * be configured at any time
+     */
+    public PacketFilter getPacketFilter() {
+        return reader.getPacketFilter();
+    }
+
+    /**
+     * Adds a listener that is notified on the thread reading the dump. This
+     * is a subscriber with unbounded demand to the measurements published by
+     * the receiver, see {@link #createPublisher(int, OverflowPolicy)}.
+     */
+    public void addMeasurementListener(MeasurementListener listener) {
+        fanOut.addMeasurementListener(listener);
+    }
+
+    /**
+     * Creates a publisher of the measurements, for consumers that signal how
+     * many measurements they can take, such as Reactive Streams pipelines.
+     * Each subscriber gets a buffer of the given capacity for the
+     * measurements received while it has no outstanding demand.
+     *
+     * @param capacity the number of measurements buffered per subscriber,
+     *                 rounded up to a power of two
+     * @param policy   what to do with new measurements when the buffer of a
+     *                 subscriber is full
+     */
+    public MeasurementPublisher createPublisher(int capacity, OverflowPolicy policy) {
+        return new MeasurementPublisher(this, capacity, Objects.requireNonNull(policy));
+    }
+
+    void subscribe(MeasurementSubscription subscription) {
+        fanOut.subscribe(subscription);
+    }
+
+    void unsubscribe(MeasurementSubscription subscription) {
+        fanOut.unsubscribe(subscription);
+    }
+
+    /**
+     * Adds a listener that is notified on its own thread, through a bounded
+     * queue, so that a slow listener doesn't block reading the dump.
+     *
+     * @param capacity the number of measurements that can be queued, rounded
+     *                 up to a power of two
+     * @param policy   what to do with new measurements when the queue is full
+     * @return a handle exposing the queue depth and drop counters
+     */
+    public AsyncMeasurementListener addAsyncMeasurementListener(MeasurementListener listener, int capacity, OverflowPolicy policy) {
+        return fanOut.addAsyncMeasurementListener(listener, capacity, policy, threadingMode);
+    }
+
+    /**
+     * Adds a listener that is notified through a spool, on its own thread.
+     * The measurements are appended to the spool and delivered from there, so
+     * those the listener has not received yet, because it is slow or failing,
+     * are kept on disk instead of in memory, and delivered after a restart.
+     * The spool is not closed when the receiver is disposed.
+     *
+     * @param name the name of the cursor of the listener in the spool, which
+     *             must be the same after a restart to resume where the
+     *             listener left off
+     * @return a handle exposing the delivery counters
+     * @throws IOException if the cursor could not be created
+     */
+    public SpooledMeasurementListener addSpooledMeasurementListener(MeasurementSpool spool, String name, MeasurementListener listener) throws IOException {
+        return fanOut.addSpooledMeasurementListener(spool, name, listener, threadingMode);
+    }
+
+    /**
+     * Adds a listener that receives the measurements in batches. A batch is
+     * delivered when it reaches the maximum size or when its oldest
+     * measurement has waited for the maximum linger time, whichever comes
+     * first. Whatever remains is delivered on {@link #dispose()}.
+     * <p>
+     * The batches are delivered on a thread of the listener, so a slow
+     * listener only holds up the thread reading the dump when the next batch
+     * is full before the previous one was delivered.
+     */
+    public void addBatchMeasurementListener(BatchMeasurementListener listener, int maxBatchSize, Duration maxLinger) {
+        fanOut.addBatchMeasurementListener(listener, maxBatchSize, maxLinger, threadingMode);
+    }
+
+    /**
+     * Removes a batch listener, delivering the measurements collected for it
+     * so far.
+     */
+    public void removeBatchMeasurementListener(BatchMeasurementListener listener) {
+        fanOut.removeBatchMeasurementListener(listener);
+    }
+
+    /**
+     * Adds a listener that receives summaries of the measurements of each tag
+     * over windows, such as the minimum, maximum and mean of each field per
+     * minute. Windows are tumbling if the slide equals the window, and
+     * sliding otherwise. The summaries of the windows that have not ended
+     * are delivered on {@link #dispose()}.
+     *
+     * @param window the length of the windows, a multiple of the slide
+     * @param slide  how often a window starts, and at least how often the
+     *               summaries are delivered
+     * @param fields the fields to summarize
+     * @return a handle exposing the duplicate and late counters
+     * @see WindowedAggregator
+     */
+    public WindowedAggregator addWindowSummaryListener(WindowSummaryListener listener, Duration window, Duration slide, Set<AggregateField> fields) {
+        return fanOut.addWindowSummaryListener(listener, window, slide, fields);
+    }
+
+    /**
+     * Removes a window summary listener, delivering the summaries of the
+     * windows that have not ended.
+     */
+    public void removeWindowSummaryListener(WindowSummaryListener listener) {
+        fanOut.removeWindowSummaryListener(listener);
+    }
+
+    /**
+     * Adds a store holding the latest measurement of each tag, which can be
+     * read and queried from any thread without holding up the thread reading
+     * the dump. The derived values of all the fields are calculated.
+     *
+     * @param ttl how long a tag is held after it was last seen
+     * @see #addLatestValueStore(Duration, Set)
+     */
+    public LatestValueStore addLatestValueStore(Duration ttl) {
+        return addLatestValueStore(ttl, EnumSet.allOf(DerivedField.class));
+    }
+
+    /**
+     * Adds a store holding the latest measurement of each tag, which can be
+     * read and queried from any thread without holding up the thread reading
+     * the dump.
+     *
+     * @param ttl           how long a tag is held after it was last seen
+     * @param derivedFields the derived values the readers of the store use
+     * @see LatestValueStore
+     */
+    public LatestValueStore addLatestValueStore(Duration ttl, Set<DerivedField> derivedFields) {
+        return fanOut.addLatestValueStore(ttl, derivedFields);
+    }
+
+    /**
+     * Stops updating a store. What it holds remains readable, but is no
+     * longer evicted.
+     */
+    public void removeLatestValueStore(LatestValueStore store) {
+        fanOut.removeLatestValueStore(store);
+    }
+
+    /**
+     * Adds a plugin deriving more values from each measurement, which the
+     * listeners read with {@link RuuviDerivedValue#getExtra(String)}. The
+     * values are derived once for all the listeners, on the thread notifying
+     * them, except for the listeners of compact measurements.
+     *
+     * @throws IllegalArgumentException if the inputs of the plugin are not
+     *                                  fields or the outputs of the plugins
+     *                                  already added, or it has the same
+     *                                  outputs
+     * @see DerivedValuePipeline
+     */
+    public void addDerivedValuePlugin(DerivedValuePlugin plugin) {
+        fanOut.addDerivedValuePlugin(plugin);
+    }
+
+    /**
+     * @throws IllegalArgumentException if other plugins read the outputs of
+     *                                  the plugin
+     */
+    public void removeDerivedValuePlugin(DerivedValuePlugin plugin) {
+        fanOut.removeDerivedValuePlugin(plugin);
+    }
+
+    /**
+     * Adds a listener that receives the measurements in their compact form.
+     * The listener is notified on the thread reading the dump. When only
+     * compact listeners are registered, no {@link RuuviValue} is built and no
+     * derived values are calculated.
+     */
+    public void addCompactMeasurementListener(CompactMeasurementListener listener) {
+        fanOut.addCompactMeasurementListener(listener);
+    }
+
+    public void removeCompactMeasurementListener(CompactMeasurementListener listener) {
+        fanOut.removeCompactMeasurementListener(listener);
+    }
+
+    /**
+     * Removes a listener, whether it was added as a synchronous or an
+     * asynchronous one. Asynchronous listeners are stopped after the
+     * measurements already queued for them have been delivered.
+     */
+    public void removeMeasurementListener(MeasurementListener listener) {
+        fanOut.removeMeasurementListener(listener);
+    }
+
+    private static void shutdownAndWait(ExecutorService executorService) {
+        executorService.shutdown();
+        try {
+            executorService.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ignore) { /* do nothing */ }
+    }
 }
@@ -0,0 +1,108 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * Receives the events of the {@link Receiver} pipeline, for example to count
+ * them or to measure latencies. Set with
+ * {@link Receiver#setMetrics(ReceiverMetrics)}. {@link PipelineMetrics} is the
+ * built-in implementation.
+ * <p>
+ * The methods are called on the threads reading the dump and notifying the
+ * listeners, so they must be thread safe and cheap. Latencies are only
+ * measured when metrics other than {@link #NONE} are set.
+ */
+public interface ReceiverMetrics {
+
+    /**
+     * Records nothing
+     */
+    ReceiverMetrics NONE = new ReceiverMetrics() {
+    };
+
+    /**
+     * The stages of handling a packet whose latency is measured
+     */
+    enum Stage {
+        /**
+         * Assembling the {@link HCIData} from the lines or frame of a packet
+         */
+        HCI_PARSE,
+        /**
+         * Deduplication and rate limiting
+         */
+        DEDUPLICATION,
+        /**
+         * Decoding the Ruuvi data formats
+         */
+        DECODE,
+        /**
+         * Notifying all the listeners, or queuing for the asynchronous ones
+         */
+        NOTIFY
+    }
+
+    /**
+     * The outcomes of decoding a packet
+     */
+    enum ParseOutcome {
+        PARSED,
+        /**
+         * The packet doesn't contain Ruuvi data
+         */
+        NOT_RUUVI,
+        /**
+         * Decoding threw an exception
+         */
+        FAILED
+    }
+
+    /**
+     * A line of text, or a frame of a binary dump, was read
+     */
+    default void lineRead() {
+    }
+
+    /**
+     * A complete packet was assembled and accepted by the packet filter
+     */
+    default void packetAssembled() {
+    }
+
+    default void packetParsed(ParseOutcome outcome) {
+    }
+
+    default void stageCompleted(Stage stage, long nanos) {
+    }
+
+    /**
+     * @param listener any kind of listener added to the receiver
+     * @param nanos    the time the listener took to handle a measurement or a
+     *                 batch
+     */
+    default void listenerNotified(Object listener, long nanos) {
+    }
+
+    /**
+     * The listener was removed from the receiver, after it was last notified
+     *
+     * @param listener as passed to {@link #listenerNotified(Object, long)}
+     */
+    default void listenerRemoved(Object listener) {
+    }
+
+    /**
+     * @param name the id of the adapter whose scan and dump were restarted,
+     *             or "adapter" if it has no id
+     */
+    default void processRestarted(String name) {
+    }
+
+    /**
+     * A measurement of a tag was decoded
+     *
+     * @param mac      the MAC address of the tag as returned by
+     *                 {@link Util#macToLong(String)}
+     * @param nanoTime the {@link System#nanoTime()} it was decoded at
+     */
+    default void measurementReceived(long mac, long nanoTime) {
+    }
+}
@@ -0,0 +1,67 @@
+package outskirtslabs.ruuvi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces the packets of a recorded capture by their timestamps, so that they
+ * are returned as far apart as they were captured, divided by the replay
+ * speed. Packets without a timestamp are returned right away, and a reader
+ * that falls behind is never slowed down further.
+ */
+final class ReplayEventSource implements HciEventSource {
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final HciEventSource source;
+    private final double speed;
+    private long firstTimestampMicros = -1;
+    private long startNanos;
+    private volatile boolean closed;
+
+    ReplayEventSource(HciEventSource source, double speed) {
+        this.source = source;
+        this.speed = speed;
+    }
+
+    @Override
+    public ByteBuffer next() throws IOException {
+        ByteBuffer frame = source.next();
+        if (frame != null && speed != Adapter.AS_FAST_AS_POSSIBLE) {
+            pace(source.getTimestampMicros());
+        }
+        return frame;
+    }
+
+    private void pace(long timestampMicros) throws InterruptedIOException {
+        if (timestampMicros < 0) {
+            return;
+        }
+        if (firstTimestampMicros < 0) {
+            firstTimestampMicros = timestampMicros;
+            startNanos = System.nanoTime();
+            return;
+        }
+        long due = startNanos + (long) ((timestampMicros - firstTimestampMicros) * 1000 / speed);
+        for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+            if (closed || Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("The replay was stopped");
+            }
+            LockSupport.parkNanos(this, Math.min(wait, MAX_PARK_NANOS));
+        }
+    }
+
+    @Override
+    public long getTimestampMicros() {
+        return source.getTimestampMicros();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        source.close();
+    }
+}
@@ -2,8 +2,11 @@ package outskirtslabs.ruuvi;
 
 import lombok.Value;
 
+/**
+ * A measurement together with the values derived from it
+ */
 @Value
-class RuuviData {
+public class RuuviData {
     RuuviValue measurement;
     RuuviDerivedValue derived;
 }
@@ -1,41 +1,303 @@
 package outskirtslabs.ruuvi;
 
 import lombok.Builder;
-import lombok.Value;
 
-@Value
-@Builder
-public class RuuviDerivedValue {
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import static outskirtslabs.ruuvi.DerivedField.*;
+
+/**
+ * Values derived from a {@link RuuviValue}. The values created by the
+ * {@link Receiver} are calculated on first access and then memoized, and the
+ * values that none of the listeners declared a need for are null. The values
+ * of the {@link DerivedValuePlugin}s added to the receiver are calculated
+ * before the listeners are notified, and read by name with
+ * {@link #getExtra(String)}.
+ */
+public final class RuuviDerivedValue {
+
+    static final RuuviDerivedValue NONE = new RuuviDerivedValue(null, 0);
+
+    private final RuuviValue measurement;
+    private final int fields;
+    /**
+     * The values calculated so far. A bit may be lost when two threads set
+     * bits at the same time, which only means the value is calculated again.
+     */
+    private volatile int computed;
+
+    private Double accelerationTotal;
+    private Double accelerationAngleFromX;
+    private Double accelerationAngleFromY;
+    private Double accelerationAngleFromZ;
+    private Double absoluteHumidity;
+    private Double dewPoint;
+    private Double equilibriumVaporPressure;
+    private Double airDensity;
+    private DerivedValuePipeline pipeline;
+    private double[] extras;
+
+    @Builder
+    private RuuviDerivedValue(Double accelerationTotal, Double accelerationAngleFromX, Double accelerationAngleFromY, Double accelerationAngleFromZ, Double absoluteHumidity, Double dewPoint, Double equilibriumVaporPressure, Double airDensity) {
+        this.measurement = null;
+        this.fields = DerivedField.ALL;
+        this.accelerationTotal = accelerationTotal;
+        this.accelerationAngleFromX = accelerationAngleFromX;
+        this.accelerationAngleFromY = accelerationAngleFromY;
+        this.accelerationAngleFromZ = accelerationAngleFromZ;
+        this.absoluteHumidity = absoluteHumidity;
+        this.dewPoint = dewPoint;
+        this.equilibriumVaporPressure = equilibriumVaporPressure;
+        this.airDensity = airDensity;
+        this.computed = DerivedField.ALL;
+    }
+
+    private RuuviDerivedValue(RuuviValue measurement, int fields) {
+        this.measurement = measurement;
+        this.fields = fields;
+    }
+
+    /**
+     * Creates values calculated lazily from the measurement
+     *
+     * @param fields the bitmask of the {@link DerivedField}s to calculate, the
+     *               others are null
+     */
+    static RuuviDerivedValue lazy(RuuviValue measurement, int fields) {
+        return fields == 0 ? NONE : new RuuviDerivedValue(Objects.requireNonNull(measurement), fields);
+    }
+
+    /**
+     * Like {@link #lazy(RuuviValue, int)}, but never shared, so that the
+     * values of a {@link DerivedValuePipeline} can be set
+     */
+    static RuuviDerivedValue lazyWithExtras(RuuviValue measurement, int fields) {
+        return new RuuviDerivedValue(Objects.requireNonNull(measurement), fields);
+    }
+
+    /**
+     * Sets the values derived by the pipeline, in the order of its outputs
+     */
+    void setExtras(DerivedValuePipeline pipeline, double[] extras) {
+        this.pipeline = pipeline;
+        this.extras = extras;
+    }
+
+    /**
+     * Calculates the enabled values now rather than when they are first read,
+     * to do the work on the calling thread
+     */
+    void computeEnabled() {
+        getAccelerationTotal();
+        getAccelerationAngleFromX();
+        getAccelerationAngleFromY();
+        getAccelerationAngleFromZ();
+        getAbsoluteHumidity();
+        getDewPoint();
+        getEquilibriumVaporPressure();
+        getAirDensity();
+    }
+
     /**
      * Total acceleration
      */
-    Double accelerationTotal;
+    public Double getAccelerationTotal() {
+        return isEnabled(ACCELERATION_TOTAL) ? accelerationTotal() : null;
+    }
+
     /**
      * The angle between the acceleration vector and X axis
      */
-    Double accelerationAngleFromX;
+    public Double getAccelerationAngleFromX() {
+        if (!isEnabled(ACCELERATION_ANGLE_FROM_X)) {
+            return null;
+        }
+        if (!isComputed(ACCELERATION_ANGLE_FROM_X)) {
+            accelerationAngleFromX = MeasurementValueCalculator.angleBetweenVectorComponentAndAxis(measurement.getAccelerationX(), accelerationTotal());
+            setComputed(ACCELERATION_ANGLE_FROM_X);
+        }
+        return accelerationAngleFromX;
+    }
+
     /**
      * The angle between the acceleration vector and Y axis
      */
-    Double accelerationAngleFromY;
+    public Double getAccelerationAngleFromY() {
+        if (!isEnabled(ACCELERATION_ANGLE_FROM_Y)) {
+            return null;
+        }
+        if (!isComputed(ACCELERATION_ANGLE_FROM_Y)) {
+            accelerationAngleFromY = MeasurementValueCalculator.angleBetweenVectorComponentAndAxis(measurement.getAccelerationY(), accelerationTotal());
+            setComputed(ACCELERATION_ANGLE_FROM_Y);
+        }
+        return accelerationAngleFromY;
+    }
+
     /**
      * The angle between the acceleration vector and Z axis
      */
-    Double accelerationAngleFromZ;
+    public Double getAccelerationAngleFromZ() {
+        if (!isEnabled(ACCELERATION_ANGLE_FROM_Z)) {
+            return null;
+        }
+        if (!isComputed(ACCELERATION_ANGLE_FROM_Z)) {
+            accelerationAngleFromZ = MeasurementValueCalculator.angleBetweenVectorComponentAndAxis(measurement.getAccelerationZ(), accelerationTotal());
+            setComputed(ACCELERATION_ANGLE_FROM_Z);
+        }
+        return accelerationAngleFromZ;
+    }
+
     /**
      * Absolute humidity in g/m^3
      */
-    Double absoluteHumidity;
+    public Double getAbsoluteHumidity() {
+        if (!isEnabled(ABSOLUTE_HUMIDITY)) {
+            return null;
+        }
+        if (!isComputed(ABSOLUTE_HUMIDITY)) {
+            absoluteHumidity = MeasurementValueCalculator.absoluteHumidity(measurement.getTemperature(), measurement.getHumidity(), equilibriumVaporPressure());
+            setComputed(ABSOLUTE_HUMIDITY);
+        }
+        return absoluteHumidity;
+    }
+
     /**
      * Dew point in Celsius
      */
-    Double dewPoint;
+    public Double getDewPoint() {
+        if (!isEnabled(DEW_POINT)) {
+            return null;
+        }
+        if (!isComputed(DEW_POINT)) {
+            dewPoint = MeasurementValueCalculator.dewPoint(measurement.getTemperature(), measurement.getHumidity(), equilibriumVaporPressure());
+            setComputed(DEW_POINT);
+        }
+        return dewPoint;
+    }
+
     /**
      * Vapor pressure of water
      */
-    Double equilibriumVaporPressure;
+    public Double getEquilibriumVaporPressure() {
+        return isEnabled(EQUILIBRIUM_VAPOR_PRESSURE) ? equilibriumVaporPressure() : null;
+    }
+
     /**
      * Density of air
      */
-    Double airDensity;
+    public Double getAirDensity() {
+        if (!isEnabled(AIR_DENSITY)) {
+            return null;
+        }
+        if (!isComputed(AIR_DENSITY)) {
+            airDensity = MeasurementValueCalculator.airDensity(measurement.getTemperature(), measurement.getHumidity(), measurement.getPressure(), equilibriumVaporPressure());
+            setComputed(AIR_DENSITY);
+        }
+        return airDensity;
+    }
+
+    /**
+     * A value derived by a {@link DerivedValuePlugin}
+     *
+     * @param name an output of the plugin
+     * @return the value, or null if it was not derived
+     */
+    public Double getExtra(String name) {
+        int index = pipeline == null ? -1 : pipeline.indexOfOutput(name);
+        return index < 0 || Double.isNaN(extras[index]) ? null : extras[index];
+    }
+
+    /**
+     * @return the values derived by {@link DerivedValuePlugin}s, by name
+     */
+    public Map<String, Double> getExtras() {
+        if (pipeline == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (int k = 0; k < extras.length; k++) {
+            if (!Double.isNaN(extras[k])) {
+                values.put(pipeline.getOutputs().get(k), extras[k]);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The total acceleration, which is shared by the angles whether or not
+     * it was requested itself
+     */
+    private Double accelerationTotal() {
+        if (!isComputed(ACCELERATION_TOTAL)) {
+            accelerationTotal = MeasurementValueCalculator.totalAcceleration(measurement.getAccelerationX(), measurement.getAccelerationY(), measurement.getAccelerationZ());
+            setComputed(ACCELERATION_TOTAL);
+        }
+        return accelerationTotal;
+    }
+
+    /**
+     * The vapor pressure, which is shared by the humidity values whether or
+     * not it was requested itself
+     */
+    private Double equilibriumVaporPressure() {
+        if (!isComputed(EQUILIBRIUM_VAPOR_PRESSURE)) {
+            equilibriumVaporPressure = MeasurementValueCalculator.equilibriumVaporPressure(measurement.getTemperature());
+            setComputed(EQUILIBRIUM_VAPOR_PRESSURE);
+        }
+        return equilibriumVaporPressure;
+    }
+
+    private boolean isEnabled(DerivedField field) {
+        return (fields & field.bit()) != 0;
+    }
+
+    private boolean isComputed(DerivedField field) {
+        return (computed & field.bit()) != 0;
+    }
+
+    private void setComputed(DerivedField field) {
+        computed |= field.bit();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RuuviDerivedValue)) {
+            return false;
+        }
+        RuuviDerivedValue other = (RuuviDerivedValue) o;
+        return Objects.equals(getAccelerationTotal(), other.getAccelerationTotal())
+                && Objects.equals(getAccelerationAngleFromX(), other.getAccelerationAngleFromX())
+                && Objects.equals(getAccelerationAngleFromY(), other.getAccelerationAngleFromY())
+                && Objects.equals(getAccelerationAngleFromZ(), other.getAccelerationAngleFromZ())
+                && Objects.equals(getAbsoluteHumidity(), other.getAbsoluteHumidity())
+                && Objects.equals(getDewPoint(), other.getDewPoint())
+                && Objects.equals(getEquilibriumVaporPressure(), other.getEquilibriumVaporPressure())
+                && Objects.equals(getAirDensity(), other.getAirDensity())
+                && getExtras().equals(other.getExtras());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getAccelerationTotal(), getAccelerationAngleFromX(), getAccelerationAngleFromY(), getAccelerationAngleFromZ(),
+                getAbsoluteHumidity(), getDewPoint(), getEquilibriumVaporPressure(), getAirDensity(), getExtras());
+    }
+
+    @Override
+    public String toString() {
+        return "RuuviDerivedValue(accelerationTotal=" + getAccelerationTotal()
+                + ", accelerationAngleFromX=" + getAccelerationAngleFromX()
+                + ", accelerationAngleFromY=" + getAccelerationAngleFromY()
+                + ", accelerationAngleFromZ=" + getAccelerationAngleFromZ()
+                + ", absoluteHumidity=" + getAbsoluteHumidity()
+                + ", dewPoint=" + getDewPoint()
+                + ", equilibriumVaporPressure=" + getEquilibriumVaporPressure()
+                + ", airDensity=" + getAirDensity()
+                + (pipeline == null ? "" : ", extras=" + getExtras()) + ")";
+    }
 }
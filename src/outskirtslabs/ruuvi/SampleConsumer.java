@@ -0,0 +1,15 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * Receives the values of a field read from a {@link TimeSeriesStore}, one
+ * at a time and without boxing them
+ */
+@FunctionalInterface
+public interface SampleConsumer {
+    /**
+     * @param time  when the measurement was taken, in milliseconds since the
+     *              epoch
+     * @param value the value of the field
+     */
+    void accept(long time, double value);
+}
@@ -0,0 +1,34 @@
+package outskirtslabs.ruuvi;
+
+import lombok.Value;
+
+/**
+ * How well the scan windows of a duty-cycled adapter catch the tags
+ *
+ * @see Receiver#setScanDutyCycle(java.time.Duration)
+ */
+@Value
+public class ScanCoverage {
+    /**
+     * The tags the windows are planned for
+     */
+    int tags;
+    long windows;
+    /**
+     * The fraction of the time the adapter scanned
+     */
+    double dutyCycle;
+    /**
+     * The broadcasts the windows were planned to catch, one per tag per window
+     */
+    long expected;
+    long received;
+
+    /**
+     * @return the fraction of the expected broadcasts that were received, 1
+     * before any window ended
+     */
+    public double getCoverage() {
+        return expected == 0 ? 1 : (double) received / expected;
+    }
+}
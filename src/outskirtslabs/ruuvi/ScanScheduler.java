@@ -0,0 +1,418 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Plans the windows in which an adapter scans when the receiver duty-cycles
+ * its scan, so that each tag is still heard about once per sampling interval.
+ * <p>
+ * The broadcast interval of each tag is learned from the arrival times of its
+ * measurements, divided by the difference of their sequence numbers when the
+ * tag sends them. The next broadcasts of a tag are predicted from its last
+ * arrival, and each window is the shortest one that covers a predicted
+ * broadcast of every tag, give or take a margin per tag. A tag missed by a
+ * window gets a wider margin for the next one, and a tag caught gets a
+ * narrower one. Tags missed by several windows in a row are left out until
+ * they are heard again. Regular discovery windows of a few seconds hear the
+ * new tags and those left out. When the window would take most of the
+ * sampling interval, the scan just keeps running.
+ * <p>
+ * The times are read from a clock in {@link System#nanoTime()} nanoseconds,
+ * which the tests replace with a simulated one. Measurements are
+ * observed on the threads decoding the packets of the adapter while the
+ * windows are planned on the thread supervising it. Each decoding thread
+ * observes its tags in a {@link Shard} of its own, so the threads don't
+ * contend with each other, and the planning locks all the shards.
+ */
+final class ScanScheduler {
+
+    /**
+     * How long a discovery window scans, long enough to hear a tag
+     * broadcasting at the default interval of current firmware twice
+     */
+    static final long DISCOVERY_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(3000);
+    static final long DISCOVERY_PERIOD_NANOS = TimeUnit.MINUTES.toNanos(1);
+    /**
+     * The margin around a predicted broadcast, for the random delay the tags
+     * add to each broadcast and the time the scan takes to start
+     */
+    static final long MIN_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    /**
+     * Pauses shorter than this are not worth stopping the scan for
+     */
+    static final long MIN_PAUSE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final int MAX_MISSES = 3;
+    /**
+     * Tags not heard for this long are forgotten
+     */
+    static final long FORGET_NANOS = TimeUnit.HOURS.toNanos(1);
+    /**
+     * With more tags than this the phases are not searched for the shortest
+     * window, which is then close to the longest broadcast interval anyway
+     */
+    private static final int MAX_PLANNED_SEARCH = 64;
+    /**
+     * Sequence numbers further apart than this don't teach the interval, as
+     * the tag may have restarted
+     */
+    private static final int MAX_LEARNING_STEPS = 64;
+
+    private final long samplingIntervalNanos;
+    private final LongSupplier nanoClock;
+    private final Shard[] shards;
+
+    // written with all the shards locked
+    private long windowStart = Long.MIN_VALUE;
+    private long windowEnd = Long.MIN_VALUE;
+    private long lastDiscovery;
+    private boolean discovered;
+    private long firstPlan = Long.MIN_VALUE;
+    private long scanningNanos;
+    private long windows;
+    private long expected;
+    private long received;
+
+    /**
+     * @param shards    the number of threads observing measurements
+     * @param nanoClock the current time, such as {@link System#nanoTime()}
+     */
+    ScanScheduler(long samplingIntervalNanos, int shards, LongSupplier nanoClock) {
+        if (samplingIntervalNanos <= 0) {
+            throw new IllegalArgumentException("The sampling interval must be positive");
+        }
+        this.samplingIntervalNanos = samplingIntervalNanos;
+        this.nanoClock = nanoClock;
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard();
+        }
+    }
+
+    long getSamplingIntervalNanos() {
+        return samplingIntervalNanos;
+    }
+
+    /**
+     * @return the current time of the clock of the scheduler, which the
+     * windows are relative to
+     */
+    long nanoTime() {
+        return nanoClock.getAsLong();
+    }
+
+    /**
+     * @return the shard of the thread with the index
+     */
+    Shard shard(int thread) {
+        return shards[thread];
+    }
+
+    /**
+     * Plans the next window, which starts now or later
+     */
+    void plan() {
+        long nowNanos = nanoClock.getAsLong();
+        lockAll();
+        try {
+            planLocked(nowNanos);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    private void planLocked(long nowNanos) {
+        if (firstPlan == Long.MIN_VALUE) {
+            firstPlan = nowNanos;
+        }
+        long due = windowStart == Long.MIN_VALUE ? nowNanos : Math.max(nowNanos, windowStart + samplingIntervalNanos);
+        int plannable = 0;
+        long longest = 0;
+        boolean learning = false;
+        for (Shard shard : shards) {
+            MacIndex index = shard.index;
+            int limit = index.indexLimit();
+            for (int i = 0; i < limit; i++) {
+                shard.planned[i] = false;
+                shard.caught[i] = false;
+                long mac = index.keyAt(i);
+                if (mac == MacIndex.NO_KEY) {
+                    continue;
+                }
+                if (nowNanos - shard.lastArrival[i] > FORGET_NANOS) {
+                    index.remove(mac);
+                    continue;
+                }
+                if (shard.misses[i] >= MAX_MISSES) {
+                    continue;
+                }
+                if (shard.interval[i] == 0) {
+                    // heard once, the discovery windows hear it again
+                    learning |= nowNanos - shard.lastArrival[i] < DISCOVERY_PERIOD_NANOS;
+                    continue;
+                }
+                shard.planned[i] = true;
+                plannable++;
+                longest = Math.max(longest, shard.interval[i] + 2 * shard.margin[i]);
+            }
+        }
+        if (!discovered || learning || plannable == 0 || nowNanos - lastDiscovery >= DISCOVERY_PERIOD_NANOS) {
+            // scan long enough to hear the tags broadcasting at the usual
+            // intervals, including new ones, and count those expected in it
+            discovered = true;
+            lastDiscovery = nowNanos;
+            long end = nowNanos + DISCOVERY_WINDOW_NANOS;
+            setWindow(nowNanos, end);
+            for (Shard shard : shards) {
+                int limit = shard.index.indexLimit();
+                for (int i = 0; i < limit; i++) {
+                    shard.planned[i] = shard.planned[i] && shard.nextBroadcast(i, nowNanos) + shard.margin[i] <= end;
+                }
+            }
+            return;
+        }
+        long start;
+        long end;
+        if (plannable > MAX_PLANNED_SEARCH) {
+            start = due;
+            end = due + longest;
+        } else {
+            start = due;
+            end = Long.MAX_VALUE;
+            for (Shard shard : shards) {
+                int limit = shard.index.indexLimit();
+                for (int j = 0; j < limit; j++) {
+                    if (shard.planned[j]) {
+                        long candidate = shard.nextBroadcast(j, due) - shard.margin[j];
+                        long candidateEnd = windowEnd(candidate);
+                        if (candidateEnd - candidate < end - start) {
+                            start = candidate;
+                            end = candidateEnd;
+                        }
+                    }
+                }
+            }
+        }
+        if (start - nowNanos < MIN_PAUSE_NANOS || end - start >= samplingIntervalNanos - MIN_PAUSE_NANOS) {
+            // not worth pausing, keep scanning until the next sampling interval
+            start = nowNanos;
+            end = Math.max(end, nowNanos + samplingIntervalNanos);
+        }
+        setWindow(start, end);
+    }
+
+    /**
+     * @return the end of the shortest window starting at the time that covers
+     * a broadcast of every planned tag with its margin
+     */
+    private long windowEnd(long start) {
+        long end = start;
+        for (Shard shard : shards) {
+            int limit = shard.index.indexLimit();
+            for (int i = 0; i < limit; i++) {
+                if (shard.planned[i]) {
+                    end = Math.max(end, shard.nextBroadcast(i, start) + shard.margin[i]);
+                }
+            }
+        }
+        return end;
+    }
+
+    private void setWindow(long start, long end) {
+        windowStart = start;
+        windowEnd = end;
+    }
+
+    long getWindowStart() {
+        return windowStart;
+    }
+
+    long getWindowEnd() {
+        return windowEnd;
+    }
+
+    /**
+     * Counts the tags the window caught and missed, adjusting their margins
+     *
+     * @param scannedNanos how long the scan actually ran in the window
+     */
+    void windowEnded(long scannedNanos) {
+        lockAll();
+        try {
+            windows++;
+            scanningNanos += scannedNanos;
+            for (Shard shard : shards) {
+                int limit = shard.index.indexLimit();
+                for (int i = 0; i < limit; i++) {
+                    if (!shard.planned[i]) {
+                        continue;
+                    }
+                    shard.planned[i] = false;
+                    expected++;
+                    if (shard.caught[i]) {
+                        received++;
+                        shard.margin[i] = Math.max(MIN_MARGIN_NANOS, shard.margin[i] * 3 / 4);
+                    } else {
+                        shard.misses[i]++;
+                        shard.margin[i] = Math.min(Math.max(MIN_MARGIN_NANOS, shard.interval[i] / 2), shard.margin[i] * 2);
+                    }
+                    shard.caught[i] = false;
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * @return the coverage of the windows so far
+     */
+    ScanCoverage coverage() {
+        long nowNanos = nanoClock.getAsLong();
+        lockAll();
+        try {
+            int tags = 0;
+            for (Shard shard : shards) {
+                int limit = shard.index.indexLimit();
+                for (int i = 0; i < limit; i++) {
+                    if (shard.index.keyAt(i) != MacIndex.NO_KEY && shard.misses[i] < MAX_MISSES) {
+                        tags++;
+                    }
+                }
+            }
+            long elapsed = firstPlan == Long.MIN_VALUE ? 0 : nowNanos - firstPlan;
+            return new ScanCoverage(tags, windows, elapsed == 0 ? 1 : Math.min(1, (double) scanningNanos / elapsed),
+                    expected, received);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * @return the learned broadcast interval of the tag, or 0 if not known
+     */
+    long getInterval(long mac) {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                int i = shard.index.indexOf(mac);
+                if (i >= 0) {
+                    return shard.interval[i];
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return 0;
+    }
+
+    private void lockAll() {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = shards.length - 1; i >= 0; i--) {
+            shards[i].lock.unlock();
+        }
+    }
+
+    /**
+     * The tags observed by one thread. Its lock is only contended while
+     * planning, once per window.
+     */
+    final class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final MacIndex index = new MacIndex(64);
+        private long[] lastArrival = new long[64];
+        private int[] lastSequence = new int[64];
+        private long[] interval = new long[64];
+        private long[] margin = new long[64];
+        private int[] misses = new int[64];
+        private boolean[] planned = new boolean[64];
+        private boolean[] caught = new boolean[64];
+
+        /**
+         * Records that a measurement of the tag arrived
+         *
+         * @param sequence the measurement sequence number, or -1 if the tag
+         *                 doesn't send one
+         */
+        void observe(long mac, int sequence) {
+            long nowNanos = nanoClock.getAsLong();
+            lock.lock();
+            try {
+                observeLocked(mac, sequence, nowNanos);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void observeLocked(long mac, int sequence, long nowNanos) {
+            int i = index.indexOf(mac);
+            if (i < 0) {
+                i = index.add(mac);
+                grow(i);
+                lastArrival[i] = nowNanos;
+                lastSequence[i] = sequence;
+                interval[i] = 0;
+                margin[i] = MIN_MARGIN_NANOS;
+                misses[i] = 0;
+                planned[i] = false;
+                caught[i] = false;
+                return;
+            }
+            long elapsed = nowNanos - lastArrival[i];
+            long estimate = 0;
+            if (sequence >= 0 && lastSequence[i] >= 0) {
+                int steps = SequenceTracker.distance(lastSequence[i], sequence);
+                if (steps == 0) {
+                    return; // another copy of the same broadcast
+                }
+                if (steps <= MAX_LEARNING_STEPS) {
+                    estimate = elapsed / steps;
+                }
+            } else if (interval[i] == 0) {
+                estimate = elapsed;
+            } else if (elapsed < interval[i] / 2) {
+                return; // another copy of the same broadcast
+            } else {
+                estimate = elapsed / Math.max(1, Math.round((double) elapsed / interval[i]));
+            }
+            if (estimate > 0) {
+                interval[i] = interval[i] == 0 ? estimate : interval[i] + (estimate - interval[i]) / 8;
+            }
+            lastArrival[i] = nowNanos;
+            lastSequence[i] = sequence;
+            misses[i] = 0;
+            if (planned[i] && nowNanos >= windowStart) {
+                caught[i] = true;
+            }
+        }
+
+        /**
+         * @return the first predicted broadcast of the tag whose margin starts
+         * at or after the time
+         */
+        private long nextBroadcast(int i, long fromNanos) {
+            long first = fromNanos + margin[i] - lastArrival[i];
+            long steps = first <= 0 ? 0 : (first + interval[i] - 1) / interval[i];
+            return lastArrival[i] + steps * interval[i];
+        }
+
+        private void grow(int i) {
+            lastArrival = MacIndex.grow(lastArrival, i);
+            lastSequence = MacIndex.grow(lastSequence, i);
+            interval = MacIndex.grow(interval, i);
+            margin = MacIndex.grow(margin, i);
+            misses = MacIndex.grow(misses, i);
+            if (i >= planned.length) {
+                planned = Arrays.copyOf(planned, Math.max(i + 1, planned.length * 2));
+                caught = Arrays.copyOf(caught, planned.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * Notified when a {@link SequenceTracker} finds sequence numbers missing.
+ * Added with {@link SequenceTracker#addGapListener(SequenceGapListener)}.
+ */
+@FunctionalInterface
+public interface SequenceGapListener {
+
+    /**
+     * Called on the thread passing the measurement to the tracker. Missing
+     * sequence numbers that arrive late are counted as reordered, without
+     * another call.
+     *
+     * @param previous the latest sequence number received before
+     * @param sequence the sequence number received
+     * @param missing  how many sequence numbers are missing in between
+     * @param time     the time of the measurement, in milliseconds since the
+     *                 epoch
+     */
+    void gap(String mac, int previous, int sequence, int missing, long time);
+}
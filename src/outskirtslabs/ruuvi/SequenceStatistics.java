@@ -0,0 +1,62 @@
+package outskirtslabs.ruuvi;
+
+import lombok.Value;
+
+/**
+ * The sequence numbers received from a tag, or from all the tags, as counted
+ * by a {@link SequenceTracker}
+ */
+@Value
+public class SequenceStatistics {
+    /**
+     * The MAC address of the tag, or null for the total of all the tags
+     */
+    String mac;
+    /**
+     * The distinct sequence numbers received
+     */
+    long received;
+    /**
+     * The sequence numbers the tag sent since the first one received,
+     * including those missed and those from just before it that arrived late
+     */
+    long expected;
+    /**
+     * The number of times sequence numbers were missed
+     */
+    long gaps;
+    /**
+     * The most sequence numbers missed in a row
+     */
+    int largestGap;
+    /**
+     * Sequence numbers received after a later one, which are not missed
+     * after all
+     */
+    long reordered;
+    long duplicates;
+    /**
+     * The number of times the sequence number wrapped around to 0
+     */
+    long wraps;
+    /**
+     * The number of times the sequence number jumped in a way only a restart
+     * of the tag explains, when counting started over
+     */
+    long restarts;
+
+    /**
+     * @return the sequence numbers missed
+     */
+    public long getLost() {
+        return expected - received;
+    }
+
+    /**
+     * @return the fraction of the expected sequence numbers that were
+     * received, 1 if none are expected
+     */
+    public double getReceivedRatio() {
+        return expected == 0 ? 1 : (double) received / expected;
+    }
+}
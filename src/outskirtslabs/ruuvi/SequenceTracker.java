@@ -0,0 +1,278 @@
+package outskirtslabs.ruuvi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Counts the measurement sequence numbers received from each tag, to tell
+ * how many broadcasts are missed. Add it as a listener:
+ * <pre>
+ * SequenceTracker tracker = new SequenceTracker();
+ * receiver.addCompactMeasurementListener(tracker);
+ * double received = tracker.getTotal().getReceivedRatio();
+ * </pre>
+ * Only the tags sending sequence numbers, data format 5, are tracked. The
+ * sequence number is incremented with each new measurement and wraps around
+ * from 65534 to 0, as 0xFFFF means that it is not available. The sequence
+ * numbers within {@link #WINDOW} of the latest one are remembered, so that
+ * those arriving late and copies are told apart exactly, including those
+ * sent before the first one received. A jump backwards
+ * further than that, or a long jump forwards of more sequence numbers than
+ * the tag can send in the time since the previous measurement, is taken as a
+ * restart of the tag.
+ * <p>
+ * Copies of a broadcast heard by several adapters count as duplicates unless
+ * the receiver passes only one of them, and broadcasts dropped by
+ * {@link Receiver#setDeduplication(boolean, java.time.Duration) the rate limit}
+ * or {@link Receiver#setScanDutyCycle(java.time.Duration) not scanned for}
+ * count as missed. The counting costs a few array updates per measurement;
+ * the methods are synchronized, so the statistics can be read from any
+ * thread.
+ */
+public final class SequenceTracker implements CompactMeasurementListener {
+
+    /**
+     * How many of the latest sequence numbers of a tag are remembered
+     */
+    public static final int WINDOW = 64;
+    /**
+     * The sequence numbers, 0 to 65534
+     */
+    static final int SEQUENCE_RANGE = 0xFFFF;
+    /**
+     * The shortest interval at which the firmware takes measurements, used
+     * to tell a restart from missed sequence numbers
+     */
+    private static final long MIN_MEASUREMENT_INTERVAL_MILLIS = 100;
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * @return how many sequence numbers after the first the second one is,
+     * wrapping around
+     */
+    static int distance(int from, int to) {
+        int distance = (to - from) % SEQUENCE_RANGE;
+        return distance < 0 ? distance + SEQUENCE_RANGE : distance;
+    }
+
+    private final Set<SequenceGapListener> gapListeners = new CopyOnWriteArraySet<>();
+    private MacIndex index = new MacIndex(INITIAL_CAPACITY);
+    private int[] lastSequence = new int[INITIAL_CAPACITY];
+    private long[] lastTime = new long[INITIAL_CAPACITY];
+    /**
+     * Bit k is set if the sequence number k before the latest one was
+     * received
+     */
+    private long[] seen = new long[INITIAL_CAPACITY];
+    /**
+     * How many sequence numbers before the latest one the tracking started,
+     * at most {@link #WINDOW}
+     */
+    private int[] span = new int[INITIAL_CAPACITY];
+    private long[] received = new long[INITIAL_CAPACITY];
+    private long[] expected = new long[INITIAL_CAPACITY];
+    private long[] gaps = new long[INITIAL_CAPACITY];
+    private int[] largestGap = new int[INITIAL_CAPACITY];
+    private long[] reordered = new long[INITIAL_CAPACITY];
+    private long[] duplicates = new long[INITIAL_CAPACITY];
+    private long[] wraps = new long[INITIAL_CAPACITY];
+    private long[] restarts = new long[INITIAL_CAPACITY];
+
+    @Override
+    public void measured(CompactRuuviValue measurement) {
+        if (measurement.has(CompactRuuviValue.MEASUREMENT_SEQUENCE_NUMBER) && measurement.has(CompactRuuviValue.MAC)) {
+            track(measurement.getMac(), measurement.getMeasurementSequenceNumber(),
+                    measurement.has(CompactRuuviValue.TIME) ? measurement.getTime() : System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Counts a sequence number received from the tag
+     *
+     * @param mac  the MAC address as a number, see {@link CompactRuuviValue#getMac()}
+     * @param time the time of the measurement, in milliseconds since the epoch
+     */
+    public void track(long mac, int sequence, long time) {
+        int gap = 0;
+        int previous;
+        synchronized (this) {
+            int i = index.indexOf(mac);
+            if (i < 0) {
+                i = index.add(mac);
+                grow(i);
+                start(i, sequence, time);
+                return;
+            }
+            previous = lastSequence[i];
+            int forward = distance(previous, sequence);
+            int backward = SEQUENCE_RANGE - forward;
+            if (forward == 0) {
+                duplicates[i]++;
+                return;
+            }
+            if (backward < WINDOW) {
+                long bit = 1L << backward;
+                if ((seen[i] & bit) != 0) {
+                    duplicates[i]++;
+                } else {
+                    seen[i] |= bit;
+                    reordered[i]++;
+                    received[i]++;
+                    if (backward > span[i]) { // sent before the first one received
+                        expected[i]++;
+                    }
+                }
+                return;
+            }
+            if (forward > SEQUENCE_RANGE / 2
+                    || forward > WINDOW && forward > Math.max(0, time - lastTime[i]) / MIN_MEASUREMENT_INTERVAL_MILLIS + WINDOW) {
+                restarts[i]++;
+                start(i, sequence, time);
+                return;
+            }
+            if (sequence < previous) {
+                wraps[i]++;
+            }
+            seen[i] = forward >= WINDOW ? 1 : seen[i] << forward | 1;
+            span[i] = Math.min(WINDOW, span[i] + forward);
+            lastSequence[i] = sequence;
+            lastTime[i] = time;
+            received[i]++;
+            expected[i] += forward;
+            if (forward > 1) {
+                gap = forward - 1;
+                gaps[i]++;
+                largestGap[i] = Math.max(largestGap[i], gap);
+            }
+        }
+        if (gap > 0 && !gapListeners.isEmpty()) {
+            String macString = CompactRuuviValue.macToString(mac);
+            for (SequenceGapListener listener : gapListeners) {
+                listener.gap(macString, previous, sequence, gap, time);
+            }
+        }
+    }
+
+    private void start(int i, int sequence, long time) {
+        lastSequence[i] = sequence;
+        lastTime[i] = time;
+        seen[i] = 1;
+        span[i] = 0;
+        received[i]++;
+        expected[i]++;
+    }
+
+    /**
+     * @return the statistics of the tag, or empty if it never sent a
+     * sequence number
+     */
+    public synchronized Optional<SequenceStatistics> get(String mac) {
+        long key = Util.macToLong(mac);
+        int i = key == -1 ? -1 : index.indexOf(key);
+        return i < 0 ? Optional.empty() : Optional.of(statistics(i));
+    }
+
+    /**
+     * @return the statistics of each tag
+     */
+    public synchronized List<SequenceStatistics> getAll() {
+        List<SequenceStatistics> all = new ArrayList<>(index.size());
+        for (int i = 0; i < index.indexLimit(); i++) {
+            if (index.keyAt(i) != MacIndex.NO_KEY) {
+                all.add(statistics(i));
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @return the sums of the statistics of all the tags, with the largest
+     * gap of any of them
+     */
+    public synchronized SequenceStatistics getTotal() {
+        long totalReceived = 0, totalExpected = 0, totalGaps = 0, totalReordered = 0, totalDuplicates = 0, totalWraps = 0, totalRestarts = 0;
+        int largest = 0;
+        for (int i = 0; i < index.indexLimit(); i++) {
+            if (index.keyAt(i) != MacIndex.NO_KEY) {
+                totalReceived += received[i];
+                totalExpected += expected[i];
+                totalGaps += gaps[i];
+                largest = Math.max(largest, largestGap[i]);
+                totalReordered += reordered[i];
+                totalDuplicates += duplicates[i];
+                totalWraps += wraps[i];
+                totalRestarts += restarts[i];
+            }
+        }
+        return new SequenceStatistics(null, totalReceived, totalExpected, totalGaps, largest, totalReordered,
+                totalDuplicates, totalWraps, totalRestarts);
+    }
+
+    private SequenceStatistics statistics(int i) {
+        return new SequenceStatistics(CompactRuuviValue.macToString(index.keyAt(i)), received[i], expected[i], gaps[i],
+                largestGap[i], reordered[i], duplicates[i], wraps[i], restarts[i]);
+    }
+
+    /**
+     * Stops tracking the tag, and forgets its statistics
+     */
+    public synchronized void remove(String mac) {
+        long key = Util.macToLong(mac);
+        int i = key == -1 ? -1 : index.remove(key);
+        if (i >= 0) {
+            clear(i);
+        }
+    }
+
+    /**
+     * Forgets the statistics of all the tags
+     */
+    public synchronized void reset() {
+        index = new MacIndex(INITIAL_CAPACITY);
+        for (int i = 0; i < received.length; i++) {
+            clear(i);
+        }
+    }
+
+    private void clear(int i) {
+        received[i] = 0;
+        expected[i] = 0;
+        gaps[i] = 0;
+        largestGap[i] = 0;
+        reordered[i] = 0;
+        duplicates[i] = 0;
+        wraps[i] = 0;
+        restarts[i] = 0;
+    }
+
+    /**
+     * Adds a listener notified of the gaps in the sequence numbers of each
+     * tag, on the thread passing the measurements to the tracker
+     */
+    public void addGapListener(SequenceGapListener listener) {
+        gapListeners.add(Objects.requireNonNull(listener));
+    }
+
+    public void removeGapListener(SequenceGapListener listener) {
+        gapListeners.remove(listener);
+    }
+
+    private void grow(int i) {
+        lastSequence = MacIndex.grow(lastSequence, i);
+        lastTime = MacIndex.grow(lastTime, i);
+        seen = MacIndex.grow(seen, i);
+        span = MacIndex.grow(span, i);
+        received = MacIndex.grow(received, i);
+        expected = MacIndex.grow(expected, i);
+        gaps = MacIndex.grow(gaps, i);
+        largestGap = MacIndex.grow(largestGap, i);
+        reordered = MacIndex.grow(reordered, i);
+        duplicates = MacIndex.grow(duplicates, i);
+        wraps = MacIndex.grow(wraps, i);
+        restarts = MacIndex.grow(restarts, i);
+    }
+}
@@ -0,0 +1,104 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The position of a named reader in a {@link MeasurementSpool}, which is the
+ * offset of the next measurement to deliver. It is kept in a file of its own,
+ * written and synced when committed, so delivery resumes from the last
+ * committed position after a restart.
+ */
+final class SpoolCursor {
+
+    private static final Logger LOG = Logger.getLogger(SpoolCursor.class);
+
+    static final String SUFFIX = ".cursor";
+
+    final String name;
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer scratch = ByteBuffer.allocate(Long.BYTES);
+    volatile long offset;
+    private long committed;
+    /**
+     * Whether a listener is reading through this cursor, guarded by the spool
+     */
+    boolean attached;
+    // the segment being read, only used by the thread reading through this cursor
+    SpoolSegment segment;
+    ByteBuffer view;
+
+    private SpoolCursor(String name, Path path, FileChannel channel, long offset) {
+        this.name = name;
+        this.path = path;
+        this.channel = channel;
+        this.offset = offset;
+        this.committed = offset;
+    }
+
+    /**
+     * Opens the cursor file, creating it at the given offset if it doesn't
+     * exist
+     */
+    static SpoolCursor open(Path directory, String name, long initialOffset) throws IOException {
+        Path path = directory.resolve(name + SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            SpoolCursor cursor;
+            if (channel.size() >= Long.BYTES) {
+                ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, buffer.position()) < 0) {
+                        throw new EOFException("Truncated spool cursor: " + path);
+                    }
+                }
+                cursor = new SpoolCursor(name, path, channel, buffer.getLong(0));
+            } else {
+                cursor = new SpoolCursor(name, path, channel, initialOffset);
+                cursor.committed = -1;
+                cursor.commit();
+            }
+            return cursor;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the offset to the file and syncs it, if it has changed
+     */
+    void commit() throws IOException {
+        long current = offset;
+        if (current == committed) {
+            return;
+        }
+        scratch.clear();
+        scratch.putLong(current).flip();
+        while (scratch.hasRemaining()) {
+            channel.write(scratch, scratch.position());
+        }
+        channel.force(false);
+        committed = current;
+    }
+
+    void close() {
+        try {
+            commit();
+        } catch (IOException e) {
+            LOG.warn("Committing spool cursor " + path + " failed", e);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("Closing spool cursor " + path + " failed", e);
+        }
+    }
+}
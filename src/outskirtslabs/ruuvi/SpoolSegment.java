@@ -0,0 +1,176 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * A memory-mapped file of a {@link MeasurementSpool}, named after the offset
+ * of its first byte in the spool. It starts with a header, followed by the
+ * records: the length of the encoded measurement, its CRC-32C and the
+ * measurement itself. The file is created at its full size, so the unused
+ * rest of it reads as zeros.
+ */
+final class SpoolSegment {
+
+    private static final Logger LOG = Logger.getLogger(SpoolSegment.class);
+
+    static final String SUFFIX = ".seg";
+    static final int MAGIC = 0x52535047; // "RSPG"
+    static final int HEADER_BYTES = 8;
+    static final int RECORD_HEADER_BYTES = 8;
+
+    final long base;
+    final Path path;
+    final int size;
+    final MappedByteBuffer buffer;
+    private final FileChannel channel;
+    /**
+     * The position after the last record, written by the appending thread
+     * before it publishes the end offset of the spool
+     */
+    int limit;
+    // guarded by this
+    private int pins;
+    private boolean deleted;
+
+    private SpoolSegment(long base, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.base = base;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.size = buffer.capacity();
+    }
+
+    static SpoolSegment create(Path directory, long base, int size) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", base, SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, SpoolCodec.VERSION);
+            SpoolSegment segment = new SpoolSegment(base, path, channel, buffer);
+            segment.limit = HEADER_BYTES;
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing segment and finds the end of its records, which is
+     * the first record that is missing or doesn't match its checksum, as
+     * left by a crash in the middle of writing it. Whatever follows that is
+     * erased.
+     */
+    static SpoolSegment open(Path path) throws IOException {
+        String fileName = path.getFileName().toString();
+        long base = Long.parseLong(fileName.substring(0, fileName.length() - SUFFIX.length()));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a spool segment: " + path);
+            }
+            if (buffer.getInt(4) != SpoolCodec.VERSION) {
+                throw new IOException("Unsupported spool segment version " + buffer.getInt(4) + ": " + path);
+            }
+            SpoolSegment segment = new SpoolSegment(base, path, channel, buffer);
+            segment.recover();
+            return segment;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void recover() {
+        CRC32C crc = new CRC32C();
+        int position = HEADER_BYTES;
+        while (position + RECORD_HEADER_BYTES <= size) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > size - position - RECORD_HEADER_BYTES) {
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.limit(position + RECORD_HEADER_BYTES + length).position(position + RECORD_HEADER_BYTES);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+            position += RECORD_HEADER_BYTES + length;
+        }
+        limit = position;
+        if (position + 4 <= size && buffer.getInt(position) != 0) {
+            LOG.warn(String.format("Spool segment %s ends with an incomplete record at %d, erasing it", path, position));
+            ByteBuffer rest = buffer.duplicate();
+            rest.position(position);
+            byte[] zeros = new byte[Math.min(rest.remaining(), 64 * 1024)];
+            while (rest.hasRemaining()) {
+                rest.put(zeros, 0, Math.min(zeros.length, rest.remaining()));
+            }
+        }
+    }
+
+    boolean force() {
+        try {
+            buffer.force();
+            return true;
+        } catch (UncheckedIOException e) {
+            LOG.warn("Syncing spool segment " + path + " failed", e);
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.debug("Closing spool segment " + path + " failed", e);
+        }
+    }
+
+    /**
+     * Keeps the file from being deleted while it is synced without the lock
+     * of the spool
+     */
+    synchronized void pin() {
+        pins++;
+    }
+
+    synchronized void unpin() {
+        if (--pins == 0 && deleted) {
+            remove();
+        }
+    }
+
+    /**
+     * Closes and deletes the file, once it is no longer pinned. Readers which
+     * still have the segment keep reading its mapping.
+     */
+    synchronized void delete() {
+        deleted = true;
+        if (pins == 0) {
+            remove();
+        }
+    }
+
+    private void remove() {
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOG.warn("Deleting spool segment " + path + " failed", e);
+        }
+    }
+}
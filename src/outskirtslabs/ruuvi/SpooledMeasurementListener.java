@@ -0,0 +1,178 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Delivers the measurements of a {@link MeasurementSpool} to a
+ * {@link MeasurementListener} on its own thread, through a named cursor. When
+ * the listener throws an exception, for example because its database is
+ * unavailable, the same measurement is retried with an exponential backoff
+ * until it succeeds, while new measurements keep being spooled.
+ * <p>
+ * Instances are created with
+ * {@link Receiver#addSpooledMeasurementListener(MeasurementSpool, String, MeasurementListener)}.
+ * The derived values are calculated when the measurements are delivered.
+ */
+public final class SpooledMeasurementListener {
+
+    private static final Logger LOG = Logger.getLogger(SpooledMeasurementListener.class);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long RETRY_MIN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long RETRY_MAX_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final MeasurementSpool spool;
+    private final MeasurementListener listener;
+    private final SpoolCursor cursor;
+    private final int derivedFields;
+    private final long commitIntervalNanos;
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Thread consumer;
+    private volatile boolean running = true;
+    private volatile boolean consumerWaiting;
+    private volatile ReceiverMetrics metrics = ReceiverMetrics.NONE;
+
+    SpooledMeasurementListener(MeasurementSpool spool, String name, MeasurementListener listener, ThreadingMode threadingMode) throws IOException {
+        this.spool = spool;
+        this.listener = listener;
+        this.derivedFields = DerivedField.maskOf(listener.getDerivedFields());
+        this.commitIntervalNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(100), spool.getSyncIntervalNanos());
+        this.cursor = spool.attach(name, this);
+        this.consumer = threadingMode.newThread("ruuvi-spool-" + name, this::consume, true);
+        this.consumer.start();
+    }
+
+    public MeasurementListener getListener() {
+        return listener;
+    }
+
+    public MeasurementSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * @return the name of the cursor
+     */
+    public String getName() {
+        return cursor.name;
+    }
+
+    /**
+     * @return the number of bytes of spooled measurements not yet delivered
+     */
+    public long getLag() {
+        return Math.max(0, spool.getEndOffset() - cursor.offset);
+    }
+
+    /**
+     * @return the number of measurements delivered to the listener
+     */
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of times the listener threw an exception
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    void setMetrics(ReceiverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void wake() {
+        if (consumerWaiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Stops the consumer thread, waiting at most a few seconds for the
+     * listener to return, and commits the cursor. What was not delivered is
+     * delivered when the cursor is used again.
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (consumer.isAlive()) {
+            LOG.warn("Listener " + listener + " did not finish in time, interrupting it");
+            consumer.interrupt();
+        }
+    }
+
+    private void consume() {
+        CompactRuuviValue measurement = new CompactRuuviValue();
+        Backoff backoff = new Backoff(RETRY_MIN_NANOS, RETRY_MAX_NANOS);
+        long lastCommit = System.nanoTime();
+        try {
+            while (running && !Thread.currentThread().isInterrupted()) {
+                long next = spool.read(cursor, measurement);
+                if (next < 0) {
+                    consumerWaiting = true;
+                    if (running && cursor.offset >= spool.getEndOffset()) {
+                        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    }
+                    consumerWaiting = false;
+                } else if (deliver(measurement)) {
+                    cursor.offset = next;
+                    backoff.reset();
+                } else {
+                    long delay = backoff.nextDelayNanos();
+                    long deadline = System.nanoTime() + delay;
+                    for (long remaining = delay; running && remaining > 0; remaining = deadline - System.nanoTime()) {
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                }
+                if (System.nanoTime() - lastCommit >= commitIntervalNanos) {
+                    commit();
+                    lastCommit = System.nanoTime();
+                }
+            }
+        } finally {
+            commit();
+            spool.detach(cursor, this);
+        }
+        LOG.debug("Spool consumer " + Thread.currentThread().getName() + " finished");
+    }
+
+    private boolean deliver(CompactRuuviValue measurement) {
+        ReceiverMetrics metrics = this.metrics;
+        long start = metrics == ReceiverMetrics.NONE ? 0 : System.nanoTime();
+        boolean success;
+        try {
+            RuuviData data = MeasurementValueCalculator.calculateValues(measurement.toRuuviValue(), derivedFields);
+            listener.measured(data.getMeasurement(), data.getDerived());
+            delivered.increment();
+            success = true;
+        } catch (Exception e) {
+            failed.increment();
+            LOG.warn("Notifying spooled listener " + cursor.name + " failed, will retry", e);
+            success = false;
+        }
+        if (metrics != ReceiverMetrics.NONE) {
+            metrics.listenerNotified(listener, System.nanoTime() - start);
+        }
+        return success;
+    }
+
+    private void commit() {
+        try {
+            cursor.commit();
+        } catch (IOException e) {
+            LOG.warn("Committing spool cursor " + cursor.name + " failed", e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package outskirtslabs.ruuvi;
+
+import lombok.Value;
+
+/**
+ * The latest measurement of a tag held by a {@link LatestValueStore}
+ */
+@Value
+public class TagState {
+    /**
+     * MAC address of the tag, in the format of {@link RuuviValue#getMac()}
+     */
+    String mac;
+    RuuviValue measurement;
+    RuuviDerivedValue derived;
+    /**
+     * When the measurement was received, in milliseconds since the epoch
+     */
+    long lastSeen;
+
+    /**
+     * @return the RSSI of the measurement at the receiver, or null if unknown
+     */
+    public Integer getRssi() {
+        return measurement.getRssi();
+    }
+}
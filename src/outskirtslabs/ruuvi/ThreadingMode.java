@@ -0,0 +1,75 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The kind of threads a {@link Receiver} runs its supervised processes, their
+ * I/O and the asynchronous listeners on.
+ */
+public enum ThreadingMode {
+    /**
+     * Platform threads. The supervisors keep the JVM running until the
+     * receiver is disposed.
+     */
+    PLATFORM {
+        @Override
+        Thread newThread(String name, Runnable task, boolean daemon) {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(daemon);
+            return thread;
+        }
+    },
+    /**
+     * Virtual threads, which are cheap enough to give every process stream
+     * and listener a thread of its own. They are always daemon threads.
+     * Requires JDK 21 or later, {@link #PLATFORM} is used on earlier versions.
+     */
+    VIRTUAL {
+        @Override
+        Thread newThread(String name, Runnable task, boolean daemon) {
+            if (VIRTUAL_THREAD_FACTORY == null) {
+                return PLATFORM.newThread(name, task, daemon);
+            }
+            Thread thread = VIRTUAL_THREAD_FACTORY.newThread(task);
+            thread.setName(name);
+            return thread;
+        }
+    };
+
+    private static final Logger LOG = Logger.getLogger(ThreadingMode.class);
+
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = virtualThreadFactory();
+
+    /**
+     * @return whether threads of this mode can be created on this JVM
+     */
+    public boolean isSupported() {
+        return this != VIRTUAL || VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /**
+     * Creates an unstarted thread
+     *
+     * @param daemon whether the thread is a daemon thread, if this mode has
+     *               non-daemon threads
+     */
+    abstract Thread newThread(String name, Runnable task, boolean daemon);
+
+    /**
+     * Thread.ofVirtual().factory() through reflection, as the library is
+     * compiled for JDK 11
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Virtual threads are not available", e);
+            return null;
+        }
+    }
+}
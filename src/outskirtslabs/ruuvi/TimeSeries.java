@@ -0,0 +1,57 @@
+package outskirtslabs.ruuvi;
+
+import java.util.Arrays;
+
+/**
+ * The values of a field of a tag over a time range, read from a
+ * {@link TimeSeriesStore}, in primitive arrays
+ */
+public final class TimeSeries {
+
+    private long[] times = new long[64];
+    private double[] values = new double[64];
+    private int size;
+
+    TimeSeries() {
+    }
+
+    void add(long time, double value) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        times[size] = time;
+        values[size] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the time of the value at the index, in milliseconds since the
+     * epoch
+     */
+    public long getTime(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return times[index];
+    }
+
+    public double getValue(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return values[index];
+    }
+
+    public long[] getTimes() {
+        return Arrays.copyOf(times, size);
+    }
+
+    public double[] getValues() {
+        return Arrays.copyOf(values, size);
+    }
+}
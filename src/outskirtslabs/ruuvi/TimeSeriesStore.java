@@ -0,0 +1,525 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+import static outskirtslabs.ruuvi.AggregateField.*;
+
+/**
+ * Stores the measurements of each tag compressed in columns, in memory-mapped
+ * files in a directory, and reads them back by time range. Add it to a
+ * {@link Receiver} as a {@link MeasurementListener}.
+ * <p>
+ * The measurements of a tag are collected in a chunk in memory, and the chunk
+ * is written to the current segment file once it has
+ * {@link #getChunkSize() a number of measurements}, spans two hours, or when
+ * the store is {@link #flush() flushed}. See {@link ChunkEncoder} for the
+ * compression, which takes a few bits per measurement for the times and for
+ * fields that change slowly. Queries skip the chunks outside their range and
+ * only decode the times and the field they read. The measurements in memory
+ * are included in the queries, but are lost on a crash; the chunks written
+ * are synced to the disk when the store is flushed or closed.
+ * <p>
+ * When a segment is full a new one is started, and the oldest segments are
+ * deleted when the segments take more than the retention limit.
+ * <p>
+ * Measurements without a time get the time they were stored. Measurements
+ * without a valid MAC address are not stored.
+ */
+public final class TimeSeriesStore implements MeasurementListener, Closeable {
+
+    private static final Logger LOG = Logger.getLogger(TimeSeriesStore.class);
+
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_BYTES = 1024L * 1024 * 1024;
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    /**
+     * The longest time a chunk may span, so that the chunks of tags that
+     * broadcast rarely are written too
+     */
+    static final long MAX_CHUNK_SPAN_MILLIS = TimeUnit.HOURS.toMillis(2);
+    /**
+     * The fields stored, in the order of their columns. Fields can only be
+     * added at the end, as the chunks refer to the columns by their index.
+     */
+    static final AggregateField[] COLUMNS = {TEMPERATURE, HUMIDITY, PRESSURE, ACCELERATION_X, ACCELERATION_Y, ACCELERATION_Z,
+            BATTERY_VOLTAGE, TX_POWER, MOVEMENT_COUNTER, MEASUREMENT_SEQUENCE_NUMBER, RSSI};
+
+    private static final int[] COLUMN_BY_FIELD = new int[AggregateField.values().length];
+    private static final String LOCK_FILE = "store.lock";
+
+    static {
+        Arrays.fill(COLUMN_BY_FIELD, -1);
+        for (int i = 0; i < COLUMNS.length; i++) {
+            COLUMN_BY_FIELD[COLUMNS[i].ordinal()] = i;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final int chunkSize;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final ConcurrentSkipListMap<Long, ChunkSegment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<Long, Series> series = new ConcurrentHashMap<>();
+    // the writing state, guarded by this
+    private final CRC32C crc = new CRC32C();
+    private ChunkSegment active;
+    private volatile boolean closed;
+
+    public static TimeSeriesStore open(Path directory) throws IOException {
+        return open(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_RETENTION_BYTES, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Opens the store in the directory, creating it if needed
+     *
+     * @param segmentBytes   the size of each segment file
+     * @param retentionBytes the size the segments may take in total before
+     *                       the oldest ones are deleted
+     * @param chunkSize      the number of measurements of a tag collected in
+     *                       memory before they are written as a chunk
+     */
+    public static TimeSeriesStore open(Path directory, int segmentBytes, long retentionBytes, int chunkSize) throws IOException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("The chunks must have at least one measurement");
+        }
+        long minSegmentBytes = ChunkSegment.HEADER_BYTES + ChunkSegment.RECORD_HEADER_BYTES
+                + (long) ChunkEncoder.maxEncodedLength(COLUMNS.length, chunkSize);
+        if (segmentBytes < minSegmentBytes) {
+            throw new IllegalArgumentException("The segments must be at least " + minSegmentBytes + " bytes for chunks of " + chunkSize);
+        }
+        if (retentionBytes < segmentBytes) {
+            throw new IllegalArgumentException("The retention limit can't be less than a segment");
+        }
+        Files.createDirectories(directory);
+        return new TimeSeriesStore(directory, segmentBytes, retentionBytes, chunkSize);
+    }
+
+    private TimeSeriesStore(Path directory, int segmentBytes, long retentionBytes, int chunkSize) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.chunkSize = chunkSize;
+        this.lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            this.lock = tryLock(lockChannel);
+            if (lock == null) {
+                throw new IOException("The time series store " + directory + " is in use");
+            }
+            recover();
+        } catch (IOException | RuntimeException e) {
+            segments.values().forEach(ChunkSegment::close);
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the lock, or null if another process or this one holds it
+     */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private void recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + ChunkSegment.SUFFIX)) {
+            for (Path file : files) {
+                ChunkSegment segment = ChunkSegment.open(file);
+                segments.put(segment.base, segment);
+            }
+        }
+        int chunks = 0;
+        for (ChunkSegment segment : segments.values()) {
+            ByteBuffer buffer = segment.buffer;
+            segment.forEachChunk(position -> {
+                long mac = buffer.getLong(position + ChunkEncoder.MAC_OFFSET);
+                series.computeIfAbsent(mac, Series::new).addChunk(segment, position,
+                        buffer.getLong(position + ChunkEncoder.MIN_TIME_OFFSET), buffer.getLong(position + ChunkEncoder.MAX_TIME_OFFSET));
+            });
+        }
+        for (Series tag : series.values()) {
+            chunks += tag.chunkCount;
+        }
+        if (segments.isEmpty()) {
+            ChunkSegment first = ChunkSegment.create(directory, 0, segmentBytes);
+            segments.put(first.base, first);
+        }
+        active = segments.lastEntry().getValue();
+        LOG.info(String.format("Opened time series store %s with %d segments, %d chunks and %d tags", directory, segments.size(), chunks, series.size()));
+    }
+
+    /**
+     * Stores a measurement
+     *
+     * @throws UncheckedIOException if writing a chunk failed
+     */
+    @Override
+    public void measured(RuuviValue measurement, RuuviDerivedValue derived) {
+        try {
+            append(measurement);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The derived values are not stored, they can be calculated from the
+     * measurements
+     */
+    @Override
+    public Set<DerivedField> getDerivedFields() {
+        return EnumSet.noneOf(DerivedField.class);
+    }
+
+    /**
+     * Stores a measurement, writing the chunk of its tag first if it is full
+     */
+    public void append(RuuviValue measurement) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The time series store " + directory + " is closed");
+        }
+        long mac = Util.macToLong(measurement.getMac());
+        if (mac < 0) {
+            return;
+        }
+        long time = measurement.getTime() != null ? measurement.getTime() : System.currentTimeMillis();
+        Series tag = series.computeIfAbsent(mac, Series::new);
+        synchronized (tag) {
+            ChunkEncoder chunk = tag.chunk;
+            if (chunk.size() >= chunkSize || chunk.size() > 0 && time - chunk.getFirstTime() >= MAX_CHUNK_SPAN_MILLIS) {
+                write(tag);
+            }
+            double[] sample = tag.sample;
+            for (int i = 0; i < COLUMNS.length; i++) {
+                Number value = COLUMNS[i].valueOf(measurement, null);
+                sample[i] = value == null ? Double.NaN : value.doubleValue();
+            }
+            chunk.add(time, sample);
+        }
+    }
+
+    /**
+     * Writes the chunk of the tag to the current segment, starting a new one
+     * if it doesn't fit. Called holding the lock of the tag.
+     */
+    private void write(Series tag) throws IOException {
+        ChunkEncoder chunk = tag.chunk;
+        ChunkSegment segment;
+        int position;
+        synchronized (this) {
+            int length = chunk.encodedLength();
+            if (!active.fits(length)) {
+                rotate();
+            }
+            segment = active;
+            position = segment.append(chunk, tag.mac, crc);
+        }
+        tag.addChunk(segment, position, chunk.getMinTime(), chunk.getMaxTime());
+        chunk.clear();
+    }
+
+    private void rotate() throws IOException {
+        ChunkSegment next = ChunkSegment.create(directory, active.base + active.size, segmentBytes);
+        active.force();
+        segments.put(next.base, next);
+        active = next;
+        LOG.debug("Started time series segment " + next.path);
+        long total = getSizeBytes();
+        while (segments.size() > 1 && total > retentionBytes) {
+            ChunkSegment oldest = segments.pollFirstEntry().getValue();
+            oldest.delete();
+            total -= oldest.size;
+            LOG.debug("Deleted time series segment " + oldest.path + " beyond the retention limit");
+        }
+    }
+
+    /**
+     * Passes the values of the field of the tag in the time range to the
+     * consumer, in the order they were stored, which is the order of time
+     * unless measurements arrived out of order. Missing values are skipped.
+     *
+     * @param field a field of the measurement, not a derived one
+     * @param from  the start of the range in milliseconds since the epoch,
+     *              inclusive
+     * @param to    the end of the range in milliseconds since the epoch,
+     *              exclusive
+     */
+    public void scan(String mac, AggregateField field, long from, long to, SampleConsumer consumer) {
+        int column = columnOf(field);
+        Series tag = series.get(Util.macToLong(mac));
+        if (tag == null) {
+            return;
+        }
+        ChunkSegment[] segments;
+        int[] positions;
+        long[] minTimes;
+        long[] maxTimes;
+        int chunkCount;
+        ByteBuffer unwritten = null;
+        synchronized (tag) {
+            // the arrays are replaced rather than modified below the count, so they can be read without the lock
+            segments = tag.segments;
+            positions = tag.positions;
+            minTimes = tag.minTimes;
+            maxTimes = tag.maxTimes;
+            chunkCount = tag.chunkCount;
+            ChunkEncoder chunk = tag.chunk;
+            if (chunk.size() > 0 && chunk.getMaxTime() >= from && chunk.getMinTime() < to) {
+                unwritten = ByteBuffer.allocate(chunk.encodedLength());
+                chunk.writeTo(unwritten, tag.mac);
+            }
+        }
+        for (int i = 0; i < chunkCount; i++) {
+            if (maxTimes[i] >= from && minTimes[i] < to && !segments[i].deleted) {
+                ChunkDecoder.scan(segments[i].buffer, positions[i], column, from, to, consumer);
+            }
+        }
+        if (unwritten != null) {
+            ChunkDecoder.scan(unwritten, 0, column, from, to, consumer);
+        }
+    }
+
+    /**
+     * @return the values of the field of the tag in the time range
+     * @see #scan(String, AggregateField, long, long, SampleConsumer)
+     */
+    public TimeSeries query(String mac, AggregateField field, long from, long to) {
+        TimeSeries timeSeries = new TimeSeries();
+        scan(mac, field, from, to, timeSeries::add);
+        return timeSeries;
+    }
+
+    /**
+     * Summarizes the values of the field of the tag in the time range per
+     * bucket, such as per hour over a week. The buckets are aligned to the
+     * epoch, and those without values are left out.
+     *
+     * @return the statistics of each bucket, by the start of the bucket in
+     * milliseconds since the epoch
+     * @see #scan(String, AggregateField, long, long, SampleConsumer)
+     */
+    public NavigableMap<Long, FieldStatistics> downsample(String mac, AggregateField field, long from, long to, Duration bucket) {
+        long bucketMillis = bucket.toMillis();
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("The buckets must be at least a millisecond");
+        }
+        Downsampler downsampler = new Downsampler(bucketMillis);
+        scan(mac, field, from, to, downsampler);
+        NavigableMap<Long, FieldStatistics> statistics = new TreeMap<>();
+        downsampler.buckets.forEach((start, accumulator) -> statistics.put(start, accumulator.toStatistics()));
+        return statistics;
+    }
+
+    /**
+     * @return the MAC addresses of the tags with measurements in the store
+     */
+    public Set<String> getMacs() {
+        return series.keySet().stream().map(mac -> String.format("%012X", mac)).collect(Collectors.toSet());
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the size of the segment files in bytes
+     */
+    public long getSizeBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.size).sum();
+    }
+
+    /**
+     * @return the number of bytes the chunks written take in the segments
+     */
+    public long getWrittenBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.limit - ChunkSegment.HEADER_BYTES).sum();
+    }
+
+    /**
+     * Writes the chunks of all the tags and syncs the segments to the disk
+     */
+    public void flush() throws IOException {
+        for (Series tag : series.values()) {
+            synchronized (tag) {
+                if (tag.chunk.size() > 0) {
+                    write(tag);
+                }
+            }
+        }
+        synchronized (this) {
+            segments.values().forEach(ChunkSegment::force);
+        }
+    }
+
+    /**
+     * Flushes the store and closes its files
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Flushing time series store " + directory + " failed", e);
+        }
+        synchronized (this) {
+            segments.values().forEach(ChunkSegment::close);
+            try {
+                lock.release();
+                lockChannel.close();
+            } catch (IOException e) {
+                LOG.debug("Releasing the lock of time series store " + directory + " failed", e);
+            }
+        }
+        LOG.debug("Closed time series store " + directory);
+    }
+
+    private static int columnOf(AggregateField field) {
+        int column = COLUMN_BY_FIELD[field.ordinal()];
+        if (column < 0) {
+            throw new IllegalArgumentException("The derived value " + field + " is not stored");
+        }
+        return column;
+    }
+
+    /**
+     * The chunks of a tag, in the order they were written, and the chunk
+     * being collected in memory
+     */
+    private static final class Series {
+        final long mac;
+        final ChunkEncoder chunk = new ChunkEncoder(COLUMNS.length);
+        final double[] sample = new double[COLUMNS.length];
+        ChunkSegment[] segments = new ChunkSegment[8];
+        int[] positions = new int[8];
+        long[] minTimes = new long[8];
+        long[] maxTimes = new long[8];
+        int chunkCount;
+
+        Series(long mac) {
+            this.mac = mac;
+        }
+
+        void addChunk(ChunkSegment segment, int position, long minTime, long maxTime) {
+            dropDeleted();
+            if (chunkCount == segments.length) {
+                segments = Arrays.copyOf(segments, chunkCount * 2);
+                positions = Arrays.copyOf(positions, chunkCount * 2);
+                minTimes = Arrays.copyOf(minTimes, chunkCount * 2);
+                maxTimes = Arrays.copyOf(maxTimes, chunkCount * 2);
+            }
+            segments[chunkCount] = segment;
+            positions[chunkCount] = position;
+            minTimes[chunkCount] = minTime;
+            maxTimes[chunkCount] = maxTime;
+            chunkCount++;
+        }
+
+        /**
+         * Forgets the chunks of the deleted segments, which are the oldest
+         */
+        private void dropDeleted() {
+            int deleted = 0;
+            while (deleted < chunkCount && segments[deleted].deleted) {
+                deleted++;
+            }
+            if (deleted > 0) {
+                int capacity = segments.length;
+                segments = Arrays.copyOfRange(segments, deleted, deleted + capacity);
+                positions = Arrays.copyOfRange(positions, deleted, deleted + capacity);
+                minTimes = Arrays.copyOfRange(minTimes, deleted, deleted + capacity);
+                maxTimes = Arrays.copyOfRange(maxTimes, deleted, deleted + capacity);
+                chunkCount -= deleted;
+            }
+        }
+    }
+
+    /**
+     * Accumulates the values of each bucket with Welford's algorithm
+     */
+    private static final class Downsampler implements SampleConsumer {
+        final long bucketMillis;
+        final NavigableMap<Long, Accumulator> buckets = new TreeMap<>();
+        long currentStart = Long.MIN_VALUE;
+        Accumulator current;
+
+        Downsampler(long bucketMillis) {
+            this.bucketMillis = bucketMillis;
+        }
+
+        @Override
+        public void accept(long time, double value) {
+            long start = Math.floorDiv(time, bucketMillis) * bucketMillis;
+            if (start != currentStart || current == null) {
+                currentStart = start;
+                current = buckets.computeIfAbsent(start, ignored -> new Accumulator());
+            }
+            current.add(time, value);
+        }
+    }
+
+    private static final class Accumulator {
+        long count;
+        double mean;
+        double m2;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double last;
+        long lastTime = Long.MIN_VALUE;
+
+        void add(long time, double value) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            if (time >= lastTime) {
+                last = value;
+                lastTime = time;
+            }
+        }
+
+        FieldStatistics toStatistics() {
+            return new FieldStatistics(count, min, max, mean, count > 1 ? Math.sqrt(m2 / (count - 1)) : 0, last);
+        }
+    }
+}
@@ -64,4 +64,26 @@ class Util {
         }
         return sb.toString();
     }
+
+    /**
+     * Packs a MAC address into the low 48 bits of a long
+     *
+     * @param mac the MAC address as 12 hex digits without separators, as in
+     *            {@link HCIData#mac}
+     * @return the MAC address as a long, or -1 if it's not a valid MAC address
+     */
+    public static long macToLong(String mac) {
+        if (mac == null || mac.length() != 12) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < 12; i++) {
+            int digit = Character.digit(mac.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
 }
@@ -0,0 +1,36 @@
+package outskirtslabs.ruuvi;
+
+import java.util.List;
+
+/**
+ * @see DerivedValuePlugin#vaporPressureDeficit()
+ */
+final class VaporPressureDeficitPlugin implements DerivedValuePlugin {
+
+    static final String OUTPUT = "vaporPressureDeficit";
+
+    @Override
+    public List<String> getInputs() {
+        return List.of(AggregateField.TEMPERATURE.name(), AggregateField.HUMIDITY.name());
+    }
+
+    @Override
+    public List<String> getOutputs() {
+        return List.of(OUTPUT);
+    }
+
+    @Override
+    public void compute(long mac, double[] inputs, double[] outputs) {
+        outputs[0] = MeasurementValueCalculator.vaporPressureDeficit(inputs[0], inputs[1]);
+    }
+
+    @Override
+    public void computeBatch(long[] macs, double[][] inputs, double[][] outputs, int count) {
+        double[] temperature = inputs[0];
+        double[] humidity = inputs[1];
+        double[] deficit = outputs[0];
+        for (int j = 0; j < count; j++) {
+            deficit[j] = MeasurementValueCalculator.vaporPressureDeficit(temperature[j], humidity[j]);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package outskirtslabs.ruuvi;
+
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * The measurements of a tag summarized over a window, emitted by a
+ * {@link WindowedAggregator}
+ */
+@Value
+public class WindowSummary {
+    /**
+     * MAC address of the tag, in the format of {@link RuuviValue#getMac()}
+     */
+    String mac;
+    /**
+     * The start of the window, inclusive, in milliseconds since the epoch
+     */
+    long windowStart;
+    /**
+     * The end of the window, exclusive, in milliseconds since the epoch
+     */
+    long windowEnd;
+    /**
+     * The number of measurements summarized
+     */
+    long count;
+    /**
+     * The number of measurements dropped in the window for repeating a
+     * sequence number already seen
+     */
+    long duplicateCount;
+    /**
+     * The number of measurements dropped in the window for belonging to a
+     * window that was already emitted
+     */
+    long lateCount;
+    /**
+     * The statistics of the fields the measurements had
+     */
+    Map<AggregateField, FieldStatistics> statistics;
+
+    /**
+     * @return the statistics of the field, or null if none of the
+     * measurements had it
+     */
+    public FieldStatistics getStatistics(AggregateField field) {
+        return statistics.get(field);
+    }
+}
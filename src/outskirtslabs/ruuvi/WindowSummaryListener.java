@@ -0,0 +1,15 @@
+package outskirtslabs.ruuvi;
+
+/**
+ * Receives the summaries of a {@link WindowedAggregator}. Added with
+ * {@link Receiver#addWindowSummaryListener(WindowSummaryListener, java.time.Duration, java.time.Duration, java.util.Set)}.
+ */
+@FunctionalInterface
+public interface WindowSummaryListener {
+
+    /**
+     * Called once per tag and window, for the tags that had measurements in
+     * the window, after the window has ended
+     */
+    void summarized(WindowSummary summary);
+}
@@ -0,0 +1,484 @@
+package outskirtslabs.ruuvi;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summarizes the measurements of each tag over tumbling or sliding windows,
+ * and passes one {@link WindowSummary} per tag and window to a
+ * {@link WindowSummaryListener}.
+ * <p>
+ * Windows are aligned to the epoch and closed by the wall clock. A measurement
+ * belongs to the window of its {@link RuuviValue#getTime() time}, or of the
+ * time it was received if it has none, or if its time is ahead of the wall
+ * clock, which would otherwise end the current windows early. The
+ * measurements are kept in panes as long as the slide, and the summary of a
+ * window is merged from its panes, so a measurement is only added once
+ * however many windows it belongs to. The state is kept in primitive arrays
+ * indexed by tag, which take
+ * {@code (window / slide + 1) * fields * 48} bytes per tag.
+ * <p>
+ * Tags that send a measurement sequence number have repeated sequence numbers
+ * dropped as duplicates, and the last value of a window is that of the
+ * highest sequence number rather than the last received. Measurements of a
+ * window that was already emitted are dropped as late.
+ * <p>
+ * Instances are created with
+ * {@link Receiver#addWindowSummaryListener(WindowSummaryListener, java.time.Duration, java.time.Duration, Set)}.
+ * The listener is called while holding the lock of the aggregator, on the
+ * thread reading the dump or on a timer thread.
+ */
+public final class WindowedAggregator {
+
+    private static final Logger LOG = Logger.getLogger(WindowedAggregator.class);
+
+    private static final long EMPTY_PANE = Long.MIN_VALUE;
+    private static final int NO_SEQUENCE = -1;
+    /**
+     * How far back out of order sequence numbers are recognized
+     */
+    private static final int SEQUENCE_WINDOW = Long.SIZE;
+
+    // the statistics of a field in a pane
+    private static final int COUNT = 0;
+    private static final int MEAN = 1;
+    private static final int M2 = 2;
+    private static final int MIN = 3;
+    private static final int MAX = 4;
+    private static final int LAST = 5;
+    private static final int STATISTICS = 6;
+
+    private final WindowSummaryListener listener;
+    private final long windowMillis;
+    private final long slideMillis;
+    private final AggregateField[] fields;
+    /**
+     * The number of panes in a window
+     */
+    private final int panes;
+    /**
+     * The number of panes kept per tag, one more than in a window so that the
+     * next window can start before the previous one is emitted
+     */
+    private final int ring;
+    private final MacIndex index = new MacIndex(64);
+    /**
+     * The pane held by each position of each tag's ring, by tag * ring +
+     * position
+     */
+    private long[] paneIds = new long[0];
+    private long[] counts = new long[0];
+    private long[] duplicates = new long[0];
+    private long[] lates = new long[0];
+    /**
+     * The statistics by ((tag * ring + position) * fields + field) * 6
+     */
+    private double[] statistics = new double[0];
+    private int[] lastSequence = new int[64];
+    /**
+     * Bit n is set if lastSequence - n was seen
+     */
+    private long[] seenSequences = new long[64];
+    private long[] newestPane = new long[64];
+    private long[] lastSeenNanos = new long[64];
+    /**
+     * The last pane whose window has been emitted
+     */
+    private long emittedPane;
+    private long totalDuplicates;
+    private long totalLate;
+    private ScheduledFuture<?> emitTimer;
+    private volatile ReceiverMetrics metrics = ReceiverMetrics.NONE;
+
+    WindowedAggregator(WindowSummaryListener listener, long windowMillis, long slideMillis, Set<AggregateField> fields) {
+        if (slideMillis <= 0 || windowMillis <= 0) {
+            throw new IllegalArgumentException("The window and the slide must be positive");
+        }
+        if (windowMillis % slideMillis != 0) {
+            throw new IllegalArgumentException("The window must be a multiple of the slide");
+        }
+        if (fields.isEmpty()) {
+            throw new IllegalArgumentException("At least one field is needed");
+        }
+        this.listener = listener;
+        this.windowMillis = windowMillis;
+        this.slideMillis = slideMillis;
+        this.fields = fields.toArray(new AggregateField[0]);
+        Arrays.sort(this.fields);
+        this.panes = (int) (windowMillis / slideMillis);
+        this.ring = panes + 1;
+        this.emittedPane = Math.floorDiv(System.currentTimeMillis(), slideMillis) - 1;
+    }
+
+    public WindowSummaryListener getListener() {
+        return listener;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public long getSlideMillis() {
+        return slideMillis;
+    }
+
+    /**
+     * @return the number of measurements dropped for repeating a sequence
+     * number
+     */
+    public synchronized long getDuplicateCount() {
+        return totalDuplicates;
+    }
+
+    /**
+     * @return the number of measurements dropped for belonging to a window
+     * that was already emitted
+     */
+    public synchronized long getLateCount() {
+        return totalLate;
+    }
+
+    /**
+     * @return the number of tags with state in the aggregator
+     */
+    public synchronized int getTagCount() {
+        return index.size();
+    }
+
+    /**
+     * @return the derived values needed by the aggregated fields
+     */
+    int getDerivedFields() {
+        int mask = 0;
+        for (AggregateField field : fields) {
+            if (field.getDerivedField() != null) {
+                mask |= field.getDerivedField().bit();
+            }
+        }
+        return mask;
+    }
+
+    void setMetrics(ReceiverMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts emitting the windows that have ended periodically on the given
+     * scheduler
+     */
+    synchronized void startEmitTimer(ScheduledExecutorService scheduler) {
+        long periodMillis = Math.min(1000, Math.max(10, slideMillis / 10));
+        emitTimer = scheduler.scheduleAtFixedRate(this::emitEnded, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the timer and emits the windows that have measurements, including
+     * the current ones, which have not ended yet
+     */
+    synchronized void close() {
+        if (emitTimer != null) {
+            emitTimer.cancel(false);
+            emitTimer = null;
+        }
+        long last = Math.floorDiv(System.currentTimeMillis(), slideMillis);
+        for (int tag = 0; tag < index.indexLimit(); tag++) {
+            if (index.keyAt(tag) != MacIndex.NO_KEY) {
+                last = Math.max(last, newestPane[tag]);
+            }
+        }
+        emitThrough(last);
+    }
+
+    synchronized void add(RuuviData data) {
+        RuuviValue measurement = data.getMeasurement();
+        long mac = Util.macToLong(measurement.getMac());
+        if (mac < 0) {
+            return;
+        }
+        long nowMillis = System.currentTimeMillis();
+        long currentPane = Math.floorDiv(nowMillis, slideMillis);
+        long pane = measurement.getTime() != null ? Math.min(currentPane, Math.floorDiv(measurement.getTime(), slideMillis)) : currentPane;
+        int tag = index.indexOf(mac);
+        if (tag < 0) {
+            tag = addTag(mac);
+        }
+        lastSeenNanos[tag] = System.nanoTime();
+        if (pane <= emittedPane) {
+            late(tag, nowMillis);
+            return;
+        }
+        int position = position(tag, pane);
+        if (position < 0) {
+            late(tag, nowMillis);
+            return;
+        }
+        boolean newest = true;
+        Integer sequence = measurement.getMeasurementSequenceNumber();
+        if (sequence != null) {
+            int seen = checkSequence(tag, sequence);
+            if (seen == 0) {
+                duplicates[position]++;
+                totalDuplicates++;
+                return;
+            }
+            newest = seen > 0;
+        }
+        counts[position]++;
+        newestPane[tag] = Math.max(newestPane[tag], pane);
+        RuuviDerivedValue derived = data.getDerived();
+        int base = position * fields.length * STATISTICS;
+        for (int f = 0; f < fields.length; f++, base += STATISTICS) {
+            Number value = fields[f].valueOf(measurement, derived);
+            if (value != null) {
+                update(base, value.doubleValue(), newest);
+            }
+        }
+    }
+
+    /**
+     * Emits the windows that have ended by the wall clock, and forgets the
+     * tags that have not been seen for
+     * {@link MeasurementThrottle#IDLE_TIMEOUT_NANOS}
+     */
+    synchronized void emitEnded() {
+        emitThrough(Math.floorDiv(System.currentTimeMillis(), slideMillis) - 1);
+        long nowNanos = System.nanoTime();
+        for (int tag = 0; tag < index.indexLimit(); tag++) {
+            long mac = index.keyAt(tag);
+            if (mac != MacIndex.NO_KEY && newestPane[tag] + panes - 1 <= emittedPane
+                    && nowNanos - lastSeenNanos[tag] > MeasurementThrottle.IDLE_TIMEOUT_NANOS) {
+                index.remove(mac);
+            }
+        }
+    }
+
+    private int addTag(long mac) {
+        int tag = index.add(mac);
+        int limit = (tag + 1) * ring;
+        paneIds = MacIndex.grow(paneIds, limit - 1);
+        counts = MacIndex.grow(counts, limit - 1);
+        duplicates = MacIndex.grow(duplicates, limit - 1);
+        lates = MacIndex.grow(lates, limit - 1);
+        statistics = MacIndex.grow(statistics, limit * fields.length * STATISTICS - 1);
+        lastSequence = MacIndex.grow(lastSequence, tag);
+        seenSequences = MacIndex.grow(seenSequences, tag);
+        newestPane = MacIndex.grow(newestPane, tag);
+        lastSeenNanos = MacIndex.grow(lastSeenNanos, tag);
+        Arrays.fill(paneIds, tag * ring, limit, EMPTY_PANE);
+        lastSequence[tag] = NO_SEQUENCE;
+        seenSequences[tag] = 0;
+        newestPane[tag] = EMPTY_PANE;
+        return tag;
+    }
+
+    private void late(int tag, long nowMillis) {
+        totalLate++;
+        // counted in the current pane, so that it shows in the next summary
+        int position = position(tag, Math.max(emittedPane + 1, Math.floorDiv(nowMillis, slideMillis)));
+        if (position >= 0) {
+            lates[position]++;
+        }
+    }
+
+    /**
+     * @return the position of the pane in the ring of the tag, which is
+     * cleared for it if it held an older pane, or -1 if it holds a newer pane
+     */
+    private int position(int tag, long pane) {
+        int position = tag * ring + (int) Math.floorMod(pane, (long) ring);
+        long held = paneIds[position];
+        if (held == pane) {
+            return position;
+        }
+        if (held != EMPTY_PANE) {
+            if (held > pane) {
+                return -1;
+            }
+            if (held + panes - 1 > emittedPane) {
+                // the timer is behind, the windows of the held pane have ended by now
+                emitThrough(held + panes - 1);
+            }
+        }
+        paneIds[position] = pane;
+        counts[position] = 0;
+        duplicates[position] = 0;
+        lates[position] = 0;
+        int base = position * fields.length * STATISTICS;
+        for (int f = 0; f < fields.length; f++, base += STATISTICS) {
+            statistics[base + COUNT] = 0;
+        }
+        return position;
+    }
+
+    /**
+     * Checks a sequence number against those seen from the tag, with serial
+     * number arithmetic as the sequence wraps around
+     *
+     * @return 0 if it was already seen, 1 if it is the newest, -1 if it is out
+     * of order
+     */
+    private int checkSequence(int tag, int sequence) {
+        int last = lastSequence[tag];
+        if (last != NO_SEQUENCE) {
+            int ahead = SequenceTracker.distance(last, sequence);
+            if (ahead == 0) {
+                return 0;
+            }
+            if (ahead < SequenceTracker.SEQUENCE_RANGE / 2) {
+                seenSequences[tag] = ahead < SEQUENCE_WINDOW ? seenSequences[tag] << ahead | 1 : 1;
+                lastSequence[tag] = sequence;
+                return 1;
+            }
+            int behind = SequenceTracker.SEQUENCE_RANGE - ahead;
+            if (behind < SEQUENCE_WINDOW) {
+                long bit = 1L << behind;
+                if ((seenSequences[tag] & bit) != 0) {
+                    return 0;
+                }
+                seenSequences[tag] |= bit;
+                return -1;
+            }
+            // too far behind to be out of order, the tag has restarted
+        }
+        lastSequence[tag] = sequence;
+        seenSequences[tag] = 1;
+        return 1;
+    }
+
+    private void update(int base, double value, boolean newest) {
+        double[] s = statistics;
+        double count = s[base + COUNT] + 1;
+        if (count == 1) {
+            s[base + MEAN] = value;
+            s[base + M2] = 0;
+            s[base + MIN] = value;
+            s[base + MAX] = value;
+            s[base + LAST] = value;
+        } else {
+            double delta = value - s[base + MEAN];
+            s[base + MEAN] += delta / count;
+            s[base + M2] += delta * (value - s[base + MEAN]);
+            s[base + MIN] = Math.min(s[base + MIN], value);
+            s[base + MAX] = Math.max(s[base + MAX], value);
+            if (newest) {
+                s[base + LAST] = value;
+            }
+        }
+        s[base + COUNT] = count;
+    }
+
+    /**
+     * Emits the windows ending with the panes after the last emitted one up to
+     * the given one, skipping those without measurements
+     */
+    private void emitThrough(long lastPane) {
+        long pane = emittedPane + 1;
+        while (pane <= lastPane) {
+            // the first window from this pane on with a measurement of any tag
+            long next = Long.MAX_VALUE;
+            for (int position = 0; position < index.indexLimit() * ring; position++) {
+                long held = paneIds[position];
+                if (held != EMPTY_PANE && held + panes - 1 >= pane && index.keyAt(position / ring) != MacIndex.NO_KEY) {
+                    next = Math.min(next, Math.max(pane, held));
+                }
+            }
+            if (next > lastPane) {
+                break;
+            }
+            for (int tag = 0; tag < index.indexLimit(); tag++) {
+                if (index.keyAt(tag) != MacIndex.NO_KEY) {
+                    emit(tag, next);
+                }
+            }
+            emittedPane = next;
+            pane = next + 1;
+        }
+        emittedPane = Math.max(emittedPane, lastPane);
+    }
+
+    private void emit(int tag, long lastPane) {
+        long count = 0;
+        long duplicateCount = 0;
+        long lateCount = 0;
+        for (int position = tag * ring; position < (tag + 1) * ring; position++) {
+            if (inWindow(paneIds[position], lastPane)) {
+                count += counts[position];
+                duplicateCount += duplicates[position];
+                lateCount += lates[position];
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        Map<AggregateField, FieldStatistics> fieldStatistics = new EnumMap<>(AggregateField.class);
+        for (int f = 0; f < fields.length; f++) {
+            FieldStatistics merged = merge(tag, f, lastPane);
+            if (merged != null) {
+                fieldStatistics.put(fields[f], merged);
+            }
+        }
+        long windowEnd = (lastPane + 1) * slideMillis;
+        WindowSummary summary = new WindowSummary(CompactRuuviValue.macToString(index.keyAt(tag)),
+                windowEnd - windowMillis, windowEnd, count, duplicateCount, lateCount, fieldStatistics);
+        ReceiverMetrics metrics = this.metrics;
+        long start = metrics == ReceiverMetrics.NONE ? 0 : System.nanoTime();
+        try {
+            listener.summarized(summary);
+        } catch (Exception e) {
+            LOG.warn("Notifying window summary listener failed", e);
+        }
+        if (metrics != ReceiverMetrics.NONE) {
+            metrics.listenerNotified(listener, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Merges the statistics of a field over the panes of a window, with the
+     * parallel variant of Welford's algorithm
+     */
+    private FieldStatistics merge(int tag, int field, long lastPane) {
+        double count = 0, mean = 0, m2 = 0, min = 0, max = 0, last = 0;
+        long lastFrom = EMPTY_PANE;
+        for (int position = tag * ring; position < (tag + 1) * ring; position++) {
+            int base = (position * fields.length + field) * STATISTICS;
+            double paneCount = statistics[base + COUNT];
+            if (!inWindow(paneIds[position], lastPane) || paneCount == 0) {
+                continue;
+            }
+            if (count == 0) {
+                mean = statistics[base + MEAN];
+                m2 = statistics[base + M2];
+                min = statistics[base + MIN];
+                max = statistics[base + MAX];
+            } else {
+                double total = count + paneCount;
+                double delta = statistics[base + MEAN] - mean;
+                mean += delta * paneCount / total;
+                m2 += statistics[base + M2] + delta * delta * count * paneCount / total;
+                min = Math.min(min, statistics[base + MIN]);
+                max = Math.max(max, statistics[base + MAX]);
+            }
+            count += paneCount;
+            if (paneIds[position] > lastFrom) {
+                lastFrom = paneIds[position];
+                last = statistics[base + LAST];
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        double standardDeviation = count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+        return new FieldStatistics((long) count, min, max, mean, standardDeviation, last);
+    }
+
+    private boolean inWindow(long pane, long lastPane) {
+        return pane != EMPTY_PANE && pane <= lastPane && pane > lastPane - panes;
+    }
+}
@@ -0,0 +1,177 @@
+package outskirtslabs.ruuvi;
+
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * The binary encoding of the measurements sent by a
+ * {@link MeasurementForwarder}, written by a {@link MeasurementEncoder} and
+ * read by a {@link MeasurementDecoder}.
+ * <p>
+ * A frame is the length of the rest of the frame as an int, the version as a
+ * byte and the number of measurements as an unsigned short, followed by the
+ * measurements. Each measurement starts with the bitmask of the present
+ * fields of the {@link CompactRuuviValue} as a varint, followed by the values
+ * of those fields in the order of their bits:
+ * <ul>
+ * <li>the decimal values as zigzag varints of integers at the resolution of
+ * the tags, for example the temperature in 1/200 degrees. The values that
+ * the integer doesn't give back exactly, such as calibrated values, are
+ * stored as doubles and their bits are set in the {@link #EXACT} bitmask,
+ * which follows the bitmask of the fields when its bit is set.</li>
+ * <li>the data format, the movement counter and the sequence number as
+ * unsigned varints, the other integers as zigzag varints, and the time as
+ * the difference to the time of the previous measurement in the frame</li>
+ * <li>the MAC address as 6 bytes</li>
+ * <li>the name and the receiver as a varint that is 0 for null, 1 for the
+ * same string as in the previous measurement, or the length of the UTF-8
+ * bytes that follow plus 2</li>
+ * </ul>
+ * When the {@link #DERIVED} bit is set, the bitmask of the
+ * {@link DerivedField}s follows the bitmask of the fields, and their values
+ * follow the measurement as doubles. A data format 5 measurement takes
+ * about 30 bytes without the derived values.
+ */
+final class WireCodec {
+
+    static final int VERSION = 1;
+
+    /**
+     * The length, the version and the count
+     */
+    static final int HEADER_LENGTH = Integer.BYTES + 1 + Short.BYTES;
+    static final int MAX_COUNT = 0xFFFF;
+
+    /**
+     * Set when some decimal values are stored as doubles
+     */
+    static final int EXACT = 1 << 14;
+    /**
+     * Set when derived values follow the measurement
+     */
+    static final int DERIVED = 1 << 15;
+
+    static final int NULL_STRING = 0;
+    static final int SAME_STRING = 1;
+
+    /**
+     * The fields of the {@link CompactRuuviValue} stored as scaled integers
+     */
+    static final int DECIMALS = CompactRuuviValue.TEMPERATURE | CompactRuuviValue.HUMIDITY | CompactRuuviValue.PRESSURE
+            | CompactRuuviValue.ACCELERATION_X | CompactRuuviValue.ACCELERATION_Y | CompactRuuviValue.ACCELERATION_Z
+            | CompactRuuviValue.BATTERY_VOLTAGE;
+
+    /**
+     * The pressure is stored in Pa relative to this
+     */
+    private static final long PRESSURE_OFFSET = 100_000;
+    /**
+     * The battery voltage is stored in mV relative to the lowest voltage of
+     * data format 5
+     */
+    private static final long BATTERY_VOLTAGE_OFFSET = 1600;
+
+    private WireCodec() {
+    }
+
+    /**
+     * @param field one of the {@link #DECIMALS}
+     * @return the value as an integer at the resolution of the tags, which
+     * {@link #decodeDecimal} may not give back exactly
+     */
+    static long encodeDecimal(int field, double value) {
+        switch (field) {
+            case CompactRuuviValue.TEMPERATURE:
+                return Math.round(value * 200);
+            case CompactRuuviValue.HUMIDITY:
+                return Math.round(value * 400);
+            case CompactRuuviValue.PRESSURE:
+                return Math.round(value) - PRESSURE_OFFSET;
+            case CompactRuuviValue.BATTERY_VOLTAGE:
+                return Math.round(value * 1000) - BATTERY_VOLTAGE_OFFSET;
+            default:
+                return Math.round(value * 1000);
+        }
+    }
+
+    /**
+     * Calculates the value from the integer the same way as the payload
+     * decoders do, so that their values are given back exactly
+     */
+    static double decodeDecimal(int field, long value, int dataFormat) {
+        switch (field) {
+            case CompactRuuviValue.TEMPERATURE:
+                return dataFormat == 3 ? rawV1Temperature(value) : value / 200d;
+            case CompactRuuviValue.HUMIDITY:
+                return value / 400d;
+            case CompactRuuviValue.PRESSURE:
+                return (double) (value + PRESSURE_OFFSET);
+            case CompactRuuviValue.BATTERY_VOLTAGE:
+                return dataFormat == 5 ? value / 1000d + 1.6d : (value + BATTERY_VOLTAGE_OFFSET) / 1000d;
+            default:
+                return value / 1000d;
+        }
+    }
+
+    /**
+     * RAWv1 sends the whole degrees and the hundredths apart, and the sum the
+     * decoders calculate isn't always the closest double to the value
+     */
+    private static double rawV1Temperature(long value) {
+        long magnitude = Math.abs(value);
+        double temperature = magnitude / 200 + (magnitude % 200 / 2) / 100d;
+        return value < 0 ? temperature * -1 : temperature;
+    }
+
+    static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static void putZigzag(ByteBuffer out, long value) {
+        putVarint(out, value << 1 ^ value >> 63);
+    }
+
+    static long getVarint(ByteBuffer in) throws StreamCorruptedException {
+        long value = 0;
+        for (int shift = 0; shift < Long.SIZE; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("A varint is longer than 10 bytes");
+    }
+
+    static long getZigzag(ByteBuffer in) throws StreamCorruptedException {
+        long value = getVarint(in);
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    /**
+     * @return the frame length at the position of the buffer, including the
+     * length itself, or -1 if fewer than 4 bytes remain
+     * @throws StreamCorruptedException if the length is not valid
+     */
+    static int frameLength(ByteBuffer in, int maxLength) throws StreamCorruptedException {
+        if (in.remaining() < Integer.BYTES) {
+            return -1;
+        }
+        int length = in.getInt(in.position());
+        if (length < HEADER_LENGTH - Integer.BYTES || length > maxLength - Integer.BYTES) {
+            throw new StreamCorruptedException("Invalid frame length " + length);
+        }
+        return length + Integer.BYTES;
+    }
+
+    static StreamCorruptedException truncated(BufferUnderflowException e) {
+        StreamCorruptedException exception = new StreamCorruptedException("A measurement extends past the end of its frame");
+        exception.initCause(e);
+        return exception;
+    }
+}
@@ -0,0 +1,68 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdapterDeduplicatorTest {
+
+    private static final long WINDOW = 100;
+
+    private final List<RuuviData> passed = new ArrayList<>();
+    private final AdapterDeduplicator deduplicator = new AdapterDeduplicator(WINDOW, passed::add);
+
+    @Test
+    void passesTheBestCopyAtTheEndOfTheWindow() {
+        deduplicator.offer(reading(-80, "a"), 0);
+        deduplicator.offer(reading(-60, "b"), 10);
+        deduplicator.offer(reading(-70, "c"), 20);
+        deduplicator.flushExpired(WINDOW - 1);
+        assertEquals(0, passed.size());
+
+        deduplicator.flushExpired(WINDOW);
+        assertEquals(1, passed.size());
+        assertEquals("b", passed.get(0).getMeasurement().getReceiver());
+        assertEquals(2, deduplicator.getDuplicateCount());
+    }
+
+    @Test
+    void dropsLateCopiesWithinAWindowOfPassing() {
+        deduplicator.offer(reading(-80, "a"), 0);
+        deduplicator.flushExpired(WINDOW);
+        deduplicator.offer(reading(-60, "b"), 2 * WINDOW - 1);
+        deduplicator.flushAll();
+
+        assertEquals(1, passed.size());
+        assertEquals(1, deduplicator.getDuplicateCount());
+    }
+
+    @Test
+    void passesTheSameValuesBroadcastLater() {
+        for (int n = 0; n < 5; n++) {
+            long now = n * 10 * WINDOW;
+            deduplicator.offer(reading(-70, "a"), now);
+            deduplicator.flushExpired(now + WINDOW);
+        }
+
+        assertEquals(5, passed.size());
+        assertEquals(0, deduplicator.getDuplicateCount());
+    }
+
+    /**
+     * @return a RAWv1 reading, which has no sequence number
+     */
+    private static RuuviData reading(int rssi, String receiver) {
+        RuuviValue measurement = RuuviValue.builder()
+                .mac("F4A57424B1D2")
+                .dataFormat(3)
+                .temperature(21.0)
+                .humidity(40.0)
+                .rssi(rssi)
+                .receiver(receiver)
+                .build();
+        return new RuuviData(measurement, RuuviDerivedValue.NONE);
+    }
+}
@@ -0,0 +1,99 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the supervisor of an adapter over scripted fake scan and dump
+ * commands that exit or go silent.
+ */
+class AdapterSupervisionTest {
+
+    private static final String TAG = "F4A57424B1D2";
+
+    @TempDir
+    Path dir;
+    private Receiver receiver;
+    private final BlockingQueue<HealthState> transitions = new LinkedBlockingQueue<>();
+
+    @AfterEach
+    void dispose() {
+        if (receiver != null) {
+            receiver.dispose();
+        }
+    }
+
+    @Test
+    void restartsAScanExitingSuccessfully() throws Exception {
+        Path scanStarts = dir.resolve("scan-starts");
+        Path dumpStarts = dir.resolve("dump-starts");
+        String scan = new FakeCommand().countStarts(scanStarts).sleep(0.3).exit(0).write(dir, "scan");
+        String dump = new FakeCommand().countStarts(dumpStarts).emit(FakeCommand.rawV1(TAG, -70, 21, 40)).hang().write(dir, "dump");
+        start(Adapter.command("a", scan, dump));
+
+        awaitStarts(scanStarts, 3);
+        assertTrue(transitions.contains(HealthState.FAILED), "transitions " + transitions);
+        assertTrue(starts(dumpStarts) >= 2, "the dump is restarted with the scan");
+    }
+
+    @Test
+    void restartsAScanFailing() throws Exception {
+        Path scanStarts = dir.resolve("scan-starts");
+        String scan = new FakeCommand().countStarts(scanStarts).sleep(0.3).exit(1).write(dir, "scan");
+        String dump = new FakeCommand().emit(FakeCommand.rawV1(TAG, -70, 21, 40)).hang().write(dir, "dump");
+        start(Adapter.command("a", scan, dump));
+
+        awaitStarts(scanStarts, 3);
+        assertTrue(transitions.contains(HealthState.FAILED), "transitions " + transitions);
+    }
+
+    @Test
+    void restartsADumpGoingSilent() throws Exception {
+        Path dumpStarts = dir.resolve("dump-starts");
+        String scan = new FakeCommand().hang().write(dir, "scan");
+        String dump = new FakeCommand().countStarts(dumpStarts).emit(FakeCommand.rawV1(TAG, -70, 21, 40)).hang().write(dir, "dump");
+        receiver = new Receiver(List.of(Adapter.command("a", scan, dump)));
+        receiver.setStallTimeout(Duration.ofSeconds(1));
+        start();
+
+        awaitStarts(dumpStarts, 2);
+        assertEquals(HealthState.STREAMING, transitions.poll(5, TimeUnit.SECONDS));
+        assertEquals(HealthState.STALLED, transitions.poll(5, TimeUnit.SECONDS));
+    }
+
+    private void start(Adapter adapter) {
+        receiver = new Receiver(List.of(adapter));
+        start();
+    }
+
+    private void start() {
+        receiver.setRestartBackoff(Duration.ofMillis(50), Duration.ofMillis(100));
+        receiver.addHealthListener((adapter, previous, current) -> transitions.add(current));
+        receiver.start();
+    }
+
+    private static void awaitStarts(Path file, int count) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+        while (starts(file) < count) {
+            assertTrue(System.nanoTime() < deadline, "started " + starts(file) + " times, expected " + count);
+            Thread.sleep(50);
+        }
+    }
+
+    private static int starts(Path file) throws IOException {
+        return Files.exists(file) ? Files.readAllLines(file).size() : 0;
+    }
+}
@@ -0,0 +1,140 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncMeasurementListenerTest {
+
+    private final List<Double> received = new CopyOnWriteArrayList<>();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /**
+     * Takes the first measurement, then holds the consumer thread until
+     * released so the queue fills up
+     */
+    private final MeasurementListener slowListener = (measurement, derived) -> {
+        received.add(measurement.getTemperature());
+        started.countDown();
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    };
+
+    @Test
+    void dropNewestKeepsTheQueuedMeasurements() throws InterruptedException {
+        AsyncMeasurementListener listener = holdConsumer(OverflowPolicy.DROP_NEWEST);
+        for (int i = 1; i <= 4; i++) {
+            listener.offer(reading("F4A57424B1D2", i));
+        }
+        release.countDown();
+        listener.close();
+
+        assertEquals(List.of(0.0, 1.0, 2.0), received);
+        assertEquals(2, listener.getDroppedCount());
+        assertEquals(3, listener.getDeliveredCount());
+    }
+
+    @Test
+    void dropOldestKeepsTheLatestMeasurements() throws InterruptedException {
+        AsyncMeasurementListener listener = holdConsumer(OverflowPolicy.DROP_OLDEST);
+        for (int i = 1; i <= 4; i++) {
+            listener.offer(reading("F4A57424B1D2", i));
+        }
+        release.countDown();
+        listener.close();
+
+        assertEquals(List.of(0.0, 3.0, 4.0), received);
+        assertEquals(2, listener.getDroppedCount());
+    }
+
+    @Test
+    void coalescesTheMeasurementsOfATag() throws InterruptedException {
+        AsyncMeasurementListener listener = holdConsumer(OverflowPolicy.COALESCE_LATEST_PER_MAC);
+        listener.offer(reading("F4A57424B1D2", 1));
+        listener.offer(reading("C0A57424B1D2", 2));
+        listener.offer(reading("F4A57424B1D2", 3));
+        listener.offer(reading("F4A57424B1D2", 4));
+        release.countDown();
+        listener.close();
+
+        assertEquals(List.of(0.0, 4.0, 2.0), received);
+        assertEquals(2, listener.getCoalescedCount());
+        assertEquals(0, listener.getDroppedCount());
+    }
+
+    @Test
+    void blockWaitsForRoomInTheQueue() throws InterruptedException {
+        AsyncMeasurementListener listener = holdConsumer(OverflowPolicy.BLOCK);
+        listener.offer(reading("F4A57424B1D2", 1));
+        listener.offer(reading("F4A57424B1D2", 2));
+        Thread producer = new Thread(() -> listener.offer(reading("F4A57424B1D2", 3)));
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        release.countDown();
+        producer.join(5000);
+        listener.close();
+
+        assertEquals(List.of(0.0, 1.0, 2.0, 3.0), received);
+        assertEquals(0, listener.getDroppedCount());
+    }
+
+    @Test
+    void countsTheMeasurementsTheListenerFailsOn() {
+        AsyncMeasurementListener listener = new AsyncMeasurementListener((measurement, derived) -> {
+            if (measurement.getTemperature() < 0) {
+                throw new IllegalStateException("Rejected");
+            }
+            received.add(measurement.getTemperature());
+        }, 8, OverflowPolicy.BLOCK, ThreadingMode.PLATFORM);
+        listener.offer(reading("F4A57424B1D2", -1));
+        listener.offer(reading("F4A57424B1D2", 1));
+        listener.close();
+
+        assertEquals(List.of(1.0), received);
+        assertEquals(1, listener.getFailedCount());
+        assertEquals(1, listener.getDeliveredCount());
+    }
+
+    @Test
+    void dropsWhatIsOfferedAfterClosing() {
+        AsyncMeasurementListener listener = new AsyncMeasurementListener(slowListener, 8, OverflowPolicy.BLOCK, ThreadingMode.PLATFORM);
+        listener.close();
+        listener.offer(reading("F4A57424B1D2", 1));
+
+        assertTrue(received.isEmpty());
+        assertEquals(1, listener.getDroppedCount());
+    }
+
+    /**
+     * @return a listener with a queue of 2 whose consumer is held by the
+     * first measurement, with a temperature of 0
+     */
+    private AsyncMeasurementListener holdConsumer(OverflowPolicy policy) throws InterruptedException {
+        AsyncMeasurementListener listener = new AsyncMeasurementListener(slowListener, 2, policy, ThreadingMode.PLATFORM);
+        listener.offer(reading("F4A57424B1D2", 0));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return listener;
+    }
+
+    private static RuuviData reading(String mac, double temperature) {
+        RuuviValue measurement = RuuviValue.builder()
+                .mac(mac)
+                .dataFormat(3)
+                .temperature(temperature)
+                .humidity(40.0)
+                .build();
+        return new RuuviData(measurement, RuuviDerivedValue.NONE);
+    }
+}
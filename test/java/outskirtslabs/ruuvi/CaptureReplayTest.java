@@ -0,0 +1,241 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Records events with {@link CaptureRecorder} and replays them with
+ * {@link ReplayEventSource}, alone and through a {@link Receiver}.
+ */
+class CaptureReplayTest {
+
+    private static final String CAPTURE = "/captures/mixed.hcidump.txt";
+    private static final String TAG = "F4A57424B1D2";
+    private static final String OTHER_TAG = "C6A1E9F0B3D8";
+    private static final long START_MICROS = 1_700_000_000_000_000L;
+
+    @TempDir
+    Path dir;
+    private Receiver receiver;
+
+    @AfterEach
+    void dispose() {
+        if (receiver != null) {
+            receiver.dispose();
+        }
+    }
+
+    @Test
+    void recordsTheEventsOfATextDumpAsBtsnoop() throws IOException {
+        // a few times over, so that the buffer is written when full
+        List<byte[]> expected = new ArrayList<>();
+        HciTextFramer framer = new HciTextFramer();
+        CaptureRecorder recorder = CaptureRecorder.create(dir.resolve("capture.btsnoop"));
+        CaptureRecorder.TextTap tap = recorder.new TextTap();
+        for (int n = 0; n < 5; n++) {
+            for (String line : lines()) {
+                ByteBuffer frame = framer.line(line);
+                if (frame != null) {
+                    byte[] event = new byte[frame.remaining()];
+                    frame.get(event);
+                    expected.add(event);
+                }
+                tap.line(line, START_MICROS + expected.size() * 1000L);
+            }
+        }
+        recorder.close();
+        recorder.record(ByteBuffer.wrap(expected.get(0)), START_MICROS);
+        recorder.flush();
+        assertTrue(expected.size() > 1000, expected.size() + " events");
+        assertEquals(expected.size(), recorder.getRecordedCount());
+
+        try (HciEventSource source = DumpFormat.BTSNOOP.open(FileChannel.open(recorder.getFile()))) {
+            for (int i = 0; i < expected.size(); i++) {
+                ByteBuffer frame = source.next();
+                assertNotNull(frame, "event " + i);
+                byte[] event = new byte[frame.remaining()];
+                frame.get(event);
+                assertArrayEquals(expected.get(i), event, "event " + i);
+                assertEquals(START_MICROS + (i + 1) * 1000L, source.getTimestampMicros());
+            }
+            assertNull(source.next(), "not recorded after closing");
+        }
+    }
+
+    @Test
+    void recordsAFrameWithoutConsumingIt() throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(new byte[]{0, 0, 0x04, 0x0E, 0x01, 0x00, 0, 0});
+        frame.position(2).limit(6);
+        try (CaptureRecorder recorder = CaptureRecorder.create(dir.resolve("capture.btsnoop"))) {
+            recorder.record(frame, START_MICROS);
+        }
+        assertEquals(2, frame.position());
+        assertEquals(6, frame.limit());
+    }
+
+    @Test
+    void pacesThePacketsByTheirTimestamps() throws IOException {
+        long[] timestamps = {START_MICROS, START_MICROS + 200_000, START_MICROS + 400_000, -1};
+        long start = System.nanoTime();
+        assertEquals(4, replay(timestamps, 2));
+        long elapsed = System.nanoTime() - start;
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(200), "twice as fast: " + elapsed + " ns");
+
+        long[] hourApart = {START_MICROS, START_MICROS + TimeUnit.HOURS.toMicros(1), -1, START_MICROS + TimeUnit.HOURS.toMicros(2)};
+        start = System.nanoTime();
+        assertEquals(4, replay(hourApart, Adapter.AS_FAST_AS_POSSIBLE));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10), "without waiting");
+    }
+
+    @Test
+    void stopsWaitingWhenClosed() throws Exception {
+        long[] hourApart = {START_MICROS, START_MICROS + TimeUnit.HOURS.toMicros(1)};
+        ReplayEventSource replay = new ReplayEventSource(new TimestampedEventSource(hourApart), 1);
+        assertNotNull(replay.next());
+        CompletableFuture<ByteBuffer> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return replay.next();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(200);
+        replay.close();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> waiting.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause().getCause() instanceof InterruptedIOException, e.toString());
+        assertThrows(IllegalArgumentException.class, () -> Adapter.replay("replay", dir, DumpFormat.BTSNOOP, 0));
+    }
+
+    @Test
+    void replaysARecordingOfALiveAdapter() throws Exception {
+        String scan = new FakeCommand().hang().write(dir, "scan");
+        String dump = new FakeCommand()
+                .sleep(0.5)
+                .emit(FakeCommand.rawV1(TAG, -70, 21, 40))
+                .emit(FakeCommand.rawV1(OTHER_TAG, -75, 5, 80))
+                .emit(FakeCommand.rawV1(TAG, -71, 22, 41))
+                .hang()
+                .write(dir, "dump");
+        CaptureRecorder recorder = CaptureRecorder.create(dir.resolve("capture.btsnoop"));
+        List<RuuviValue> live = receive(Adapter.command("live", scan, dump), recorder, 3);
+        receiver.dispose();
+        receiver = null;
+        recorder.close();
+        assertEquals(3, recorder.getRecordedCount());
+
+        BlockingQueue<HealthState> health = new LinkedBlockingQueue<>();
+        Adapter replay = Adapter.replay("replay", recorder.getFile(), DumpFormat.BTSNOOP, Adapter.AS_FAST_AS_POSSIBLE);
+        receiver = new Receiver(List.of(replay));
+        receiver.addHealthListener((adapter, previous, current) -> health.add(current));
+        List<RuuviValue> replayed = receive(null, null, 3);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(live.get(i).getMac(), replayed.get(i).getMac());
+            assertEquals(live.get(i).getTemperature(), replayed.get(i).getTemperature());
+            assertEquals(live.get(i).getRssi(), replayed.get(i).getRssi());
+            assertEquals("replay", replayed.get(i).getReceiver());
+        }
+        for (HealthState state = null; state != HealthState.FINISHED; ) {
+            state = health.poll(10, TimeUnit.SECONDS);
+            assertNotNull(state, "finished");
+        }
+    }
+
+    /**
+     * Starts a receiver, of the adapter if it's not created yet, and takes the
+     * first measurements
+     */
+    private List<RuuviValue> receive(Adapter adapter, CaptureRecorder recorder, int count) throws InterruptedException {
+        if (receiver == null) {
+            receiver = new Receiver(List.of(adapter));
+        }
+        BlockingQueue<RuuviValue> measurements = new LinkedBlockingQueue<>();
+        receiver.setCaptureRecorder(recorder);
+        receiver.setAdapterDeduplication(Duration.ZERO);
+        receiver.addMeasurementListener((measurement, derived) -> measurements.add(measurement));
+        receiver.start();
+        List<RuuviValue> received = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            RuuviValue measurement = measurements.poll(10, TimeUnit.SECONDS);
+            assertNotNull(measurement, "measurement " + (i + 1) + " of " + count);
+            received.add(measurement);
+        }
+        return received;
+    }
+
+    /**
+     * @return the number of packets replayed
+     */
+    private static int replay(long[] timestamps, double speed) throws IOException {
+        int count = 0;
+        try (ReplayEventSource replay = new ReplayEventSource(new TimestampedEventSource(timestamps), speed)) {
+            while (replay.next() != null) {
+                assertEquals(timestamps[count++], replay.getTimestampMicros());
+            }
+        }
+        return count;
+    }
+
+    private static String[] lines() throws IOException {
+        try (InputStream in = CaptureReplayTest.class.getResourceAsStream(CAPTURE)) {
+            assertNotNull(in, "missing capture " + CAPTURE);
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII).split("\n");
+        }
+    }
+
+    /**
+     * Returns an empty event for each timestamp, -1 for none
+     */
+    private static final class TimestampedEventSource implements HciEventSource {
+
+        private final long[] timestamps;
+        private int next;
+
+        TimestampedEventSource(long[] timestamps) {
+            this.timestamps = timestamps;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            if (next == timestamps.length) {
+                return null;
+            }
+            next++;
+            return ByteBuffer.wrap(new byte[]{0x04, 0x0E, 0x00});
+        }
+
+        @Override
+        public long getTimestampMicros() {
+            return timestamps[next - 1];
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
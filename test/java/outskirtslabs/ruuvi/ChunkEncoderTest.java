@@ -0,0 +1,191 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Round trips columns through {@link ChunkEncoder} and {@link ChunkDecoder},
+ * and bits through the {@link BitWriter} and {@link BitReader} below them.
+ */
+class ChunkEncoderTest {
+
+    private static final long MAC = 0xF4A57424B1D2L;
+
+    @Test
+    void readsBackTheBitsWritten() {
+        Random random = new Random(20241018);
+        for (int n = 0; n < 200; n++) {
+            int count = random.nextInt(100);
+            int[] widths = new int[count];
+            long[] values = new long[count];
+            BitWriter writer = new BitWriter();
+            for (int i = 0; i < count; i++) {
+                widths[i] = 1 + random.nextInt(64);
+                values[i] = random.nextLong();
+                writer.write(values[i], widths[i]);
+            }
+            assertEquals(Arrays.stream(widths).sum(), writer.length());
+
+            // the bits in the middle of a buffer, with ones around them
+            int start = random.nextInt(16);
+            ByteBuffer buffer = ByteBuffer.allocate(start + writer.byteLength() + 16);
+            Arrays.fill(buffer.array(), (byte) 0xFF);
+            buffer.position(start);
+            writer.copyTo(buffer);
+            BitReader reader = new BitReader(buffer, start, start + writer.byteLength());
+            for (int i = 0; i < count; i++) {
+                long expected = widths[i] == 64 ? values[i] : values[i] & (1L << widths[i]) - 1;
+                assertEquals(expected, reader.read(widths[i]), "value " + i + " of " + widths[i] + " bits");
+            }
+            // the padding and what follows the range read as zeros
+            assertEquals(0, reader.read(64));
+            assertEquals(0, reader.read(64));
+        }
+    }
+
+    @Test
+    void refillsFromTheTailByteByByte() {
+        BitWriter writer = new BitWriter();
+        for (int i = 0; i < 11; i++) { // 11 bytes: one long, then a tail of 3
+            writer.write(0xA0 + i, 8);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(24);
+        writer.copyTo(buffer);
+        buffer.put((byte) 0xFF);
+        BitReader reader = new BitReader(buffer, 0, writer.byteLength());
+
+        assertEquals(0xA, reader.read(4));
+        for (int i = 0; i < 10; i++) {
+            // every byte straddles two, so each read spans a refill near the end
+            assertEquals(((0xA0 + i) & 0xF) << 4 | (0xA0 + i + 1) >>> 4, reader.peek(8));
+            reader.skip(8);
+        }
+        assertEquals(0xA, reader.read(4));
+        assertEquals(0, reader.read(8), "not the byte past the end");
+    }
+
+    @Test
+    void reusesABitWriterAfterClearing() {
+        BitWriter writer = new BitWriter();
+        for (int i = 0; i < 10; i++) {
+            writer.write(-1L, 64);
+        }
+        writer.clear();
+        writer.write(0b101, 3);
+        ByteBuffer buffer = ByteBuffer.allocate(writer.byteLength());
+        writer.copyTo(buffer);
+        assertArrayEquals(new byte[]{(byte) 0b1010_0000}, buffer.array());
+    }
+
+    @Test
+    void encodesEachDeltaOfDeltaInTheSmallestBucket() {
+        // the deltas of deltas at the edges of the buckets, with their bits
+        long[] deltasOfDeltas = {0, 1, -63, 64, -64, 65, -255, 256, -256, 257, -2047, 2048, -2048, 2049, -1_000_000_000_000L};
+        int[] bits = {1, 9, 9, 9, 12, 12, 12, 12, 16, 16, 16, 16, 68, 68, 68};
+        long[] times = new long[deltasOfDeltas.length + 2];
+        times[0] = 1_700_000_000_000L;
+        times[1] = times[0] + 1000;
+        long delta = 1000;
+        for (int i = 0; i < deltasOfDeltas.length; i++) {
+            delta += deltasOfDeltas[i];
+            times[i + 2] = times[i + 1] + delta;
+        }
+        ChunkEncoder encoder = new ChunkEncoder(1);
+        for (long time : times) {
+            encoder.add(time, new double[]{1});
+        }
+        ByteBuffer chunk = write(encoder);
+
+        // the first time, the first delta as a delta of delta from 0, then the rest
+        int expectedBits = 64 + 16 + Arrays.stream(bits).sum();
+        assertEquals((expectedBits + 7) / 8, chunk.getInt(ChunkEncoder.LENGTHS_OFFSET));
+        assertArrayEquals(times, scan(chunk, 0, Long.MIN_VALUE, Long.MAX_VALUE).getTimes());
+    }
+
+    @Test
+    void reusesTheWindowOfThePreviousXor() {
+        double a = 21.5;
+        double b = 21.75;
+        long xor = Double.doubleToLongBits(a) ^ Double.doubleToLongBits(b);
+        int meaningful = Long.SIZE - Long.numberOfLeadingZeros(xor) - Long.numberOfTrailingZeros(xor);
+        ChunkEncoder alternating = new ChunkEncoder(1);
+        ChunkEncoder constant = new ChunkEncoder(1);
+        for (int i = 0; i < 100; i++) {
+            alternating.add(i * 1000L, new double[]{i % 2 == 0 ? a : b});
+            constant.add(i * 1000L, new double[]{a});
+        }
+
+        // the first XOR with its zero counts and length, the rest in its window
+        int alternatingBits = 64 + 2 + 5 + 6 + meaningful + 98 * (2 + meaningful);
+        assertEquals((alternatingBits + 7) / 8, columnLength(write(alternating), 0));
+        // a value that didn't change takes a bit
+        assertEquals((64 + 99 + 7) / 8, columnLength(write(constant), 0));
+        TimeSeries decoded = scan(write(alternating), 0, Long.MIN_VALUE, Long.MAX_VALUE);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 2 == 0 ? a : b, decoded.getValue(i));
+        }
+    }
+
+    @Test
+    void roundTripsRandomColumns() {
+        Random random = new Random(20241019);
+        int fields = 3;
+        int count = 2000;
+        ChunkEncoder encoder = new ChunkEncoder(fields);
+        long[] times = new long[count];
+        double[][] columns = new double[fields][count];
+        long time = 1_700_000_000_000L;
+        for (int i = 0; i < count; i++) {
+            time += random.nextInt(10) == 0 ? -random.nextInt(5000) : 1000 + random.nextInt(200) - 100;
+            times[i] = time;
+            columns[0][i] = random.nextInt(8) == 0 ? Double.NaN : Math.round(random.nextGaussian() * 2000) / 200d;
+            columns[1][i] = i > 0 && random.nextBoolean() ? columns[1][i - 1] : Math.nextUp(columns[1][Math.max(0, i - 1)]);
+            columns[2][i] = Double.longBitsToDouble(random.nextLong() & 0x7FEF_FFFF_FFFF_FFFFL);
+            encoder.add(time, new double[]{columns[0][i], columns[1][i], columns[2][i]});
+        }
+        ByteBuffer chunk = write(encoder);
+        assertEquals(count, chunk.getInt(ChunkEncoder.COUNT_OFFSET));
+
+        long from = times[count / 4];
+        long to = times[count / 2];
+        for (int field = 0; field < fields; field++) {
+            List<Long> expectedTimes = new ArrayList<>();
+            List<Double> expectedValues = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (times[i] >= from && times[i] < to && !Double.isNaN(columns[field][i])) {
+                    expectedTimes.add(times[i]);
+                    expectedValues.add(columns[field][i]);
+                }
+            }
+            TimeSeries decoded = scan(chunk, field, from, to);
+            assertArrayEquals(expectedTimes.stream().mapToLong(Long::longValue).toArray(), decoded.getTimes(), "times of field " + field);
+            assertArrayEquals(expectedValues.stream().mapToDouble(Double::doubleValue).toArray(), decoded.getValues(), "field " + field);
+        }
+        assertEquals(0, scan(chunk, fields, Long.MIN_VALUE, Long.MAX_VALUE).size(), "a column added later");
+    }
+
+    private static ByteBuffer write(ChunkEncoder encoder) {
+        ByteBuffer chunk = ByteBuffer.allocate(encoder.encodedLength());
+        encoder.writeTo(chunk, MAC);
+        assertEquals(chunk.capacity(), chunk.position());
+        return chunk;
+    }
+
+    private static int columnLength(ByteBuffer chunk, int field) {
+        return chunk.getInt(ChunkEncoder.LENGTHS_OFFSET + (field + 1) * Integer.BYTES);
+    }
+
+    private static TimeSeries scan(ByteBuffer chunk, int field, long from, long to) {
+        TimeSeries series = new TimeSeries();
+        ChunkDecoder.scan(chunk, 0, field, from, to, series::add);
+        return series;
+    }
+}
@@ -0,0 +1,141 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DerivedValuePipelineTest {
+
+    @Test
+    void runsEachPluginAfterThoseItReads() {
+        DerivedValuePlugin smoothedDeficit = DerivedValuePlugin.movingAverage("smoothedDeficit", VaporPressureDeficitPlugin.OUTPUT, 4);
+        DerivedValuePlugin doubled = new Sum("doubled", "smoothedDeficit", "smoothedDeficit");
+        DerivedValuePlugin deficit = DerivedValuePlugin.vaporPressureDeficit();
+        DerivedValuePlugin heatIndex = DerivedValuePlugin.heatIndex();
+
+        DerivedValuePipeline pipeline = DerivedValuePipeline.of(List.of(doubled, heatIndex, smoothedDeficit, deficit));
+
+        // heatIndex reads no output and keeps its place before the chain
+        assertEquals(List.of(heatIndex, deficit, smoothedDeficit, doubled), pipeline.getPlugins());
+        assertEquals(List.of(AggregateField.TEMPERATURE, AggregateField.HUMIDITY), pipeline.getInputs());
+        assertEquals(List.of(HeatIndexPlugin.OUTPUT, VaporPressureDeficitPlugin.OUTPUT, "smoothedDeficit", "doubled"), pipeline.getOutputs());
+
+        RuuviData data = apply(pipeline, reading("F4A57424B1D2", 25, 60.0));
+        double expected = MeasurementValueCalculator.vaporPressureDeficit(25d, 60d);
+        assertEquals(expected, data.getDerived().getExtra(VaporPressureDeficitPlugin.OUTPUT));
+        assertEquals(2 * expected, data.getDerived().getExtra("doubled"));
+    }
+
+    @Test
+    void rejectsPluginsReadingEachOther() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> DerivedValuePipeline.of(List.of(
+                DerivedValuePlugin.heatIndex(),
+                new Sum("a", "b", AggregateField.TEMPERATURE.name()),
+                new Sum("b", "c", AggregateField.TEMPERATURE.name()),
+                new Sum("c", "a", AggregateField.TEMPERATURE.name()))));
+        assertTrue(e.getMessage().contains("[a, b, c]"), e.getMessage());
+
+        assertThrows(IllegalArgumentException.class, () -> DerivedValuePipeline.of(List.of(new Sum("a", "a", "a"))), "reads itself");
+        assertThrows(IllegalArgumentException.class, () -> DerivedValuePipeline.of(List.of(new Sum("a", "missing", "TEMPERATURE"))));
+        assertThrows(IllegalArgumentException.class, () -> DerivedValuePipeline.of(List.of(new Sum("a", "TEMPERATURE", "TEMPERATURE"),
+                new Sum("a", "HUMIDITY", "HUMIDITY"))), "derived twice");
+        assertThrows(IllegalArgumentException.class, () -> DerivedValuePipeline.of(List.of(new Sum("TEMPERATURE", "HUMIDITY", "HUMIDITY"))),
+                "a field");
+    }
+
+    @Test
+    void derivesTheSameValuesInBatchesAsPerMeasurement() {
+        Random random = new Random(20241018);
+        List<RuuviData> batch = new ArrayList<>();
+        String[] tags = {"F4A57424B1D2", "C0A57424B1D2", "D1A57424B1D2"};
+        for (int j = 0; j < 500; j++) {
+            Double humidity = random.nextInt(10) == 0 ? null : 20 + random.nextDouble() * 70;
+            RuuviValue measurement = reading(tags[random.nextInt(tags.length)], -10 + random.nextDouble() * 45, humidity);
+            batch.add(MeasurementValueCalculator.calculateValues(measurement, DerivedField.ALL));
+        }
+        // separate pipelines, as the moving average keeps state
+        DerivedValuePipeline perMeasurement = chain();
+        DerivedValuePipeline batched = chain();
+
+        double[][] columns = batched.computeBatch(batch);
+
+        List<String> outputs = perMeasurement.getOutputs();
+        for (int j = 0; j < batch.size(); j++) {
+            RuuviData data = apply(perMeasurement, batch.get(j).getMeasurement());
+            for (int k = 0; k < outputs.size(); k++) {
+                Double value = data.getDerived().getExtra(outputs.get(k));
+                if (value == null) {
+                    assertTrue(Double.isNaN(columns[k][j]), outputs.get(k) + " of row " + j);
+                } else {
+                    assertEquals(value, columns[k][j], outputs.get(k) + " of row " + j);
+                }
+            }
+        }
+    }
+
+    @Test
+    void leavesOutTheValuesOfAMeasurementWithoutTheInputs() {
+        RuuviData data = apply(chain(), reading("F4A57424B1D2", 21, null));
+        assertNull(data.getDerived().getExtra(HeatIndexPlugin.OUTPUT));
+        assertNull(data.getDerived().getExtra("smoothedDeficit"));
+        assertNull(data.getDerived().getExtra("unknown"));
+    }
+
+    private static DerivedValuePipeline chain() {
+        return DerivedValuePipeline.of(List.of(
+                DerivedValuePlugin.heatIndex(),
+                DerivedValuePlugin.vaporPressureDeficit(),
+                DerivedValuePlugin.movingAverage("smoothedDeficit", VaporPressureDeficitPlugin.OUTPUT, 8),
+                DerivedValuePlugin.movingAverage("smoothedTemperature", AggregateField.TEMPERATURE.name(), 3)));
+    }
+
+    private static RuuviData apply(DerivedValuePipeline pipeline, RuuviValue measurement) {
+        RuuviData data = MeasurementValueCalculator.calculateValues(measurement, pipeline.getDerivedFields(), true);
+        pipeline.apply(data.getMeasurement(), data.getDerived());
+        return data;
+    }
+
+    private static RuuviValue reading(String mac, double temperature, Double humidity) {
+        return RuuviValue.builder()
+                .mac(mac)
+                .dataFormat(5)
+                .temperature(temperature)
+                .humidity(humidity)
+                .build();
+    }
+
+    /**
+     * Adds two values
+     */
+    private static final class Sum implements DerivedValuePlugin {
+        private final String output;
+        private final List<String> inputs;
+
+        Sum(String output, String a, String b) {
+            this.output = output;
+            this.inputs = List.of(a, b);
+        }
+
+        @Override
+        public List<String> getInputs() {
+            return inputs;
+        }
+
+        @Override
+        public List<String> getOutputs() {
+            return List.of(output);
+        }
+
+        @Override
+        public void compute(long mac, double[] inputs, double[] outputs) {
+            outputs[0] = inputs[0] + inputs[1];
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package outskirtslabs.ruuvi;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+/**
+ * A scripted stand-in for the scan or dump command of an adapter: a shell
+ * script printing hcidump packets, sleeping, exiting or hanging, in order.
+ */
+final class FakeCommand {
+
+    private final StringBuilder script = new StringBuilder("#!/bin/sh\n");
+
+    /**
+     * Prints the lines "hcidump --raw" prints for a packet
+     */
+    FakeCommand emit(String packet) {
+        for (String line : packet.split("\n")) {
+            script.append("printf '%s\\n' '").append(line).append("'\n");
+        }
+        return this;
+    }
+
+    FakeCommand sleep(double seconds) {
+        script.append(String.format(Locale.ROOT, "sleep %.3f%n", seconds));
+        return this;
+    }
+
+    FakeCommand exit(int status) {
+        script.append("exit ").append(status).append('\n');
+        return this;
+    }
+
+    /**
+     * Goes silent without exiting, until it is stopped
+     */
+    FakeCommand hang() {
+        script.append("exec sleep 600\n");
+        return this;
+    }
+
+    /**
+     * Appends a line to a file each time the command starts, to count the
+     * starts
+     */
+    FakeCommand countStarts(Path file) {
+        script.append("echo started >> ").append(file).append('\n');
+        return this;
+    }
+
+    /**
+     * Writes the script to the directory
+     *
+     * @return the command running it
+     */
+    String write(Path dir, String name) throws IOException {
+        Path file = dir.resolve(name + ".sh");
+        Files.writeString(file, script);
+        return "sh " + file;
+    }
+
+    /**
+     * @return the hcidump output of an advertisement of a RuuviTag in the
+     * RAWv1 format
+     */
+    static String rawV1(String mac, int rssi, int temperature, int humidity) {
+        byte[] data = new byte[16];
+        data[0] = (byte) 0x99; // manufacturer ID
+        data[1] = 0x04;
+        data[2] = 3;
+        data[3] = (byte) (humidity * 2);
+        data[4] = (byte) temperature;
+        data[6] = (byte) 0xC3; // pressure 100000 Pa
+        data[7] = 0x50;
+        data[14] = 0x0B; // battery 2.9 V
+        data[15] = 0x54;
+        return packet(mac, rssi, data);
+    }
+
+    /**
+     * @return the hcidump output of an advertising report with the flags and
+     * the given manufacturer specific data
+     */
+    static String packet(String mac, int rssi, byte[] manufacturerData) {
+        int reportLength = 3 + 2 + manufacturerData.length;
+        byte[] p = new byte[3 + 10 + 1 + reportLength + 1];
+        int i = 0;
+        p[i++] = 0x04; // event
+        p[i++] = 0x3E; // LE meta event
+        p[i++] = (byte) (p.length - 3);
+        p[i++] = 0x02; // advertising report
+        p[i++] = 0x01; // one report
+        p[i++] = 0x00; // event type
+        p[i++] = 0x01; // random address
+        for (int k = 5; k >= 0; k--) { // the MAC is backwards
+            p[i++] = (byte) Integer.parseInt(mac.substring(2 * k, 2 * k + 2), 16);
+        }
+        p[i++] = (byte) reportLength;
+        p[i++] = 0x02; // flags
+        p[i++] = 0x01;
+        p[i++] = 0x06;
+        p[i++] = (byte) (manufacturerData.length + 1);
+        p[i++] = (byte) 0xFF;
+        System.arraycopy(manufacturerData, 0, p, i, manufacturerData.length);
+        i += manufacturerData.length;
+        p[i] = (byte) rssi;
+
+        StringBuilder text = new StringBuilder(">");
+        for (int k = 0; k < p.length; k++) {
+            if (k > 0 && k % 20 == 0) {
+                text.append(" \n ");
+            }
+            text.append(String.format(" %02X", p[k]));
+        }
+        return text.append(' ').toString();
+    }
+}
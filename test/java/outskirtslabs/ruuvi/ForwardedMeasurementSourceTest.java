@@ -0,0 +1,151 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ForwardedMeasurementSourceTest {
+
+    private final List<RuuviValue> received = new ArrayList<>();
+    private final MeasurementListener listener = (measurement, derived) -> received.add(measurement);
+
+    @Test
+    void readsFramesSplitAcrossReads() throws IOException {
+        byte[] stream = concat(frame(0, 3), frame(3, 2), frame(5, 4));
+        // every chunk size splits the frames somewhere else, down to a byte a read
+        for (int chunk = 1; chunk < 40; chunk++) {
+            received.clear();
+            ChunkedChannel channel = new ChunkedChannel(stream, chunk);
+            try (ForwardedMeasurementSource source = new ForwardedMeasurementSource(channel, listener)) {
+                source.readAll();
+                assertEquals(3, source.getFrameCount());
+                assertEquals(9, source.getMeasurementCount());
+            }
+            assertSequence(9);
+            assertFalse(channel.isOpen());
+        }
+    }
+
+    @Test
+    void growsTheBufferForAFrameLargerThan64KiB() throws IOException {
+        byte[] large = frame(0, 3000);
+        assertTrue(large.length > 64 * 1024, "a frame of " + large.length + " bytes");
+        byte[] stream = concat(frame(0, 1), large, frame(0, 2));
+
+        ForwardedMeasurementSource source = new ForwardedMeasurementSource(new ChunkedChannel(stream, 8192), listener);
+        source.readAll();
+
+        assertEquals(3, source.getFrameCount());
+        assertEquals(3003, received.size());
+        assertEquals("tag-2999", received.get(3000).getName());
+    }
+
+    @Test
+    void failsWhenTheStreamEndsInAFrame() {
+        byte[] frame = frame(0, 2);
+        byte[] stream = concat(frame(0, 1), Arrays.copyOf(frame, frame.length - 1));
+
+        ForwardedMeasurementSource source = new ForwardedMeasurementSource(new ChunkedChannel(stream, 16), listener);
+        assertThrows(EOFException.class, source::readAll);
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    void failsOnACorruptedLength() {
+        byte[] stream = frame(0, 2);
+        stream[0] = (byte) 0xFF; // a negative length
+
+        ForwardedMeasurementSource source = new ForwardedMeasurementSource(new ChunkedChannel(stream, 16), listener);
+        assertThrows(StreamCorruptedException.class, source::readAll);
+        assertTrue(received.isEmpty());
+    }
+
+    /**
+     * @return a frame of measurements named tag-first and on, with receivers long
+     * enough that a few thousand don't fit in 64 KiB
+     */
+    private static byte[] frame(int first, int count) {
+        MeasurementEncoder encoder = new MeasurementEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+        encoder.startFrame(buffer);
+        for (int i = first; i < first + count; i++) {
+            RuuviValue measurement = RuuviValue.builder()
+                    .mac("F4A57424B1D2")
+                    .dataFormat(5)
+                    .temperature(i / 200d)
+                    .time(1_700_000_000_000L + i)
+                    .name("tag-" + i)
+                    .receiver("gateway with a name of some twenty bytes " + i)
+                    .build();
+            assertTrue(encoder.add(measurement, null));
+        }
+        encoder.finishFrame();
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private void assertSequence(int count) {
+        assertEquals(count, received.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("tag-" + i, received.get(i).getName());
+            assertEquals(i / 200d, received.get(i).getTemperature());
+        }
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteBuffer buffer = ByteBuffer.allocate(Arrays.stream(arrays).mapToInt(a -> a.length).sum());
+        for (byte[] array : arrays) {
+            buffer.put(array);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Gives at most a chunk of the stream a read, like a socket
+     */
+    private static final class ChunkedChannel implements ReadableByteChannel {
+
+        private final ByteBuffer stream;
+        private final int chunk;
+        private boolean open = true;
+
+        ChunkedChannel(byte[] stream, int chunk) {
+            this.stream = ByteBuffer.wrap(stream);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!stream.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(chunk, Math.min(dst.remaining(), stream.remaining()));
+            ByteBuffer slice = stream.slice();
+            slice.limit(n);
+            dst.put(slice);
+            stream.position(stream.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
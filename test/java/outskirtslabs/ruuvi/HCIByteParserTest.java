@@ -0,0 +1,82 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs {@link HCIParser} and {@link HCIByteParser} on a capture of a mix of
+ * tags and other devices, and compares what they parse.
+ */
+class HCIByteParserTest {
+
+    private static final String CAPTURE = "/captures/mixed.hcidump.txt";
+
+    @Test
+    void parsesTheCaptureLikeTheStateMachine() throws IOException {
+        List<String> expected = parse(new HCIParser()::readLine);
+        HCIByteParser parser = new HCIByteParser();
+
+        assertTrue(expected.size() > 200, "the capture has packets");
+        assertEquals(expected, parse(parser::readLine));
+    }
+
+    @Test
+    void parsesRangesOfCharacterSequences() throws IOException {
+        List<String> expected = parse(new HCIParser()::readLine);
+        HCIByteParser parser = new HCIByteParser();
+
+        assertEquals(expected, parse(line -> {
+            StringBuilder padded = new StringBuilder("##").append(line).append("  ##");
+            return parser.readLine(padded, 2, padded.length() - 2);
+        }));
+    }
+
+    @Test
+    void parsesRangesOfCharacterArrays() throws IOException {
+        List<String> expected = parse(new HCIParser()::readLine);
+        HCIByteParser parser = new HCIByteParser();
+        char[] buffer = new char[512];
+
+        assertEquals(expected, parse(line -> {
+            line.getChars(0, line.length(), buffer, 3);
+            return parser.readLine(buffer, 3, 3 + line.length());
+        }));
+    }
+
+    /**
+     * @return the packets parsed from the capture, as strings so that the
+     * differences are shown
+     */
+    private static List<String> parse(Function<String, HCIData> parser) throws IOException {
+        List<String> packets = new ArrayList<>();
+        boolean dataReceived = false;
+        for (String line : lines()) {
+            if (!dataReceived && !line.startsWith("> ")) {
+                continue; // skip the hcidump banner, like Receiver does
+            }
+            dataReceived = true;
+            HCIData data = parser.apply(line);
+            if (data != null) {
+                packets.add(data.toString());
+            }
+        }
+        return packets;
+    }
+
+    private static String[] lines() throws IOException {
+        try (InputStream in = HCIByteParserTest.class.getResourceAsStream(CAPTURE)) {
+            assertNotNull(in, "missing capture " + CAPTURE);
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII).split("\n");
+        }
+    }
+}
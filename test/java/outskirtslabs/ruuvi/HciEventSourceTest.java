@@ -0,0 +1,272 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes the packets of the text capture in each binary format, and reads the
+ * events back with the {@link HciEventSource} of the format.
+ */
+class HciEventSourceTest {
+
+    private static final String CAPTURE = "/captures/mixed.hcidump.txt";
+    private static final long START_MICROS = 1_700_000_000_000_000L;
+    /**
+     * An ACL data packet, which none of the sources return
+     */
+    private static final byte[] ACL_DATA = {0x02, 0x40, 0x20, 0x03, 0x00, 0x01, 0x02, 0x03};
+
+    @Test
+    void readsTheEventsOfAnH4Stream() throws IOException {
+        List<byte[]> packets = packets();
+        ByteBuffer stream = ByteBuffer.allocate(1 << 16);
+        for (byte[] packet : packets) {
+            stream.put(packet).put(ACL_DATA);
+        }
+        for (int chunk : new int[]{1, 7, 4096}) {
+            assertEvents(packets, DumpFormat.H4.open(new ChunkedChannel(bytes(stream), chunk)), false);
+        }
+    }
+
+    @Test
+    void readsTheEventsOfAnHcidumpFile() throws IOException {
+        List<byte[]> packets = packets();
+        ByteBuffer stream = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            long micros = START_MICROS + i * 1_250_000L;
+            stream.putShort((short) packet.length)
+                    .put((byte) (isEvent(packet) ? 1 : 0))
+                    .put((byte) 0)
+                    .putInt((int) (micros / 1_000_000))
+                    .putInt((int) (micros % 1_000_000))
+                    .put(packet);
+        }
+        for (int chunk : new int[]{1, 7, 4096}) {
+            assertEvents(packets, DumpFormat.HCIDUMP.open(new ChunkedChannel(bytes(stream), chunk)), true);
+        }
+    }
+
+    @Test
+    void readsTheEventsOfEachBtsnoopDatalink() throws IOException {
+        List<byte[]> packets = packets();
+        for (int datalink : new int[]{BtsnoopEventSource.DATALINK_HCI_UART,
+                BtsnoopEventSource.DATALINK_HCI_UNENCAPSULATED, BtsnoopEventSource.DATALINK_MONITOR}) {
+            ByteBuffer stream = btsnoop(datalink, packets);
+            for (int chunk : new int[]{1, 7, 4096}) {
+                assertEvents(packets, DumpFormat.BTSNOOP.open(new ChunkedChannel(bytes(stream), chunk)), true);
+            }
+        }
+    }
+
+    @Test
+    void parsesTheEventsLikeTheTextParser() throws IOException {
+        List<String> expected = new ArrayList<>();
+        HCIParser textParser = new HCIParser();
+        boolean dataReceived = false;
+        for (String line : lines()) {
+            if (!dataReceived && !line.startsWith("> ")) {
+                continue;
+            }
+            dataReceived = true;
+            HCIData data = textParser.readLine(line);
+            if (data != null) {
+                expected.add(data.toString());
+            }
+        }
+
+        List<String> parsed = new ArrayList<>();
+        HCIByteParser parser = new HCIByteParser();
+        try (HciEventSource source = DumpFormat.BTSNOOP.open(new ChunkedChannel(bytes(btsnoop(BtsnoopEventSource.DATALINK_MONITOR, packets())), 100))) {
+            for (ByteBuffer event = source.next(); event != null; event = source.next()) {
+                HCIData data = parser.readPacket(event);
+                if (data != null) {
+                    parsed.add(data.toString());
+                }
+            }
+        }
+        assertTrue(expected.size() > 200, "the capture has packets");
+        assertEquals(expected, parsed);
+    }
+
+    @Test
+    void rejectsMalformedStreams() throws IOException {
+        ByteBuffer header = btsnoop(BtsnoopEventSource.DATALINK_MONITOR, List.of());
+        header.put(6, (byte) 'q');
+        assertThrows(IOException.class, () -> DumpFormat.BTSNOOP.open(channel(bytes(header))).next(), "not a btsnoop stream");
+        header.put(6, (byte) 'p').putInt(12, 1); // Ethernet
+        assertThrows(IOException.class, () -> DumpFormat.BTSNOOP.open(channel(bytes(header))).next(), "an unsupported datalink");
+        assertThrows(IOException.class, () -> DumpFormat.H4.open(channel(new byte[]{0x05, 0x00})).next(), "an unknown packet type");
+        assertThrows(UnsupportedOperationException.class, () -> DumpFormat.TEXT.open(channel(new byte[0])));
+
+        byte[] event = packets().get(1);
+        HciEventSource truncated = DumpFormat.H4.open(channel(Arrays.copyOf(event, event.length - 1)));
+        assertThrows(EOFException.class, truncated::next);
+
+        assertNull(DumpFormat.BTSNOOP.open(channel(new byte[0])).next(), "an empty stream");
+        assertNull(DumpFormat.BTSNOOP.open(channel(bytes(btsnoop(BtsnoopEventSource.DATALINK_HCI_UART, List.of())))).next());
+    }
+
+    private static void assertEvents(List<byte[]> packets, HciEventSource source, boolean timestamps) throws IOException {
+        try (source) {
+            for (byte[] event : events(packets)) {
+                ByteBuffer frame = source.next();
+                assertNotNull(frame, "an event");
+                byte[] actual = new byte[frame.remaining()];
+                frame.get(actual);
+                assertArrayEquals(event, actual);
+                if (timestamps) {
+                    long micros = source.getTimestampMicros() - START_MICROS;
+                    assertEquals(0, micros % 1_250_000L, "the timestamp of a packet");
+                    assertArrayEquals(event, packets.get((int) (micros / 1_250_000L)));
+                } else {
+                    assertEquals(-1, source.getTimestampMicros());
+                }
+            }
+            assertNull(source.next());
+            assertNull(source.next(), "still at the end");
+        }
+    }
+
+    /**
+     * @return a btsnoop file of the packets, a packet every 1.25 seconds from
+     * the start
+     */
+    private static ByteBuffer btsnoop(int datalink, List<byte[]> packets) {
+        ByteBuffer stream = ByteBuffer.allocate(1 << 16);
+        stream.put(BtsnoopEventSource.MAGIC).putInt(1).putInt(datalink);
+        for (int i = 0; i < packets.size(); i++) {
+            byte[] packet = packets.get(i);
+            boolean event = isEvent(packet);
+            int offset = datalink == BtsnoopEventSource.DATALINK_HCI_UART ? 0 : 1; // the packet type is in the flags
+            int flags;
+            if (datalink == BtsnoopEventSource.DATALINK_MONITOR) {
+                flags = event ? 0x0003 : 0x0002;
+            } else {
+                flags = BtsnoopEventSource.FLAG_COMMAND_OR_EVENT | (event ? BtsnoopEventSource.FLAG_RECEIVED : 0);
+            }
+            stream.putInt(packet.length - offset)
+                    .putInt(packet.length - offset)
+                    .putInt(flags)
+                    .putInt(0)
+                    .putLong(START_MICROS + i * 1_250_000L + BtsnoopEventSource.EPOCH_OFFSET_MICROS)
+                    .put(packet, offset, packet.length - offset);
+        }
+        return stream;
+    }
+
+    private static boolean isEvent(byte[] packet) {
+        return packet[0] == ChannelHciEventSource.HCI_EVENT_PACKET;
+    }
+
+    private static List<byte[]> events(List<byte[]> packets) {
+        List<byte[]> events = new ArrayList<>();
+        for (byte[] packet : packets) {
+            if (isEvent(packet)) {
+                events.add(packet);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * @return the commands and events of the capture, each with its packet type
+     */
+    private static List<byte[]> packets() throws IOException {
+        List<byte[]> packets = new ArrayList<>();
+        StringBuilder hex = null;
+        for (String line : lines()) {
+            if (line.startsWith("> ") || line.startsWith("< ")) {
+                if (hex != null) {
+                    packets.add(parseHex(hex));
+                }
+                hex = new StringBuilder(line.substring(2));
+            } else if (hex != null && line.startsWith("  ")) {
+                hex.append(line);
+            }
+        }
+        if (hex != null) {
+            packets.add(parseHex(hex));
+        }
+        return packets;
+    }
+
+    private static byte[] parseHex(CharSequence hex) {
+        String[] digits = hex.toString().trim().split("\\s+");
+        byte[] bytes = new byte[digits.length];
+        for (int i = 0; i < digits.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(digits[i], 16);
+        }
+        return bytes;
+    }
+
+    private static String[] lines() throws IOException {
+        try (InputStream in = HciEventSourceTest.class.getResourceAsStream(CAPTURE)) {
+            assertNotNull(in, "missing capture " + CAPTURE);
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII).split("\n");
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer stream) {
+        return Arrays.copyOf(stream.array(), stream.position());
+    }
+
+    private static ReadableByteChannel channel(byte[] stream) {
+        return new ChunkedChannel(stream, stream.length + 1);
+    }
+
+    /**
+     * Gives at most a chunk of the stream a read, like a pipe
+     */
+    private static final class ChunkedChannel implements ReadableByteChannel {
+
+        private final ByteBuffer stream;
+        private final int chunk;
+        private boolean open = true;
+
+        ChunkedChannel(byte[] stream, int chunk) {
+            this.stream = ByteBuffer.wrap(stream);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!stream.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(chunk, Math.min(dst.remaining(), stream.remaining()));
+            ByteBuffer slice = stream.slice();
+            slice.limit(n);
+            dst.put(slice);
+            stream.position(stream.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
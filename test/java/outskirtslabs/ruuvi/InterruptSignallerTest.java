@@ -0,0 +1,52 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InterruptSignallerTest {
+
+    private final InterruptSignaller signaller = new InterruptSignaller();
+
+    @AfterEach
+    void close() {
+        signaller.close();
+    }
+
+    @Test
+    void interruptsProcessesLikeCtrlC() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            Process process = trappingInterrupt();
+            assertTrue(signaller.interrupt(process));
+            assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+            assertEquals(7, process.exitValue(), "exited by the trap of SIGINT");
+        }
+    }
+
+    @Test
+    void reportsProcessesThatAreGone() throws Exception {
+        Process process = new ProcessBuilder("sh", "-c", "exit 0").start();
+        process.waitFor();
+        assertFalse(signaller.interrupt(process));
+
+        // the shell is still usable
+        Process next = trappingInterrupt();
+        assertTrue(signaller.interrupt(next));
+        assertTrue(next.waitFor(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @return a shell exiting with status 7 on SIGINT, once the trap is set
+     */
+    private static Process trappingInterrupt() throws IOException {
+        Process process = new ProcessBuilder("sh", "-c", "trap 'exit 7' INT; echo ready; while :; do sleep 0.05; done").start();
+        process.getInputStream().read(); // wait for the trap
+        return process;
+    }
+}
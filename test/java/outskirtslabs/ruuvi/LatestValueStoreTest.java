@@ -0,0 +1,69 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatestValueStoreTest {
+
+    private static final long TTL = 1000;
+
+    private final LatestValueStore store = new LatestValueStore(TTL, 0);
+
+    @Test
+    void evictsTheTagsNotSeenWithinTheTtl() {
+        for (int i = 0; i < 200; i++) {
+            store.put(data(i));
+        }
+        store.evictExpired(System.currentTimeMillis() + TTL / 2);
+        assertEquals(200, store.size());
+
+        store.evictExpired(System.currentTimeMillis() + 2 * TTL);
+        assertEquals(0, store.size());
+        assertEquals(200, store.getEvictedCount());
+
+        // the freed indexes are taken again
+        for (int i = 0; i < 200; i++) {
+            store.put(data(1000 + i));
+        }
+        assertEquals(200, store.snapshot().size());
+    }
+
+    @Test
+    void keepsTheTagsStoredWhileEvicting() throws InterruptedException {
+        for (int i = 0; i < 10_000; i++) {
+            store.put(data(i));
+        }
+        Thread.sleep(TTL + 100);
+
+        Thread writer = new Thread(() -> {
+            for (int n = 0; n < 20; n++) {
+                for (int i = 0; i < 1000; i++) {
+                    store.put(data(100_000 + i));
+                }
+            }
+        });
+        writer.start();
+        store.evictExpired(System.currentTimeMillis());
+        writer.join();
+
+        assertEquals(1000, store.size());
+        assertEquals(10_000, store.getEvictedCount());
+        Set<String> macs = new HashSet<>();
+        store.forEach(state -> macs.add(state.getMac()));
+        assertEquals(1000, macs.size());
+        assertTrue(store.get(CompactRuuviValue.macToString(0xF4A574000000L + 100_000)).isPresent());
+    }
+
+    private static RuuviData data(int tag) {
+        RuuviValue measurement = RuuviValue.builder()
+                .mac(CompactRuuviValue.macToString(0xF4A574000000L + tag))
+                .batteryVoltage(3.0)
+                .build();
+        return new RuuviData(measurement, RuuviDerivedValue.NONE);
+    }
+}
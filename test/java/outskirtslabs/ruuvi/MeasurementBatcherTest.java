@@ -0,0 +1,99 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MeasurementBatcherTest {
+
+    private final BlockingQueue<List<RuuviData>> batches = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Long> deliveredNanos = new LinkedBlockingQueue<>();
+    private MeasurementBatcher batcher;
+
+    @AfterEach
+    void close() {
+        if (batcher != null) {
+            batcher.close();
+        }
+    }
+
+    @Test
+    void deliversFullBatches() throws InterruptedException {
+        batcher = new MeasurementBatcher(this::collect, 3, TimeUnit.SECONDS.toNanos(60), ThreadingMode.PLATFORM);
+        for (int i = 0; i < 7; i++) {
+            batcher.add(data(i));
+        }
+
+        assertEquals(List.of(0, 1, 2), sequences(batches.poll(5, TimeUnit.SECONDS)));
+        assertEquals(List.of(3, 4, 5), sequences(batches.poll(5, TimeUnit.SECONDS)));
+        assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+
+        batcher.close();
+        assertEquals(List.of(6), sequences(batches.poll(5, TimeUnit.SECONDS)), "the rest is delivered on close");
+    }
+
+    @Test
+    void deliversALingeringBatchAtItsDeadline() throws InterruptedException {
+        long linger = TimeUnit.MILLISECONDS.toNanos(400);
+        batcher = new MeasurementBatcher(this::collect, 100, linger, ThreadingMode.PLATFORM);
+        long added = System.nanoTime();
+        batcher.add(data(0));
+        batcher.add(data(1));
+
+        assertEquals(List.of(0, 1), sequences(batches.poll(5, TimeUnit.SECONDS)));
+        long waited = deliveredNanos.take() - added;
+        assertTrue(waited >= linger, "waited " + waited);
+        assertTrue(waited < linger + TimeUnit.MILLISECONDS.toNanos(80), "waited " + waited);
+    }
+
+    @Test
+    void slowListenerDoesNotBlockAddingTheNextBatch() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        batcher = new MeasurementBatcher(batch -> {
+            collect(batch);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 2, TimeUnit.SECONDS.toNanos(60), ThreadingMode.PLATFORM);
+        batcher.add(data(0));
+        batcher.add(data(1));
+        assertNotNull(batches.poll(5, TimeUnit.SECONDS));
+
+        // the listener is busy with the first batch, the second one fills up meanwhile
+        batcher.add(data(2));
+        batcher.add(data(3));
+        release.countDown();
+
+        assertEquals(List.of(2, 3), sequences(batches.poll(5, TimeUnit.SECONDS)));
+    }
+
+    private void collect(List<RuuviData> batch) {
+        deliveredNanos.add(System.nanoTime());
+        batches.add(new ArrayList<>(batch));
+    }
+
+    private static RuuviData data(int sequence) {
+        RuuviValue measurement = RuuviValue.builder().mac("F4A57424B1D2").measurementSequenceNumber(sequence).build();
+        return new RuuviData(measurement, RuuviDerivedValue.NONE);
+    }
+
+    private static List<Integer> sequences(List<RuuviData> batch) {
+        assertNotNull(batch, "a batch was delivered");
+        List<Integer> sequences = new ArrayList<>();
+        batch.forEach(data -> sequences.add(data.getMeasurement().getMeasurementSequenceNumber()));
+        return sequences;
+    }
+}
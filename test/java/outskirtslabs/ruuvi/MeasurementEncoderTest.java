@@ -0,0 +1,245 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trips measurements through {@link MeasurementEncoder} and
+ * {@link MeasurementDecoder}, and checks the {@link WireCodec} layout they
+ * share.
+ */
+class MeasurementEncoderTest {
+
+    private final MeasurementEncoder encoder = new MeasurementEncoder();
+    private final MeasurementDecoder decoder = new MeasurementDecoder();
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    @Test
+    void givesBackRawV1AndRawV2DecimalsBitForBit() throws StreamCorruptedException {
+        Random random = new Random(20241018);
+        for (int n = 0; n < 20_000; n++) {
+            boolean rawV1 = n % 2 == 0;
+            byte[] payload = new byte[rawV1 ? 16 : 24];
+            random.nextBytes(payload);
+            payload[0] = (byte) 0x99;
+            payload[1] = 0x04;
+            payload[2] = (byte) (rawV1 ? 3 : 5);
+            if (rawV1) {
+                payload[5] = (byte) random.nextInt(100); // the hundredths of the temperature
+                if (payload[5] == 0) {
+                    payload[4] &= 0x7F; // no -0.00
+                }
+            }
+            CompactRuuviValue measurement = decodeRaw(payload);
+
+            ByteBuffer frame = encode(measurement);
+            assertEquals(0, mask(frame) & WireCodec.EXACT, () -> "stored as doubles: " + measurement);
+            assertEquals(List.of(measurement), decode(frame));
+        }
+    }
+
+    @Test
+    void givesBackAnyRawV1TemperatureBitForBit() throws StreamCorruptedException {
+        // hundredths past 99 or negative don't come from a tag, but decode
+        Random random = new Random(20241019);
+        for (int n = 0; n < 20_000; n++) {
+            byte[] payload = new byte[16];
+            random.nextBytes(payload);
+            payload[0] = (byte) 0x99;
+            payload[1] = 0x04;
+            payload[2] = 3;
+            CompactRuuviValue measurement = decodeRaw(payload);
+
+            assertEquals(List.of(measurement), decode(encode(measurement)));
+        }
+    }
+
+    @Test
+    void storesTheValuesOffTheGridAsRawDoubles() throws StreamCorruptedException {
+        double nan = Double.longBitsToDouble(0x7FF8_0000_0000_1234L); // not the canonical NaN
+        CompactRuuviValue measurement = new CompactRuuviValue();
+        measurement.setDataFormat(5);
+        measurement.setTemperature(nan);
+        measurement.setHumidity(45.5);
+        measurement.setPressure(1e300); // rounds to Long.MAX_VALUE
+        measurement.setAccelerationX(-0.0);
+        measurement.setAccelerationY(0.0125); // calibrated, finer than a milli-g
+
+        ByteBuffer frame = encode(measurement);
+        frame.position(WireCodec.HEADER_LENGTH);
+        long mask = WireCodec.getVarint(frame);
+        assertEquals(WireCodec.EXACT, mask & WireCodec.EXACT);
+        int exact = CompactRuuviValue.TEMPERATURE | CompactRuuviValue.PRESSURE | CompactRuuviValue.ACCELERATION_X | CompactRuuviValue.ACCELERATION_Y;
+        assertEquals(exact, WireCodec.getVarint(frame));
+        assertEquals(5, WireCodec.getVarint(frame));
+        assertEquals(0x7FF8_0000_0000_1234L, frame.getLong(), "the temperature as it was");
+        WireCodec.getZigzag(frame); // the humidity
+        assertEquals(Double.doubleToRawLongBits(1e300), frame.getLong());
+
+        frame.position(0);
+        CompactRuuviValue decoded = decode(frame).get(0);
+        assertEquals(0x7FF8_0000_0000_1234L, Double.doubleToRawLongBits(decoded.getTemperature()));
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(decoded.getAccelerationX()));
+        assertEquals(measurement, decoded);
+    }
+
+    @Test
+    void sendsAStringOnlyWhenItChanges() throws StreamCorruptedException {
+        String[][] strings = {{"kitchen", "gw-1"}, {"kitchen", "gw-1"}, {null, "gw-1"}, {"sauna", null}, {"sauna", "gw-2"}};
+        List<CompactRuuviValue> measurements = new ArrayList<>();
+        encoder.startFrame(buffer);
+        for (String[] pair : strings) {
+            CompactRuuviValue measurement = new CompactRuuviValue();
+            measurement.setDataFormat(3);
+            measurement.setName(pair[0]);
+            measurement.setReceiver(pair[1]);
+            assertTrue(encoder.add(measurement));
+            measurements.add(measurement);
+        }
+        // the mask and the data format, then the strings: a repeat takes a
+        // byte like null, a new string its length and its bytes
+        int expected = WireCodec.HEADER_LENGTH + 5 * 2
+                + 1 + "kitchen".length() + 1 + "gw-1".length()
+                + 1 + 1
+                + 1 + 1
+                + 1 + "sauna".length() + 1
+                + 1 + 1 + "gw-2".length();
+        assertEquals(expected, encoder.finishFrame());
+        assertEquals(measurements, decode(buffer.flip()));
+
+        // a new frame doesn't refer to the strings of the previous one
+        buffer.clear();
+        ByteBuffer second = encode(measurements.get(1));
+        assertEquals(measurements.subList(1, 2), decode(second));
+    }
+
+    @Test
+    void storesTheTimesAsDeltasThatMayBeNegative() throws StreamCorruptedException {
+        long[] times = {1_700_000_000_000L, 1_700_000_000_500L, 1_699_999_999_000L, 0, -5, Long.MAX_VALUE / 2};
+        List<CompactRuuviValue> measurements = new ArrayList<>();
+        encoder.startFrame(buffer);
+        for (long time : times) {
+            CompactRuuviValue measurement = new CompactRuuviValue();
+            measurement.setTime(time);
+            assertTrue(encoder.add(measurement));
+            measurements.add(measurement);
+        }
+        CompactRuuviValue withoutTime = new CompactRuuviValue();
+        withoutTime.setRssi(-80);
+        assertTrue(encoder.add(withoutTime));
+        measurements.add(withoutTime);
+        encoder.finishFrame();
+
+        assertEquals(measurements, decode(buffer.flip()));
+    }
+
+    @Test
+    void leavesTheFrameAsItWasWhenAMeasurementDoesNotFit() throws StreamCorruptedException {
+        ByteBuffer small = ByteBuffer.allocate(WireCodec.HEADER_LENGTH + 20);
+        CompactRuuviValue measurement = new CompactRuuviValue();
+        measurement.setName("a name that is too long to fit");
+        CompactRuuviValue fits = new CompactRuuviValue();
+        fits.setRssi(-60);
+
+        encoder.startFrame(small);
+        assertTrue(encoder.add(fits));
+        assertFalse(encoder.add(measurement));
+        assertEquals(1, encoder.getCount());
+        encoder.finishFrame();
+        assertEquals(List.of(fits), decode(small.flip()));
+    }
+
+    @Test
+    void rejectsAnInvalidLength() throws StreamCorruptedException {
+        buffer.putInt(WireCodec.HEADER_LENGTH - Integer.BYTES - 1).put((byte) WireCodec.VERSION).putShort((short) 0).flip();
+        assertThrows(StreamCorruptedException.class, () -> MeasurementDecoder.frameLength(buffer));
+
+        buffer.clear().putInt(MeasurementDecoder.MAX_FRAME_LENGTH).flip();
+        assertThrows(StreamCorruptedException.class, () -> MeasurementDecoder.frameLength(buffer));
+
+        buffer.clear().putShort((short) 0).flip();
+        assertEquals(-1, MeasurementDecoder.frameLength(buffer), "not even the length yet");
+    }
+
+    @Test
+    void rejectsAnotherVersion() {
+        ByteBuffer frame = encode(new CompactRuuviValue());
+        frame.put(Integer.BYTES, (byte) (WireCodec.VERSION + 1));
+        StreamCorruptedException e = assertThrows(StreamCorruptedException.class, () -> decode(frame));
+        assertTrue(e.getMessage().contains("version"), e.getMessage());
+    }
+
+    @Test
+    void rejectsUnknownFields() {
+        CompactRuuviValue measurement = new CompactRuuviValue();
+        measurement.setDataFormat(5);
+        ByteBuffer frame = encode(measurement);
+        // replace the mask of the fields, a single byte, with one that has a
+        // bit past the known fields and takes 2 bytes more
+        ByteBuffer corrupted = ByteBuffer.allocate(frame.limit() + 2);
+        corrupted.putInt(frame.limit() + 2 - Integer.BYTES).put(frame.array(), Integer.BYTES, WireCodec.HEADER_LENGTH - Integer.BYTES);
+        WireCodec.putVarint(corrupted, CompactRuuviValue.DATA_FORMAT | 1 << 16);
+        corrupted.put(frame.array(), WireCodec.HEADER_LENGTH + 1, frame.limit() - WireCodec.HEADER_LENGTH - 1).flip();
+
+        StreamCorruptedException e = assertThrows(StreamCorruptedException.class, () -> decode(corrupted));
+        assertTrue(e.getMessage().contains("Unknown fields 0x10000"), e.getMessage());
+    }
+
+    @Test
+    void rejectsACountThatDoesNotMatchTheFrame() {
+        CompactRuuviValue measurement = new CompactRuuviValue();
+        measurement.setRssi(-60);
+        ByteBuffer frame = encode(measurement);
+        frame.putShort(Integer.BYTES + 1, (short) 2);
+        assertThrows(StreamCorruptedException.class, () -> decode(frame));
+
+        ByteBuffer leftOver = encode(measurement);
+        leftOver.putShort(Integer.BYTES + 1, (short) 0);
+        StreamCorruptedException e = assertThrows(StreamCorruptedException.class, () -> decode(leftOver));
+        assertTrue(e.getMessage().contains("left over"), e.getMessage());
+    }
+
+    private static CompactRuuviValue decodeRaw(byte[] payload) {
+        CompactRuuviValue measurement = new CompactRuuviValue();
+        assertTrue(RawPayloadDecoder.decode(payload, 0, payload.length, measurement));
+        measurement.setMac(0xF4A57424B1D2L);
+        measurement.setRssi(-70);
+        return measurement;
+    }
+
+    /**
+     * @return a buffer holding a frame of the measurement
+     */
+    private ByteBuffer encode(CompactRuuviValue measurement) {
+        ByteBuffer out = ByteBuffer.allocate(1024);
+        encoder.startFrame(out);
+        assertTrue(encoder.add(measurement));
+        encoder.finishFrame();
+        return out.flip();
+    }
+
+    /**
+     * @return the mask of the fields of the first measurement of the frame
+     */
+    private static long mask(ByteBuffer frame) throws StreamCorruptedException {
+        return WireCodec.getVarint(frame.duplicate().position(WireCodec.HEADER_LENGTH));
+    }
+
+    private List<CompactRuuviValue> decode(ByteBuffer frame) throws StreamCorruptedException {
+        List<CompactRuuviValue> decoded = new ArrayList<>();
+        int count = decoder.readFrame(frame, measurement -> decoded.add(measurement.copy()));
+        assertEquals(decoded.size(), count);
+        assertFalse(frame.hasRemaining());
+        return decoded;
+    }
+}
@@ -0,0 +1,282 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Offers measurements to a {@link MeasurementSubscription} as the thread
+ * reading the dump does, and checks what its subscriber is signalled.
+ */
+class MeasurementPublisherTest {
+
+    private static final String TAG = "F4A57424B1D2";
+    private static final String OTHER_TAG = "C6A1E9F0B3D8";
+
+    private final AtomicInteger terminations = new AtomicInteger();
+    private Receiver receiver;
+
+    @AfterEach
+    void dispose() {
+        if (receiver != null) {
+            receiver.dispose();
+        }
+    }
+
+    @Test
+    void deliversAsManyAsRequested() {
+        Recorder subscriber = new Recorder();
+        MeasurementSubscription subscription = subscribe(subscriber, 8, OverflowPolicy.DROP_NEWEST);
+        subscription.request(2);
+        offer(subscription, TAG, 0, 5);
+
+        assertEquals(List.of(0, 1), subscriber.received);
+        assertEquals(3, subscription.getBufferedCount());
+
+        subscription.request(1);
+        assertEquals(List.of(0, 1, 2), subscriber.received, "delivered on the requesting thread");
+        subscription.request(Long.MAX_VALUE);
+        subscription.request(Long.MAX_VALUE);
+        offer(subscription, TAG, 5, 7);
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6), subscriber.received, "the demand doesn't overflow");
+        assertEquals(7, subscription.getDeliveredCount());
+        assertEquals(0, subscription.getDroppedCount());
+    }
+
+    @Test
+    void signalsAnErrorForADemandThatIsNotPositive() {
+        for (long n : new long[]{0, -1, Long.MIN_VALUE}) {
+            Recorder subscriber = new Recorder();
+            MeasurementSubscription subscription = subscribe(subscriber, 8, OverflowPolicy.DROP_NEWEST);
+            offer(subscription, TAG, 0, 3);
+            subscription.request(n);
+
+            assertTrue(subscriber.error instanceof IllegalArgumentException, "request(" + n + ")");
+            assertEquals(3, subscription.getDroppedCount(), "the buffer is cleared");
+            subscription.request(10);
+            offer(subscription, TAG, 3, 4);
+            assertEquals(List.of(), subscriber.received, "nothing after the error");
+            assertFalse(subscriber.completed);
+        }
+        assertEquals(3, terminations.get());
+    }
+
+    @Test
+    void stopsDeliveringOnCancel() {
+        Recorder subscriber = new Recorder();
+        MeasurementSubscription subscription = subscribe(subscriber, 8, OverflowPolicy.DROP_NEWEST);
+        subscription.request(1);
+        offer(subscription, TAG, 0, 4);
+        subscription.cancel();
+        subscription.cancel();
+
+        assertEquals(1, terminations.get(), "terminated once");
+        assertEquals(3, subscription.getDroppedCount(), "the buffer is cleared");
+        subscription.request(10);
+        offer(subscription, TAG, 4, 5);
+        subscription.complete();
+        assertEquals(List.of(0), subscriber.received);
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    void cancelsWithinOnNext() {
+        Recorder subscriber = new Recorder();
+        subscriber.onNext = temperature -> {
+            if (temperature == 1) {
+                subscriber.subscription.cancel();
+            }
+        };
+        MeasurementSubscription subscription = subscribe(subscriber, 8, OverflowPolicy.DROP_NEWEST);
+        offer(subscription, TAG, 0, 4);
+        subscription.request(10);
+
+        assertEquals(List.of(0, 1), subscriber.received);
+        assertEquals(2, subscription.getDroppedCount());
+        assertEquals(1, terminations.get());
+    }
+
+    @Test
+    void cancelsASubscriberThatThrows() {
+        Recorder subscriber = new Recorder();
+        subscriber.onNext = temperature -> {
+            throw new IllegalStateException("failed on " + temperature);
+        };
+        MeasurementSubscription subscription = subscribe(subscriber, 8, OverflowPolicy.DROP_NEWEST);
+        subscription.request(10);
+        offer(subscription, TAG, 0, 3);
+
+        assertEquals(List.of(0), subscriber.received);
+        assertEquals(0, subscription.getDeliveredCount());
+        assertEquals(1, terminations.get());
+    }
+
+    @Test
+    void requestsMoreWithinOnNextWithoutRecursing() {
+        Recorder subscriber = new Recorder();
+        AtomicInteger depth = new AtomicInteger();
+        int[] deepest = new int[1];
+        subscriber.onNext = temperature -> {
+            deepest[0] = Math.max(deepest[0], depth.incrementAndGet());
+            subscriber.subscription.request(1);
+            depth.decrementAndGet();
+        };
+        MeasurementSubscription subscription = subscribe(subscriber, 1024, OverflowPolicy.DROP_NEWEST);
+        offer(subscription, TAG, 0, 1000);
+        subscription.request(1);
+
+        assertEquals(1000, subscriber.received.size());
+        assertEquals(1, deepest[0], "signalled serially");
+    }
+
+    @Test
+    void completesOnceTheBufferIsDelivered() {
+        Recorder subscriber = new Recorder();
+        MeasurementSubscription subscription = subscribe(subscriber, 8, OverflowPolicy.DROP_NEWEST);
+        offer(subscription, TAG, 0, 2);
+        subscription.complete();
+        assertFalse(subscriber.completed, "measurements still buffered");
+        offer(subscription, TAG, 2, 3);
+
+        subscription.request(10);
+        assertEquals(List.of(0, 1), subscriber.received);
+        assertTrue(subscriber.completed);
+        assertEquals(1, terminations.get());
+    }
+
+    @Test
+    void appliesThePolicyToAFullBuffer() {
+        Recorder newest = new Recorder();
+        MeasurementSubscription dropNewest = subscribe(newest, 2, OverflowPolicy.DROP_NEWEST);
+        offer(dropNewest, TAG, 0, 5);
+        dropNewest.request(10);
+        assertEquals(List.of(0, 1), newest.received);
+        assertEquals(3, dropNewest.getDroppedCount());
+
+        Recorder oldest = new Recorder();
+        MeasurementSubscription dropOldest = subscribe(oldest, 2, OverflowPolicy.DROP_OLDEST);
+        offer(dropOldest, TAG, 0, 5);
+        dropOldest.request(10);
+        assertEquals(List.of(3, 4), oldest.received);
+        assertEquals(3, dropOldest.getDroppedCount());
+
+        Recorder latest = new Recorder();
+        MeasurementSubscription coalesce = subscribe(latest, 2, OverflowPolicy.COALESCE_LATEST_PER_MAC);
+        offer(coalesce, TAG, 0, 3);
+        offer(coalesce, OTHER_TAG, 10, 11);
+        offer(coalesce, "D1A57424B1D2", 20, 21);
+        offer(coalesce, OTHER_TAG, 11, 12);
+        assertEquals(2, coalesce.getBufferedCount());
+        coalesce.request(10);
+        assertEquals(List.of(2, 11), latest.received);
+        assertEquals(3, coalesce.getCoalescedCount());
+        assertEquals(1, coalesce.getDroppedCount());
+    }
+
+    @Test
+    void blocksTheProducerUntilRequested() throws Exception {
+        Recorder subscriber = new Recorder();
+        MeasurementSubscription subscription = subscribe(subscriber, 2, OverflowPolicy.BLOCK);
+        offer(subscription, TAG, 0, 2);
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> offer(subscription, TAG, 2, 3));
+        Thread.sleep(200);
+        assertFalse(producer.isDone(), "blocked");
+
+        subscription.request(1);
+        producer.get(10, TimeUnit.SECONDS);
+        subscription.request(2);
+        assertEquals(List.of(0, 1, 2), subscriber.received);
+        assertEquals(0, subscription.getDroppedCount());
+    }
+
+    @Test
+    void tracksTheSubscriptionsOfAReceiver() {
+        receiver = new Receiver(List.of(Adapter.command("a", "true", "true")));
+        assertThrows(IllegalArgumentException.class, () -> receiver.createPublisher(0, OverflowPolicy.BLOCK));
+        MeasurementPublisher publisher = receiver.createPublisher(4, OverflowPolicy.DROP_OLDEST);
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+        assertEquals(2, publisher.getSubscriberCount());
+
+        first.subscription.cancel();
+        assertEquals(1, publisher.getSubscriberCount());
+        receiver.dispose();
+        receiver = null;
+        assertTrue(second.completed);
+        assertFalse(first.completed);
+        assertNull(second.error);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+
+    private MeasurementSubscription subscribe(Recorder subscriber, int capacity, OverflowPolicy policy) {
+        MeasurementSubscription subscription = new MeasurementSubscription(subscriber, capacity, policy, subscriber, terminations::incrementAndGet);
+        subscriber.onSubscribe(subscription);
+        return subscription;
+    }
+
+    /**
+     * Offers the measurements of the tag, the temperature of each from
+     * from to to
+     */
+    private static void offer(MeasurementSubscription subscription, String mac, int from, int to) {
+        for (int i = from; i < to; i++) {
+            RuuviValue measurement = RuuviValue.builder()
+                    .mac(mac)
+                    .dataFormat(5)
+                    .temperature((double) i)
+                    .build();
+            subscription.offer(new RuuviData(measurement, RuuviDerivedValue.NONE));
+        }
+    }
+
+    /**
+     * Records the temperatures delivered and the terminal signal, without
+     * requesting anything by itself
+     */
+    private static final class Recorder implements Flow.Subscriber<RuuviData> {
+
+        final List<Integer> received = new ArrayList<>();
+        Flow.Subscription subscription;
+        Consumer<Integer> onNext = temperature -> {
+        };
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(RuuviData data) {
+            int temperature = data.getMeasurement().getTemperature().intValue();
+            received.add(temperature);
+            onNext.accept(temperature);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MeasurementSpoolTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path dir;
+    private MeasurementSpool spool;
+
+    @AfterEach
+    void close() {
+        if (spool != null) {
+            spool.close();
+        }
+    }
+
+    @Test
+    void deletesDeliveredSegmentsOnTheSyncTimer() throws Exception {
+        spool = MeasurementSpool.open(dir, SEGMENT_BYTES, 100 * SEGMENT_BYTES, Duration.ofMillis(20));
+        for (int i = 0; spool.getEndOffset() < 3L * SEGMENT_BYTES; i++) {
+            spool.append(measurement(i));
+        }
+        assertTrue(spool.getSizeBytes() >= 3 * SEGMENT_BYTES);
+
+        // a new cursor starts at the end, past every segment but the active one
+        new SpooledMeasurementListener(spool, "late", (measurement, derived) -> {
+        }, ThreadingMode.PLATFORM);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (spool.getSizeBytes() > SEGMENT_BYTES && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(SEGMENT_BYTES, spool.getSizeBytes(), "only the active segment is left");
+    }
+
+    @Test
+    void syncsWhileSegmentsRotateAndAreDeleted() throws Exception {
+        spool = MeasurementSpool.open(dir, SEGMENT_BYTES, 2 * SEGMENT_BYTES, Duration.ofNanos(1));
+        for (int i = 0; i < 20_000; i++) {
+            spool.append(measurement(i));
+        }
+        assertTrue(spool.getSizeBytes() <= 3 * SEGMENT_BYTES, "size " + spool.getSizeBytes());
+        long end = spool.getEndOffset();
+        spool.close();
+
+        // the segments left are intact
+        spool = MeasurementSpool.open(dir, SEGMENT_BYTES, 2 * SEGMENT_BYTES, Duration.ofSeconds(1));
+        assertEquals(end, spool.getEndOffset());
+    }
+
+    private static RuuviValue measurement(int sequence) {
+        return RuuviValue.builder()
+                .mac("F4A57424B1D2")
+                .dataFormat(5)
+                .temperature(21.5)
+                .measurementSequenceNumber(sequence % SequenceTracker.SEQUENCE_RANGE)
+                .build();
+    }
+}
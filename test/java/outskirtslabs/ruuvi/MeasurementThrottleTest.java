@@ -0,0 +1,77 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MeasurementThrottleTest {
+
+    private static final String TAG = "F4A57424B1D2";
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void dropsRepeatsWithinTheWindow() {
+        MeasurementThrottle throttle = new MeasurementThrottle(true, 0);
+        HCIData packet = parse(FakeCommand.rawV1(TAG, -70, 21, 40));
+
+        assertTrue(throttle.accept(packet, 0));
+        assertFalse(throttle.accept(parse(FakeCommand.rawV1(TAG, -75, 21, 40)), 10_000_000L), "the RSSI is ignored");
+        assertFalse(throttle.accept(packet, MeasurementThrottle.REPEAT_WINDOW_NANOS - 1));
+        assertTrue(throttle.accept(parse(FakeCommand.rawV1(TAG, -70, 22, 40)), MeasurementThrottle.REPEAT_WINDOW_NANOS - 1), "new values");
+        assertEquals(2, throttle.getRepeatCount());
+    }
+
+    @Test
+    void acceptsAConstantPayloadAgainAfterTheWindow() {
+        // RAWv1 has no sequence number, the broadcasts of a tag whose values don't change are all the same
+        MeasurementThrottle throttle = new MeasurementThrottle(true, 0);
+        HCIData packet = parse(FakeCommand.rawV1(TAG, -70, 21, 40));
+
+        int accepted = 0;
+        for (int n = 0; n < 10; n++) {
+            long now = n * SECOND;
+            accepted += throttle.accept(packet, now) ? 1 : 0;
+            assertFalse(throttle.accept(packet, now + SECOND / 100), "the repeat of broadcast " + n);
+        }
+        assertEquals(10, accepted);
+        assertEquals(10, throttle.getRepeatCount());
+    }
+
+    @Test
+    void throttlesWithinTheMinimumInterval() {
+        MeasurementThrottle throttle = new MeasurementThrottle(false, 5 * SECOND);
+
+        assertTrue(throttle.accept(parse(FakeCommand.rawV1(TAG, -70, 21, 40)), 0));
+        assertFalse(throttle.accept(parse(FakeCommand.rawV1(TAG, -70, 22, 40)), 4 * SECOND));
+        assertTrue(throttle.accept(parse(FakeCommand.rawV1(TAG, -70, 23, 40)), 5 * SECOND));
+        assertEquals(1, throttle.getThrottledCount());
+    }
+
+    @Test
+    void forgetsIdleDevices() {
+        MeasurementThrottle throttle = new MeasurementThrottle(true, 0);
+        throttle.accept(parse(FakeCommand.rawV1(TAG, -70, 21, 40)), 0);
+        throttle.accept(parse(FakeCommand.rawV1("C6A1E9F0B3D8", -70, 21, 40)), MeasurementThrottle.IDLE_TIMEOUT_NANOS);
+
+        throttle.evictIdle(MeasurementThrottle.IDLE_TIMEOUT_NANOS + 1);
+        assertEquals(1, throttle.getTrackedDeviceCount());
+    }
+
+    /**
+     * Parses the hcidump output of a packet
+     */
+    static HCIData parse(String packet) {
+        HCIByteParser parser = new HCIByteParser();
+        HCIData data = null;
+        for (String line : packet.split("\n")) {
+            data = parser.readLine(line);
+        }
+        assertNotNull(data, "packet " + packet);
+        return data;
+    }
+}
@@ -0,0 +1,65 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MovingAveragePluginTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    private final MovingAveragePlugin plugin = new MovingAveragePlugin("mean", "TEMPERATURE", 3);
+    private final double[] output = new double[1];
+    private final long start = System.nanoTime();
+
+    @Test
+    void averagesTheLatestValuesOfEachTag() {
+        assertEquals(10, compute(1, 10, 0));
+        assertEquals(15, compute(1, 20, 0));
+        assertEquals(100, compute(2, 100, 0));
+        assertEquals(15, compute(1, Double.NaN, 0), "a missing value is skipped");
+        assertEquals(20, compute(1, 30, 0));
+        assertEquals(30, compute(1, 40, 0), "the first value left the ring");
+        assertTrue(Double.isNaN(compute(MacIndex.NO_KEY, 10, 0)));
+    }
+
+    @Test
+    void forgetsTheTagsNotSeenForTheIdleTimeout() {
+        for (int mac = 1; mac <= 100; mac++) {
+            compute(mac, mac, 0);
+        }
+        compute(1, 1, 9 * MINUTE);
+        assertEquals(100, plugin.size());
+
+        // the sweep a minute on keeps the tag seen since
+        compute(1, 1, 11 * MINUTE);
+        assertEquals(1, plugin.size());
+        assertEquals(1, compute(1, 1, 11 * MINUTE));
+
+        // a returning tag starts over, on an index freed by the others
+        assertEquals(50, compute(50, 50, 11 * MINUTE));
+        assertEquals(2, plugin.size());
+    }
+
+    @Test
+    void sweepsAtMostOnceAMinute() {
+        compute(1, 1, 0);
+        compute(2, 2, MovingAveragePlugin.IDLE_TIMEOUT_NANOS + 1);
+        assertEquals(1, plugin.size(), "swept");
+        compute(3, 3, 0);
+        compute(4, 4, MovingAveragePlugin.IDLE_TIMEOUT_NANOS + 2);
+        assertEquals(3, plugin.size(), "not swept again yet");
+    }
+
+    /**
+     * @return the mean after the value of the tag, the nanoseconds after the
+     * start
+     */
+    private double compute(long mac, double value, long nanos) {
+        plugin.compute(mac, new double[]{value}, output, start + nanos);
+        return output[0];
+    }
+}
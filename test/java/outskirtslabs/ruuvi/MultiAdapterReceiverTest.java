@@ -0,0 +1,210 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a receiver over several adapters, each a scripted fake dump process.
+ */
+class MultiAdapterReceiverTest {
+
+    private static final String TAG = "F4A57424B1D2";
+    private static final String OTHER_TAG = "C6A1E9F0B3D8";
+
+    @TempDir
+    Path dir;
+    private Receiver receiver;
+    private final BlockingQueue<RuuviValue> measurements = new LinkedBlockingQueue<>();
+
+    @AfterEach
+    void dispose() {
+        if (receiver != null) {
+            receiver.dispose();
+        }
+    }
+
+    @Test
+    void keepsTheCopyWithTheBestRssi() throws Exception {
+        String scan = new FakeCommand().hang().write(dir, "scan");
+        String dumpA = new FakeCommand()
+                .sleep(1)
+                .emit(FakeCommand.rawV1(TAG, -80, 21, 40))
+                .hang()
+                .write(dir, "dump-a");
+        String dumpB = new FakeCommand()
+                .sleep(1)
+                .emit(FakeCommand.rawV1(TAG, -60, 21, 40))
+                .emit(FakeCommand.rawV1(OTHER_TAG, -70, 5, 80))
+                .hang()
+                .write(dir, "dump-b");
+        start(List.of(Adapter.command("a", scan, dumpA), Adapter.command("b", scan, dumpB)), Duration.ofSeconds(2));
+
+        List<RuuviValue> received = take(2);
+        RuuviValue tag = received.stream().filter(m -> m.getMac().equals(TAG)).findFirst().orElseThrow();
+        RuuviValue otherTag = received.stream().filter(m -> m.getMac().equals(OTHER_TAG)).findFirst().orElseThrow();
+        assertEquals(-60, tag.getRssi());
+        assertEquals("b", tag.getReceiver());
+        assertEquals(21.0, tag.getTemperature());
+        assertEquals("b", otherTag.getReceiver());
+        assertNull(measurements.poll(1, TimeUnit.SECONDS), "the worse copy is dropped");
+        assertEquals(1, receiver.getAdapterDuplicateCount());
+    }
+
+    @Test
+    void passesRepeatedValuesAfterTheWindow() throws Exception {
+        // RAWv1 has no sequence number, the broadcasts of a tag whose values don't change are all the same
+        String scan = new FakeCommand().hang().write(dir, "scan");
+        String dumpA = new FakeCommand()
+                .sleep(0.5)
+                .emit(FakeCommand.rawV1(TAG, -70, 21, 40))
+                .sleep(0.5)
+                .emit(FakeCommand.rawV1(TAG, -71, 21, 40))
+                .sleep(0.5)
+                .emit(FakeCommand.rawV1(TAG, -72, 21, 40))
+                .hang()
+                .write(dir, "dump-a");
+        String dumpB = new FakeCommand().hang().write(dir, "dump-b");
+        start(List.of(Adapter.command("a", scan, dumpA), Adapter.command("b", scan, dumpB)), Duration.ofMillis(100));
+
+        List<RuuviValue> received = take(3);
+        assertEquals(List.of(-70, -71, -72), List.of(received.get(0).getRssi(), received.get(1).getRssi(), received.get(2).getRssi()));
+        assertEquals(0, receiver.getAdapterDuplicateCount());
+    }
+
+    @Test
+    void dropsRepeatsOnEachDecodeThread() throws Exception {
+        String scan = new FakeCommand().hang().write(dir, "scan");
+        FakeCommand dump = new FakeCommand().sleep(1);
+        for (int i = 0; i < 3; i++) {
+            dump.emit(FakeCommand.rawV1(TAG, -70, 21, 40)).emit(FakeCommand.rawV1(OTHER_TAG, -70, 5, 80));
+        }
+        String dumpA = dump.hang().write(dir, "dump-a");
+        String dumpB = new FakeCommand().hang().write(dir, "dump-b");
+        receiver = new Receiver(List.of(Adapter.command("a", scan, dumpA), Adapter.command("b", scan, dumpB)));
+        receiver.setDecodeThreads(2);
+        receiver.setDeduplication(true, Duration.ZERO);
+        start(Duration.ZERO);
+
+        List<RuuviValue> received = take(2);
+        assertEquals(2, received.stream().map(RuuviValue::getMac).distinct().count());
+        assertNull(measurements.poll(1, TimeUnit.SECONDS), "the repeats are dropped");
+        assertEquals(4, receiver.getRepeatCount());
+    }
+
+    @Test
+    void disposeDeliversWhatEachStageHolds() throws Exception {
+        String scan = new FakeCommand().hang().write(dir, "scan");
+        String dumpA = new FakeCommand().sleep(0.5).emit(FakeCommand.rawV1(TAG, -70, 21, 40)).hang().write(dir, "dump-a");
+        String dumpB = new FakeCommand().hang().write(dir, "dump-b");
+        receiver = new Receiver(List.of(Adapter.command("a", scan, dumpA), Adapter.command("b", scan, dumpB)));
+        PipelineMetrics metrics = new PipelineMetrics();
+        receiver.setMetrics(metrics);
+        receiver.setDecodeThreads(1);
+        receiver.setAdapterDeduplication(Duration.ofMinutes(1));
+        List<RuuviData> batched = new ArrayList<>();
+        receiver.addBatchMeasurementListener(batch -> batched.addAll(batch), 100, Duration.ofMinutes(1));
+        receiver.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (metrics.getPacketsParsed(ReceiverMetrics.ParseOutcome.PARSED) == 0) {
+            assertTrue(System.nanoTime() < deadline, "the packet was not decoded");
+            Thread.sleep(20);
+        }
+        assertTrue(batched.isEmpty(), "the copy waits for the deduplication window");
+        receiver.dispose();
+        receiver = null;
+
+        // the copy held for deduplication is passed on before the batch listener is closed
+        assertEquals(1, batched.size());
+        assertEquals(TAG, batched.get(0).getMeasurement().getMac());
+    }
+
+    @Test
+    void keepsCheckingForStallsWhileASubscriberBlocks() throws Exception {
+        String scan = new FakeCommand().hang().write(dir, "scan");
+        FakeCommand dump = new FakeCommand().sleep(0.5);
+        for (int i = 0; i < 4; i++) {
+            dump.emit(FakeCommand.rawV1(TAG, -70, 20 + i, 40));
+        }
+        String dumpA = dump.hang().write(dir, "dump-a");
+        String dumpB = new FakeCommand().hang().write(dir, "dump-b");
+        receiver = new Receiver(List.of(Adapter.command("a", scan, dumpA), Adapter.command("b", scan, dumpB)));
+        receiver.setStallTimeout(Duration.ofSeconds(2));
+        BlockingQueue<String> stalled = new LinkedBlockingQueue<>();
+        receiver.addHealthListener((adapter, previous, current) -> {
+            if (current == HealthState.STALLED) {
+                stalled.add(adapter.getId());
+            }
+        });
+        // a subscriber without demand, the copies flushed after the deduplication window block on it
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        receiver.createPublisher(1, OverflowPolicy.BLOCK).subscribe(new Flow.Subscriber<>() {
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            public void onNext(RuuviData item) {
+            }
+
+            public void onError(Throwable throwable) {
+            }
+
+            public void onComplete() {
+            }
+        });
+        receiver.start();
+
+        try {
+            // both go silent, a after its packets
+            Set<String> detected = new HashSet<>();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (detected.size() < 2 && System.nanoTime() < deadline) {
+                String id = stalled.poll(100, TimeUnit.MILLISECONDS);
+                if (id != null) {
+                    detected.add(id);
+                }
+            }
+            assertEquals(Set.of("a", "b"), detected, "the silent adapters are detected");
+        } finally {
+            subscription[0].cancel();
+        }
+    }
+
+    private void start(List<Adapter> adapters, Duration deduplicationWindow) {
+        receiver = new Receiver(adapters);
+        start(deduplicationWindow);
+    }
+
+    private void start(Duration deduplicationWindow) {
+        receiver.setAdapterDeduplication(deduplicationWindow);
+        receiver.addMeasurementListener((measurement, derived) -> measurements.add(measurement));
+        receiver.start();
+    }
+
+    private List<RuuviValue> take(int count) throws InterruptedException {
+        List<RuuviValue> received = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            RuuviValue measurement = measurements.poll(10, TimeUnit.SECONDS);
+            assertNotNull(measurement, "measurement " + (i + 1) + " of " + count);
+            received.add(measurement);
+        }
+        return received;
+    }
+}
@@ -0,0 +1,164 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs {@link HCIParser} and {@link HCIByteParser} with a {@link PacketFilter}
+ * on the capture, and compares what they parse with the packets of the
+ * unfiltered capture the rules keep.
+ */
+class PacketFilterTest {
+
+    private static final String CAPTURE = "/captures/mixed.hcidump.txt";
+    private static final String TAG = "F4A57424B1D2";
+    private static final String OTHER_TAG = "EE03B7C1D4A5";
+
+    @Test
+    void keepsTheAllowedDevices() throws IOException {
+        assertFiltered(() -> {
+            PacketFilter filter = new PacketFilter();
+            filter.allow("F4:A5:74:24:B1:D2");
+            filter.allowAll(List.of(OTHER_TAG, "C6A1E9F0B3D8"));
+            filter.removeAllowed("c6-a1-e9-f0-b3-d8");
+            return filter;
+        }, data -> data.mac == null || data.mac.equals(TAG) || data.mac.equals(OTHER_TAG));
+    }
+
+    @Test
+    void rejectsTheDeniedDevicesEvenIfAllowed() throws IOException {
+        assertFiltered(() -> {
+            PacketFilter filter = new PacketFilter();
+            filter.allowAll(List.of(TAG, OTHER_TAG));
+            filter.denyAll(List.of(OTHER_TAG, "C6A1E9F0B3D8"));
+            return filter;
+        }, data -> data.mac == null || data.mac.equals(TAG));
+
+        assertFiltered(() -> {
+            PacketFilter filter = new PacketFilter();
+            filter.deny(TAG);
+            filter.deny(OTHER_TAG);
+            filter.removeDenied(OTHER_TAG);
+            return filter;
+        }, data -> !TAG.equals(data.mac));
+    }
+
+    @Test
+    void keepsOnlyTheRuuviAdvertisements() throws IOException {
+        List<HCIData> kept = assertFiltered(() -> {
+            PacketFilter filter = new PacketFilter();
+            filter.setRuuviManufacturerOnly(true);
+            return filter;
+        }, PacketFilterTest::hasRuuviManufacturerData);
+        assertTrue(kept.stream().map(data -> data.mac).distinct().count() > 1, "a few tags");
+
+        assertFiltered(() -> {
+            PacketFilter filter = new PacketFilter();
+            filter.setRuuviManufacturerOnly(true);
+            filter.deny(TAG);
+            return filter;
+        }, data -> hasRuuviManufacturerData(data) && !TAG.equals(data.mac));
+    }
+
+    @Test
+    void rejectsAnInvalidMacAddress() {
+        PacketFilter filter = new PacketFilter();
+        assertThrows(IllegalArgumentException.class, () -> filter.allow("F4:A5:74:24:B1"));
+        assertThrows(IllegalArgumentException.class, () -> filter.deny("F4:A5:74:24:B1:DX"));
+        assertTrue(filter.acceptMac(Util.macToLong(TAG)));
+    }
+
+    @Test
+    void findsEachOfManyMacAddresses() {
+        PacketFilter filter = new PacketFilter();
+        List<String> macs = new ArrayList<>();
+        for (long mac = 0xF4A574000000L; mac < 0xF4A574000000L + 1000 * 7919; mac += 7919) {
+            macs.add(String.format("%012X", mac));
+        }
+        filter.allowAll(macs);
+        for (String mac : macs) {
+            assertTrue(filter.acceptMac(Util.macToLong(mac)), mac);
+        }
+        assertFalse(filter.acceptMac(0xF4A574000001L));
+        assertFalse(filter.acceptMac(0));
+        assertEquals(2, filter.getRejectedByAllowlistCount());
+    }
+
+    /**
+     * Asserts that each parser with a filter of the rules keeps the packets of
+     * the unfiltered capture that match, and counts the rest as rejected. The
+     * MAC rules don't apply to the events other than advertising reports,
+     * which have no MAC.
+     *
+     * @return the packets kept
+     */
+    private static List<HCIData> assertFiltered(Supplier<PacketFilter> rules, Predicate<HCIData> kept) throws IOException {
+        List<HCIData> all = parse(new HCIByteParser()::readLine);
+        List<HCIData> expected = all.stream().filter(kept).collect(Collectors.toList());
+        assertTrue(expected.size() > 0 && expected.size() < all.size(), expected.size() + " of " + all.size() + " kept");
+
+        HCIParser textParser = new HCIParser();
+        PacketFilter textFilter = rules.get();
+        textParser.setPacketFilter(textFilter);
+        HCIByteParser byteParser = new HCIByteParser();
+        PacketFilter byteFilter = rules.get();
+        byteParser.setPacketFilter(byteFilter);
+
+        assertEquals(strings(expected), strings(parse(textParser::readLine)), "the text parser");
+        assertEquals(strings(expected), strings(parse(byteParser::readLine)), "the byte parser");
+        for (PacketFilter filter : List.of(textFilter, byteFilter)) {
+            assertEquals(expected.size(), filter.getAcceptedCount());
+            assertEquals(all.size() - expected.size(), filter.getRejectedByAllowlistCount()
+                    + filter.getRejectedByDenylistCount() + filter.getRejectedByManufacturerCount());
+        }
+        return expected;
+    }
+
+    private static boolean hasRuuviManufacturerData(HCIData data) {
+        HCIData.Report.AdvertisementData adData = data.findAdvertisementDataByType(0xFF);
+        return adData != null && adData.data.size() >= 2
+                && adData.data.get(0) == (byte) 0x99 && adData.data.get(1) == (byte) 0x04;
+    }
+
+    private static List<String> strings(List<HCIData> packets) {
+        return packets.stream().map(HCIData::toString).collect(Collectors.toList());
+    }
+
+    private static List<HCIData> parse(Function<String, HCIData> parser) throws IOException {
+        List<HCIData> packets = new ArrayList<>();
+        boolean dataReceived = false;
+        for (String line : lines()) {
+            if (!dataReceived && !line.startsWith("> ")) {
+                continue; // skip the hcidump banner, like Receiver does
+            }
+            dataReceived = true;
+            HCIData data = parser.apply(line);
+            if (data != null) {
+                packets.add(data);
+            }
+        }
+        return packets;
+    }
+
+    private static String[] lines() throws IOException {
+        try (InputStream in = PacketFilterTest.class.getResourceAsStream(CAPTURE)) {
+            assertNotNull(in, "missing capture " + CAPTURE);
+            return new String(in.readAllBytes(), StandardCharsets.US_ASCII).split("\n");
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PipelineMetricsTest {
+
+    private final PipelineMetrics metrics = new PipelineMetrics();
+
+    @Test
+    void forgetsRemovedListeners() {
+        MeasurementListener first = (measurement, derived) -> {
+        };
+        MeasurementListener second = (measurement, derived) -> {
+        };
+        metrics.listenerNotified(first, 1000);
+        metrics.listenerNotified(second, 2000);
+        assertEquals(2, metrics.getListenerLatencies().size());
+
+        metrics.listenerRemoved(first);
+        assertEquals(1, metrics.getListenerLatencies().size());
+        assertEquals(2000, metrics.getListenerLatencies().values().iterator().next().getMax());
+
+        metrics.listenerRemoved(second);
+        assertEquals(0, metrics.getListenerLatencies().size());
+    }
+
+    @Test
+    void recordsTheLastMeasurementsOfEachTagFromSeveralThreads() throws InterruptedException {
+        int tags = 1000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int n = 0; n < 100; n++) {
+                    for (long mac = 0; mac < tags; mac++) {
+                        metrics.measurementReceived(0xF4A574000000L + mac, System.nanoTime());
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Set<String> macs = metrics.getTimeSinceLastMeasurement().keySet();
+        assertEquals(tags, macs.size());
+        assertTrue(macs.contains(CompactRuuviValue.macToString(0xF4A574000000L + tags - 1)));
+    }
+}
@@ -0,0 +1,178 @@
+package outskirtslabs.ruuvi;
+
+import fi.tkgwf.ruuvi.common.bean.RuuviMeasurement;
+import fi.tkgwf.ruuvi.common.parser.impl.AnyDataFormatParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Decodes fuzzed manufacturer specific data with {@link RawPayloadDecoder}
+ * and with {@link AnyDataFormatParser}, and compares every field.
+ */
+class RawPayloadDecoderTest {
+
+    private static final int PAYLOADS = 200_000;
+
+    private final AnyDataFormatParser reference = new AnyDataFormatParser();
+    private final CompactRuuviValue decoded = new CompactRuuviValue();
+
+    @Test
+    void decodesFuzzedPayloadsLikeRuuvitagCommon() {
+        Random random = new Random(20241017);
+        int decodedCount = 0;
+        for (int n = 0; n < PAYLOADS; n++) {
+            byte[] payload = payload(random);
+            // decode from the middle of a larger packet, like from a ByteSlice
+            int offset = random.nextInt(8);
+            byte[] packet = new byte[offset + payload.length + random.nextInt(8)];
+            random.nextBytes(packet);
+            System.arraycopy(payload, 0, packet, offset, payload.length);
+
+            boolean decodedRaw = RawPayloadDecoder.decode(packet, offset, payload.length, decoded);
+            RuuviMeasurement expected = reference.parse(payload);
+            if (decodedRaw) {
+                decodedCount++;
+                assertNotNull(expected, () -> toHex(payload));
+                assertSameFields(expected, decoded, payload);
+            } else {
+                assertTrue(expected == null || expected.getDataFormat() != 3 && expected.getDataFormat() != 5, () -> toHex(payload));
+            }
+        }
+        assertTrue(decodedCount > PAYLOADS / 2, "most payloads are RAWv1 or RAWv2");
+    }
+
+    @Test
+    void decodesTheNotAvailableValuesOfRawV2() {
+        byte[] payload = rawV2();
+        Arrays.fill(payload, 3, payload.length, (byte) 0xFF);
+        payload[3] = (byte) 0x80; // temperature
+        payload[4] = 0;
+        for (int i = 9; i <= 13; i += 2) { // acceleration
+            payload[i] = (byte) 0x80;
+            payload[i + 1] = 0;
+        }
+
+        assertTrue(RawPayloadDecoder.decode(payload, 0, payload.length, decoded));
+        assertEquals(CompactRuuviValue.DATA_FORMAT, decoded.getPresentFields());
+        assertSameFields(reference.parse(payload), decoded, payload);
+    }
+
+    @Test
+    void leavesOtherDataToRuuvitagCommon() {
+        byte[] payload = rawV2();
+        payload[0] = 0x59; // another manufacturer
+        assertFalse(RawPayloadDecoder.decode(payload, 0, payload.length, decoded));
+        assertFalse(RawPayloadDecoder.decode(rawV2(), 0, 23, decoded), "truncated");
+    }
+
+    /**
+     * @return manufacturer specific data that is mostly valid RAWv1 or RAWv2,
+     * with "not available" values, other formats, other manufacturers and
+     * wrong lengths mixed in
+     */
+    private static byte[] payload(Random random) {
+        int kind = random.nextInt(20);
+        int format = kind < 8 ? 3 : kind < 18 ? 5 : random.nextInt(256);
+        int length = format == 3 ? 16 : format == 5 ? 24 : 3 + random.nextInt(30);
+        if (random.nextInt(20) == 0) {
+            length = 3 + random.nextInt(30);
+        }
+        byte[] payload = new byte[length];
+        random.nextBytes(payload);
+        payload[0] = (byte) 0x99;
+        payload[1] = 0x04;
+        if (random.nextInt(50) == 0) {
+            payload[random.nextInt(2)] = (byte) random.nextInt(256);
+        }
+        payload[2] = (byte) format;
+        if (format == 5) {
+            for (int field = 0; field < 10; field++) {
+                if (random.nextInt(4) == 0) {
+                    notAvailable(payload, field);
+                }
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Sets a field of RAWv2 to its "not available" value, where it fits
+     */
+    private static void notAvailable(byte[] payload, int field) {
+        int[] offsets = {3, 5, 7, 9, 11, 13, 15, 15, 17, 18};
+        int i = offsets[field];
+        if (i + 1 >= payload.length) {
+            return;
+        }
+        switch (field) {
+            case 0: // temperature
+            case 3: // acceleration
+            case 4:
+            case 5:
+                payload[i] = (byte) 0x80;
+                payload[i + 1] = 0;
+                break;
+            case 6: // battery voltage, the 11 high bits
+                payload[i] = (byte) 0xFF;
+                payload[i + 1] |= 0xE0;
+                break;
+            case 7: // tx power, the 5 low bits
+                payload[i + 1] |= 0x1F;
+                break;
+            case 8: // movement counter
+                payload[i] = (byte) 0xFF;
+                break;
+            default: // humidity, pressure, sequence number
+                payload[i] = (byte) 0xFF;
+                payload[i + 1] = (byte) 0xFF;
+        }
+    }
+
+    private static byte[] rawV2() {
+        byte[] payload = new byte[24];
+        payload[0] = (byte) 0x99;
+        payload[1] = 0x04;
+        payload[2] = 5;
+        return payload;
+    }
+
+    private static void assertSameFields(RuuviMeasurement expected, CompactRuuviValue actual, byte[] payload) {
+        assertField(expected.getDataFormat(), actual, CompactRuuviValue.DATA_FORMAT, actual.getDataFormat(), payload, "data format");
+        assertField(expected.getTemperature(), actual, CompactRuuviValue.TEMPERATURE, actual.getTemperature(), payload, "temperature");
+        assertField(expected.getHumidity(), actual, CompactRuuviValue.HUMIDITY, actual.getHumidity(), payload, "humidity");
+        assertField(expected.getPressure(), actual, CompactRuuviValue.PRESSURE, actual.getPressure(), payload, "pressure");
+        assertField(expected.getAccelerationX(), actual, CompactRuuviValue.ACCELERATION_X, actual.getAccelerationX(), payload, "acceleration x");
+        assertField(expected.getAccelerationY(), actual, CompactRuuviValue.ACCELERATION_Y, actual.getAccelerationY(), payload, "acceleration y");
+        assertField(expected.getAccelerationZ(), actual, CompactRuuviValue.ACCELERATION_Z, actual.getAccelerationZ(), payload, "acceleration z");
+        assertField(expected.getBatteryVoltage(), actual, CompactRuuviValue.BATTERY_VOLTAGE, actual.getBatteryVoltage(), payload, "battery voltage");
+        assertField(expected.getTxPower(), actual, CompactRuuviValue.TX_POWER, actual.getTxPower(), payload, "tx power");
+        assertField(expected.getMovementCounter(), actual, CompactRuuviValue.MOVEMENT_COUNTER, actual.getMovementCounter(), payload, "movement counter");
+        assertField(expected.getMeasurementSequenceNumber(), actual, CompactRuuviValue.MEASUREMENT_SEQUENCE_NUMBER, actual.getMeasurementSequenceNumber(), payload, "sequence number");
+    }
+
+    /**
+     * Asserts that the field is missing from both, or that the values are
+     * equal, bit for bit for doubles
+     */
+    private static void assertField(Number expected, CompactRuuviValue actual, int field, Number value, byte[] payload, String name) {
+        assertEquals(expected != null, actual.has(field), () -> name + " present in " + toHex(payload));
+        if (expected != null) {
+            assertEquals(expected, value, () -> name + " of " + toHex(payload));
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02X", b));
+        }
+        return hex.toString();
+    }
+}
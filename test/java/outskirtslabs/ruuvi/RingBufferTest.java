@@ -0,0 +1,100 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RingBufferTest {
+
+    @Test
+    void roundsTheCapacityUpToAPowerOfTwo() {
+        assertEquals(2, new RingBuffer<>(1).capacity());
+        assertEquals(2, new RingBuffer<>(2).capacity());
+        assertEquals(4, new RingBuffer<>(3).capacity());
+        assertEquals(1024, new RingBuffer<>(1000).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new RingBuffer<>(0));
+    }
+
+    @Test
+    void pollsInTheOrderOffered() {
+        RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i, buffer.poll());
+        }
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    void keepsItsSlotsApartOverManyLaps() {
+        // a single slot would read as written and free for the next lap at once
+        RingBuffer<Integer> buffer = new RingBuffer<>(1);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(buffer.offer(2 * i));
+            assertTrue(buffer.offer(2 * i + 1));
+            assertFalse(buffer.offer(-1));
+            assertEquals(2 * i, buffer.poll());
+            assertEquals(2 * i + 1, buffer.poll());
+            assertNull(buffer.poll());
+        }
+    }
+
+    @Test
+    void deliversEachElementOnceToConcurrentConsumers() throws InterruptedException {
+        RingBuffer<Long> buffer = new RingBuffer<>(64);
+        int threads = 2;
+        long perProducer = 20_000;
+        AtomicLong sum = new AtomicLong();
+        AtomicLong count = new AtomicLong();
+        CountDownLatch producersDone = new CountDownLatch(threads);
+        Thread[] all = new Thread[2 * threads];
+        for (int p = 0; p < threads; p++) {
+            long base = p * perProducer;
+            all[p] = new Thread(() -> {
+                for (long i = 1; i <= perProducer; i++) {
+                    while (!buffer.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+                producersDone.countDown();
+            });
+        }
+        for (int c = 0; c < threads; c++) {
+            all[threads + c] = new Thread(() -> {
+                while (true) {
+                    Long element = buffer.poll();
+                    if (element != null) {
+                        sum.addAndGet(element);
+                        count.incrementAndGet();
+                    } else if (producersDone.getCount() == 0 && buffer.isEmpty()) {
+                        return;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        for (Thread thread : all) {
+            thread.start();
+        }
+        for (Thread thread : all) {
+            thread.join(30_000);
+        }
+
+        long n = threads * perProducer;
+        assertEquals(n, count.get());
+        assertEquals(n * (n + 1) / 2, sum.get());
+    }
+}
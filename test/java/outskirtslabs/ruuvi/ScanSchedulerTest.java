@@ -0,0 +1,129 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Drives a scan scheduler with a simulated clock.
+ */
+class ScanSchedulerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long SAMPLING_INTERVAL = 60 * SECOND;
+    private static final long TAG = 0xF4A57424B1D2L;
+    private static final long OTHER_TAG = 0xC6A1E9F0B3D8L;
+
+    private long now;
+    private final ScanScheduler scheduler = new ScanScheduler(SAMPLING_INTERVAL, 2, () -> now);
+
+    @Test
+    void startsWithADiscoveryWindow() {
+        now = 5 * SECOND;
+        scheduler.plan();
+
+        assertEquals(5 * SECOND, scheduler.getWindowStart());
+        assertEquals(5 * SECOND + ScanScheduler.DISCOVERY_WINDOW_NANOS, scheduler.getWindowEnd());
+    }
+
+    @Test
+    void learnsTheIntervalFromTheSequenceNumbers() {
+        broadcast(0, TAG, 10, SECOND / 5);
+        broadcast(0, TAG, 13, 3 * SECOND + SECOND / 5); // two broadcasts were missed
+
+        assertEquals(SECOND, scheduler.getInterval(TAG));
+    }
+
+    @Test
+    void plansAShortWindowAroundTheNextBroadcastOfEachTag() {
+        discover();
+
+        now = 3 * SECOND;
+        scheduler.plan();
+        long start = scheduler.getWindowStart();
+        long end = scheduler.getWindowEnd();
+        // the tags broadcast at 200 and 700 ms past each second
+        assertTrue(start >= SAMPLING_INTERVAL && start <= SAMPLING_INTERVAL + SECOND / 5 - ScanScheduler.MIN_MARGIN_NANOS, "start " + start);
+        assertTrue(end - start < SECOND, "window of " + (end - start));
+        assertTrue(covers(start, end, SECOND / 5) && covers(start, end, 7 * SECOND / 10), "window " + start + " to " + end);
+    }
+
+    @Test
+    void countsTheTagsCaughtAndLeavesOutThoseMissed() {
+        discover();
+
+        // the first window catches both tags
+        planAndScan(true);
+        ScanCoverage coverage = scheduler.coverage();
+        assertEquals(2, coverage.getTags());
+        assertEquals(2, coverage.getExpected());
+        assertEquals(2, coverage.getReceived());
+
+        // the tags go quiet, the following windows miss them until they are left out
+        for (int i = 0; i < ScanScheduler.MAX_MISSES; i++) {
+            planAndScan(false);
+        }
+        coverage = scheduler.coverage();
+        assertEquals(0, coverage.getTags());
+        assertEquals(2 + 2 * ScanScheduler.MAX_MISSES, coverage.getExpected());
+        assertEquals(2, coverage.getReceived());
+    }
+
+    /**
+     * Runs the first discovery window, in which the tags broadcast every
+     * second, at 200 and 700 ms past the second, each observed in a shard of
+     * its own
+     */
+    private void discover() {
+        now = 0;
+        scheduler.plan();
+        for (int i = 0; i < 3; i++) {
+            broadcast(0, TAG, i, i * SECOND + SECOND / 5);
+            broadcast(1, OTHER_TAG, i, i * SECOND + 7 * SECOND / 10);
+        }
+        now = scheduler.getWindowEnd();
+        scheduler.windowEnded(ScanScheduler.DISCOVERY_WINDOW_NANOS);
+    }
+
+    /**
+     * Plans the next window, skips ahead to it and scans through it
+     *
+     * @param broadcasting whether the tags keep broadcasting
+     */
+    private void planAndScan(boolean broadcasting) {
+        scheduler.plan();
+        long start = scheduler.getWindowStart();
+        long end = scheduler.getWindowEnd();
+        if (broadcasting) {
+            for (long second = start / SECOND; second <= end / SECOND; second++) {
+                long at = second * SECOND + SECOND / 5;
+                if (at >= start && at <= end) {
+                    broadcast(0, TAG, (int) second, at);
+                }
+                at = second * SECOND + 7 * SECOND / 10;
+                if (at >= start && at <= end) {
+                    broadcast(1, OTHER_TAG, (int) second, at);
+                }
+            }
+        }
+        now = end;
+        scheduler.windowEnded(end - start);
+    }
+
+    private void broadcast(int shard, long mac, int sequence, long at) {
+        now = at;
+        scheduler.shard(shard).observe(mac, sequence);
+    }
+
+    /**
+     * @return true if the window covers a broadcast of a tag broadcasting
+     * every second at the given time past the second
+     */
+    private static boolean covers(long start, long end, long phase) {
+        long at = start - Math.floorMod(start, SECOND) + phase;
+        return at >= start ? at <= end : at + SECOND <= end;
+    }
+}
@@ -0,0 +1,129 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SequenceTrackerTest {
+
+    private static final long MAC = 0xF4A57424B1D2L;
+    private static final long START = 1_700_000_000_000L;
+
+    private final SequenceTracker tracker = new SequenceTracker();
+
+    @Test
+    void wrapsAroundFrom65534To0() {
+        List<int[]> gaps = new ArrayList<>();
+        tracker.addGapListener((mac, previous, sequence, missing, time) -> gaps.add(new int[]{previous, sequence, missing}));
+        track(65532, 0);
+        track(65533, 1);
+        track(65534, 2);
+        track(0, 3);
+        track(2, 4);
+
+        SequenceStatistics statistics = statistics();
+        assertEquals(1, statistics.getWraps());
+        assertEquals(0, statistics.getRestarts());
+        assertEquals(5, statistics.getReceived());
+        assertEquals(6, statistics.getExpected());
+        assertEquals(1, gaps.size());
+        assertEquals(List.of(0, 2, 1), List.of(gaps.get(0)[0], gaps.get(0)[1], gaps.get(0)[2]));
+        assertEquals(1, SequenceTracker.distance(65534, 0));
+    }
+
+    @Test
+    void tellsReorderedFromDuplicatesWithinTheWindow() {
+        track(100, 0);
+        track(110, 1); // 101 to 109 missing
+        track(105, 2); // late
+        track(105, 3); // a copy of it
+        track(110, 4); // a copy of the latest
+        track(100, 5); // a copy of the first
+        track(110 - SequenceTracker.WINDOW + 1, 6); // late, but before the first one
+
+        SequenceStatistics statistics = statistics();
+        assertEquals(2, statistics.getReordered());
+        assertEquals(3, statistics.getDuplicates());
+        assertEquals(4, statistics.getReceived());
+        assertEquals(12, statistics.getExpected());
+        assertEquals(8, statistics.getLost());
+        assertEquals(1, statistics.getGaps());
+        assertEquals(9, statistics.getLargestGap());
+    }
+
+    @Test
+    void countsALatePacketSentBeforeTheFirstOneAsReordered() {
+        // the adapter heard 12 first, 11 was sent before it but arrives after
+        track(12, 0);
+        track(11, 1);
+        track(13, 2);
+        track(11, 3);
+
+        SequenceStatistics statistics = statistics();
+        assertEquals(1, statistics.getReordered());
+        assertEquals(1, statistics.getDuplicates());
+        assertEquals(3, statistics.getReceived());
+        assertEquals(3, statistics.getExpected());
+        assertEquals(1.0, statistics.getReceivedRatio());
+    }
+
+    @Test
+    void forgetsTheSequenceNumbersThatLeftTheWindow() {
+        track(1000, 0);
+        track(1000 + SequenceTracker.WINDOW, 1);
+        // the first one is out of the window now, and a jump this far back is a restart
+        track(1000, 2);
+
+        SequenceStatistics statistics = statistics();
+        assertEquals(0, statistics.getDuplicates());
+        assertEquals(1, statistics.getRestarts());
+    }
+
+    @Test
+    void detectsARestart() {
+        for (int i = 0; i < 10; i++) {
+            track(40_000 + i, i);
+        }
+        // the firmware starts counting from 0 again; too far to be missed numbers one second on
+        track(3, 11);
+        track(4, 12);
+        // a jump forward that the tag could have made over a long time is not a restart
+        track(1000, 12 + 1000);
+
+        SequenceStatistics statistics = statistics();
+        assertEquals(1, statistics.getRestarts());
+        assertEquals(0, statistics.getWraps());
+        assertEquals(13, statistics.getReceived());
+        assertEquals(10 + 2 + 996, statistics.getExpected());
+        assertEquals(995, statistics.getLargestGap());
+    }
+
+    @Test
+    void tracksEachTagApart() {
+        track(10, 0);
+        tracker.track(MAC + 1, 10, START);
+        tracker.track(MAC + 1, 12, START + 1000);
+        track(11, 1);
+
+        assertEquals(0, statistics().getLost());
+        assertEquals(1, tracker.get("F4A57424B1D3").orElseThrow().getLost());
+        assertEquals(5, tracker.getTotal().getExpected());
+
+        tracker.remove("F4A57424B1D3");
+        assertEquals(1, tracker.getAll().size());
+    }
+
+    /**
+     * Tracks a sequence number of the tag received the seconds after the start
+     */
+    private void track(int sequence, int seconds) {
+        tracker.track(MAC, sequence, START + seconds * 1000L);
+    }
+
+    private SequenceStatistics statistics() {
+        return tracker.get("F4A57424B1D2").orElseThrow();
+    }
+}
@@ -0,0 +1,149 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.NavigableMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeSeriesStoreTest {
+
+    private static final String TAG = "F4A57424B1D2";
+    private static final long START = 1_700_000_000_000L;
+    private static final int CHUNK_SIZE = 16;
+    private static final int SEGMENT_BYTES = ChunkSegment.HEADER_BYTES
+            + 4 * (ChunkSegment.RECORD_HEADER_BYTES + ChunkEncoder.maxEncodedLength(TimeSeriesStore.COLUMNS.length, CHUNK_SIZE));
+
+    @TempDir
+    Path dir;
+
+    private TimeSeriesStore store;
+
+    @AfterEach
+    void close() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    void queriesTheChunksWrittenAndTheOneInMemory() throws IOException {
+        store = TimeSeriesStore.open(dir, SEGMENT_BYTES, 4L * SEGMENT_BYTES, CHUNK_SIZE);
+        append(0, 40);
+
+        TimeSeries all = store.query(TAG, AggregateField.TEMPERATURE, START, START + 40_000);
+        assertSeries(all, 0, 40);
+        assertTrue(store.getWrittenBytes() > 0, "two chunks written");
+        assertSeries(store.query(TAG, AggregateField.TEMPERATURE, START + 10_000, START + 35_000), 10, 35);
+        assertEquals(0, store.query("C0A57424B1D2", AggregateField.TEMPERATURE, START, START + 40_000).size());
+
+        NavigableMap<Long, FieldStatistics> buckets = store.downsample(TAG, AggregateField.TEMPERATURE, START, START + 40_000, Duration.ofSeconds(20));
+        assertEquals(2, buckets.size());
+    }
+
+    @Test
+    void recoversTheChunksAfterReopening() throws IOException {
+        store = TimeSeriesStore.open(dir, SEGMENT_BYTES, 4L * SEGMENT_BYTES, CHUNK_SIZE);
+        append(0, 40);
+        store.close();
+
+        store = TimeSeriesStore.open(dir, SEGMENT_BYTES, 4L * SEGMENT_BYTES, CHUNK_SIZE);
+        assertSeries(store.query(TAG, AggregateField.TEMPERATURE, START, Long.MAX_VALUE), 0, 40);
+        append(40, 50);
+        assertSeries(store.query(TAG, AggregateField.TEMPERATURE, START, Long.MAX_VALUE), 0, 50);
+    }
+
+    @Test
+    void dropsAChunkLeftIncompleteByACrash() throws IOException {
+        store = TimeSeriesStore.open(dir, SEGMENT_BYTES, 4L * SEGMENT_BYTES, CHUNK_SIZE);
+        append(0, 32);
+        store.flush();
+        long written = store.getWrittenBytes();
+        store.close();
+        store = null;
+
+        // corrupt the last byte of the second chunk, as if the crash came before it was synced
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.filter(file -> file.toString().endsWith(ChunkSegment.SUFFIX)).findFirst().orElseThrow();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            long last = ChunkSegment.HEADER_BYTES + written - 1;
+            file.seek(last);
+            int b = file.read();
+            file.seek(last);
+            file.write(b ^ 0xFF);
+        }
+
+        store = TimeSeriesStore.open(dir, SEGMENT_BYTES, 4L * SEGMENT_BYTES, CHUNK_SIZE);
+        assertSeries(store.query(TAG, AggregateField.TEMPERATURE, START, Long.MAX_VALUE), 0, 16);
+        append(100, 116);
+        store.flush();
+        assertEquals(2 * CHUNK_SIZE, store.query(TAG, AggregateField.TEMPERATURE, START, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    void deletesTheOldestSegmentsBeyondTheRetention() throws IOException {
+        store = TimeSeriesStore.open(dir, SEGMENT_BYTES, 2L * SEGMENT_BYTES, CHUNK_SIZE);
+        // the chunks compress to far less than the most they can take
+        int count = 1000 * CHUNK_SIZE;
+        append(0, count);
+        store.flush();
+
+        assertEquals(2, segmentFiles());
+        assertEquals(2L * SEGMENT_BYTES, store.getSizeBytes());
+        TimeSeries kept = store.query(TAG, AggregateField.TEMPERATURE, START, Long.MAX_VALUE);
+        assertTrue(kept.size() > 0 && kept.size() < count, kept.size() + " kept");
+        assertEquals(0, kept.size() % CHUNK_SIZE, "whole chunks deleted");
+        assertSeries(kept, count - kept.size(), count);
+
+        store.close();
+        store = TimeSeriesStore.open(dir, SEGMENT_BYTES, 2L * SEGMENT_BYTES, CHUNK_SIZE);
+        assertSeries(store.query(TAG, AggregateField.TEMPERATURE, START, Long.MAX_VALUE), count - kept.size(), count);
+    }
+
+    @Test
+    void isOpenedOnceAtATime() throws IOException {
+        store = TimeSeriesStore.open(dir, SEGMENT_BYTES, 4L * SEGMENT_BYTES, CHUNK_SIZE);
+        assertThrows(IOException.class, () -> TimeSeriesStore.open(dir, SEGMENT_BYTES, 4L * SEGMENT_BYTES, CHUNK_SIZE));
+    }
+
+    /**
+     * Appends the measurements from to to of a tag broadcasting every second,
+     * the temperature of each its index in hundredths of a degree
+     */
+    private void append(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            store.append(RuuviValue.builder()
+                    .mac(TAG)
+                    .dataFormat(5)
+                    .temperature(i / 100d)
+                    .time(START + i * 1000L)
+                    .build());
+        }
+    }
+
+    private static void assertSeries(TimeSeries series, int from, int to) {
+        assertEquals(to - from, series.size());
+        for (int i = from; i < to; i++) {
+            assertEquals(START + i * 1000L, series.getTime(i - from));
+            assertEquals(i / 100d, series.getValue(i - from));
+        }
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(ChunkSegment.SUFFIX)).count();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package outskirtslabs.ruuvi;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WindowedAggregatorTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    private final List<WindowSummary> summaries = new ArrayList<>();
+    private final WindowedAggregator aggregator = new WindowedAggregator(summaries::add, HOUR, HOUR, Set.of(AggregateField.TEMPERATURE));
+
+    @Test
+    void countsMeasurementsFromTheFutureInTheCurrentWindow() {
+        aggregator.add(data(System.currentTimeMillis() + HOUR, null, 25));
+        aggregator.add(data(null, null, 21));
+        aggregator.close();
+
+        assertEquals(1, summaries.size(), "summaries " + summaries);
+        WindowSummary summary = summaries.get(0);
+        assertEquals(2, summary.getCount());
+        assertEquals(0, summary.getLateCount());
+        assertEquals(0, aggregator.getLateCount());
+    }
+
+    @Test
+    void recognizesDuplicatesAcrossTheWraparound() {
+        // 65534 is followed by 0, so 62 is 63 sequence numbers after it
+        aggregator.add(data(null, 65534, 20));
+        aggregator.add(data(null, 62, 21));
+        aggregator.add(data(null, 65534, 20));
+        aggregator.close();
+
+        assertEquals(1, aggregator.getDuplicateCount());
+        assertEquals(2, summaries.get(0).getCount());
+        assertEquals(21.0, summaries.get(0).getStatistics().get(AggregateField.TEMPERATURE).getLast());
+    }
+
+    private static RuuviData data(Long time, Integer sequence, double temperature) {
+        RuuviValue measurement = RuuviValue.builder()
+                .mac("F4A57424B1D2")
+                .time(time)
+                .measurementSequenceNumber(sequence)
+                .temperature(temperature)
+                .build();
+        return new RuuviData(measurement, RuuviDerivedValue.NONE);
+    }
+}